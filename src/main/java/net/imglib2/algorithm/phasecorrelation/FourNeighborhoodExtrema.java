@@ -23,7 +23,9 @@ package net.imglib2.algorithm.phasecorrelation;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -36,11 +38,15 @@ import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.ImagePortion;
 
 public class FourNeighborhoodExtrema
 {
@@ -137,62 +143,357 @@ public class FourNeighborhoodExtrema
 		return res;
 	}
 	
+	/**
+	 * bounded collection of the N largest values and their (linear) indices, kept as a primitive min-heap,
+	 * so offering a value does not allocate anything
+	 */
+	public static class TopN
+	{
+		private final long[] indices;
+		private final double[] values;
+		private int size;
+
+		public TopN( final int capacity )
+		{
+			this.indices = new long[ Math.max( 0, capacity ) ];
+			this.values = new double[ Math.max( 0, capacity ) ];
+			this.size = 0;
+		}
+
+		public int size() { return size; }
+
+		/**
+		 * @param value a value
+		 * @return true if offering value would change the content of this TopN
+		 */
+		public boolean accepts( final double value )
+		{
+			return size < values.length || ( size > 0 && value > values[ 0 ] );
+		}
+
+		public void offer( final long index, final double value )
+		{
+			if ( size < values.length )
+			{
+				// append and sift up
+				int i = size++;
+				while ( i > 0 )
+				{
+					final int parent = ( i - 1 ) / 2;
+					if ( values[ parent ] <= value )
+						break;
+					indices[ i ] = indices[ parent ];
+					values[ i ] = values[ parent ];
+					i = parent;
+				}
+				indices[ i ] = index;
+				values[ i ] = value;
+			}
+			else if ( size > 0 && value > values[ 0 ] )
+			{
+				// replace the smallest value and sift down
+				int i = 0;
+				while ( true )
+				{
+					int child = 2 * i + 1;
+					if ( child >= size )
+						break;
+					if ( child + 1 < size && values[ child + 1 ] < values[ child ] )
+						++child;
+					if ( values[ child ] >= value )
+						break;
+					indices[ i ] = indices[ child ];
+					values[ i ] = values[ child ];
+					i = child;
+				}
+				indices[ i ] = index;
+				values[ i ] = value;
+			}
+		}
+
+		public void offerAll( final TopN other )
+		{
+			for ( int i = 0; i < other.size; ++i )
+				offer( other.indices[ i ], other.values[ i ] );
+		}
+
+		/**
+		 * @return positions into this TopN's arrays, sorted by descending value (ascending index for equal values)
+		 */
+		private Integer[] sortedOrder()
+		{
+			final Integer[] order = new Integer[ size ];
+			for ( int i = 0; i < size; ++i )
+				order[ i ] = i;
+
+			Arrays.sort( order, new Comparator< Integer >()
+			{
+				@Override
+				public int compare( final Integer o1, final Integer o2 )
+				{
+					final int c = Double.compare( values[ o2 ], values[ o1 ] );
+					return c != 0 ? c : Long.compare( indices[ o1 ], indices[ o2 ] );
+				}
+			});
+
+			return order;
+		}
+
+		/**
+		 * create the output list, only here Points are created
+		 * @param space the interval the linear indices refer to (flat index of its first pixel is 0, dimension 0 is the fastest)
+		 * @return list of positions and values, sorted by descending value
+		 */
+		public ArrayList< Pair< Localizable, Double > > toList( final Interval space )
+		{
+			final int n = space.numDimensions();
+			final ArrayList< Pair< Localizable, Double > > list = new ArrayList< Pair< Localizable, Double > >( size );
+
+			for ( final int i : sortedOrder() )
+			{
+				final long[] position = new long[ n ];
+				long rest = indices[ i ];
+				for ( int d = 0; d < n; ++d )
+				{
+					position[ d ] = space.min( d ) + rest % space.dimension( d );
+					rest /= space.dimension( d );
+				}
+				list.add( new ValuePair< Localizable, Double >( new Point( position ), values[ i ] ) );
+			}
+
+			return list;
+		}
+	}
+
 	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMaxMT( final RandomAccessible< T > img, final Interval region, final int maxN , ExecutorService service){
 		
 		
 		int nTasks = Runtime.getRuntime().availableProcessors() * 4;
 		List<Interval> intervals = splitAlongLargestDimension(region, nTasks);
-		List<Future<ArrayList< Pair< Localizable, Double > >>> futures = new ArrayList<Future<ArrayList<Pair<Localizable,Double>>>>();
+		List<Future<TopN>> futures = new ArrayList<Future<TopN>>();
 		
 		for (final Interval i : intervals){
-			futures.add(service.submit(new Callable<ArrayList< Pair< Localizable, Double > >>() {
+			futures.add(service.submit(new Callable<TopN>() {
 
 				@Override
-				public ArrayList<Pair<Localizable, Double>> call() throws Exception {
-					return findMax(img, i, maxN);
+				public TopN call() throws Exception {
+					// indices relative to the whole region, so the per-thread results can be merged directly
+					return findMax(img, i, region, maxN);
 				}
 			}));
 		}
 		
-		List<List< Pair< Localizable, Double > >> toMerge = new ArrayList<List<Pair<Localizable,Double>>>();
+		final TopN merged = new TopN( maxN );
 		
-		for (Future<ArrayList< Pair< Localizable, Double > >> f : futures){
+		// a missing part could silently drop the true peak
+		for (Future<TopN> f : futures){
 			try {
-				toMerge.add(f.get());
+				merged.offerAll(f.get());
 			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while searching the PCM for maxima", e );
 			} catch (ExecutionException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				throw new RuntimeException( "Failed to search a part of the PCM for maxima", e.getCause() );
 			}
 		}
 		
-		ArrayList< Pair< Localizable, Double > > res = merge(toMerge, maxN, new Comparator<Pair< Localizable, Double >>() {
+		return merged.toList( region );
+	}
 
-			@Override
-			public int compare(Pair<Localizable, Double> o1, Pair<Localizable, Double> o2) {
-				return (int) Math.signum(o1.getB() - o2.getB());
+	/**
+	 * find the maxN highest local maxima of pcm, assuming periodic boundary conditions.
+	 * If pcm is an ArrayImg of FloatType, the backing float[] is scanned directly.
+	 * @param pcm the image to search
+	 * @param maxN maximum number of maxima to return
+	 * @param service thread pool
+	 * @param <T> pixel type
+	 * @return list of positions and values, sorted by descending value
+	 */
+	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMaxMT( final RandomAccessibleInterval< T > pcm, final int maxN, final ExecutorService service )
+	{
+		return findMaxMTPeriodic( pcm, pcm, maxN, service );
+	}
+
+	/**
+	 * find the maxN highest local maxima of pcm within window, assuming periodic boundary conditions.
+	 * The window may extend beyond pcm (it wraps around), the neighborhood check still uses all of pcm.
+	 * If pcm is an ArrayImg of FloatType, the backing float[] is scanned directly.
+	 * @param pcm the image to search
+	 * @param window the (periodic) region to search, at most as large as pcm in every dimension
+	 * @param maxN maximum number of maxima to return
+	 * @param service thread pool
+	 * @param <T> pixel type
+	 * @return list of positions (inside pcm) and values, sorted by descending value
+	 */
+	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMaxMTPeriodic( final RandomAccessibleInterval< T > pcm, final Interval window, final int maxN, final ExecutorService service )
+	{
+		final int n = pcm.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( pcm );
+
+		// window relative to the pcm origin, wrapped into the pcm
+		final long[] windowMin = new long[ n ];
+		final long[] windowDims = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			windowDims[ d ] = Math.min( window.dimension( d ), dims[ d ] );
+			windowMin[ d ] = windowDims[ d ] == dims[ d ] ? 0 : Math.floorMod( window.min( d ) - pcm.min( d ), dims[ d ] );
+		}
+
+		final float[] array = PhaseCorrelation2ArrayUtil.getRealFloatArray( pcm );
+
+		if ( array == null )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = pcm.min( d ) + windowMin[ d ];
+				max[ d ] = min[ d ] + windowDims[ d ] - 1;
 			}
-		});
 
-		return res;
+			final ArrayList< Pair< Localizable, Double > > maxima = findMaxMT( Views.extendPeriodic( pcm ), new FinalInterval( min, max ), maxN, service );
+
+			// map positions beyond the pcm back into it
+			final ArrayList< Pair< Localizable, Double > > wrapped = new ArrayList< Pair< Localizable, Double > >( maxima.size() );
+			for ( final Pair< Localizable, Double > p : maxima )
+			{
+				final long[] position = new long[ n ];
+				for ( int d = 0; d < n; ++d )
+					position[ d ] = pcm.min( d ) + Math.floorMod( p.getA().getLongPosition( d ) - pcm.min( d ), dims[ d ] );
+				wrapped.add( new ValuePair< Localizable, Double >( new Point( position ), p.getB() ) );
+			}
+
+			return wrapped;
+		}
+
+		long nLines = 1;
+		for ( int d = 1; d < n; ++d )
+			nLines *= windowDims[ d ];
+
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( nLines );
+		final List< Future< TopN > > futures = new ArrayList< Future< TopN > >();
+
+		for ( final ImagePortion ip : portions )
+		{
+			futures.add( service.submit( new Callable< TopN >()
+			{
+				@Override
+				public TopN call() throws Exception
+				{
+					return findMaxPeriodic( array, dims, windowMin, windowDims, ip.getStartPosition(), ip.getStartPosition() + ip.getLoopSize(), maxN );
+				}
+			}));
+		}
+
+		final TopN merged = new TopN( maxN );
+
+		// a missing portion could silently drop the true peak
+		for ( final Future< TopN > f : futures )
+		{
+			try
+			{
+				merged.offerAll( f.get() );
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while searching the PCM for maxima", e );
+			}
+			catch ( ExecutionException e )
+			{
+				throw new RuntimeException( "Failed to search a part of the PCM for maxima", e.getCause() );
+			}
+		}
+
+		return merged.toList( pcm );
+	}
+
+	/**
+	 * scan lines [startLine, endLine) (along dimension 0) of a window of a flat float image for local maxima with periodic boundaries,
+	 * the window starts at windowMin (inside the image) and wraps around, the returned indices refer to the whole image
+	 */
+	private static TopN findMaxPeriodic( final float[] img, final long[] dims, final long[] windowMin, final long[] windowDims, final long startLine, final long endLine, final int maxN )
+	{
+		final int n = dims.length;
+		final TopN top = new TopN( maxN );
+
+		final int[] strides = new int[ n ];
+		strides[ 0 ] = 1;
+		for ( int d = 1; d < n; ++d )
+			strides[ d ] = strides[ d - 1 ] * (int) dims[ d - 1 ];
+
+		final int lineLength = (int) dims[ 0 ];
+		final int windowLength = (int) windowDims[ 0 ];
+		final int windowStart = (int) windowMin[ 0 ];
+		final long[] position = new long[ n ];
+
+		for ( long line = startLine; line < endLine; ++line )
+		{
+			long rest = line;
+			int lineStart = 0;
+			for ( int d = 1; d < n; ++d )
+			{
+				position[ d ] = ( windowMin[ d ] + rest % windowDims[ d ] ) % dims[ d ];
+				rest /= windowDims[ d ];
+				lineStart += (int) position[ d ] * strides[ d ];
+			}
+
+A:			for ( int wx = 0; wx < windowLength; ++wx )
+			{
+				int x = windowStart + wx;
+				if ( x >= lineLength )
+					x -= lineLength;
+
+				final int i = lineStart + x;
+				final float value = img[ i ];
+
+				// cannot make it into the list anyway, skip the neighborhood check
+				if ( !top.accepts( value ) )
+					continue;
+
+				position[ 0 ] = x;
+
+				for ( int d = 0; d < n; ++d )
+				{
+					final int wrap = ( (int) dims[ d ] - 1 ) * strides[ d ];
+					final int fwd = position[ d ] == dims[ d ] - 1 ? i - wrap : i + strides[ d ];
+					final int bck = position[ d ] == 0 ? i + wrap : i - strides[ d ];
+
+					if ( value < img[ fwd ] || value < img[ bck ] )
+						continue A;
+				}
+
+				top.offer( i, value );
+			}
+		}
+
+		return top;
 	}
 	
 	public static < T extends RealType< T > > ArrayList< Pair< Localizable, Double > > findMax( final RandomAccessible< T > img, final Interval region, final int maxN )
+	{
+		return findMax( img, region, region, maxN ).toList( region );
+	}
+
+	/**
+	 * find local maxima in region, the indices in the result are relative to the interval space (which must contain region)
+	 */
+	private static < T extends RealType< T > > TopN findMax( final RandomAccessible< T > img, final Interval region, final Interval space, final int maxN )
 	{
 		final Cursor< T > c = Views.iterable( Views.interval( img, region ) ).localizingCursor();
 		final RandomAccess< T > r = img.randomAccess();
 		final int n = img.numDimensions();
 
-		final ArrayList< Pair< Localizable, Double > > list = new ArrayList< Pair< Localizable, Double > >();
-
-		for ( int i = 0; i < maxN; ++i )
-			list.add( new ValuePair< Localizable, Double >( null, -Double.MAX_VALUE ) );
+		final TopN top = new TopN( maxN );
 
 A:		while ( c.hasNext() )
 		{
 			final double type = c.next().getRealDouble();
+
+			// cannot make it into the list anyway, skip the neighborhood check
+			if ( !top.accepts( type ) )
+				continue;
+
 			r.setPosition( c );
 
 			for ( int d = 0; d < n; ++d )
@@ -210,34 +511,18 @@ A:		while ( c.hasNext() )
 				r.fwd( d );
 			}
 
-			
-			for ( int i = maxN - 1; i >= 0; --i )
+			// linear index in space
+			long index = 0, stride = 1;
+			for ( int d = 0; d < n; ++d )
 			{
-				if ( type < list.get( i ).getB() )
-				{
-					if ( i == maxN - 1 )
-					{
-						continue A;
-					}
-					else
-					{
-						list.add( i + 1, new ValuePair< Localizable, Double >( new Point( c ), type ) );
-						list.remove( maxN );
-						continue A;
-					}
-				}
+				index += ( c.getLongPosition( d ) - space.min( d ) ) * stride;
+				stride *= space.dimension( d );
 			}
 
-			list.add( 0, new ValuePair< Localizable, Double >( new Point( c ), type ) );
-			list.remove( maxN );
+			top.offer( index, type );
 		}
 
-		// remove all null elements
-		for ( int i = maxN -1; i >= 0; --i )
-			if ( list.get( i ).getA() == null )
-				list.remove(  i );
-
-		return list;
+		return top;
 	}
 
 	public static void main( String[] args )
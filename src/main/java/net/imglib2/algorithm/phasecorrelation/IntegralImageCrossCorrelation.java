@@ -0,0 +1,419 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
+
+/**
+ * Verifies candidate shifts of a phase correlation by cross-correlation, using summed-area tables
+ * (of the intensities and squared intensities) of both images that are built once per pair.
+ * Means and variances of every candidate overlap then come in O(2^n) lookups and only a single
+ * pass over the overlap (for the cross term) is needed per candidate, instead of the two passes of
+ * {@link PhaseCorrelation2Util#getCorrelation(RandomAccessibleInterval, RandomAccessibleInterval)}.
+ *
+ * Results are identical (up to floating point precision) to
+ * {@link PhaseCorrelationPeak2#calculateCrossCorr(RandomAccessibleInterval, RandomAccessibleInterval, long)}
+ * without subpixel interpolation.
+ */
+public class IntegralImageCrossCorrelation
+{
+	/*
+	 * the tables need 4 doubles per pixel of both images (about 4x the float images themselves),
+	 * pairs that would need more are verified directly
+	 */
+	public static long maxTableBytes = 512L * 1024 * 1024;
+
+	/*
+	 * building the tables costs about as much as verifying one candidate directly,
+	 * so they only pay off if there are at least this many candidates
+	 */
+	public static int minCandidates = 3;
+
+	private final int n;
+
+	private final float[] img1, img2;
+	private final long[] dims1, dims2;
+
+	// global offsets subtracted before accumulating, keeps the sums small and the variances precise
+	private final double offset1, offset2;
+
+	// summed-area tables, size dims+1 in every dimension
+	private final double[] sum1, sumSq1, sum2, sumSq2;
+	private final long[] tableStrides1, tableStrides2;
+
+	/**
+	 * @param img1 first image (zero-min)
+	 * @param img2 second image (zero-min)
+	 * @param service thread pool used to set up the tables
+	 * @param <T> pixel type image 1
+	 * @param <S> pixel type image 2
+	 */
+	public < T extends RealType< T >, S extends RealType< S > > IntegralImageCrossCorrelation(
+			final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< S > img2, final ExecutorService service )
+	{
+		this.n = img1.numDimensions();
+
+		this.img1 = asFloatArray( img1, service );
+		this.img2 = asFloatArray( img2, service );
+		this.dims1 = Intervals.dimensionsAsLongArray( img1 );
+		this.dims2 = Intervals.dimensionsAsLongArray( img2 );
+
+		this.offset1 = mean( this.img1 );
+		this.offset2 = mean( this.img2 );
+
+		this.tableStrides1 = tableStrides( dims1 );
+		this.tableStrides2 = tableStrides( dims2 );
+
+		this.sum1 = new double[ tableSize( dims1 ) ];
+		this.sumSq1 = new double[ sum1.length ];
+		this.sum2 = new double[ tableSize( dims2 ) ];
+		this.sumSq2 = new double[ sum2.length ];
+
+		buildTables( this.img1, dims1, offset1, sum1, sumSq1, service );
+		buildTables( this.img2, dims2, offset2, sum2, sumSq2, service );
+	}
+
+	/**
+	 * check whether summed-area tables for images of this size fit into Java arrays and into {@link #maxTableBytes}
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @return true if an {@link IntegralImageCrossCorrelation} can be created
+	 */
+	public static boolean isApplicable( final Interval img1, final Interval img2 )
+	{
+		long size1 = 1, size2 = 1;
+		for ( int d = 0; d < img1.numDimensions(); ++d )
+		{
+			size1 *= img1.dimension( d ) + 1;
+			size2 *= img2.dimension( d ) + 1;
+		}
+		return size1 < Integer.MAX_VALUE && size2 < Integer.MAX_VALUE && sizeInBytes( img1, img2 ) <= maxTableBytes;
+	}
+
+	/**
+	 * check whether it pays off to verify nCandidates shifts with summed-area tables
+	 * (see {@link #isApplicable(Interval, Interval)} and {@link #minCandidates})
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @param nCandidates number of shifts that will be verified
+	 * @return true if an {@link IntegralImageCrossCorrelation} should be used
+	 */
+	public static boolean isApplicable( final Interval img1, final Interval img2, final int nCandidates )
+	{
+		return nCandidates >= minCandidates && isApplicable( img1, img2 );
+	}
+
+	/**
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @return size in bytes of the summed-area tables for images of this size
+	 */
+	public static long sizeInBytes( final Interval img1, final Interval img2 )
+	{
+		long size1 = 1, size2 = 1;
+		for ( int d = 0; d < img1.numDimensions(); ++d )
+		{
+			size1 *= img1.dimension( d ) + 1;
+			size2 *= img2.dimension( d ) + 1;
+		}
+		return 2 * 8 * ( size1 + size2 );
+	}
+
+	/**
+	 * calculate the cross correlation of the two images for the shift represented by peak, update crossCorr and nPixel
+	 * of the peak accordingly (same semantics as {@link PhaseCorrelationPeak2#calculateCrossCorr(RandomAccessibleInterval, RandomAccessibleInterval, long)})
+	 * @param peak the candidate shift
+	 * @param minOverlapPx minimal number of overlapping pixels
+	 */
+	public void calculateCrossCorr( final PhaseCorrelationPeak2 peak, final long minOverlapPx )
+	{
+		final Pair< Interval, Interval > intervals = PhaseCorrelation2Util.getOverlapIntervals(
+				new FinalDimensions( dims1 ), new FinalDimensions( dims2 ), peak.getShift() );
+
+		// no overlap found
+		if ( intervals == null )
+		{
+			peak.setCrossCorr( Double.NEGATIVE_INFINITY );
+			peak.setnPixel( 0 );
+			return;
+		}
+
+		long nPixel = 1;
+		for ( int d = 0; d < n; ++d )
+			nPixel *= intervals.getA().dimension( d );
+
+		if ( nPixel < minOverlapPx )
+		{
+			peak.setCrossCorr( Double.NEGATIVE_INFINITY );
+			peak.setnPixel( 0 );
+			return;
+		}
+
+		peak.setnPixel( nPixel );
+		peak.setCrossCorr( getCorrelation( intervals.getA(), intervals.getB(), nPixel ) );
+	}
+
+	/**
+	 * calculate the cross correlation for all peaks in parallel, service remains functional after the call
+	 * @param peaks the candidate shifts
+	 * @param minOverlapPx minimal number of overlapping pixels
+	 * @param service thread pool
+	 */
+	public void calculateCrossCorrParallel( final List< PhaseCorrelationPeak2 > peaks, final long minOverlapPx, final ExecutorService service )
+	{
+		final List< Future< ? > > futures = new ArrayList< Future< ? > >();
+
+		for ( final PhaseCorrelationPeak2 p : peaks )
+			futures.add( service.submit( () -> calculateCrossCorr( p, minOverlapPx ) ) );
+
+		// a failed peak would keep its cross correlation of 0 and could still be picked as the best shift
+		for ( final Future< ? > f : futures )
+		{
+			try
+			{
+				f.get();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while computing cross correlations", e );
+			}
+			catch ( ExecutionException e )
+			{
+				throw new RuntimeException( "Failed to compute the cross correlation of a peak", e.getCause() );
+			}
+		}
+	}
+
+	/*
+	 * correlation of the (equally sized) regions interval1 in img1 and interval2 in img2
+	 */
+	private double getCorrelation( final Interval interval1, final Interval interval2, final long nPixel )
+	{
+		// first order and second order sums from the tables
+		final double s1 = boxSum( sum1, tableStrides1, interval1 );
+		final double s2 = boxSum( sum2, tableStrides2, interval2 );
+		final double ss1 = boxSum( sumSq1, tableStrides1, interval1 );
+		final double ss2 = boxSum( sumSq2, tableStrides2, interval2 );
+
+		final double var1 = ss1 - s1 * s1 / nPixel;
+		final double var2 = ss2 - s2 * s2 / nPixel;
+
+		final int[] rows1 = PhaseCorrelation2ArrayUtil.rowStartIndices( dims1, interval1 );
+		final int[] rows2 = PhaseCorrelation2ArrayUtil.rowStartIndices( dims2, interval2 );
+		final int rowLength = (int) interval1.dimension( 0 );
+
+		// (nearly) constant regions: the variances from the tables are dominated by rounding errors,
+		// so we cannot tell a constant region from a nearly constant one and compute it directly
+		if ( var1 <= 1e-6 * ss1 || var2 <= 1e-6 * ss2 )
+			return getCorrelationDirect( rows1, rows2, rowLength, nPixel );
+
+		// the only pass over the pixels: the cross term
+		double s12 = 0;
+		for ( int r = 0; r < rows1.length; ++r )
+			for ( int i = rows1[ r ], j = rows2[ r ], e = i + rowLength; i < e; ++i, ++j )
+				s12 += ( img1[ i ] - offset1 ) * ( img2[ j ] - offset2 );
+
+		final double cov = s12 - s1 * s2 / nPixel;
+
+		return cov / Math.sqrt( var1 * var2 );
+	}
+
+	/*
+	 * correlation of two regions (given by the start indices of their rows) with two passes over the pixels,
+	 * same as PhaseCorrelation2Util.getCorrelation(): only if all pixels of a region have the same color it is 0
+	 */
+	private double getCorrelationDirect( final int[] rows1, final int[] rows2, final int rowLength, final long nPixel )
+	{
+		double m1 = 0, m2 = 0;
+		for ( int r = 0; r < rows1.length; ++r )
+			for ( int i = rows1[ r ], j = rows2[ r ], e = i + rowLength; i < e; ++i, ++j )
+			{
+				m1 += img1[ i ];
+				m2 += img2[ j ];
+			}
+
+		m1 /= nPixel;
+		m2 /= nPixel;
+
+		double sum11 = 0, sum22 = 0, sum12 = 0;
+		for ( int r = 0; r < rows1.length; ++r )
+			for ( int i = rows1[ r ], j = rows2[ r ], e = i + rowLength; i < e; ++i, ++j )
+			{
+				final double c = img1[ i ] - m1;
+				final double d = img2[ j ] - m2;
+				sum11 += c * c;
+				sum22 += d * d;
+				sum12 += c * d;
+			}
+
+		if ( sum11 == 0 || sum22 == 0 )
+			return 0;
+
+		return sum12 / Math.sqrt( sum11 * sum22 );
+	}
+
+	/*
+	 * sum of all values in box, from a summed-area table (inclusion-exclusion over the 2^n corners)
+	 */
+	private static double boxSum( final double[] table, final long[] strides, final Interval box )
+	{
+		final int n = strides.length;
+		double sum = 0;
+
+		for ( int corner = 0; corner < ( 1 << n ); ++corner )
+		{
+			long idx = 0;
+			int nLower = 0;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ( corner & ( 1 << d ) ) != 0 )
+				{
+					idx += ( box.max( d ) + 1 ) * strides[ d ];
+				}
+				else
+				{
+					idx += box.min( d ) * strides[ d ];
+					++nLower;
+				}
+			}
+
+			if ( nLower % 2 == 0 )
+				sum += table[ (int) idx ];
+			else
+				sum -= table[ (int) idx ];
+		}
+
+		return sum;
+	}
+
+	/*
+	 * fill the tables with (value-offset) and (value-offset)^2 shifted by one in every dimension,
+	 * then integrate along every axis
+	 */
+	private static void buildTables( final float[] img, final long[] dims, final double offset, final double[] sum, final double[] sumSq, final ExecutorService service )
+	{
+		final int n = dims.length;
+		final long[] strides = tableStrides( dims );
+		final long[] tableDims = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			tableDims[ d ] = dims[ d ] + 1;
+
+		final int rowLength = (int) dims[ 0 ];
+		final long nRows = img.length / Math.max( 1, rowLength );
+
+		// copy row by row
+		PhaseCorrelation2ArrayUtil.processInPortions( nRows, service, ( start, end ) -> {
+			for ( int r = start; r < end; ++r )
+			{
+				// table index of the first pixel of row r
+				long idx = strides[ 0 ];
+				long rest = r;
+				for ( int d = 1; d < n; ++d )
+				{
+					idx += ( rest % dims[ d ] + 1 ) * strides[ d ];
+					rest /= dims[ d ];
+				}
+
+				for ( int i = r * rowLength, t = (int) idx, e = i + rowLength; i < e; ++i, ++t )
+				{
+					final double v = img[ i ] - offset;
+					sum[ t ] = v;
+					sumSq[ t ] = v * v;
+				}
+			}
+		});
+
+		// cumulative sums along every axis
+		for ( int d = 0; d < n; ++d )
+		{
+			final int dim = d;
+			final long lineLength = tableDims[ d ];
+			final long nLines = sum.length / lineLength;
+
+			PhaseCorrelation2ArrayUtil.processInPortions( nLines, service, ( start, end ) -> {
+				for ( int l = start; l < end; ++l )
+				{
+					// first index of line l along dim
+					final long inner = l % strides[ dim ];
+					final long outer = l / strides[ dim ];
+					final long first = inner + outer * strides[ dim ] * lineLength;
+
+					for ( long k = 1, t = first + strides[ dim ]; k < lineLength; ++k, t += strides[ dim ] )
+					{
+						sum[ (int) t ] += sum[ (int) ( t - strides[ dim ] ) ];
+						sumSq[ (int) t ] += sumSq[ (int) ( t - strides[ dim ] ) ];
+					}
+				}
+			});
+		}
+	}
+
+	private static long[] tableStrides( final long[] dims )
+	{
+		final long[] strides = new long[ dims.length ];
+		long stride = 1;
+		for ( int d = 0; d < dims.length; ++d )
+		{
+			strides[ d ] = stride;
+			stride *= dims[ d ] + 1;
+		}
+		return strides;
+	}
+
+	private static int tableSize( final long[] dims )
+	{
+		long size = 1;
+		for ( int d = 0; d < dims.length; ++d )
+			size *= dims[ d ] + 1;
+		return (int) size;
+	}
+
+	private static double mean( final float[] img )
+	{
+		double sum = 0;
+		for ( final float v : img )
+			sum += v;
+		return img.length == 0 ? 0 : sum / img.length;
+	}
+
+	private static < T extends RealType< T > > float[] asFloatArray( final RandomAccessibleInterval< T > img, final ExecutorService service )
+	{
+		final float[] array = PhaseCorrelation2ArrayUtil.getRealFloatArray( img );
+		if ( array != null )
+			return array;
+		else
+			return PhaseCorrelation2ArrayUtil.getRealFloatArray( PhaseCorrelation2Util.copyToFloatArrayImg( img, service ) );
+	}
+}
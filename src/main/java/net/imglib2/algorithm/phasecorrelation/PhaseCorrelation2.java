@@ -31,6 +31,7 @@ import java.util.concurrent.Executors;
 import ij.ImageJ;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.fft2.FFT;
 import net.imglib2.algorithm.fft2.FFTMethods;
@@ -38,12 +39,14 @@ import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 
@@ -70,26 +73,20 @@ public class PhaseCorrelation2 {
 	
 	/*
 	 * calculate the phase correlation of fft1 and fft2, save result to res
-	 * fft1 and fft2 will NOT be altered by the function
+	 * fft1 and fft2 will NOT be altered by the function (unless fft1Copy is fft1)
+	 * the normalized cross-power spectrum is computed in a single fused pass
 	 * @param fft1
-	 * @param fft1Copy - a temporary image same size as fft1 and fft2
+	 * @param fft1Copy - a temporary image same size as fft1 and fft2 (may be fft1 or fft2 itself for in-place calculation)
 	 * @param fft2
-	 * @param fft2Copy - a temporary image same size as fft1 and fft2
+	 * @param fft2Copy - no longer needed, kept for compatibility (may be null)
 	 * @param pcm
 	 */
 	public static <T extends ComplexType<T>, S extends ComplexType<S>, R extends RealType<R>> void calculatePCM(
 			RandomAccessibleInterval<T> fft1, RandomAccessibleInterval<T> fft1Copy, RandomAccessibleInterval<S> fft2, RandomAccessibleInterval<S> fft2Copy, RandomAccessibleInterval<R> pcm,
 			ExecutorService service)
 	{
-		// TODO: multithreaded & check for cursor vs randomaccess
-		
-		// normalize, save to copies
-		PhaseCorrelation2Util.normalizeInterval(fft1, fft1Copy, service);
-		PhaseCorrelation2Util.normalizeInterval(fft2, fft2Copy, service);
-		// conjugate
-		PhaseCorrelation2Util.complexConjInterval(fft2Copy, fft2Copy, service);
-		// in-place multiplication
-		PhaseCorrelation2Util.multiplyComplexIntervals(fft1Copy, fft2Copy, fft1Copy, service);
+		// normalize, conjugate and multiply in one pass, result goes straight to the buffer of the inverse FFT
+		PhaseCorrelation2Util.crossPowerSpectrum(fft1, fft2, fft1Copy, service);
 		FFT.complexToReal(fft1Copy, pcm, service);
 	}
 	
@@ -130,22 +127,20 @@ public class PhaseCorrelation2 {
 		RandomAccessibleInterval<R> res = factory.create(realSize, type);
 		
 		final T typeT = Views.iterable(fft1).firstElement().createVariable();
-		final S typeS = Views.iterable(fft2).firstElement().createVariable();
 		RandomAccessibleInterval< T > fft1Copy;
-		RandomAccessibleInterval< S > fft2Copy;
 
+		// the fused cross-power spectrum only needs one temporary image
 		try
 		{
 			fft1Copy = factory.imgFactory( typeT ).create(fft1, typeT );
-			fft2Copy = factory.imgFactory( typeS ).create(fft2, typeS );
 		}
 		catch ( IncompatibleTypeException e )
 		{
-			throw new RuntimeException( "Cannot instantiate Img for type " + typeS.getClass().getSimpleName() + " or " + typeT.getClass().getSimpleName() );
+			throw new RuntimeException( "Cannot instantiate Img for type " + typeT.getClass().getSimpleName() );
 		}
 		
 		
-		calculatePCM(fft1, fft1Copy, fft2, fft2Copy, res, service);
+		calculatePCM(fft1, fft1Copy, fft2, null, res, service);
 		
 		return res;
 	}
@@ -179,7 +174,51 @@ public class PhaseCorrelation2 {
 		
 		RandomAccessibleInterval<R> pcm = calculatePCMInPlace(fft1, fft2, factory, type, service);
 		return pcm;
-		
+
+	}
+
+	/**
+	 * calculate the phase correlation matrix of two images using the FFT and PCM buffers
+	 * of a {@link PhaseCorrelationWorkspace} instead of allocating new ones.
+	 *
+	 * NB: the returned PCM is the PCM buffer of workspace, it is only valid until the workspace is closed
+	 *
+	 * @param img1 first image
+	 * @param img2 second image
+	 * @param extension number of blending pixels to add at each side in each dimension
+	 * @param workspace buffers to use, see {@link PhaseCorrelationWorkspace#acquire(Dimensions, Dimensions, int[])}
+	 * @param service thread pool
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return the phase correlation matrix
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>> RandomAccessibleInterval<FloatType> calculatePCM(
+			RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int[] extension,
+			PhaseCorrelationWorkspace workspace, ExecutorService service)
+	{
+		Dimensions extSize = PhaseCorrelation2Util.getExtendedSize(img1, img2, extension);
+		long[] paddedDimensions = new long[extSize.numDimensions()];
+		long[] fftSize = new long[extSize.numDimensions()];
+		FFTMethods.dimensionsRealToComplexFast(extSize, paddedDimensions, fftSize);
+
+		if (!Arrays.equals(fftSize, workspace.getFFTSize()))
+			throw new IllegalArgumentException("Workspace has FFT size " + Arrays.toString(workspace.getFFTSize()) + ", need " + Arrays.toString(fftSize));
+
+		// the PCM buffer is not needed before the inverse FFT, so we use it to hold the
+		// blended & padded input of both forward FFTs instead of reading from virtual views
+		final RandomAccessibleInterval<FloatType> padded = Intervals.equalDimensions(workspace.getPCM(), new FinalInterval(paddedDimensions))
+				? workspace.getPCM() : ArrayImgs.floats(paddedDimensions);
+
+		PhaseCorrelation2Util.extendImageByFactorInto(img1, extension,
+				FFTMethods.paddingIntervalCentered(img1, new FinalInterval(paddedDimensions)), padded, service);
+		FFT.realToComplex(padded, workspace.getFFT1(), service);
+		PhaseCorrelation2Util.extendImageByFactorInto(img2, extension,
+				FFTMethods.paddingIntervalCentered(img2, new FinalInterval(paddedDimensions)), padded, service);
+		FFT.realToComplex(padded, workspace.getFFT2(), service);
+
+		// the FFTs are scratch space, so we can work on them in-place
+		calculatePCMInPlace(workspace.getFFT1(), workspace.getFFT2(), workspace.getPCM(), service);
+		return workspace.getPCM();
 	}
 
 	/*
@@ -215,24 +254,58 @@ public class PhaseCorrelation2 {
 	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
 			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
 			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, ExecutorService service)
+	{
+		return getShift( pcm, img1, img2, nHighestPeaks, minOverlap, subpixelAccuracy, interpolateSubpixel, null, service );
+	}
+
+	/**
+	 * calculate the shift, only considering shifts that are at most maxShift away from zero in every dimension:
+	 * only the part of the PCM corresponding to those shifts is searched for peaks and only those
+	 * shifts are verified by cross correlation
+	 * @param pcm the phase correlation matrix of img1 and img2
+	 * @param img1 source image 1
+	 * @param img2 source image 2
+	 * @param nHighestPeaks the number of peaks in pcm to check via cross. corr.
+	 * @param minOverlap minimal overlap (in pixels)
+	 * @param subpixelAccuracy whether to do subpixel shift peak localization or not
+	 * @param interpolateSubpixel whether to interpolate the subpixel shift in cross. corr.
+	 * @param maxShift maximal absolute shift per dimension (in pixels), null for no limit
+	 * @param service thread pool
+	 * @param <R> PCM pixel type
+	 * @param <T> image 1 pixel type
+	 * @param <S> image 2 pixel type
+	 * @return best (highest c.c.) shift peak, null if there is no valid shift within maxShift
+	 */
+	public static <T extends RealType<T>, S extends RealType<S>, R extends RealType<R>> PhaseCorrelationPeak2 getShift(
+			RandomAccessibleInterval<R> pcm, RandomAccessibleInterval<T> img1, RandomAccessibleInterval<S> img2, int nHighestPeaks,
+			long minOverlap, boolean subpixelAccuracy, boolean interpolateSubpixel, long[] maxShift, ExecutorService service)
 	{
 		if ( PairwiseStitching.debug )
 			System.out.println( "PCM" );
 
-		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, service, nHighestPeaks, subpixelAccuracy);
+		final Interval window = PhaseCorrelation2Util.getPCMSearchWindow(pcm, img1, img2, maxShift);
+		List<PhaseCorrelationPeak2> peaks = PhaseCorrelation2Util.getPCMMaxima(pcm, window, service, nHighestPeaks, subpixelAccuracy);
 		//peaks = PhaseCorrelation2Util.getHighestPCMMaxima(peaks, nHighestPeaks);
 
 		if ( PairwiseStitching.debug )
 			System.out.println( "expand" );
 
-		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2);
+		PhaseCorrelation2Util.expandPeakListToPossibleShifts(peaks, pcm, img1, img2, maxShift);
+
+		// drop duplicates and shifts that cannot reach the minimal overlap before touching any pixels
+		final int nPruned = PhaseCorrelation2Util.pruneCandidateShifts(peaks, img1, img2, minOverlap);
 
 		if ( PairwiseStitching.debug )
-			System.out.print( "cross " );
+			System.out.print( "cross (" + peaks.size() + " candidates, " + nPruned + " pruned) " );
 
 		long t = System.currentTimeMillis();
 
-		PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
+		// without interpolation, verify all candidates with summed-area tables built once for this pair
+		// (unless there are too few candidates for that to pay off, or the tables would be too large)
+		if ( !( subpixelAccuracy && interpolateSubpixel ) && IntegralImageCrossCorrelation.isApplicable( img1, img2, peaks.size() ) )
+			new IntegralImageCrossCorrelation( img1, img2, service ).calculateCrossCorrParallel( peaks, minOverlap, service );
+		else
+			PhaseCorrelation2Util.calculateCrossCorrParallel(peaks, img1, img2, minOverlap, service, interpolateSubpixel);
 
 		if ( PairwiseStitching.debug )
 		{
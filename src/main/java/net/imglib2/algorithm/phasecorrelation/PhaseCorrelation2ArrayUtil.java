@@ -0,0 +1,329 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.ImagePortion;
+
+/**
+ * Specialized kernels of {@link PhaseCorrelation2Util} working directly on the float[] backing
+ * {@link ArrayImg}s of {@link FloatType} and {@link ComplexFloatType} (real and imaginary part
+ * interleaved). The generic methods in {@link PhaseCorrelation2Util} detect such inputs and
+ * dispatch here.
+ */
+public class PhaseCorrelation2ArrayUtil
+{
+	/*
+	 * one portion of a flat loop, [start, end) in pixels
+	 */
+	public static interface PortionTask
+	{
+		public void run( final int start, final int end );
+	}
+
+	/*
+	 * get the backing array of an ArrayImg of FloatType, or null if img is anything else
+	 * @param img
+	 * @return
+	 */
+	public static float[] getRealFloatArray( final Object img )
+	{
+		return getFloatArray( img, FloatType.class );
+	}
+
+	/*
+	 * get the backing array of an ArrayImg of ComplexFloatType (real and imaginary part interleaved),
+	 * or null if img is anything else
+	 * @param img
+	 * @return
+	 */
+	public static float[] getComplexFloatArray( final Object img )
+	{
+		return getFloatArray( img, ComplexFloatType.class );
+	}
+
+	private static float[] getFloatArray( final Object img, final Class< ? > typeClass )
+	{
+		if ( img instanceof ArrayImg )
+		{
+			final ArrayImg< ?, ? > arrayImg = (ArrayImg< ?, ? >) img;
+			final Object access = arrayImg.update( null );
+
+			if ( access instanceof FloatArray && arrayImg.firstElement().getClass().equals( typeClass ) )
+				return ( (FloatArray) access ).getCurrentStorageArray();
+		}
+
+		return null;
+	}
+
+	/*
+	 * @return true if all Dimensions have the same size in every dimension
+	 */
+	public static boolean equalDimensions( final Dimensions... dims )
+	{
+		for ( int i = 1; i < dims.length; ++i )
+		{
+			if ( dims[ i ].numDimensions() != dims[ 0 ].numDimensions() )
+				return false;
+
+			for ( int d = 0; d < dims[ 0 ].numDimensions(); ++d )
+				if ( dims[ i ].dimension( d ) != dims[ 0 ].dimension( d ) )
+					return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * split [0, numPixels) into portions and run task on each of them using service, wait until all are done
+	 * @param numPixels
+	 * @param service
+	 * @param task
+	 */
+	public static void processInPortions( final long numPixels, final ExecutorService service, final PortionTask task )
+	{
+		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( numPixels );
+		final List< Future< ? > > futures = new ArrayList< Future< ? > >();
+
+		for ( final ImagePortion ip : portions )
+		{
+			futures.add( service.submit( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final int start = (int) ip.getStartPosition();
+					task.run( start, start + (int) ip.getLoopSize() );
+				}
+			}));
+		}
+
+		// a failed portion leaves dest partially written, callers must not continue with it
+		for ( final Future< ? > f : futures )
+		{
+			try
+			{
+				f.get();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException( "Interrupted while processing image portions", e );
+			}
+			catch ( ExecutionException e )
+			{
+				throw new RuntimeException( "Failed to process an image portion", e.getCause() );
+			}
+		}
+	}
+
+	/*
+	 * copy real source to dest
+	 */
+	public static void copy( final float[] source, final float[] dest, final ExecutorService service )
+	{
+		processInPortions( source.length, service, ( start, end ) -> System.arraycopy( source, start, dest, start, end - start ) );
+	}
+
+	/*
+	 * pixel-wise complex multiplication of img1 and img2, res may be img1 or img2
+	 */
+	public static void multiplyComplex( final float[] img1, final float[] img2, final float[] res, final ExecutorService service )
+	{
+		processInPortions( res.length / 2, service, ( start, end ) -> {
+			for ( int i = 2 * start; i < 2 * end; i += 2 )
+			{
+				final float a = img1[ i ], b = img1[ i + 1 ];
+				final float c = img2[ i ], d = img2[ i + 1 ];
+				res[ i ] = a * c - b * d;
+				res[ i + 1 ] = a * d + b * c;
+			}
+		});
+	}
+
+	/*
+	 * pixel-wise complex conjugate of img, res may be img
+	 */
+	public static void complexConj( final float[] img, final float[] res, final ExecutorService service )
+	{
+		processInPortions( res.length / 2, service, ( start, end ) -> {
+			for ( int i = 2 * start; i < 2 * end; i += 2 )
+			{
+				res[ i ] = img[ i ];
+				res[ i + 1 ] = -img[ i + 1 ];
+			}
+		});
+	}
+
+	/*
+	 * pixel-wise normalization of complex img to length 1, pixels shorter than normalizationThreshold are set to 0
+	 */
+	public static void normalize( final float[] img, final float[] res, final double normalizationThreshold, final ExecutorService service )
+	{
+		processInPortions( res.length / 2, service, ( start, end ) -> {
+			for ( int i = 2 * start; i < 2 * end; i += 2 )
+			{
+				final double a = img[ i ], b = img[ i + 1 ];
+				final double len = Math.sqrt( a * a + b * b );
+
+				if ( len > normalizationThreshold )
+				{
+					res[ i ] = (float) ( a / len );
+					res[ i + 1 ] = (float) ( b / len );
+				}
+				else
+				{
+					res[ i ] = res[ i + 1 ] = 0;
+				}
+			}
+		});
+	}
+
+	/*
+	 * fused normalized cross-power spectrum res = norm(fft1) * conj(norm(fft2)), res may be fft1 or fft2
+	 */
+	public static void crossPowerSpectrum( final float[] fft1, final float[] fft2, final float[] res, final double normalizationThreshold, final ExecutorService service )
+	{
+		processInPortions( res.length / 2, service, ( start, end ) -> {
+			for ( int i = 2 * start; i < 2 * end; i += 2 )
+			{
+				final double a = fft1[ i ], b = fft1[ i + 1 ];
+				final double c = fft2[ i ], d = fft2[ i + 1 ];
+
+				final double len1 = Math.sqrt( a * a + b * b );
+				final double len2 = Math.sqrt( c * c + d * d );
+
+				if ( len1 > normalizationThreshold && len2 > normalizationThreshold )
+				{
+					final double norm = 1.0 / ( len1 * len2 );
+					res[ i ] = (float) ( ( a * c + b * d ) * norm );
+					res[ i + 1 ] = (float) ( ( b * c - a * d ) * norm );
+				}
+				else
+				{
+					res[ i ] = res[ i + 1 ] = 0;
+				}
+			}
+		});
+	}
+
+	/*
+	 * flat indices of the first pixel of every row (along dimension 0) of interval inside an image of size dims
+	 * @param dims
+	 * @param interval
+	 * @return
+	 */
+	public static int[] rowStartIndices( final long[] dims, final Interval interval )
+	{
+		final int n = dims.length;
+
+		long nRows = 1;
+		for ( int d = 1; d < n; ++d )
+			nRows *= interval.dimension( d );
+
+		final int[] res = new int[ (int) nRows ];
+		final long[] pos = new long[ n ];
+		interval.min( pos );
+
+		for ( int r = 0; r < nRows; ++r )
+		{
+			long idx = 0, stride = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				idx += pos[ d ] * stride;
+				stride *= dims[ d ];
+			}
+			res[ r ] = (int) idx;
+
+			for ( int d = 1; d < n; ++d )
+			{
+				if ( ++pos[ d ] <= interval.max( d ) )
+					break;
+				pos[ d ] = interval.min( d );
+			}
+		}
+
+		return res;
+	}
+
+	/*
+	 * pixel-value correlation of the region interval1 in img1 and the (equally sized) region interval2 in img2
+	 * @param img1 - backing array of the first image
+	 * @param dims1 - size of the first image
+	 * @param interval1 - region in the first image
+	 * @param img2 - backing array of the second image
+	 * @param dims2 - size of the second image
+	 * @param interval2 - region in the second image
+	 * @return
+	 */
+	public static double getCorrelation(
+			final float[] img1, final long[] dims1, final Interval interval1,
+			final float[] img2, final long[] dims2, final Interval interval2 )
+	{
+		final int[] rows1 = rowStartIndices( dims1, interval1 );
+		final int[] rows2 = rowStartIndices( dims2, interval2 );
+		final int rowLength = (int) interval1.dimension( 0 );
+
+		double sum1 = 0.0, sum2 = 0.0;
+		for ( int r = 0; r < rows1.length; ++r )
+			for ( int i = rows1[ r ], j = rows2[ r ], e = i + rowLength; i < e; ++i, ++j )
+			{
+				sum1 += img1[ i ];
+				sum2 += img2[ j ];
+			}
+
+		final long n = (long) rows1.length * rowLength;
+		final double m1 = sum1 / n;
+		final double m2 = sum2 / n;
+
+		// square sums
+		double sum11 = 0.0, sum22 = 0.0, sum12 = 0.0;
+		for ( int r = 0; r < rows1.length; ++r )
+			for ( int i = rows1[ r ], j = rows2[ r ], e = i + rowLength; i < e; ++i, ++j )
+			{
+				final double c = img1[ i ] - m1;
+				final double s = img2[ j ] - m2;
+				sum11 += c * c;
+				sum22 += s * s;
+				sum12 += c * s;
+			}
+
+		// all pixels had the same color, see PhaseCorrelation2Util.getCorrelation()
+		if ( sum11 == 0 || sum22 == 0 )
+			return 0;
+
+		return sum12 / Math.sqrt( sum11 * sum22 );
+	}
+}
@@ -23,7 +23,10 @@ package net.imglib2.algorithm.phasecorrelation;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
@@ -45,13 +48,17 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.ComplexType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.BenchmarkHelper;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -71,6 +78,14 @@ public class PhaseCorrelation2Util {
 	 * @param dest
 	 */
 	public static <T extends RealType<T>, S extends RealType<S>> void copyRealImage(final IterableInterval<T> source, final RandomAccessibleInterval<S> dest, ExecutorService service) {
+
+		// fast path for float ArrayImgs of the same size
+		final float[] sourceArray = PhaseCorrelation2ArrayUtil.getRealFloatArray(source);
+		final float[] destArray = PhaseCorrelation2ArrayUtil.getRealFloatArray(dest);
+		if (sourceArray != null && destArray != null && PhaseCorrelation2ArrayUtil.equalDimensions(source, dest)){
+			PhaseCorrelation2ArrayUtil.copy(sourceArray, destArray, service);
+			return;
+		}
 		
 		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( source.size() );
 		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();		
@@ -113,6 +128,21 @@ public class PhaseCorrelation2Util {
 		
 	}
 	
+	/*
+	 * copy img into a new float ArrayImg of the same size (zero-min), e.g. to traverse a virtual view
+	 * many times without re-computing it and to enable the primitive fast paths
+	 * @param img
+	 * @param service
+	 * @return
+	 */
+	public static <T extends RealType<T>> ArrayImg<FloatType, FloatArray> copyToFloatArrayImg(final RandomAccessibleInterval<T> img, ExecutorService service) {
+		final long[] dims = new long[img.numDimensions()];
+		img.dimensions(dims);
+		final ArrayImg<FloatType, FloatArray> res = ArrayImgs.floats(dims);
+		copyRealImage(Views.iterable(Views.zeroMin(img)), res, service);
+		return res;
+	}
+
 	/**
 	 * calculate the size difference of two Dimensions objects (dim2-dim1)
 	 * @param dim1 first Dimensions
@@ -160,6 +190,152 @@ public class PhaseCorrelation2Util {
 		return new BlendedExtendedMirroredRandomAccesible2<T>(img, extEachSide);
 	}
 	
+	// lookup table of the cosine blending function, same as used by BlendingRealRandomAccessible
+	private static final double[] blendingLookUp = new double[ 1001 ];
+	static
+	{
+		for ( int i = 0; i <= 1000; ++i )
+			blendingLookUp[ i ] = ( Math.cos( ( 1 - i / 1000.0 ) * Math.PI ) + 1 ) / 2;
+	}
+
+	/*
+	 * write the blended, mirror-extended and zero-padded img (i.e. the content of Views.interval(extendImageByFactor(img, extension), paddingInterval))
+	 * into target in one multithreaded pass. The blending weights are separable and computed once per axis,
+	 * so there is no per-pixel out-of-bounds or blending lookup.
+	 * target should be a float ArrayImg with the dimensions of paddingInterval, otherwise we fall back to copying the virtual view
+	 * @param img
+	 * @param extension: number of blending pixels to add at each side in each dimension
+	 * @param paddingInterval: the region (in coordinates of img) to write to target, e.g. FFTMethods.paddingIntervalCentered()
+	 * @param target
+	 * @param service
+	 */
+	public static <T extends RealType<T>> void extendImageByFactorInto(final RandomAccessibleInterval<T> img, final int[] extension,
+			final Interval paddingInterval, final RandomAccessibleInterval<FloatType> target, ExecutorService service)
+	{
+		final float[] targetArray = PhaseCorrelation2ArrayUtil.getRealFloatArray(target);
+
+		if (!Intervals.equalDimensions(target, paddingInterval))
+			throw new IllegalArgumentException("target and padding interval differ in size");
+
+		if (targetArray == null){
+			copyRealImage(Views.iterable(Views.zeroMin(Views.interval(extendImageByFactor(img, extension), paddingInterval))), Views.zeroMin(target), service);
+			return;
+		}
+
+		final int n = img.numDimensions();
+		final int[] padDims = new int[n];
+
+		// per axis: blending weight and mirrored source coordinate of every target coordinate
+		final float[][] weights = new float[n][];
+		final long[][] sourcePositions = new long[n][];
+
+		for (int d = 0; d < n; d++){
+			padDims[d] = (int) paddingInterval.dimension(d);
+			weights[d] = new float[padDims[d]];
+			sourcePositions[d] = new long[padDims[d]];
+
+			// as in extendImageByFactor
+			final long size = img.dimension(d);
+			final int extEachSide = (int) (size < extension[d] ? size : extension[d]);
+			final long blendMin = img.min(d) - extEachSide;
+			final long blendDimMinus1 = size + 2 * extEachSide - 1;
+
+			for (int k = 0; k < padDims[d]; k++){
+				final long pos = paddingInterval.min(d) + k;
+				weights[d][k] = blendingWeight(pos - blendMin, blendDimMinus1, extEachSide);
+				sourcePositions[d][k] = img.min(d) + mirrorSingle(pos - img.min(d), size);
+			}
+		}
+
+		final float[] sourceArray = PhaseCorrelation2ArrayUtil.getRealFloatArray(img);
+		final long[] sourceStrides = new long[n];
+		sourceStrides[0] = 1;
+		for (int d = 1; d < n; d++)
+			sourceStrides[d] = sourceStrides[d - 1] * img.dimension(d - 1);
+
+		long nRows = 1;
+		for (int d = 1; d < n; d++)
+			nRows *= padDims[d];
+
+		PhaseCorrelation2ArrayUtil.processInPortions(nRows, service, (start, end) -> {
+			final RandomAccess<T> ra = sourceArray == null ? img.randomAccess() : null;
+			final int[] rowPos = new int[n];
+
+			for (int row = start; row < end; row++){
+				// position of this row in dimensions 1..n-1 and its weight
+				long rest = row;
+				float rowWeight = 1;
+				long sourceOffset = 0;
+				for (int d = 1; d < n; d++){
+					rowPos[d] = (int) (rest % padDims[d]);
+					rest /= padDims[d];
+					rowWeight *= weights[d][rowPos[d]];
+					sourceOffset += sourcePositions[d][rowPos[d]] * sourceStrides[d];
+				}
+
+				final int targetOffset = row * padDims[0];
+
+				if (rowWeight == 0){
+					Arrays.fill(targetArray, targetOffset, targetOffset + padDims[0], 0);
+					continue;
+				}
+
+				if (ra != null)
+					for (int d = 1; d < n; d++)
+						ra.setPosition(sourcePositions[d][rowPos[d]], d);
+
+				for (int x = 0; x < padDims[0]; x++){
+					final float w = weights[0][x] * rowWeight;
+
+					if (w == 0)
+						targetArray[targetOffset + x] = 0;
+					else if (ra == null)
+						targetArray[targetOffset + x] = sourceArray[(int) (sourceOffset + sourcePositions[0][x])] * w;
+					else {
+						ra.setPosition(sourcePositions[0][x], 0);
+						targetArray[targetOffset + x] = ra.get().getRealFloat() * w;
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * the one-dimensional blending weight at position l (relative to the min of the blended interval), zero outside the interval,
+	 * ramping up over blending pixels (see BlendingRealRandomAccessible)
+	 */
+	static float blendingWeight(final long l, final long dimMinus1, final int blending)
+	{
+		// the distance to the border that is closer
+		final float dist = Math.max(0, Math.min(l, dimMinus1 - l));
+
+		if (dist == 0)
+			return 0;
+
+		final float relDist = dist / blending;
+
+		if (relDist < 1)
+			return (float) blendingLookUp[(int) Math.round(relDist * 1000.0)];
+		else
+			return 1;
+	}
+
+	/*
+	 * position pos (relative to the min) mirrored into [0, size) like Views.extendMirrorSingle()
+	 */
+	static long mirrorSingle(final long pos, final long size)
+	{
+		if (size == 1)
+			return 0;
+
+		final long period = 2 * size - 2;
+		long p = pos % period;
+		if (p < 0)
+			p += period;
+
+		return p < size ? p : period - p;
+	}
+
 	/*
 	 * returns the extension at each side if an image is enlarged by a factor of extensionFactor at each side
 	 * @param dims
@@ -243,10 +419,23 @@ public class PhaseCorrelation2Util {
 	 * @return
 	 */
 	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, ExecutorService service, int maxN, boolean subpixelAccuracy){
+		return getPCMMaxima(pcm, pcm, service, maxN, subpixelAccuracy);
+	}
+
+	/*
+	 * find local maxima in a (periodic) window of the PCM
+	 * @param pcm
+	 * @param window - region of the PCM to search, may wrap around (see getPCMSearchWindow)
+	 * @param service
+	 * @param maxN
+	 * @return
+	 */
+	public static <T extends RealType<T>> List<PhaseCorrelationPeak2> getPCMMaxima(RandomAccessibleInterval<T> pcm, Interval window, ExecutorService service, int maxN, boolean subpixelAccuracy){
 		
 		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
 		
-		ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMaxMT(Views.extendPeriodic(pcm), pcm, maxN, service);
+		// periodic boundaries, scans the backing array directly if pcm is a float ArrayImg
+		ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMaxMTPeriodic(pcm, window, maxN, service);
 		//ArrayList<Pair<Localizable, Double>> maxima = FourNeighborhoodExtrema.findMax(Views.extendPeriodic(pcm), pcm, maxN);
 		
 		
@@ -298,15 +487,116 @@ public class PhaseCorrelation2Util {
 	 */
 	public static void expandPeakListToPossibleShifts(List<PhaseCorrelationPeak2> peaks,
 			Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims)
+	{
+		expandPeakListToPossibleShifts(peaks, pcmDims, img1Dims, img2Dims, null);
+	}
+
+	/*
+	 * expand a list of PCM maxima to to a list containing all possible shifts corresponding to these maxima
+	 * that are at most maxShift away from zero in every dimension
+	 * @param peaks
+	 * @param pcmDims
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param maxShift - maximal absolute shift per dimension, null for no limit
+	 */
+	public static void expandPeakListToPossibleShifts(List<PhaseCorrelationPeak2> peaks,
+			Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims, long[] maxShift)
 	{
 		List<PhaseCorrelationPeak2> res = new ArrayList<PhaseCorrelationPeak2>();
 		for (PhaseCorrelationPeak2 p : peaks){
-			res.addAll(expandPeakToPossibleShifts(p, pcmDims, img1Dims, img2Dims));
+			res.addAll(expandPeakToPossibleShifts(p, pcmDims, img1Dims, img2Dims, maxShift));
 		}
 		peaks.clear();
 		peaks.addAll(res);
 	}
+
+	/*
+	 * get the region of the PCM whose peaks can correspond to shifts that are at most maxShift away from zero in every dimension
+	 * (the inverse of the mapping done in expandPeakToPossibleShifts). The returned interval starts inside the PCM
+	 * but may extend beyond it, it is meant to be read with periodic boundaries.
+	 * @param pcmDims
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param maxShift - maximal absolute shift per dimension, null for no limit
+	 * @return search window
+	 */
+	public static Interval getPCMSearchWindow(Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims, long[] maxShift)
+	{
+		final int n = pcmDims.numDimensions();
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+
+		int[] extensionImg1 = getSizeDifference(img1Dims, pcmDims);
+		int[] extensionImg2 = getSizeDifference(img2Dims, pcmDims);
+
+		for (int d = 0; d < n; d++){
+			final long size = pcmDims.dimension(d);
+
+			if (maxShift == null || 2 * maxShift[d] + 1 >= size){
+				min[d] = 0;
+				max[d] = size - 1;
+			}
+			else {
+				// peak at p means shift (p + offset) mod size
+				final int offset = (extensionImg2[d] - extensionImg1[d]) / 2;
+				min[d] = Math.floorMod(-maxShift[d] - offset, size);
+				max[d] = min[d] + 2 * maxShift[d];
+			}
+		}
+
+		return new FinalInterval(min, max);
+	}
 	
+	/*
+	 * prune a list of candidate shifts (as created by expandPeakListToPossibleShifts) before any cross correlation is computed:
+	 * drop shifts whose overlap volume is smaller than minOverlapPx (or that do not overlap at all)
+	 * and keep only the peak with the highest phase correlation for shifts that occur more than once.
+	 * The remaining candidates keep their order.
+	 * @param peaks - will be modified
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param minOverlapPx
+	 * @return number of candidates removed
+	 */
+	public static int pruneCandidateShifts(List<PhaseCorrelationPeak2> peaks,
+			Dimensions img1Dims, Dimensions img2Dims, long minOverlapPx)
+	{
+		final int nBefore = peaks.size();
+		final int n = img1Dims.numDimensions();
+
+		final HashMap<List<Long>, PhaseCorrelationPeak2> unique = new LinkedHashMap<>();
+
+		for (final PhaseCorrelationPeak2 p : peaks){
+			final Pair<Interval, Interval> intervals = getOverlapIntervals(img1Dims, img2Dims, p.getShift());
+			if (intervals == null)
+				continue;
+
+			long nPixel = 1;
+			for (int d = 0; d < n; d++)
+				nPixel *= intervals.getA().dimension(d);
+
+			// these would end up with a cross correlation of -Infinity anyway
+			if (nPixel < Math.max(1, minOverlapPx))
+				continue;
+
+			final List<Long> key = new ArrayList<>();
+			for (int d = 0; d < n; d++)
+				key.add(p.getShift().getLongPosition(d));
+
+			final PhaseCorrelationPeak2 existing = unique.get(key);
+			if (existing == null || existing.getPhaseCorr() < p.getPhaseCorr())
+				unique.put(key, p);
+		}
+
+		final List<PhaseCorrelationPeak2> res = new ArrayList<>(unique.values());
+
+		peaks.clear();
+		peaks.addAll(res);
+
+		return nBefore - peaks.size();
+	}
+
 	/*
 	 * expand a single maximum in the PCM to a list of possible shifts corresponding to that peak
 	 * an offset due to different images sizes is accounted for
@@ -318,6 +608,23 @@ public class PhaseCorrelation2Util {
 	 */
 	public static List<PhaseCorrelationPeak2> expandPeakToPossibleShifts(
 			PhaseCorrelationPeak2 peak, Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims)
+	{
+		return expandPeakToPossibleShifts(peak, pcmDims, img1Dims, img2Dims, null);
+	}
+
+	/*
+	 * expand a single maximum in the PCM to a list of possible shifts corresponding to that peak,
+	 * keeping only shifts that are at most maxShift away from zero in every dimension
+	 * an offset due to different images sizes is accounted for
+	 * @param peak
+	 * @param pcmDims
+	 * @param img1Dims
+	 * @param img2Dims
+	 * @param maxShift - maximal absolute shift per dimension, null for no limit
+	 * @return
+	 */
+	public static List<PhaseCorrelationPeak2> expandPeakToPossibleShifts(
+			PhaseCorrelationPeak2 peak, Dimensions pcmDims, Dimensions img1Dims, Dimensions img2Dims, long[] maxShift)
 	{
 		int n = pcmDims.numDimensions();
 		double[] subpixelDiff = new double[n];
@@ -341,7 +648,6 @@ public class PhaseCorrelation2Util {
 		List<PhaseCorrelationPeak2> shiftedPeaks = new ArrayList<PhaseCorrelationPeak2>();
 		for (int i = 0; i < Math.pow(2, pcmDims.numDimensions()); i++){
 			int[] possibleShift = originalPCMPeakWithOffset.clone();
-			PhaseCorrelationPeak2 peakWithShift = new PhaseCorrelationPeak2(peak);
 			for (int d = 0; d < pcmDims.numDimensions(); d++){
 				/*
 				 * mirror the shift around the origin in dimension d if (i / 2^d) is even
@@ -351,6 +657,17 @@ public class PhaseCorrelation2Util {
 					possibleShift[d] = possibleShift[d] < 0 ? possibleShift[d] + (int) pcmDims.dimension(d) : possibleShift[d] - (int) pcmDims.dimension(d);
 				}
 			}
+
+			// outside the allowed search window, do not even create the candidate
+			if (maxShift != null){
+				boolean allowed = true;
+				for (int d = 0; d < pcmDims.numDimensions(); d++)
+					allowed &= Math.abs(possibleShift[d]) <= maxShift[d];
+				if (!allowed)
+					continue;
+			}
+
+			PhaseCorrelationPeak2 peakWithShift = new PhaseCorrelationPeak2(peak);
 			peakWithShift.setShift(new Point(possibleShift));
 
 			if (peakWithShift.getSubpixelPcmLocation() != null)
@@ -476,7 +793,14 @@ public class PhaseCorrelation2Util {
 	public static <R extends ComplexType<R>, S extends ComplexType<S>, T extends ComplexType<T>> void multiplyComplexIntervals(
 			final RandomAccessibleInterval<R> img1, final RandomAccessibleInterval<S> img2, final RandomAccessibleInterval<T> res, ExecutorService service) 
 	{
-		
+		// fast path for complex float ArrayImgs of the same size
+		final float[] array1 = PhaseCorrelation2ArrayUtil.getComplexFloatArray(img1);
+		final float[] array2 = PhaseCorrelation2ArrayUtil.getComplexFloatArray(img2);
+		final float[] arrayRes = PhaseCorrelation2ArrayUtil.getComplexFloatArray(res);
+		if (array1 != null && array2 != null && arrayRes != null && PhaseCorrelation2ArrayUtil.equalDimensions(img1, img2, res)){
+			PhaseCorrelation2ArrayUtil.multiplyComplex(array1, array2, arrayRes, service);
+			return;
+		}
 		
 		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions (Views.iterable(img1).size() );		
 		List<Future<?>> futures = new ArrayList<Future<?>>();
@@ -559,6 +883,13 @@ public class PhaseCorrelation2Util {
 	public static <R extends ComplexType<R>, S extends ComplexType<S>> void complexConjInterval(
 			final RandomAccessibleInterval<R>	img, final RandomAccessibleInterval<S> res, ExecutorService service)
 	{
+		// fast path for complex float ArrayImgs of the same size
+		final float[] arrayImg = PhaseCorrelation2ArrayUtil.getComplexFloatArray(img);
+		final float[] arrayRes = PhaseCorrelation2ArrayUtil.getComplexFloatArray(res);
+		if (arrayImg != null && arrayRes != null && PhaseCorrelation2ArrayUtil.equalDimensions(img, res)){
+			PhaseCorrelation2ArrayUtil.complexConj(arrayImg, arrayRes, service);
+			return;
+		}
 		
 		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( Views.iterable(img).size() );		
 		List<Future<?>> futures = new ArrayList<Future<?>>();
@@ -657,6 +988,13 @@ public class PhaseCorrelation2Util {
 	public static <T extends ComplexType<T>, S extends ComplexType<S>>void normalizeInterval(
 			final RandomAccessibleInterval<T> img, final RandomAccessibleInterval<S> res, final double normalizationThreshold, ExecutorService service) 
 	{
+		// fast path for complex float ArrayImgs of the same size
+		final float[] arrayImg = PhaseCorrelation2ArrayUtil.getComplexFloatArray(img);
+		final float[] arrayRes = PhaseCorrelation2ArrayUtil.getComplexFloatArray(res);
+		if (arrayImg != null && arrayRes != null && PhaseCorrelation2ArrayUtil.equalDimensions(img, res)){
+			PhaseCorrelation2ArrayUtil.normalize(arrayImg, arrayRes, normalizationThreshold, service);
+			return;
+		}
 		
 		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( Views.iterable(img).size() );		
 		List<Future<?>> futures = new ArrayList<Future<?>>();
@@ -728,6 +1066,135 @@ public class PhaseCorrelation2Util {
 		normalizeInterval(img, res, 1E-5, service);
 	}
 	
+	/*
+	 * fused computation of the normalized cross-power spectrum res = norm(fft1) * conj(norm(fft2)),
+	 * equivalent to normalizeInterval() on both spectra, complexConjInterval() on the second
+	 * and multiplyComplexIntervals(), but reading both spectra only once and without copies.
+	 * res may be the same image as fft1 or fft2 (in-place)
+	 * if the length of a pixel in either spectrum is less than normalizationThreshold, res is set to 0
+	 * @param fft1
+	 * @param fft2
+	 * @param res
+	 * @param normalizationThreshold
+	 * @param service
+	 */
+	public static <R extends ComplexType<R>, S extends ComplexType<S>, T extends ComplexType<T>> void crossPowerSpectrum(
+			final RandomAccessibleInterval<R> fft1, final RandomAccessibleInterval<S> fft2, final RandomAccessibleInterval<T> res,
+			final double normalizationThreshold, ExecutorService service)
+	{
+		// fast path for complex float ArrayImgs of the same size
+		final float[] array1 = PhaseCorrelation2ArrayUtil.getComplexFloatArray(fft1);
+		final float[] array2 = PhaseCorrelation2ArrayUtil.getComplexFloatArray(fft2);
+		final float[] arrayRes = PhaseCorrelation2ArrayUtil.getComplexFloatArray(res);
+		if (array1 != null && array2 != null && arrayRes != null && PhaseCorrelation2ArrayUtil.equalDimensions(fft1, fft2, res)){
+			PhaseCorrelation2ArrayUtil.crossPowerSpectrum(array1, array2, arrayRes, normalizationThreshold, service);
+			return;
+		}
+
+		final Vector<ImagePortion> portions = FusionTools.divideIntoPortions( Views.iterable(res).size() );
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		final boolean sameIterationOrder =
+				Views.iterable(fft1).iterationOrder().equals(Views.iterable(res).iterationOrder()) &&
+				Views.iterable(fft2).iterationOrder().equals(Views.iterable(res).iterationOrder());
+
+		for (final ImagePortion ip : portions){
+			futures.add(service.submit(new Runnable() {
+
+				@Override
+				public void run() {
+
+					final long loopSize = ip.getLoopSize();
+
+					if (sameIterationOrder){
+						final Cursor<T> cRes = Views.iterable(res).cursor();
+						final Cursor<R> cSrc1 = Views.iterable(fft1).cursor();
+						final Cursor<S> cSrc2 = Views.iterable(fft2).cursor();
+
+						cRes.jumpFwd(ip.getStartPosition());
+						cSrc1.jumpFwd(ip.getStartPosition());
+						cSrc2.jumpFwd(ip.getStartPosition());
+
+						for (long l = 0; l < loopSize; l++){
+							cRes.fwd();
+							cSrc1.fwd();
+							cSrc2.fwd();
+							normalizedConjugateProduct(cSrc1.get(), cSrc2.get(), cRes.get(), normalizationThreshold);
+						}
+					}
+
+					else {
+						final RandomAccess<R> ra1 = fft1.randomAccess();
+						final RandomAccess<S> ra2 = fft2.randomAccess();
+						final Cursor<T> cRes = Views.iterable(res).localizingCursor();
+
+						cRes.jumpFwd(ip.getStartPosition());
+
+						for (long l = 0; l < loopSize; l++){
+							cRes.fwd();
+							ra1.setPosition(cRes);
+							ra2.setPosition(cRes);
+							normalizedConjugateProduct(ra1.get(), ra2.get(), cRes.get(), normalizationThreshold);
+						}
+					}
+				}
+			}));
+		}
+
+		// a failed portion leaves the spectrum partially normalized, the PCM must not be computed from it
+		for (Future<?> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while computing the cross-power spectrum", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Failed to compute the cross-power spectrum", e.getCause());
+			}
+		}
+	}
+
+	/*
+	 * cross-power spectrum with default normalization threshold
+	 * @param fft1
+	 * @param fft2
+	 * @param res
+	 * @param service
+	 */
+	public static <R extends ComplexType<R>, S extends ComplexType<S>, T extends ComplexType<T>> void crossPowerSpectrum(
+			final RandomAccessibleInterval<R> fft1, final RandomAccessibleInterval<S> fft2, final RandomAccessibleInterval<T> res,
+			ExecutorService service)
+	{
+		crossPowerSpectrum(fft1, fft2, res, 1E-5, service);
+	}
+
+	/*
+	 * set res to norm(c1) * conj(norm(c2)), or to 0 if the length of c1 or c2 is less than normalizationThreshold
+	 * (res may be c1 or c2)
+	 * @param c1
+	 * @param c2
+	 * @param res
+	 * @param normalizationThreshold
+	 */
+	public static <R extends ComplexType<R>, S extends ComplexType<S>, T extends ComplexType<T>> void normalizedConjugateProduct(
+			R c1, S c2, T res, double normalizationThreshold)
+	{
+		final double a = c1.getRealDouble();
+		final double b = c1.getImaginaryDouble();
+		final double c = c2.getRealDouble();
+		final double d = c2.getImaginaryDouble();
+
+		final double len1 = Math.sqrt(a*a + b*b);
+		final double len2 = Math.sqrt(c*c + d*d);
+
+		if (len1 > normalizationThreshold && len2 > normalizationThreshold){
+			final double norm = 1.0 / (len1 * len2);
+			res.setComplexNumber((a*c + b*d) * norm, (b*c - a*d) * norm);
+		} else {
+			res.setComplexNumber(0, 0);
+		}
+	}
+
 	/*
 	 * get the mean pixel intensity of an img
 	 * @param img
@@ -755,6 +1222,13 @@ public class PhaseCorrelation2Util {
 	public static <T extends RealType<T>, S extends RealType<S>> double getCorrelation (
 			final RandomAccessibleInterval<T> img1, final RandomAccessibleInterval<S> img2)
 	{
+		// fast path for float ArrayImgs
+		final float[] array1 = PhaseCorrelation2ArrayUtil.getRealFloatArray(img1);
+		final float[] array2 = PhaseCorrelation2ArrayUtil.getRealFloatArray(img2);
+		if (array1 != null && array2 != null && PhaseCorrelation2ArrayUtil.equalDimensions(img1, img2))
+			return PhaseCorrelation2ArrayUtil.getCorrelation(array1, Intervals.dimensionsAsLongArray(img1), img1,
+					array2, Intervals.dimensionsAsLongArray(img2), img2);
+
 		final double m1 = getMean(img1);
 		final double m2 = getMean(img2);
 
@@ -42,6 +42,7 @@ import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Translation2D;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 
@@ -201,6 +202,17 @@ public class PhaseCorrelationPeak2 {
 			return;
 		}
 
+		// fast path for float ArrayImgs (not if we need to interpolate img2): work on the backing arrays directly
+		final float[] array1 = PhaseCorrelation2ArrayUtil.getRealFloatArray( img1 );
+		final float[] array2 = PhaseCorrelation2ArrayUtil.getRealFloatArray( img2 );
+		if ( array1 != null && array2 != null && !( subpixelShift != null && interpolateSubpixel ) )
+		{
+			crossCorr = PhaseCorrelation2ArrayUtil.getCorrelation(
+					array1, Intervals.dimensionsAsLongArray( img1 ), intervals.getA(),
+					array2, Intervals.dimensionsAsLongArray( img2 ), intervals.getB() );
+			return;
+		}
+
 		// for subpixel move the underlying Img2 by the subpixel offset
 		if ( subpixelShift != null && interpolateSubpixel )
 		{
@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.imglib2.algorithm.phasecorrelation;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.complex.ComplexFloatType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * The buffers needed to compute a phase correlation matrix (two Fourier transforms and the PCM itself).
+ * 
+ * A workspace is leased with {@link #acquire(long[])} and returned with {@link #close()}, preferably
+ * in a try-with-resources block. Returned workspaces are kept in one pool shared by all threads (at most
+ * {@link #maxPooledBytes} in total), so consecutive pairs with the same overlap geometry (the normal case
+ * on a regular grid) reuse them instead of allocating new images for every pair. A leased workspace is
+ * never handed out twice.
+ * 
+ * Every workspace remembers the owner (e.g. the executor of a stitching run) that leased it last, so a run can
+ * drop the idle buffers it acquired with {@link #release(Object)} without taking them from other runs.
+ */
+public class PhaseCorrelationWorkspace implements AutoCloseable
+{
+	/*
+	 * how much memory idle workspaces may keep, least recently returned ones are dropped first
+	 */
+	public static long maxPooledBytes = 256L * 1024 * 1024;
+
+	// most recently returned first
+	private static final LinkedList< PhaseCorrelationWorkspace > idle = new LinkedList< PhaseCorrelationWorkspace >();
+	private static long idleBytes = 0;
+
+	private final long[] fftSize;
+	private final long[] pcmSize;
+
+	private final ArrayImg< ComplexFloatType, FloatArray > fft1;
+	private final ArrayImg< ComplexFloatType, FloatArray > fft2;
+	private final ArrayImg< FloatType, FloatArray > pcm;
+
+	private boolean leased;
+
+	// who leased this workspace last, may be null
+	private Object owner;
+
+	private PhaseCorrelationWorkspace( final long[] fftSize )
+	{
+		this.fftSize = fftSize.clone();
+
+		final long[] paddedDimensions = new long[ fftSize.length ];
+		this.pcmSize = new long[ fftSize.length ];
+		FFTMethods.dimensionsComplexToRealFast( new FinalDimensions( fftSize ), paddedDimensions, pcmSize );
+
+		this.fft1 = ArrayImgs.complexFloats( fftSize );
+		this.fft2 = ArrayImgs.complexFloats( fftSize );
+		this.pcm = ArrayImgs.floats( pcmSize );
+	}
+
+	/**
+	 * lease a workspace for the given FFT size, reuse an idle one if possible
+	 * @param fftSize dimensions of the (complex) Fourier transforms
+	 * @return workspace with buffers of the requested size, close it when done
+	 */
+	public static PhaseCorrelationWorkspace acquire( final long[] fftSize )
+	{
+		return acquire( fftSize, null );
+	}
+
+	/**
+	 * lease a workspace for the given FFT size, reuse an idle one if possible
+	 * @param fftSize dimensions of the (complex) Fourier transforms
+	 * @param owner who leases the workspace, see {@link #release(Object)}, may be null
+	 * @return workspace with buffers of the requested size, close it when done
+	 */
+	public static PhaseCorrelationWorkspace acquire( final long[] fftSize, final Object owner )
+	{
+		PhaseCorrelationWorkspace workspace = null;
+
+		synchronized ( idle )
+		{
+			for ( final Iterator< PhaseCorrelationWorkspace > it = idle.iterator(); it.hasNext(); )
+			{
+				final PhaseCorrelationWorkspace w = it.next();
+				if ( Arrays.equals( w.fftSize, fftSize ) )
+				{
+					it.remove();
+					idleBytes -= w.sizeInBytes();
+					workspace = w;
+					break;
+				}
+			}
+		}
+
+		if ( workspace == null )
+			workspace = new PhaseCorrelationWorkspace( fftSize );
+
+		workspace.leased = true;
+		workspace.owner = owner;
+		return workspace;
+	}
+
+	/**
+	 * lease a workspace for the phase correlation of two images of the given size,
+	 * padded as in {@link PhaseCorrelation2#calculatePCM(net.imglib2.RandomAccessibleInterval, net.imglib2.RandomAccessibleInterval, int[], PhaseCorrelationWorkspace, java.util.concurrent.ExecutorService)}
+	 * @param img1 size of the first image
+	 * @param img2 size of the second image
+	 * @param extension number of blending pixels added at each side in each dimension
+	 * @return workspace, close it when done
+	 */
+	public static PhaseCorrelationWorkspace acquire( final Dimensions img1, final Dimensions img2, final int[] extension )
+	{
+		return acquire( img1, img2, extension, null );
+	}
+
+	/**
+	 * same as {@link #acquire(Dimensions, Dimensions, int[])}, but remembers who leased the workspace
+	 * @param img1 size of the first image
+	 * @param img2 size of the second image
+	 * @param extension number of blending pixels added at each side in each dimension
+	 * @param owner who leases the workspace, see {@link #release(Object)}, may be null
+	 * @return workspace, close it when done
+	 */
+	public static PhaseCorrelationWorkspace acquire( final Dimensions img1, final Dimensions img2, final int[] extension, final Object owner )
+	{
+		return acquire( getFFTSize( img1, img2, extension ), owner );
+	}
+
+	/**
+	 * @param img1 size of the first image
+	 * @param img2 size of the second image
+	 * @param extension number of blending pixels added at each side in each dimension
+	 * @return the size of the (complex) Fourier transforms needed for the phase correlation of the images
+	 */
+	public static long[] getFFTSize( final Dimensions img1, final Dimensions img2, final int[] extension )
+	{
+		final Dimensions extSize = PhaseCorrelation2Util.getExtendedSize( img1, img2, extension );
+		final long[] paddedDimensions = new long[ extSize.numDimensions() ];
+		final long[] fftSize = new long[ extSize.numDimensions() ];
+		FFTMethods.dimensionsRealToComplexFast( extSize, paddedDimensions, fftSize );
+		return fftSize;
+	}
+
+	/**
+	 * @param img1 size of the first image
+	 * @param img2 size of the second image
+	 * @param extension number of blending pixels added at each side in each dimension
+	 * @return size in bytes of a workspace for the phase correlation of images of the given size
+	 */
+	public static long sizeInBytes( final Dimensions img1, final Dimensions img2, final int[] extension )
+	{
+		final long[] fftSize = getFFTSize( img1, img2, extension );
+		final long[] paddedDimensions = new long[ fftSize.length ];
+		final long[] pcmSize = new long[ fftSize.length ];
+		FFTMethods.dimensionsComplexToRealFast( new FinalDimensions( fftSize ), paddedDimensions, pcmSize );
+		return sizeInBytes( fftSize, pcmSize );
+	}
+
+	/**
+	 * return the workspace to the pool, its buffers must not be used anymore
+	 */
+	@Override
+	public void close()
+	{
+		synchronized ( idle )
+		{
+			if ( !leased )
+				return;
+
+			leased = false;
+
+			idle.addFirst( this );
+			idleBytes += sizeInBytes();
+
+			// drop the least recently used ones (possibly this one) until we are within budget
+			while ( idleBytes > maxPooledBytes && !idle.isEmpty() )
+				idleBytes -= idle.removeLast().sizeInBytes();
+		}
+	}
+
+	/**
+	 * @return memory held by idle workspaces
+	 */
+	public static long pooledBytes()
+	{
+		synchronized ( idle )
+		{
+			return idleBytes;
+		}
+	}
+
+	/**
+	 * drop the idle workspaces that were leased last by owner, all others (and leased ones) stay
+	 * @param owner the owner passed to acquire
+	 */
+	public static void release( final Object owner )
+	{
+		synchronized ( idle )
+		{
+			for ( final Iterator< PhaseCorrelationWorkspace > it = idle.iterator(); it.hasNext(); )
+			{
+				final PhaseCorrelationWorkspace w = it.next();
+				if ( w.owner == owner )
+				{
+					it.remove();
+					idleBytes -= w.sizeInBytes();
+				}
+			}
+		}
+	}
+
+	/**
+	 * drop all idle workspaces, leased ones are not affected
+	 */
+	public static void clear()
+	{
+		synchronized ( idle )
+		{
+			idle.clear();
+			idleBytes = 0;
+		}
+	}
+
+	public long[] getFFTSize() { return fftSize.clone(); }
+	public long[] getPCMSize() { return pcmSize.clone(); }
+
+	public ArrayImg< ComplexFloatType, FloatArray > getFFT1() { return fft1; }
+	public ArrayImg< ComplexFloatType, FloatArray > getFFT2() { return fft2; }
+	public ArrayImg< FloatType, FloatArray > getPCM() { return pcm; }
+
+	/**
+	 * size in bytes of all buffers of this workspace
+	 * @return memory footprint
+	 */
+	public long sizeInBytes()
+	{
+		return sizeInBytes( fftSize, pcmSize );
+	}
+
+	/**
+	 * @param fftSize dimensions of the (complex) Fourier transforms
+	 * @param pcmSize dimensions of the PCM
+	 * @return size in bytes of all buffers of a workspace of that size
+	 */
+	public static long sizeInBytes( final long[] fftSize, final long[] pcmSize )
+	{
+		long nComplex = 1, nReal = 1;
+		for ( int d = 0; d < fftSize.length; ++d )
+		{
+			nComplex *= fftSize[ d ];
+			nReal *= pcmSize[ d ];
+		}
+		return 4 * ( 2 * 2 * nComplex + nReal );
+	}
+}
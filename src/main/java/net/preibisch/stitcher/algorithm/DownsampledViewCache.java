@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
+
+/**
+ * Least-recently-used cache of opened and downsampled views, keyed by {@link ViewId} and
+ * downsampling factors. One instance is shared by all pairwise comparisons of a run, so a
+ * view that takes part in many pairs (up to 26 in a 3d grid) is only loaded and downsampled once.
+ * 
+ * Entries are evicted once their estimated size exceeds the budget. If several threads request
+ * the same view at once, only one of them loads it and the others wait for the result.
+ */
+public class DownsampledViewCache
+{
+	private final long maxBytes;
+	private long bytes;
+
+	// access-ordered, so the least recently used view is evicted first
+	private final LinkedHashMap< Key, Entry > entries = new LinkedHashMap< Key, Entry >( 16, 0.75f, true );
+
+	/**
+	 * a cache with the budget pairwise stitching uses for loaded views, see {@link TransformationTools#viewCacheBudget()}
+	 */
+	public DownsampledViewCache()
+	{
+		this( TransformationTools.viewCacheBudget() );
+	}
+
+	public DownsampledViewCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		this.bytes = 0;
+	}
+
+	/**
+	 * get the view opened and downsampled with {@link DownsampleTools#openAndDownsample(BasicImgLoader, ViewId, long[])},
+	 * loading it if it is not in the cache yet
+	 * 
+	 * @param imgLoader the image loader
+	 * @param vid the view
+	 * @param downsampleFactors downsampling factors
+	 * @param <T> pixel type
+	 * @return the downsampled view
+	 */
+	@SuppressWarnings("unchecked")
+	public < T extends RealType< T > > RandomAccessibleInterval< T > get( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors )
+	{
+		final Key key = new Key( imgLoader, vid, downsampleFactors );
+
+		final Entry entry;
+		boolean load = false;
+
+		synchronized ( this )
+		{
+			Entry e = entries.get( key );
+			if ( e == null )
+			{
+				e = new Entry( new FutureTask< RandomAccessibleInterval< ? > >( () -> DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors ).getA() ) );
+				entries.put( key, e );
+				load = true;
+			}
+			entry = e;
+		}
+
+		// load in the calling thread, concurrent requests for the same view block in get()
+		if ( load )
+			entry.task.run();
+
+		final RandomAccessibleInterval< T > rai;
+		try
+		{
+			rai = (RandomAccessibleInterval< T >) entry.task.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			synchronized ( this )
+			{
+				entries.remove( key, entry );
+			}
+			throw new RuntimeException( "Could not load view " + Group.pvid( vid ) + ": " + e, e );
+		}
+
+		if ( load )
+		{
+			final long size = estimateSizeInBytes( rai );
+
+			synchronized ( this )
+			{
+				// it might have been evicted by clear() in the meantime
+				if ( entries.get( key ) == entry )
+				{
+					entry.bytes = size;
+					bytes += size;
+					evict();
+				}
+			}
+		}
+
+		return rai;
+	}
+
+	/**
+	 * get the view if it is already loaded, without loading it
+	 * 
+	 * @param imgLoader the image loader
+	 * @param vid the view
+	 * @param downsampleFactors downsampling factors
+	 * @param <T> pixel type
+	 * @return the downsampled view or null
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized < T extends RealType< T > > RandomAccessibleInterval< T > getIfPresent( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors )
+	{
+		final Entry entry = entries.get( new Key( imgLoader, vid, downsampleFactors ) );
+
+		if ( entry == null || !entry.task.isDone() )
+			return null;
+
+		try
+		{
+			return (RandomAccessibleInterval< T >) entry.task.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @return the budget, views are evicted once their estimated size exceeds it
+	 */
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * @return the estimated size of all cached views
+	 */
+	public synchronized long sizeInBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * drop all cached views
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	/*
+	 * drop the least recently used views that are loaded until we are within budget
+	 */
+	private void evict()
+	{
+		final Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			final Entry e = it.next().getValue();
+
+			// still loading, its size is not accounted for yet
+			if ( !e.task.isDone() )
+				continue;
+
+			bytes -= e.bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * the memory we keep alive by caching rai. Only images that hold all their pixels (e.g. downsampled
+	 * copies) count, the pixels of lazy or cached images (e.g. a mipmap level of a multiresolution
+	 * loader) are kept (and evicted) by the image loader's own cache or computed on access.
+	 * 
+	 * @param rai the view as returned by {@link DownsampleTools#openAndDownsample(BasicImgLoader, ViewId, long[])}
+	 * @param <T> pixel type
+	 * @return estimated size in bytes
+	 */
+	public static < T extends RealType< T > > long estimateSizeInBytes( final RandomAccessibleInterval< T > rai )
+	{
+		if ( !( rai instanceof ArrayImg || rai instanceof PlanarImg || rai instanceof CellImg ) )
+			return 0;
+
+		return ( Intervals.numElements( rai ) * Util.getTypeFromInterval( rai ).getBitsPerPixel() + 7 ) / 8;
+	}
+
+	private static class Entry
+	{
+		final FutureTask< RandomAccessibleInterval< ? > > task;
+		long bytes = 0;
+
+		Entry( final FutureTask< RandomAccessibleInterval< ? > > task )
+		{
+			this.task = task;
+		}
+	}
+
+	private static class Key
+	{
+		final BasicImgLoader imgLoader;
+		final int timepoint;
+		final int setup;
+		final long[] downsampleFactors;
+
+		Key( final BasicImgLoader imgLoader, final ViewId vid, final long[] downsampleFactors )
+		{
+			this.imgLoader = imgLoader;
+			this.timepoint = vid.getTimePointId();
+			this.setup = vid.getViewSetupId();
+			this.downsampleFactors = downsampleFactors.clone();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			// the loader is compared by identity
+			return ( ( System.identityHashCode( imgLoader ) * 31 + timepoint ) * 31 + setup ) * 31 + Arrays.hashCode( downsampleFactors );
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key) o;
+			return imgLoader == k.imgLoader && timepoint == k.timepoint && setup == k.setup && Arrays.equals( downsampleFactors, k.downsampleFactors );
+		}
+	}
+}
@@ -133,8 +133,15 @@ public class FilteredStitchingResults
 
 	void updateFilteredResults()
 	{
+		// results may be added by a running pairwise shift calculation, filter a copy taken under its lock
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > unfiltered;
+		synchronized ( wrapped.getPairwiseResults() )
+		{
+			unfiltered = new HashMap<>( wrapped.getPairwiseResults() );
+		}
+
 		filteredPairwiseResults.clear();
-		wrapped.getPairwiseResults().forEach( (k, v) -> 
+		unfiltered.forEach( (k, v) -> 
 		{
 			for (Filter filter : filters)
 				if (!filter.conforms(v))
@@ -164,32 +171,39 @@ public class FilteredStitchingResults
 
 	public void applyToWrappedSubset( Collection< Pair< Group< ViewId >, Group< ViewId > > > targets)
 	{
-		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > filteredTmp = new HashMap<>();
-		filteredTmp.putAll( wrapped.getPairwiseResults() );
-
 		if ( demoOverlay != null )
 			demoOverlay.getFilteredResults().clear();
 
-		wrapped.getPairwiseResults().forEach( (k, v) -> 
+		// results may be added by a running pairwise shift calculation, do not lose them while we replace the map content
+		synchronized ( wrapped.getPairwiseResults() )
 		{
-			if (!targets.contains( k ))
-				return;
-			for (Filter filter : filters)
-				if (!filter.conforms(v))
-				{
-					filteredTmp.remove( k );
-					if ( demoOverlay != null )
-						demoOverlay.getFilteredResults().add( k );
-				}
-		});
+			final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > filteredTmp = new HashMap<>();
+			filteredTmp.putAll( wrapped.getPairwiseResults() );
 
-		wrapped.getPairwiseResults().clear();
-		wrapped.getPairwiseResults().putAll( filteredTmp );
+			wrapped.getPairwiseResults().forEach( (k, v) -> 
+			{
+				if (!targets.contains( k ))
+					return;
+				for (Filter filter : filters)
+					if (!filter.conforms(v))
+					{
+						filteredTmp.remove( k );
+						if ( demoOverlay != null )
+							demoOverlay.getFilteredResults().add( k );
+					}
+			});
+
+			wrapped.getPairwiseResults().clear();
+			wrapped.getPairwiseResults().putAll( filteredTmp );
+		}
 	}
 
 	public void applyToWrappedAll()
 	{
-		applyToWrappedSubset( wrapped.getPairwiseResults().keySet() );
+		synchronized ( wrapped.getPairwiseResults() )
+		{
+			applyToWrappedSubset( new ArrayList<>( wrapped.getPairwiseResults().keySet() ) );
+		}
 	}
 
 	public Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > getPairwiseResults()
@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Uniform grid over the (world space) bounding boxes of groups of views, to find the pairs of groups
+ * that might overlap without testing all n^2 pairs.
+ * 
+ * The boxes are conservative (the bounding box of all transformed views of a group, including the outer half pixel),
+ * so every pair for which {@link net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap} finds an
+ * overlap is reported, but the exact test still has to be done for the candidates.
+ * 
+ * Only the boxes are computed on construction, the grid is built when {@link #candidatePairs()} is first called,
+ * so the index can also be used just to test known pairs with {@link #mayOverlap(int, int)}.
+ * The registrations are only read, the models are concatenated from the transform lists here.
+ */
+public class GroupOverlapIndex< V extends ViewId >
+{
+	// boxes covering more cells than this are not put into the grid but tested against all others
+	private static final long maxCellsPerBox = 4096;
+
+	private final List< ? extends Group< ? extends V > > groups;
+
+	// bounding boxes, null if we do not know the size of a view (always a candidate then)
+	private final double[][] min;
+	private final double[][] max;
+
+	// built on demand by candidatePairs()
+	private double[] cellSize;
+	private HashMap< List< Long >, List< Integer > > grid;
+	private List< Integer > unindexed;
+
+	public GroupOverlapIndex(
+			final List< ? extends Group< ? extends V > > groups,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		this.groups = groups;
+		this.min = new double[ groups.size() ][];
+		this.max = new double[ groups.size() ][];
+
+		for ( int i = 0; i < groups.size(); ++i )
+			computeBoundingBox( i, vrs, sd );
+	}
+
+	private void buildGrid()
+	{
+		// the mean size of the boxes as cell size, so a box usually covers 2^n cells
+		int n = 0;
+		for ( int i = 0; i < groups.size(); ++i )
+			if ( min[ i ] != null )
+				n = min[ i ].length;
+
+		this.cellSize = new double[ n ];
+		int count = 0;
+		for ( int i = 0; i < groups.size(); ++i )
+			if ( min[ i ] != null )
+			{
+				for ( int d = 0; d < n; ++d )
+					cellSize[ d ] += max[ i ][ d ] - min[ i ][ d ];
+				++count;
+			}
+
+		for ( int d = 0; d < n; ++d )
+			cellSize[ d ] = count == 0 || cellSize[ d ] <= 0 ? 1 : cellSize[ d ] / count;
+
+		this.grid = new HashMap<>();
+		this.unindexed = new ArrayList<>();
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			if ( min[ i ] == null || numCells( i ) > maxCellsPerBox )
+			{
+				unindexed.add( i );
+				continue;
+			}
+
+			for ( final List< Long > cell : cells( i ) )
+				grid.computeIfAbsent( cell, k -> new ArrayList<>() ).add( i );
+		}
+	}
+
+	public List< ? extends Group< ? extends V > > getGroups() { return groups; }
+
+	/**
+	 * @param i index of the first group
+	 * @param j index of the second group
+	 * @return false if the bounding boxes of the groups do not intersect, i.e. the groups cannot overlap
+	 */
+	public boolean mayOverlap( final int i, final int j )
+	{
+		if ( min[ i ] == null || min[ j ] == null )
+			return true;
+
+		for ( int d = 0; d < min[ i ].length; ++d )
+			if ( min[ i ][ d ] > max[ j ][ d ] || min[ j ][ d ] > max[ i ][ d ] )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @return all index pairs (i &lt; j) of groups whose bounding boxes intersect, sorted by i, then j
+	 */
+	public List< int[] > candidatePairs()
+	{
+		if ( grid == null )
+			buildGrid();
+
+		final List< int[] > pairs = new ArrayList<>();
+
+		// lastTested[ j ] == i if we already looked at (i, j)
+		final int[] lastTested = new int[ groups.size() ];
+		Arrays.fill( lastTested, -1 );
+
+		for ( int i = 0; i < groups.size(); ++i )
+		{
+			final List< Integer > candidates = new ArrayList<>();
+
+			if ( min[ i ] == null || numCells( i ) > maxCellsPerBox )
+			{
+				for ( int j = i + 1; j < groups.size(); ++j )
+					candidates.add( j );
+			}
+			else
+			{
+				for ( final List< Long > cell : cells( i ) )
+					for ( final int j : grid.get( cell ) )
+						if ( j > i && lastTested[ j ] != i )
+						{
+							lastTested[ j ] = i;
+							candidates.add( j );
+						}
+
+				for ( final int j : unindexed )
+					if ( j > i && lastTested[ j ] != i )
+					{
+						lastTested[ j ] = i;
+						candidates.add( j );
+					}
+			}
+
+			candidates.sort( null );
+
+			for ( final int j : candidates )
+				if ( mayOverlap( i, j ) )
+					pairs.add( new int[] { i, j } );
+		}
+
+		return pairs;
+	}
+
+	private void computeBoundingBox(
+			final int i,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd )
+	{
+		double[] gMin = null, gMax = null;
+
+		for ( final V vid : groups.get( i ).getViews() )
+		{
+			final BasicViewDescription< ? > vd = sd.getViewDescriptions().get( vid );
+			final Dimensions size = vd == null ? null : vd.getViewSetup().getSize();
+
+			// we cannot say anything about this group
+			if ( size == null )
+				return;
+
+			final AffineTransform3D model = vrs.getViewRegistration( vid ).getModel();
+
+			final int n = size.numDimensions();
+			if ( gMin == null )
+			{
+				gMin = new double[ 3 ];
+				gMax = new double[ 3 ];
+				Arrays.fill( gMin, Double.POSITIVE_INFINITY );
+				Arrays.fill( gMax, Double.NEGATIVE_INFINITY );
+			}
+
+			// transform all corners of the view, including the outer half pixel
+			final double[] corner = new double[ 3 ];
+			for ( int c = 0; c < ( 1 << n ); ++c )
+			{
+				for ( int d = 0; d < 3; ++d )
+					corner[ d ] = d >= n ? 0 : ( ( c >> d ) & 1 ) == 0 ? -0.5 : size.dimension( d ) - 0.5;
+
+				model.apply( corner, corner );
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					gMin[ d ] = Math.min( gMin[ d ], corner[ d ] );
+					gMax[ d ] = Math.max( gMax[ d ], corner[ d ] );
+				}
+			}
+		}
+
+		min[ i ] = gMin;
+		max[ i ] = gMax;
+	}
+
+	private long cell( final double pos, final int d )
+	{
+		return (long) Math.floor( pos / cellSize[ d ] );
+	}
+
+	private long numCells( final int i )
+	{
+		long numCells = 1;
+		for ( int d = 0; d < cellSize.length; ++d )
+			numCells *= cell( max[ i ][ d ], d ) - cell( min[ i ][ d ], d ) + 1;
+		return numCells;
+	}
+
+	private List< List< Long > > cells( final int i )
+	{
+		final int n = cellSize.length;
+		final long[] from = new long[ n ];
+		final long[] to = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			from[ d ] = cell( min[ i ][ d ], d );
+			to[ d ] = cell( max[ i ][ d ], d );
+		}
+
+		final List< List< Long > > cells = new ArrayList<>();
+		final long[] pos = from.clone();
+
+		while ( true )
+		{
+			final List< Long > cell = new ArrayList<>( n );
+			for ( int d = 0; d < n; ++d )
+				cell.add( pos[ d ] );
+			cells.add( cell );
+
+			// next cell
+			int d = 0;
+			while ( d < n && pos[ d ] == to[ d ] )
+			{
+				pos[ d ] = from[ d ];
+				++d;
+			}
+
+			if ( d == n )
+				return cells;
+
+			++pos[ d ];
+		}
+	}
+}
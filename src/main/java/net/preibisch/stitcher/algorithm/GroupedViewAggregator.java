@@ -56,6 +56,7 @@ import net.imglib2.Dimensions;
 import net.imglib2.FinalDimensions;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -72,12 +73,21 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 public class GroupedViewAggregator
 {
 	private final List<Action> actions;
+	private DownsampledViewCache viewCache;
 
 	public GroupedViewAggregator()
 	{
 		this.actions = new ArrayList<>();
+		this.viewCache = null;
 	}
 
+	/**
+	 * set a cache of downsampled views to be shared by all calls to aggregate(), null to always load the views
+	 * @param viewCache the cache
+	 */
+	public void setViewCache(DownsampledViewCache viewCache) { this.viewCache = viewCache; }
+	public DownsampledViewCache getViewCache() { return viewCache; }
+
 	public class Action {
 		ActionType actionType;
 		final List<Class<? extends Entity>> entityClasses;
@@ -91,6 +101,21 @@ public class GroupedViewAggregator
 			instances.add( instance );
 		}
 
+		@Override
+		public String toString()
+		{
+			final StringBuilder sb = new StringBuilder( actionType.name() ).append( "(" );
+			for (int i = 0; i < entityClasses.size(); i++)
+			{
+				if (i > 0)
+					sb.append( "," );
+				sb.append( entityClasses.get( i ).getSimpleName() );
+				if (instances.get( i ) != null)
+					sb.append( ":" ).append( instances.get( i ).getId() );
+			}
+			return sb.append( ")" ).toString();
+		}
+
 		public <T extends RealType<T>> Map<BasicViewDescription<?>, RandomAccessibleInterval<T>> aggregate(
 				Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> input)
 		{
@@ -294,6 +319,18 @@ public class GroupedViewAggregator
 		PICK_SPECIFIC, PICK_BRIGHTEST, AVERAGE
 	}
 
+	/**
+	 * @return the actions in the order they are applied, e.g. for checking whether two aggregators do the same
+	 */
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (final Action ac : actions)
+			sb.append( ac );
+		return sb.length() == 0 ? "none" : sb.toString();
+	}
+
 	public void addAction(ActionType at, Class<? extends Entity> entityClass, Entity instance)
 	{
 		// check if we already have an Action of the same type
@@ -360,8 +397,39 @@ public class GroupedViewAggregator
 												long[] downsampleFactors,
 												final AffineTransform3D dsCorrectionT,
 												final ExecutorService service){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, null, service );
+	}
+
+	/**
+	 * aggregate the views of a group into one image
+	 * @param regionOfInterest if not null, only this region (in full resolution pixel coordinates of the views) is loaded
+	 * @return the aggregated image, or null if all views were filtered out
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												final RealInterval regionOfInterest,
+												final ExecutorService service){
+		return aggregate( gv, sd, downsampleFactors, dsCorrectionT, regionOfInterest, false, service );
+	}
+
+	/**
+	 * aggregate the views of a group into one image
+	 * @param regionOfInterest if not null, only this region (in full resolution pixel coordinates of the views) is loaded
+	 * @param loadNow load the views before returning (otherwise they are loaded on first access)
+	 * @return the aggregated image, or null if all views were filtered out
+	 */
+	public <T extends RealType<T>> RandomAccessibleInterval< T > aggregate(Group<? extends ViewId> gv, 
+												AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+												long[] downsampleFactors,
+												final AffineTransform3D dsCorrectionT,
+												final RealInterval regionOfInterest,
+												final boolean loadNow,
+												final ExecutorService service){
 
 		Map<BasicViewDescription< ? >, RandomAccessibleInterval<T>> map = new HashMap<>();
+		final List< RAIProxy< T > > proxies = new ArrayList<>();
 		boolean dsAdjusted = false;
 
 		for (ViewId vid : gv.getViews())
@@ -373,7 +441,8 @@ public class GroupedViewAggregator
 			// if view is not present, add null as the RAIProxy
 			if ( vd.isPresent() )
 			{
-				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors );
+				rai = new RAIProxy< T >( sd.getImgLoader(), vid, downsampleFactors, viewCache, regionOfInterest );
+				proxies.add( (RAIProxy< T >) rai );
 
 				if ( !dsAdjusted )
 				{
@@ -402,7 +471,18 @@ public class GroupedViewAggregator
 		// return the first RAI still present
 		// ideally, there should be only one left - more than one means that the actions were not right, e.g.
 		// we have 3 channels and 2 illuminations and the actions only state to average channels
-		return map.values().iterator().next();
+		final RandomAccessibleInterval< T > result = map.values().iterator().next();
+
+		if ( loadNow )
+		{
+			// a single picked view, or a combination of (potentially all) views
+			if ( result instanceof RAIProxy )
+				( (RAIProxy< T >) result ).load();
+			else
+				proxies.forEach( RAIProxy::load );
+		}
+
+		return result;
 		
 	}
 	
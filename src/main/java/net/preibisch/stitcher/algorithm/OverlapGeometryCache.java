@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
+import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Cache of the overlap geometry of groups of views, shared by pair filtering, pairwise computation and
+ * the BDV neighborhood view, which otherwise compute the same boxes over and over again.
+ * 
+ * Entries are keyed by the views of the groups and remember the registrations and sizes of all views
+ * they were computed from, so an entry is recomputed as soon as one of the ViewRegistrations changes.
+ * Callers get copies of the cached geometry, which they are free to modify.
+ */
+public class OverlapGeometryCache
+{
+	/*
+	 * how many overlaps are kept (least recently used ones are dropped first)
+	 */
+	public static int maxEntries = 100000;
+
+	private static final LinkedHashMap< List< HashSet< ViewId > >, Entry< BoundingBox > > overlaps = new LinkedHashMap< List< HashSet< ViewId > >, Entry< BoundingBox > >( 16, 0.75f, true )
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry( final Map.Entry< List< HashSet< ViewId > >, Entry< BoundingBox > > eldest )
+		{
+			return size() > maxEntries;
+		}
+	};
+
+	private OverlapGeometryCache() {}
+
+	/**
+	 * the maximal overlap of two groups as computed by {@link BoundingBoxMaximalGroupOverlap}
+	 * @param groupA - first group
+	 * @param groupB - second group
+	 * @param sd - the sequence description (for the view sizes)
+	 * @param vrs - the current registrations
+	 * @return a copy of the overlap or null if the groups do not overlap
+	 */
+	public static BoundingBox getOverlap(
+			final Group< ? extends ViewId > groupA,
+			final Group< ? extends ViewId > groupB,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs )
+	{
+		final List< ViewId > viewsA = sorted( groupA.getViews() );
+		final List< ViewId > viewsB = sorted( groupB.getViews() );
+
+		final List< HashSet< ViewId > > key = Arrays.asList( new HashSet<>( viewsA ), new HashSet<>( viewsB ) );
+
+		final ArrayList< ViewId > allViews = new ArrayList<>( viewsA );
+		allViews.addAll( viewsB );
+		final double[] signature = signature( allViews, sd, vrs );
+
+		synchronized ( overlaps )
+		{
+			final Entry< BoundingBox > entry = overlaps.get( key );
+			if ( entry != null && Arrays.equals( entry.signature, signature ) )
+				return copy( entry.value );
+		}
+
+		final List< List< ViewId > > views = new ArrayList<>();
+		views.add( viewsA );
+		views.add( viewsB );
+		final BoundingBox bb = new BoundingBoxMaximalGroupOverlap< ViewId >( views, sd, vrs ).estimate( "Max Overlap" );
+
+		synchronized ( overlaps )
+		{
+			overlaps.put( key, new Entry<>( signature, bb ) );
+		}
+
+		return copy( bb );
+	}
+
+	@SuppressWarnings("unchecked")
+	public static BoundingBox getOverlap(
+			final Group< ? extends ViewId > groupA,
+			final Group< ? extends ViewId > groupB,
+			final AbstractSpimData< ? > spimData )
+	{
+		return getOverlap( groupA, groupB,
+				(AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? >) spimData.getSequenceDescription(),
+				spimData.getViewRegistrations() );
+	}
+
+	/**
+	 * drop all cached geometry
+	 */
+	public static void clear()
+	{
+		synchronized ( overlaps )
+		{
+			overlaps.clear();
+		}
+	}
+
+	private static BoundingBox copy( final BoundingBox bb )
+	{
+		return bb == null ? null : new BoundingBox( bb.getTitle(), bb.getMin().clone(), bb.getMax().clone() );
+	}
+
+	private static List< ViewId > sorted( final Iterable< ? extends ViewId > views )
+	{
+		final ArrayList< ViewId > list = new ArrayList<>();
+		views.forEach( list::add );
+		Collections.sort( list );
+		return list;
+	}
+
+	/*
+	 * registration and size of every view, everything the geometry depends on
+	 */
+	private static double[] signature(
+			final List< ViewId > views,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final ViewRegistrations vrs )
+	{
+		final double[] signature = new double[ views.size() * 15 ];
+
+		int i = 0;
+		for ( final ViewId viewId : views )
+		{
+			final AffineTransform3D model = vrs.getViewRegistration( viewId ).getModel();
+			for ( int r = 0; r < 3; ++r )
+				for ( int c = 0; c < 4; ++c )
+					signature[ i++ ] = model.get( r, c );
+
+			final Dimensions size = sd.getViewDescriptions().get( viewId ).getViewSetup().getSize();
+			for ( int d = 0; d < 3; ++d )
+				signature[ i++ ] = size == null || d >= size.numDimensions() ? -1 : size.dimension( d );
+		}
+
+		return signature;
+	}
+
+	private static class Entry< T >
+	{
+		final double[] signature;
+		final T value;
+
+		Entry( final double[] signature, final T value )
+		{
+			this.signature = signature;
+			this.value = value;
+		}
+	}
+}
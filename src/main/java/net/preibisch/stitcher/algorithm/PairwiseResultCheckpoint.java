@@ -0,0 +1,315 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Text file that the results of a pairwise shift calculation are appended to as soon as each pair is done,
+ * so that a crashed or cancelled run can be resumed instead of starting over.
+ * 
+ * Every line stores the groups of a pair, the hash of their view registrations
+ * ({@link PairwiseStitchingResult#calculateHash}), the downsampling, the parameters and the aggregation
+ * of grouped views it was computed with. When resuming, a stored result is only reused if all of these are still the same.
+ * The file is then rewritten to contain only the reused results (via a temporary file that replaces it), before new
+ * results are appended.
+ */
+public class PairwiseResultCheckpoint
+{
+	public static String defaultFileName = "pairwise_shifts_checkpoint.txt";
+
+	private final File file;
+	private final String settings;
+	private final boolean resume;
+
+	private PrintWriter out;
+
+	/**
+	 * @param file the checkpoint file
+	 * @param downsamplingFactors downsampling used for the pairwise shifts
+	 * @param params parameters used for the pairwise shifts
+	 * @param gva how grouped views are combined into one image for the pairwise shifts (null if they are not)
+	 * @param resume reuse matching results that are in the file already (otherwise it is overwritten)
+	 */
+	public PairwiseResultCheckpoint(
+			final File file,
+			final long[] downsamplingFactors,
+			final PairwiseStitchingParameters params,
+			final GroupedViewAggregator gva,
+			final boolean resume )
+	{
+		this.file = file;
+		this.settings = settings( downsamplingFactors, params, gva );
+		this.resume = resume;
+	}
+
+	/**
+	 * the settings a result depends on (everything but the number of parallel tasks and GUI options)
+	 */
+	public static String settings( final long[] downsamplingFactors, final PairwiseStitchingParameters params, final GroupedViewAggregator gva )
+	{
+		return "ds=" + Arrays.stream( downsamplingFactors ).mapToObj( Long::toString ).collect( Collectors.joining( "," ) ) +
+				";minOverlap=" + params.minOverlap +
+				";peaks=" + params.peaksToCheck +
+				";subpixel=" + params.doSubpixel +
+				";interpolate=" + params.interpolateCrossCorrelation +
+				";wholeImage=" + params.useWholeImage +
+				";pyramidLevels=" + params.pyramidLevels +
+				";maxShift=" + ( params.useWholeImage ? 0 : params.maxShift ) + // not used with the whole images
+				";aggregate=" + ( gva == null ? "none" : gva.toString() );
+	}
+
+	/**
+	 * open the checkpoint file for writing. When resuming, all results stored for the given pairs that
+	 * are still valid (same settings, unchanged registrations) are returned.
+	 * 
+	 * @param pairs the pairs we are about to compute
+	 * @param vrs the current view registrations
+	 * @param <V> view id type
+	 * @return results that do not need to be computed again
+	 */
+	public synchronized < V extends ViewId > ArrayList< PairwiseStitchingResult< ViewId > > open(
+			final List< ? extends Pair< ? extends Group< V >, ? extends Group< V > > > pairs,
+			final ViewRegistrations vrs )
+	{
+		final ArrayList< PairwiseStitchingResult< ViewId > > finished = new ArrayList<>();
+
+		if ( resume && file.exists() )
+		{
+			final HashMap< String, String[] > stored = new HashMap<>();
+
+			try ( final BufferedReader in = new BufferedReader( new FileReader( file ) ) )
+			{
+				String line;
+				while ( ( line = in.readLine() ) != null )
+				{
+					final String[] entries = line.split( "\t" );
+					if ( entries.length == 8 && entries[ 0 ].equals( settings ) )
+						stored.put( entries[ 1 ] + "\t" + entries[ 2 ], entries ); // a later line for the same pair wins
+				}
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "Could not read pairwise checkpoint '" + file.getAbsolutePath() + "': " + e );
+			}
+
+			for ( final Pair< ? extends Group< V >, ? extends Group< V > > pair : pairs )
+			{
+				final Group< ViewId > groupA = toViewIdGroup( pair.getA() );
+				final Group< ViewId > groupB = toViewIdGroup( pair.getB() );
+
+				final String[] entries = stored.get( groupToString( groupA ) + "\t" + groupToString( groupB ) );
+				if ( entries == null )
+					continue;
+
+				final PairwiseStitchingResult< ViewId > psr = parse( entries, groupA, groupB );
+
+				final double hash = PairwiseStitchingResult.calculateHash(
+						vrs.getViewRegistration( groupA.getViews().iterator().next() ),
+						vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+
+				// registrations changed since this was computed
+				if ( psr == null || psr.getHash() != hash )
+					continue;
+
+				finished.add( psr );
+			}
+		}
+
+		try
+		{
+			// keep only what we reuse: write it to a new file that replaces the old one in one step,
+			// so that crashing now neither loses the old results nor leaves them in the file twice
+			if ( resume && file.exists() )
+			{
+				final File tmp = new File( file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp" );
+
+				try ( final PrintWriter tmpOut = new PrintWriter( new FileWriter( tmp ) ) )
+				{
+					finished.forEach( psr -> tmpOut.println( toLine( psr ) ) );
+				}
+
+				try
+				{
+					Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+				}
+				catch ( final AtomicMoveNotSupportedException e )
+				{
+					Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+				}
+			}
+
+			out = new PrintWriter( new FileWriter( file, resume ) );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Could not write pairwise checkpoint '" + file.getAbsolutePath() + "', continuing without: " + e );
+			out = null;
+		}
+
+		return finished;
+	}
+
+	/**
+	 * store a result, it is written to disk immediately
+	 * @param psr the result
+	 */
+	public synchronized void add( final PairwiseStitchingResult< ViewId > psr )
+	{
+		if ( out != null )
+			write( psr );
+	}
+
+	public synchronized void close()
+	{
+		if ( out != null )
+			out.close();
+
+		out = null;
+	}
+
+	/**
+	 * close and remove the checkpoint file, once the results are saved elsewhere
+	 */
+	public synchronized void delete()
+	{
+		close();
+
+		if ( file.exists() && !file.delete() )
+			IOFunctions.println( "Could not delete pairwise checkpoint '" + file.getAbsolutePath() + "'" );
+	}
+
+	public File getFile() { return file; }
+
+	private void write( final PairwiseStitchingResult< ViewId > psr )
+	{
+		out.println( toLine( psr ) );
+
+		// make sure it is on disk in case we crash
+		out.flush();
+	}
+
+	private String toLine( final PairwiseStitchingResult< ViewId > psr )
+	{
+		final RealInterval bb = psr.getBoundingBox();
+
+		return settings + "\t" +
+				groupToString( psr.pair().getA() ) + "\t" +
+				groupToString( psr.pair().getB() ) + "\t" +
+				psr.getHash() + "\t" +
+				psr.r() + "\t" +
+				toString( psr.getTransform().getRowPackedCopy() ) + "\t" +
+				toString( bb == null ? null : min( bb ) ) + "\t" +
+				toString( bb == null ? null : max( bb ) );
+	}
+
+	private static PairwiseStitchingResult< ViewId > parse( final String[] entries, final Group< ViewId > groupA, final Group< ViewId > groupB )
+	{
+		try
+		{
+			final double hash = Double.parseDouble( entries[ 3 ] );
+			final double r = Double.parseDouble( entries[ 4 ] );
+			final double[] transform = parseArray( entries[ 5 ] );
+			final double[] min = parseArray( entries[ 6 ] );
+			final double[] max = parseArray( entries[ 7 ] );
+
+			if ( transform == null || transform.length != 12 )
+				return null;
+
+			final AffineTransform3D t = new AffineTransform3D();
+			t.set( transform );
+
+			final RealInterval bb = min == null || max == null ? null : new FinalRealInterval( min, max );
+
+			return new PairwiseStitchingResult<>( new ValuePair<>( groupA, groupB ), bb, t, r, hash );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return null;
+		}
+	}
+
+	private static < V extends ViewId > Group< ViewId > toViewIdGroup( final Group< V > group )
+	{
+		return new Group< ViewId >( group.getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ) );
+	}
+
+	private static String groupToString( final Group< ? extends ViewId > group )
+	{
+		return group.getViews().stream().map( v -> new ViewId( v.getTimePointId(), v.getViewSetupId() ) ).sorted()
+				.map( v -> v.getTimePointId() + ":" + v.getViewSetupId() ).collect( Collectors.joining( "," ) );
+	}
+
+	private static double[] min( final RealInterval interval )
+	{
+		final double[] min = new double[ interval.numDimensions() ];
+		interval.realMin( min );
+		return min;
+	}
+
+	private static double[] max( final RealInterval interval )
+	{
+		final double[] max = new double[ interval.numDimensions() ];
+		interval.realMax( max );
+		return max;
+	}
+
+	private static String toString( final double[] values )
+	{
+		if ( values == null )
+			return "null";
+
+		return Arrays.stream( values ).mapToObj( Double::toString ).collect( Collectors.joining( "," ) );
+	}
+
+	private static double[] parseArray( final String s )
+	{
+		if ( s.equals( "null" ) )
+			return null;
+
+		return Arrays.stream( s.split( "," ) ).mapToDouble( Double::parseDouble ).toArray();
+	}
+}
@@ -32,8 +32,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
@@ -41,13 +43,22 @@ import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
 import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
+import net.imglib2.algorithm.phasecorrelation.IntegralImageCrossCorrelation;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelation2Util;
 import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationPeak2;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationWorkspace;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.iterator.IntervalIterator;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -55,14 +66,15 @@ import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.Translation3D;
 import net.imglib2.realtransform.TranslationGet;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
 import net.preibisch.mvrecon.process.export.DisplayImage;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
@@ -79,6 +91,15 @@ public class PairwiseStitching
 {
 	public static boolean debug = false;
 
+	/*
+	 * coarse-to-fine phase correlation (PairwiseStitchingParameters.pyramidLevels): search radius around the
+	 * upsampled estimate on every finer level, how often the window may move, and the minimal size of a level
+	 * (dimensions that would get smaller are not downsampled any further)
+	 */
+	public static int pyramidSearchRadius = 1;
+	public static int maxPyramidSearchSteps = 8;
+	public static int minPyramidLevelSize = 16;
+
 	public static <T extends RealType< T >, S extends RealType< S >> Pair< AffineTransform, Double > getShiftLucasKanade(
 			final RandomAccessibleInterval< T > input1, final RandomAccessibleInterval< T > input2,
 			final TranslationGet t1, final TranslationGet t2, final LucasKanadeParameters params,
@@ -335,20 +356,32 @@ public class PairwiseStitching
 		if ( debug )
 			System.out.println( "FFT" );
 
-		// TODO: Do not extend by mirror inside, but do that out here on the
-		// full image,
-		// so we feed it RandomAccessible + an Interval we want to use for the
-		// PCM > also zero-min inside
-		final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				extension, new ArrayImgFactory< FloatType >(), new FloatType(),
-				new ArrayImgFactory< ComplexFloatType >(), new ComplexFloatType(), service );
+		// copy the overlaps to float ArrayImgs once, they are traversed many times below
+		// (FFTs, cross-correlation of every candidate shift) and this enables the primitive fast paths
+		final ArrayImg< FloatType, FloatArray > overlap1 = PhaseCorrelation2Util.copyToFloatArrayImg( Views.interval( img1, interval1 ), service );
+		final ArrayImg< FloatType, FloatArray > overlap2 = PhaseCorrelation2Util.copyToFloatArrayImg( Views.interval( img2, interval2 ), service );
+
+		// the overlaps are cut at the current registration, so the expected shift is zero and we only need
+		// to look at shifts up to params.maxShift (with the whole images, the expected shift is not known here)
+		final long[] maxShift;
+
+		if ( params.maxShift > 0 && !params.useWholeImage )
+		{
+			maxShift = new long[ overlap1.numDimensions() ];
+			Arrays.fill( maxShift, (long) Math.ceil( params.maxShift ) );
+		}
+		else
+		{
+			maxShift = null;
+		}
 
-		normalizePCM( pcm, service );
+		final PhaseCorrelationPeak2 shiftPeak;
 
-		final PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm,
-				Views.zeroMin( Views.interval( img1, interval1 ) ), Views.zeroMin( Views.interval( img2, interval2 ) ),
-				params.peaksToCheck, minOverlap, params.doSubpixel, params.interpolateCrossCorrelation, service );
+		if ( params.pyramidLevels > 0 )
+			shiftPeak = getShiftPyramid( overlap1, overlap2, extension, params, minOverlap, maxShift, service );
+		else
+			shiftPeak = getShiftSingleLevel( overlap1, overlap2, extension, params.peaksToCheck, minOverlap,
+					params.doSubpixel, params.interpolateCrossCorrelation, maxShift, service );
 
 		//System.out.println( "Actual overlap of best shift is: " + shiftPeak.getnPixel() );
 
@@ -398,6 +431,383 @@ public class PairwiseStitching
 		return new ValuePair< >( new Translation(finalShift), shiftPeak.getCrossCorr() );
 	}
 
+	/*
+	 * phase correlation of two equally sized overlaps, verified by cross correlation
+	 */
+	private static PhaseCorrelationPeak2 getShiftSingleLevel(
+			final RandomAccessibleInterval< FloatType > overlap1,
+			final RandomAccessibleInterval< FloatType > overlap2,
+			final int[] extension,
+			final int peaksToCheck,
+			final long minOverlap,
+			final boolean doSubpixel,
+			final boolean interpolateCrossCorrelation,
+			final long[] maxShift,
+			final ExecutorService service )
+	{
+		// TODO: Do not extend by mirror inside, but do that out here on the
+		// full image,
+		// so we feed it RandomAccessible + an Interval we want to use for the
+		// PCM > also zero-min inside
+		// NB: FFT & PCM buffers come from a pool keyed by the padded size,
+		// so pairs with the same overlap geometry do not allocate new images.
+		// The workspace goes back to the pool when we are done, also if something fails.
+		// The executor identifies the run that leased it, so the run can drop its buffers at the end
+		try ( final PhaseCorrelationWorkspace workspace = PhaseCorrelationWorkspace.acquire( overlap1, overlap2, extension, service ) )
+		{
+			final RandomAccessibleInterval< FloatType > pcm = PhaseCorrelation2.calculatePCM(
+					overlap1, overlap2, extension, workspace, service );
+
+			normalizePCM( pcm, service );
+
+			return PhaseCorrelation2.getShift( pcm,
+					overlap1, overlap2,
+					peaksToCheck, minOverlap, doSubpixel, interpolateCrossCorrelation, maxShift, service );
+		}
+	}
+
+	/*
+	 * coarse-to-fine phase correlation: the shift is found by phase correlation of downsampled overlaps (every level
+	 * halves the dimensions that stay at least minPyramidLevelSize) and then refined on every finer level by direct
+	 * cross correlation of the shifts in a small window around the upsampled estimate (moving the window while the
+	 * best shift is at its border). Only the coarsest level needs FFTs, the finer levels need a few cross
+	 * correlations each and no extra memory. Shifts beyond maxShift (if not null) are not considered on any level.
+	 */
+	private static PhaseCorrelationPeak2 getShiftPyramid(
+			final ArrayImg< FloatType, FloatArray > overlap1,
+			final ArrayImg< FloatType, FloatArray > overlap2,
+			final int[] extension,
+			final PairwiseStitchingParameters params,
+			final long minOverlap,
+			final long[] maxShift,
+			final ExecutorService service )
+	{
+		final int n = overlap1.numDimensions();
+
+		final ArrayList< ArrayImg< FloatType, FloatArray > > pyramid1 = new ArrayList<>();
+		final ArrayList< ArrayImg< FloatType, FloatArray > > pyramid2 = new ArrayList<>();
+		pyramid1.add( overlap1 );
+		pyramid2.add( overlap2 );
+
+		// downsampling factor (1 or 2) of every dimension from each level to the next coarser one
+		final ArrayList< int[] > factors = new ArrayList<>();
+
+		for ( int l = 0; l < params.pyramidLevels; ++l )
+		{
+			final int[] factor = downsamplingFactors( Intervals.dimensionsAsLongArray( pyramid1.get( l ) ) );
+
+			if ( factor == null )
+				break;
+
+			factors.add( factor );
+			pyramid1.add( downsample2x( pyramid1.get( l ), factor ) );
+			pyramid2.add( downsample2x( pyramid2.get( l ), factor ) );
+		}
+
+		final int coarsest = pyramid1.size() - 1;
+
+		// too small to downsample at all
+		if ( coarsest == 0 )
+			return getShiftSingleLevel( overlap1, overlap2, extension, params.peaksToCheck, minOverlap,
+					params.doSubpixel, params.interpolateCrossCorrelation, maxShift, service );
+
+		if ( debug )
+			System.out.println( "pyramid with " + coarsest + " downsampled levels, coarsest: " + Util.printInterval( pyramid1.get( coarsest ) ) );
+
+		// the min overlap in pixels of a level
+		final double pixels0 = Intervals.numElements( overlap1 );
+
+		PhaseCorrelationPeak2 best = getShiftSingleLevel( pyramid1.get( coarsest ), pyramid2.get( coarsest ), extension,
+				params.peaksToCheck, (long) Math.ceil( minOverlap * Intervals.numElements( pyramid1.get( coarsest ) ) / pixels0 ),
+				false, false, maxShiftAtLevel( maxShift, overlap1, pyramid1.get( coarsest ) ), service );
+
+		if ( best == null || Double.isInfinite( best.getCrossCorr() ) )
+			return null;
+
+		for ( int l = coarsest - 1; l >= 0; --l )
+		{
+			final ArrayImg< FloatType, FloatArray > img1 = pyramid1.get( l );
+			final ArrayImg< FloatType, FloatArray > img2 = pyramid2.get( l );
+			final long minOverlapLevel = (long) Math.ceil( minOverlap * Intervals.numElements( img1 ) / pixels0 );
+			final long[] maxShiftLevel = maxShiftAtLevel( maxShift, overlap1, img1 );
+
+			// upsample the estimate
+			final long[] center = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				center[ d ] = best.getShift().getLongPosition( d ) * factors.get( l )[ d ];
+
+			final HashMap< List< Long >, PhaseCorrelationPeak2 > evaluated = new HashMap<>();
+
+			best = null;
+			for ( int step = 0; step < maxPyramidSearchSteps; ++step )
+			{
+				final PhaseCorrelationPeak2 bestInWindow = searchWindow( img1, img2, center, pyramidSearchRadius, minOverlapLevel, maxShiftLevel, evaluated, service );
+
+				if ( bestInWindow == null || Double.isInfinite( bestInWindow.getCrossCorr() ) )
+					break;
+
+				best = bestInWindow;
+
+				// the maximum is inside the window, otherwise move the window there
+				boolean atCenter = true;
+				for ( int d = 0; d < n; ++d )
+				{
+					atCenter &= best.getShift().getLongPosition( d ) == center[ d ];
+					center[ d ] = best.getShift().getLongPosition( d );
+				}
+
+				if ( atCenter )
+					break;
+			}
+
+			if ( best == null )
+				return null;
+
+			// parabola through the cross correlation of the neighbors in every dimension
+			if ( l == 0 && params.doSubpixel )
+			{
+				final double[] subpixel = new double[ n ];
+				for ( int d = 0; d < n; ++d )
+				{
+					subpixel[ d ] = center[ d ];
+
+					final long[] neighbor = center.clone();
+					neighbor[ d ] = center[ d ] - 1;
+					final PhaseCorrelationPeak2 lower = evaluated.get( asList( neighbor ) );
+					neighbor[ d ] = center[ d ] + 1;
+					final PhaseCorrelationPeak2 upper = evaluated.get( asList( neighbor ) );
+
+					if ( lower == null || upper == null || Double.isInfinite( lower.getCrossCorr() ) || Double.isInfinite( upper.getCrossCorr() ) )
+						continue;
+
+					final double denominator = lower.getCrossCorr() - 2 * best.getCrossCorr() + upper.getCrossCorr();
+					if ( denominator < 0 )
+						subpixel[ d ] += Math.max( -0.5, Math.min( 0.5, 0.5 * ( lower.getCrossCorr() - upper.getCrossCorr() ) / denominator ) );
+				}
+
+				best.setSubpixelShift( new RealPoint( subpixel ) );
+			}
+		}
+
+		return best;
+	}
+
+	/*
+	 * sizes of the levels getShiftPyramid() uses for an overlap of the given size, starting with the full size
+	 */
+	private static List< long[] > pyramidLevelSizes( final long[] size, final int pyramidLevels )
+	{
+		final List< long[] > sizes = new ArrayList<>();
+		sizes.add( size.clone() );
+
+		for ( int l = 0; l < pyramidLevels; ++l )
+		{
+			final long[] finer = sizes.get( l );
+			final int[] factor = downsamplingFactors( finer );
+
+			if ( factor == null )
+				break;
+
+			final long[] coarser = new long[ finer.length ];
+			for ( int d = 0; d < finer.length; ++d )
+				coarser[ d ] = finer[ d ] / factor[ d ];
+
+			sizes.add( coarser );
+		}
+
+		return sizes;
+	}
+
+	/*
+	 * halve every dimension that does not get smaller than minPyramidLevelSize, so thin overlaps are still
+	 * downsampled along their long dimensions. Returns null if no dimension can be halved.
+	 */
+	private static int[] downsamplingFactors( final long[] size )
+	{
+		final int[] factor = new int[ size.length ];
+		boolean any = false;
+
+		for ( int d = 0; d < size.length; ++d )
+		{
+			factor[ d ] = size[ d ] / 2 >= minPyramidLevelSize ? 2 : 1;
+			any |= factor[ d ] == 2;
+		}
+
+		return any ? factor : null;
+	}
+
+	/**
+	 * estimate how much memory {@link #getShift} needs at most for the phase correlation of two overlaps of the
+	 * given size: float copies of the overlaps (of every level with pyramidLevels &gt; 0), the pooled FFT/PCM workspace
+	 * and the summed-area tables used to verify the candidate shifts of the phase correlation (see
+	 * {@link IntegralImageCrossCorrelation}). The finer pyramid levels correlate directly and need no extra memory.
+	 * 
+	 * @param overlapSize size of the overlap without singleton dimensions
+	 * @param params the parameters
+	 * @return estimated peak memory in bytes
+	 */
+	public static long estimatePhaseCorrelationMemory( final long[] overlapSize, final PairwiseStitchingParameters params )
+	{
+		final int[] extension = new int[ overlapSize.length ];
+		Arrays.fill( extension, 10 );
+
+		final List< long[] > levels = pyramidLevelSizes( overlapSize, params.pyramidLevels );
+		long bytes = 0;
+
+		// float copies of both overlaps, all levels are kept until we are done
+		for ( final long[] level : levels )
+			bytes += 2 * 4 * Arrays.stream( level ).reduce( 1, ( a, b ) -> a * b );
+
+		// phase correlation on the coarsest level, its workspace is still leased while the peaks are verified
+		final FinalInterval coarsest = new FinalInterval( levels.get( levels.size() - 1 ) );
+		bytes += PhaseCorrelationWorkspace.sizeInBytes( coarsest, coarsest, extension );
+
+		if ( IntegralImageCrossCorrelation.isApplicable( coarsest, coarsest, params.peaksToCheck ) )
+			bytes += IntegralImageCrossCorrelation.sizeInBytes( coarsest, coarsest );
+
+		return bytes;
+	}
+
+	/*
+	 * the maximal shift in pixels of a downsampled level (rounded up), null if unbounded
+	 */
+	private static long[] maxShiftAtLevel( final long[] maxShift, final Interval fullSize, final Interval level )
+	{
+		if ( maxShift == null )
+			return null;
+
+		final long[] maxShiftLevel = new long[ maxShift.length ];
+		for ( int d = 0; d < maxShift.length; ++d )
+			maxShiftLevel[ d ] = (long) Math.ceil( (double) maxShift[ d ] * level.dimension( d ) / fullSize.dimension( d ) );
+
+		return maxShiftLevel;
+	}
+
+	/*
+	 * cross correlation of all shifts within radius of center (and within maxShift, if not null) that were not evaluated yet,
+	 * returns the best shift in the window. The few shifts of a window are correlated directly, summed-area tables of a
+	 * whole level would cost more memory than its FFT.
+	 */
+	private static PhaseCorrelationPeak2 searchWindow(
+			final ArrayImg< FloatType, FloatArray > img1,
+			final ArrayImg< FloatType, FloatArray > img2,
+			final long[] center,
+			final int radius,
+			final long minOverlap,
+			final long[] maxShift,
+			final HashMap< List< Long >, PhaseCorrelationPeak2 > evaluated,
+			final ExecutorService service )
+	{
+		final int n = center.length;
+		final long[] size = new long[ n ];
+		Arrays.fill( size, 2 * radius + 1 );
+
+		final ArrayList< PhaseCorrelationPeak2 > window = new ArrayList<>();
+		final ArrayList< PhaseCorrelationPeak2 > toEvaluate = new ArrayList<>();
+
+		final IntervalIterator it = new IntervalIterator( size );
+		while ( it.hasNext() )
+		{
+			it.fwd();
+			final long[] shift = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				shift[ d ] = center[ d ] - radius + it.getLongPosition( d );
+
+			if ( maxShift != null )
+			{
+				boolean allowed = true;
+				for ( int d = 0; d < n; ++d )
+					allowed &= Math.abs( shift[ d ] ) <= maxShift[ d ];
+				if ( !allowed )
+					continue;
+			}
+
+			PhaseCorrelationPeak2 peak = evaluated.get( asList( shift ) );
+
+			if ( peak == null )
+			{
+				peak = new PhaseCorrelationPeak2( new Point( shift ), 0 );
+				peak.setShift( new Point( shift ) );
+				evaluated.put( asList( shift ), peak );
+				toEvaluate.add( peak );
+			}
+
+			window.add( peak );
+		}
+
+		PhaseCorrelation2Util.calculateCrossCorrParallel( toEvaluate, img1, img2, minOverlap, service, false );
+
+		PhaseCorrelationPeak2 best = null;
+		for ( final PhaseCorrelationPeak2 peak : window )
+			if ( best == null || peak.getCrossCorr() > best.getCrossCorr() )
+				best = peak;
+
+		return best;
+	}
+
+	private static List< Long > asList( final long[] position )
+	{
+		return Arrays.stream( position ).boxed().collect( Collectors.toList() );
+	}
+
+	/*
+	 * average over blocks of factor (1 or 2 in every dimension) pixels, an odd last row is dropped
+	 */
+	private static ArrayImg< FloatType, FloatArray > downsample2x( final ArrayImg< FloatType, FloatArray > img, final int[] factor )
+	{
+		final int n = img.numDimensions();
+		final long[] dims = Intervals.dimensionsAsLongArray( img );
+		final long[] dimsOut = new long[ n ];
+		final int[] strides = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			dimsOut[ d ] = Math.max( 1, dims[ d ] / factor[ d ] );
+			strides[ d ] = d == 0 ? 1 : strides[ d - 1 ] * (int) dims[ d - 1 ];
+		}
+
+		final float[] src = img.update( null ).getCurrentStorageArray();
+		final ArrayImg< FloatType, FloatArray > out = ArrayImgs.floats( dimsOut );
+		final float[] dst = out.update( null ).getCurrentStorageArray();
+
+		final int[] pos = new int[ n ];
+		for ( int i = 0; i < dst.length; ++i )
+		{
+			double sum = 0;
+			int count = 0;
+
+			for ( int corner = 0; corner < ( 1 << n ); ++corner )
+			{
+				int index = 0;
+				boolean inside = true;
+				for ( int d = 0; d < n && inside; ++d )
+				{
+					final int offset = ( corner >> d ) & 1;
+					final int p = factor[ d ] * pos[ d ] + offset;
+					inside = offset < factor[ d ] && p < dims[ d ];
+					index += p * strides[ d ];
+				}
+
+				if ( inside )
+				{
+					sum += src[ index ];
+					++count;
+				}
+			}
+
+			dst[ i ] = (float) ( sum / count );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++pos[ d ] < dimsOut[ d ] )
+					break;
+				pos[ d ] = 0;
+			}
+		}
+
+		return out;
+	}
+
 	public static void normalizePCM( final RandomAccessibleInterval< FloatType > pcm, final ExecutorService service )
 	{
 		// so that the peak doesn't stick out too much, that interferes with the subpixel detection
@@ -567,6 +977,205 @@ public class PairwiseStitching
 
 	}
 
+	/**
+	 * same as {@link #getPairwiseShifts(Map, Map, PairwiseStitchingParameters, ExecutorService)}, but only for overlapping
+	 * images and with several pairs computed at once, using a new pool of {@link Threads#numThreads()} threads
+	 */
+	public static <T extends RealType< T >, C extends Comparable< C >> List< PairwiseStitchingResult< C > > getPairwiseShiftsParallel(
+			final Map< C, RandomAccessibleInterval< T > > rais, final Map< C, TranslationGet > translations,
+			final PairwiseStitchingParameters params )
+	{
+		final ForkJoinPool pool = new ForkJoinPool( Threads.numThreads() );
+
+		try
+		{
+			return getPairwiseShiftsParallel( rais, translations, params, pool );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * compute the shifts of all pairs of images that overlap at their translations (all pairs if
+	 * params.useWholeImage is set), several pairs at once. The pairs and the phase correlations
+	 * share the work-stealing pool, threads waiting for a subtask help with others.
+	 * 
+	 * @param rais the images
+	 * @param translations the approximate translation of every image
+	 * @param params the parameters, numTasks pairs are computed at once if manualNumTasks is set
+	 * @param pool pool to run the pairs and their subtasks on
+	 * @param <T> pixel type
+	 * @param <C> index type
+	 * @return the results, in the same order as the sequential version (pairs that failed are logged and left out),
+	 * or null if interrupted
+	 */
+	public static <T extends RealType< T >, C extends Comparable< C >> List< PairwiseStitchingResult< C > > getPairwiseShiftsParallel(
+			final Map< C, RandomAccessibleInterval< T > > rais, final Map< C, TranslationGet > translations,
+			final PairwiseStitchingParameters params, final ForkJoinPool pool )
+	{
+		final List< Pair< C, C > > pairs = getPairs( rais, translations, !params.useWholeImage );
+		final List< Callable< PairwiseStitchingResult< C > > > tasks = new ArrayList<>();
+
+		for ( final Pair< C, C > pair : pairs )
+		{
+			tasks.add( () -> {
+				final Pair< Translation, Double > resT = getShift( rais.get( pair.getA() ), rais.get( pair.getB() ),
+						translations.get( pair.getA() ), translations.get( pair.getB() ), params, pool );
+
+				return resT == null ? null : createResult( pair.getA(), pair.getB(), resT.getA(), resT.getB() );
+			} );
+		}
+
+		return invokePairs( pairs, tasks, params.manualNumTasks ? params.numTasks : Math.max( 1, pool.getParallelism() / 2 ), pool );
+	}
+
+	/**
+	 * same as {@link #getPairwiseShiftsLucasKanade(Map, Map, LucasKanadeParameters, ExecutorService)}, but only for overlapping
+	 * images and with several pairs computed at once, using a new pool of {@link Threads#numThreads()} threads
+	 */
+	public static <T extends RealType< T >, C extends Comparable< C >> List< PairwiseStitchingResult< C > > getPairwiseShiftsLucasKanadeParallel(
+			final Map< C, RandomAccessibleInterval< T > > rais, final Map< C, TranslationGet > translations,
+			final LucasKanadeParameters params )
+	{
+		final ForkJoinPool pool = new ForkJoinPool( Threads.numThreads() );
+
+		try
+		{
+			return getPairwiseShiftsLucasKanadeParallel( rais, translations, params, pool );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * compute the Lucas-Kanade alignment of all pairs of images that overlap at their translations, several pairs at once,
+	 * see {@link #getPairwiseShiftsParallel(Map, Map, PairwiseStitchingParameters, ForkJoinPool)}
+	 */
+	public static <T extends RealType< T >, C extends Comparable< C >> List< PairwiseStitchingResult< C > > getPairwiseShiftsLucasKanadeParallel(
+			final Map< C, RandomAccessibleInterval< T > > rais, final Map< C, TranslationGet > translations,
+			final LucasKanadeParameters params, final ForkJoinPool pool )
+	{
+		final List< Pair< C, C > > pairs = getPairs( rais, translations, true );
+		final List< Callable< PairwiseStitchingResult< C > > > tasks = new ArrayList<>();
+
+		for ( final Pair< C, C > pair : pairs )
+		{
+			tasks.add( () -> {
+				final Pair< AffineTransform, Double > resT = getShiftLucasKanade( rais.get( pair.getA() ), rais.get( pair.getB() ),
+						translations.get( pair.getA() ), translations.get( pair.getB() ), params, pool );
+
+				return resT == null ? null : createResult( pair.getA(), pair.getB(), resT.getA(), resT.getB() );
+			} );
+		}
+
+		return invokePairs( pairs, tasks, params.manualNumTasks ? params.numTasks : Math.max( 1, pool.getParallelism() / 2 ), pool );
+	}
+
+	/*
+	 * all pairs of indices with index1 < index2 (in sorted order), if onlyOverlapping only those
+	 * whose images overlap at their translations (the same test getShift() does first)
+	 */
+	private static < T extends RealType< T >, C extends Comparable< C > > List< Pair< C, C > > getPairs(
+			final Map< C, RandomAccessibleInterval< T > > rais, final Map< C, TranslationGet > translations,
+			final boolean onlyOverlapping )
+	{
+		final List< C > indexes = new ArrayList< >( rais.keySet() );
+		Collections.sort( indexes );
+
+		final List< Pair< C, C > > pairs = new ArrayList<>();
+
+		for ( int i = 0; i < indexes.size(); i++ )
+		{
+			for ( int j = i + 1; j < indexes.size(); j++ )
+			{
+				final RandomAccessibleInterval< T > img1 = rais.get( indexes.get( i ) );
+				final RandomAccessibleInterval< T > img2 = rais.get( indexes.get( j ) );
+
+				if ( onlyOverlapping )
+				{
+					final boolean[] singletonDims = new boolean[ img1.numDimensions() ];
+					for ( int d = 0; d < img1.numDimensions(); ++d )
+						singletonDims[ d ] = !( img1.dimension( d ) > 1 && img2.dimension( d ) > 1 );
+
+					final RealInterval transformed1 = TransformTools.applyTranslation( img1, translations.get( indexes.get( i ) ), singletonDims );
+					final RealInterval transformed2 = TransformTools.applyTranslation( img2, translations.get( indexes.get( j ) ), singletonDims );
+
+					if ( TransformTools.getOverlap( transformed1, transformed2 ) == null )
+						continue;
+				}
+
+				pairs.add( new ValuePair<>( indexes.get( i ), indexes.get( j ) ) );
+			}
+		}
+
+		return pairs;
+	}
+
+	/*
+	 * run the task of every pair, at most maxConcurrent at once, and return the non-null results in task order.
+	 * A pair that fails is logged and left out, the others are still computed.
+	 */
+	private static < C extends Comparable< C > > List< PairwiseStitchingResult< C > > invokePairs(
+			final List< Pair< C, C > > pairs, final List< Callable< PairwiseStitchingResult< C > > > tasks,
+			final int maxConcurrent, final ExecutorService service )
+	{
+		final List< Callable< PairwiseStitchingResult< C > > > guardedTasks = new ArrayList<>();
+
+		for ( int i = 0; i < tasks.size(); ++i )
+		{
+			final Pair< C, C > pair = pairs.get( i );
+			final Callable< PairwiseStitchingResult< C > > task = tasks.get( i );
+
+			guardedTasks.add( () -> {
+				try
+				{
+					return task.call();
+				}
+				catch ( final InterruptedException e )
+				{
+					throw e;
+				}
+				catch ( final Exception e )
+				{
+					IOFunctions.println( "Failed to compute pairwise shift of " + pair.getA() + " <> " + pair.getB() + ": " + e );
+					e.printStackTrace();
+					return null;
+				}
+			} );
+		}
+
+		try
+		{
+			return TaskUtil.invokeAllBounded( guardedTasks, maxConcurrent, service )
+					.stream().filter( r -> r != null ).collect( Collectors.toList() );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			IOFunctions.println( "Interrupted while computing pairwise shifts." );
+			return null;
+		}
+		catch ( final ExecutionException e )
+		{
+			// only errors (not exceptions) of a pair end up here
+			throw new RuntimeException( "Failed to compute pairwise shifts", e.getCause() );
+		}
+	}
+
+	private static < C extends Comparable< C > > PairwiseStitchingResult< C > createResult( final C a, final C b, final AffineGet transform, final double r )
+	{
+		final Set< C > setA = new HashSet<>();
+		setA.add( a );
+		final Set< C > setB = new HashSet<>();
+		setB.add( b );
+		final Pair< Group< C >, Group< C > > key = new ValuePair<>( new Group<>( setA ), new Group<>( setB ) );
+		return new PairwiseStitchingResult< C >( key, null, transform, r, 0.0 );
+	}
+
 	public static void main(String[] args)
 	{
 		final AffineTransform3D m = new AffineTransform3D();
@@ -22,6 +22,7 @@
 package net.preibisch.stitcher.algorithm;
 
 import ij.gui.GenericDialog;
+import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.Threads;
 
 public class PairwiseStitchingParameters
@@ -35,6 +36,13 @@ public class PairwiseStitchingParameters
 	public boolean manualNumTasks;
 	public int numTasks;
 
+	// number of downsampled levels for coarse-to-fine phase correlation (each halves the dimensions that stay large enough), 0 computes a single full-size PCM
+	public int pyramidLevels = 0;
+
+	// maximal expected shift (in pixels of the possibly downsampled images) relative to the current registration, 0 = unbounded
+	// (ignored if useWholeImage is set, the expected shift is not known then)
+	public double maxShift = 0;
+
 	public PairwiseStitchingParameters()
 	{
 		this(0, 5, true, false, false, false, false, (int) Math.max( 2, Threads.numThreads() / 6 ));
@@ -67,6 +75,8 @@ public class PairwiseStitchingParameters
 		gd.addCheckbox( "subpixel_accuracy", true );
 		gd.addCheckbox( "interpolate_subpixel_cross_correlation (warning: slow!)", false );
 		gd.addCheckbox( "use_whole_image (warning: slow!)", false );
+		gd.addNumericField( "coarse_to_fine_pyramid_levels (0 = off)", 0, 0 );
+		gd.addNumericField( "maximal_shift (px, 0 = unbounded, ignored with use_whole_image)", 0, 0 );
 		gd.addCheckbox( "manually_set_number_of_parallel_tasks", false );
 		gd.addNumericField( "number_of_parallel_tasks", (int) Math.max( 2, Threads.numThreads() / 6 ), 0 );
 		gd.addCheckbox( "show_expert_grouping_options", false );
@@ -82,11 +92,18 @@ public class PairwiseStitchingParameters
 		boolean doSubpixel = gd.getNextBoolean();
 		boolean interpolateSubpixel = gd.getNextBoolean();
 		boolean useWholeImage = gd.getNextBoolean();
+		int pyramidLevels = Math.max( 0, (int) gd.getNextNumber() );
+		double maxShift = Math.max( 0, gd.getNextNumber() );
+		if ( useWholeImage && maxShift > 0 )
+			IOFunctions.println( "WARNING: the maximal shift is ignored when the whole images are used." );
 		boolean manualNumTasks = gd.getNextBoolean();
 		int numTasks = (int) (manualNumTasks ? gd.getNextNumber() : Math.max( 2, Threads.numThreads() / 6 ));
 		boolean showExpertGrouping = gd.getNextBoolean();
 
-		return new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage, manualNumTasks, numTasks);
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters(minOverlap, peaksToCheck, doSubpixel, interpolateSubpixel, showExpertGrouping, useWholeImage, manualNumTasks, numTasks);
+		params.pyramidLevels = pyramidLevels;
+		params.maxShift = maxShift;
+		return params;
 	}
 
 	public static PairwiseStitchingParameters askUserForParameters()
@@ -21,38 +21,320 @@
  */
 package net.preibisch.stitcher.algorithm;
 
-import java.util.concurrent.ExecutorService;
-
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.MultiResolutionSetupImgLoader;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Positionable;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
 import net.imglib2.RealPositionable;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.iterator.IntervalIterator;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
 
+/**
+ * Lazily loaded (and downsampled) view. If a region of interest is given, only that region
+ * (plus {@link #regionOfInterestMargin} pixels) is read from the ImgLoader, block by block, and downsampled
+ * with {@link DownsampleTools#downsample(RandomAccessibleInterval, long[])}, the rest of the view reads as zero.
+ * 
+ * If a {@link DownsampledViewCache} is given, the whole view is taken from the cache if it is loaded already.
+ * Regions of interest that cover more than {@link #maxRegionOfInterestFraction} of the view are loaded as
+ * the whole view through the cache, so the other pairs of that view can reuse it. Smaller regions are read
+ * on their own and not cached, reading the overlaps of all pairs of a view costs less than reading the view.
+ */
 public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterval< T >
 {
+	/*
+	 * margin (in downsampled pixels) to load around the region of interest
+	 */
+	public static int regionOfInterestMargin = 10;
+
+	/*
+	 * with a cache, regions of interest larger than this fraction of the view load (and cache) the whole view
+	 */
+	public static double maxRegionOfInterestFraction = 0.5;
+
 	private RandomAccessibleInterval< T > rai;
 	private BasicImgLoader imgLoader;
 	private ViewId vid;
 	private long[] downsampleFactors;
+	private DownsampledViewCache cache;
+
+	// region of interest in full resolution pixel coordinates, may be null
+	private RealInterval regionOfInterest;
+
+	// only used if we have a region of interest: the image at the best mipmap level,
+	// the downsampling that remains to be done and the interval of the downsampled view
+	private RandomAccessibleInterval< T > levelImg;
+	private long[] remainingFactors;
+	private boolean remainingPowersOfTwo;
+	private Interval interval;
 
 	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors )
+	{
+		this( imgLoader, vid, downsampleFactors, null );
+	}
+
+	/**
+	 * @param cache shared cache to get the downsampled view from (may be null)
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, DownsampledViewCache cache )
+	{
+		this( imgLoader, vid, downsampleFactors, cache, null );
+	}
+
+	/**
+	 * @param cache shared cache to get the downsampled view from (may be null)
+	 * @param regionOfInterest the only region (in full resolution pixel coordinates) that will be accessed, null for the whole view
+	 */
+	public RAIProxy(BasicImgLoader imgLoader, ViewId vid, long[] downsampleFactors, DownsampledViewCache cache, RealInterval regionOfInterest )
 	{
 		this.rai = null;
 		this.downsampleFactors = downsampleFactors;
 		this.imgLoader = imgLoader;
 		this.vid = vid;
+		this.cache = cache;
+		this.regionOfInterest = regionOfInterest;
 	}
 	
+	/**
+	 * load (and downsample) the pixels now instead of on first access, e.g. in a separate I/O thread
+	 */
+	public void load()
+	{
+		loadIfNecessary();
+	}
+
 	@SuppressWarnings("unchecked")
-	private void loadIfNecessary()
+	private synchronized void loadIfNecessary()
 	{
 		if (rai == null)
-			rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors ).getA();
+		{
+			// the whole view might be in the cache already, no need to load part of it then
+			if (cache != null && regionOfInterest != null)
+				rai = cache.getIfPresent( imgLoader, vid, downsampleFactors );
+
+			// returns null if the region of interest is (most of) the whole view, which is then loaded through the cache
+			if (rai == null && regionOfInterest != null)
+				rai = loadRegionOfInterest();
+
+			if (rai == null && cache != null)
+				rai = cache.get( imgLoader, vid, downsampleFactors );
+			else if (rai == null)
+				rai = DownsampleTools.openAndDownsample( imgLoader, vid, downsampleFactors ).getA();
+		}
+	}
+
+	/*
+	 * the interval of the view, without loading pixels if we have a region of interest
+	 */
+	private synchronized Interval interval()
+	{
+		if (rai != null)
+			return rai;
+
+		if (regionOfInterest == null)
+		{
+			loadIfNecessary();
+			return rai;
+		}
+
+		openLevel();
+
+		// DownsampleTools rounds factors that are not powers of two, we only know the size once it is loaded
+		if (!remainingPowersOfTwo)
+		{
+			loadIfNecessary();
+			return rai;
+		}
+
+		return interval;
+	}
+
+	/*
+	 * open the (virtual) image at the mipmap level that DownsampleTools.openAndDownsample() would use
+	 */
+	@SuppressWarnings("unchecked")
+	private void openLevel()
+	{
+		if (levelImg != null)
+			return;
+
+		final long[] levelFactors = new long[downsampleFactors.length];
+
+		if ( MultiResolutionImgLoader.class.isInstance( imgLoader ) )
+		{
+			final MultiResolutionSetupImgLoader< ? > setupImgLoader = ( (MultiResolutionImgLoader) imgLoader ).getSetupImgLoader( vid.getViewSetupId() );
+			final double[][] mipmapResolutions = setupImgLoader.getMipmapResolutions();
+
+			// the coarsest level we can downsample from
+			int bestLevel = 0;
+			for ( int level = 0; level < mipmapResolutions.length; ++level )
+			{
+				boolean fits = true;
+				for ( int d = 0; d < downsampleFactors.length; ++d )
+				{
+					final long f = Math.round( mipmapResolutions[ level ][ d ] );
+					if ( f < 1 || downsampleFactors[ d ] % f != 0 )
+						fits = false;
+				}
+
+				if ( fits )
+					bestLevel = level;
+			}
+
+			for ( int d = 0; d < downsampleFactors.length; ++d )
+				levelFactors[ d ] = Math.round( mipmapResolutions[ bestLevel ][ d ] );
+
+			levelImg = (RandomAccessibleInterval< T >) setupImgLoader.getImage( vid.getTimePointId(), bestLevel );
+		}
+		else
+		{
+			for ( int d = 0; d < downsampleFactors.length; ++d )
+				levelFactors[ d ] = 1;
+
+			levelImg = (RandomAccessibleInterval< T >) imgLoader.getSetupImgLoader( vid.getViewSetupId() ).getImage( vid.getTimePointId() );
+		}
+
+		// every 2x downsampling step rounds the size down
+		remainingFactors = new long[levelImg.numDimensions()];
+		remainingPowersOfTwo = true;
+		final long[] dims = new long[levelImg.numDimensions()];
+		for ( int d = 0; d < levelImg.numDimensions(); ++d )
+		{
+			remainingFactors[ d ] = d < downsampleFactors.length ? downsampleFactors[ d ] / levelFactors[ d ] : 1;
+			remainingPowersOfTwo &= Long.bitCount( remainingFactors[ d ] ) == 1;
+			dims[ d ] = levelImg.dimension( d ) / remainingFactors[ d ];
+		}
+
+		interval = new FinalInterval( dims );
+	}
+
+	/*
+	 * read only the region of interest (plus margin) and downsample it the same way as DownsampleTools.openAndDownsample().
+	 * Returns null if we should load the whole view instead.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private RandomAccessibleInterval< T > loadRegionOfInterest()
+	{
+		openLevel();
+
+		// powers of two are expected, as in DownsampleTools
+		if ( !remainingPowersOfTwo )
+			return null;
+
+		final int n = interval.numDimensions();
+		final RealInterval roi = DownsampleTools.getMipMapTransform( imgLoader, vid, downsampleFactors ).inverse().estimateBounds( regionOfInterest );
+
+		final long[] min = new long[n];
+		final long[] max = new long[n];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( interval.min( d ), (long) Math.floor( roi.realMin( d ) ) - regionOfInterestMargin );
+			max[ d ] = Math.min( interval.max( d ), (long) Math.ceil( roi.realMax( d ) ) + regionOfInterestMargin );
+
+			// no overlap with the view, just load everything
+			if ( max[ d ] < min[ d ] )
+				return null;
+		}
+
+		final FinalInterval crop = new FinalInterval( min, max );
+		final double fraction = (double) Intervals.numElements( crop ) / Intervals.numElements( interval );
+
+		// (most of) the whole view, load it through the cache so other pairs can use it
+		if ( fraction >= 1.0 || ( cache != null && fraction > maxRegionOfInterestFraction ) )
+			return null;
+
+		// the corresponding region at the mipmap level, aligned to the remaining downsampling,
+		// so that downsampling it gives the same pixels as downsampling the whole view
+		final long[] levelMin = new long[n];
+		final long[] levelMax = new long[n];
+		for ( int d = 0; d < n; ++d )
+		{
+			levelMin[ d ] = levelImg.min( d ) + min[ d ] * remainingFactors[ d ];
+			levelMax[ d ] = levelImg.min( d ) + ( max[ d ] + 1 ) * remainingFactors[ d ] - 1;
+		}
+
+		RandomAccessibleInterval< T > img = copyBlockwise( levelImg, new FinalInterval( levelMin, levelMax ) );
+
+		boolean downsample = false;
+		for ( int d = 0; d < n; ++d )
+			downsample |= remainingFactors[ d ] > 1;
+
+		if ( downsample )
+			img = (RandomAccessibleInterval< T >) DownsampleTools.downsample( (RandomAccessibleInterval) img, remainingFactors );
+
+		return Views.interval( Views.extendZero( Views.translate( img, min ) ), interval );
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static < T extends RealType< T > > Img< T > create( final long[] dims, final T type )
+	{
+		return new ArrayImgFactory().create( dims, (NativeType) type );
+	}
+
+	/*
+	 * copy the crop of source into a new zero-min Img, going through the crop one block (cell) of source at a time,
+	 * so every block of a cached image is loaded once and read in one go
+	 */
+	private static < T extends RealType< T > > Img< T > copyBlockwise( final RandomAccessibleInterval< T > source, final Interval crop )
+	{
+		final int n = crop.numDimensions();
+		final Img< T > img = create( Intervals.dimensionsAsLongArray( crop ), Util.getTypeFromInterval( source ).createVariable() );
+		final RandomAccessibleInterval< T > target = Views.translate( img, Intervals.minAsLongArray( crop ) );
+
+		final int[] blockSize = new int[n];
+		if ( source instanceof AbstractCellImg )
+			( (AbstractCellImg< ?, ?, ?, ? >) source ).getCellGrid().cellDimensions( blockSize );
+		else
+			for ( int d = 0; d < n; ++d )
+				blockSize[ d ] = (int) Math.min( crop.dimension( d ), Integer.MAX_VALUE );
+
+		// the blocks that intersect the crop, in grid coordinates
+		final long[] firstBlock = new long[n];
+		final long[] numBlocks = new long[n];
+		for ( int d = 0; d < n; ++d )
+		{
+			firstBlock[ d ] = ( crop.min( d ) - source.min( d ) ) / blockSize[ d ];
+			numBlocks[ d ] = ( crop.max( d ) - source.min( d ) ) / blockSize[ d ] - firstBlock[ d ] + 1;
+		}
+
+		final long[] blockMin = new long[n];
+		final long[] blockMax = new long[n];
+		final IntervalIterator blocks = new IntervalIterator( numBlocks );
+
+		while ( blocks.hasNext() )
+		{
+			blocks.fwd();
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long start = source.min( d ) + ( firstBlock[ d ] + blocks.getLongPosition( d ) ) * blockSize[ d ];
+				blockMin[ d ] = Math.max( start, crop.min( d ) );
+				blockMax[ d ] = Math.min( start + blockSize[ d ] - 1, crop.max( d ) );
+			}
+
+			final FinalInterval block = new FinalInterval( blockMin, blockMax );
+			final Cursor< T > cIn = Views.flatIterable( Views.interval( source, block ) ).cursor();
+			final Cursor< T > cOut = Views.flatIterable( Views.interval( target, block ) ).cursor();
+
+			while ( cOut.hasNext() )
+				cOut.next().set( cIn.next() );
+		}
+
+		return img;
 	}
 	
 	@Override
@@ -72,113 +354,98 @@ public class RAIProxy <T extends RealType<T>> implements RandomAccessibleInterva
 	@Override
 	public int numDimensions()
 	{
-		loadIfNecessary();
-		return rai.numDimensions();
+		return interval().numDimensions();
 	}
 
 	@Override
 	public long min(int d)
 	{
-		loadIfNecessary();
-		return rai.min( d );
+		return interval().min( d );
 	}
 
 	@Override
 	public void min(long[] min)
 	{
-		loadIfNecessary();
-		rai.min( min );
+		interval().min( min );
 		
 	}
 
 	@Override
 	public void min(Positionable min)
 	{
-		loadIfNecessary();
-		rai.min( min );
+		interval().min( min );
 		
 	}
 
 	@Override
 	public long max(int d)
 	{
-		loadIfNecessary();
-		return rai.max( d );
+		return interval().max( d );
 	}
 
 	@Override
 	public void max(long[] max)
 	{
-		loadIfNecessary();
-		rai.max( max );
+		interval().max( max );
 		
 	}
 
 	@Override
 	public void max(Positionable max)
 	{
-		loadIfNecessary();
-		rai.max( max );		
+		interval().max( max );		
 	}
 
 	@Override
 	public double realMin(int d)
 	{
-		loadIfNecessary();
-		return rai.realMin( d );
+		return interval().realMin( d );
 	}
 
 	@Override
 	public void realMin(double[] min)
 	{
-		loadIfNecessary();
-		rai.realMin( min );
+		interval().realMin( min );
 		
 	}
 
 	@Override
 	public void realMin(RealPositionable min)
 	{
-		loadIfNecessary();
-		rai.realMin( min );
+		interval().realMin( min );
 		
 	}
 
 	@Override
 	public double realMax(int d)
 	{
-		loadIfNecessary();
-		return rai.realMax( d );
+		return interval().realMax( d );
 	}
 
 	@Override
 	public void realMax(double[] max)
 	{
-		loadIfNecessary();
-		rai.realMax( max );
+		interval().realMax( max );
 	}
 
 	@Override
 	public void realMax(RealPositionable max)
 	{
-		loadIfNecessary();
-		rai.realMax( max );
+		interval().realMax( max );
 		
 	}
 
 	@Override
 	public void dimensions(long[] dimensions)
 	{
-		loadIfNecessary();
-		rai.dimensions( dimensions );
+		interval().dimensions( dimensions );
 		
 	}
 
 	@Override
 	public long dimension(int d)
 	{
-		loadIfNecessary();
-		return rai.dimension( d );
+		return interval().dimension( d );
 	}
 
 }
@@ -36,12 +36,14 @@ import fiji.util.gui.GenericDialogPlus;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.generic.base.Entity;
 import mpicbg.spim.data.generic.base.NamedEntity;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewDescription;
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.Illumination;
 import mpicbg.spim.data.sequence.Tile;
 import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.mvrecon.fiji.datasetmanager.FileListDatasetDefinition;
@@ -174,26 +176,84 @@ public class SpimDataFilteringAndGrouping < AS extends AbstractSpimData< ? > >
 	{
 		final List<Pair<? extends Group< ? extends BasicViewDescription< ? > >, ? extends Group< ? extends BasicViewDescription< ? >>>> res = new ArrayList<>();
 
-		// filter first
-		final List<BasicViewDescription< ? > > ungroupedElements =
-				SpimDataTools.getFilteredViewDescriptions( data.getSequenceDescription(), filters);
-		// then group
-		final List< Group< BasicViewDescription< ?  > >> groupedElements = 
-				Group.combineBy(ungroupedElements, groupingFactors);
+		final List< Group< BasicViewDescription< ?  > >> groupedElements = getGroupedElementsToCompare();
 		
 		// go through possible group pairs
 		for (int i = 0; i < groupedElements.size(); ++i)
 			for(int j = i+1; j < groupedElements.size(); ++j)
 			{
-				// we will want to process the pair if:
-				// the groups do not differ along an axis along which we want to treat elements individually (e.g. Angle)
-				// but they differ along an axis that we want to register (e.g Tile)
-				if (!groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfApplication ) 
-						&& groupsDifferByAny( groupedElements.get( i ), groupedElements.get( j ), axesOfComparison ))
+				if (isComparison( groupedElements.get( i ), groupedElements.get( j ) ))
 					res.add(new ValuePair<>(groupedElements.get( i ), groupedElements.get( j )));
 			}
 		return res;
 	}
+
+	/**
+	 * get the same pairs as {@link #getComparisons()}, but only those whose (transformed) bounding boxes intersect.
+	 * Uses a spatial index instead of looking at all pairs of groups.
+	 * @return comparisons that might overlap, in the same order as in getComparisons()
+	 */
+	public List<Pair<? extends Group< ? extends BasicViewDescription< ? > >, ? extends Group< ? extends BasicViewDescription< ? >>>> getOverlappingComparisons()
+	{
+		final List<Pair<? extends Group< ? extends BasicViewDescription< ? > >, ? extends Group< ? extends BasicViewDescription< ? >>>> res = new ArrayList<>();
+
+		final List< Group< BasicViewDescription< ?  > >> groupedElements = getGroupedElementsToCompare();
+		final GroupOverlapIndex< BasicViewDescription< ? > > index = new GroupOverlapIndex<>(
+				groupedElements, data.getViewRegistrations(),
+				(AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? >) data.getSequenceDescription() );
+
+		for (final int[] ij : index.candidatePairs())
+			if (isComparison( groupedElements.get( ij[0] ), groupedElements.get( ij[1] ) ))
+				res.add(new ValuePair<>(groupedElements.get( ij[0] ), groupedElements.get( ij[1] )));
+
+		return res;
+	}
+
+	/**
+	 * get the pairs (in any orientation) among candidates that {@link #getComparisons()} would return,
+	 * without enumerating all comparisons
+	 * @param candidates pairs of groups, e.g. existing pairwise results
+	 * @param <V> view id type
+	 * @return the candidates that are comparisons
+	 */
+	public < V extends ViewId > List< Pair< Group< V >, Group< V > > > getComparisonsAmong(Collection< ? extends Pair< Group< V >, Group< V > > > candidates)
+	{
+		final List< Pair< Group< V >, Group< V > > > res = new ArrayList<>();
+
+		// the groups we compare, by their views
+		final Map< Set< ViewId >, Group< BasicViewDescription< ? > > > groups = new HashMap<>();
+		for (final Group< BasicViewDescription< ? > > group : getGroupedElementsToCompare())
+			groups.put( new HashSet< ViewId >( group.getViews() ), group );
+
+		for (final Pair< Group< V >, Group< V > > candidate : candidates)
+		{
+			final Group< BasicViewDescription< ? > > groupA = groups.get( new HashSet< ViewId >( candidate.getA().getViews() ) );
+			final Group< BasicViewDescription< ? > > groupB = groups.get( new HashSet< ViewId >( candidate.getB().getViews() ) );
+
+			if (groupA != null && groupB != null && groupA != groupB && isComparison( groupA, groupB ))
+				res.add( candidate );
+		}
+
+		return res;
+	}
+
+	private List< Group< BasicViewDescription< ?  > >> getGroupedElementsToCompare()
+	{
+		// filter first
+		final List<BasicViewDescription< ? > > ungroupedElements =
+				SpimDataTools.getFilteredViewDescriptions( data.getSequenceDescription(), filters);
+		// then group
+		return Group.combineBy(ungroupedElements, groupingFactors);
+	}
+
+	private boolean isComparison(Group< BasicViewDescription< ?  > > groupA, Group< BasicViewDescription< ?  > > groupB)
+	{
+		// we will want to process the pair if:
+		// the groups do not differ along an axis along which we want to treat elements individually (e.g. Angle)
+		// but they differ along an axis that we want to register (e.g Tile)
+		return !groupsDifferByAny( groupA, groupB, axesOfApplication ) 
+				&& groupsDifferByAny( groupA, groupB, axesOfComparison );
+	}
 	
 	private static boolean groupsDifferByAny(Iterable< BasicViewDescription< ?  > > vds1, Iterable< BasicViewDescription< ?  > > vds2, Set<Class<? extends Entity>> entities)
 	{
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * running tasks on a shared executor with a bound on how many of them (and how expensive ones) run at once
+ */
+public class TaskUtil
+{
+	private TaskUtil() {}
+
+	/**
+	 * run all tasks on service, but at most maxConcurrent of them at once. Unlike running them in
+	 * batches, the next task is started as soon as any running one is done.
+	 * @param tasks the tasks
+	 * @param maxConcurrent maximum number of tasks that are running at the same time
+	 * @param service executor to run the tasks on
+	 * @param <R> result type
+	 * @return the results, in the order of tasks
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if a task threw an exception
+	 */
+	public static < R > List< R > invokeAllBounded( final List< ? extends Callable< R > > tasks, final int maxConcurrent, final ExecutorService service )
+			throws InterruptedException, ExecutionException
+	{
+		return invokeAllBounded( tasks, maxConcurrent, null, Long.MAX_VALUE, service, null );
+	}
+
+	/**
+	 * same as {@link #invokeAllBounded(List, int, ExecutorService)}, but hands every result to
+	 * onCompletion as soon as its task is done.
+	 * @param onCompletion called on the calling thread in order of completion, may be null
+	 */
+	public static < R > List< R > invokeAllBounded( final List< ? extends Callable< R > > tasks, final int maxConcurrent, final ExecutorService service,
+			final Consumer< R > onCompletion ) throws InterruptedException, ExecutionException
+	{
+		return invokeAllBounded( tasks, maxConcurrent, null, Long.MAX_VALUE, service, onCompletion );
+	}
+
+	/**
+	 * same as {@link #invokeAllBounded(List, int, ExecutorService, Consumer)}, but additionally the costs (e.g. memory)
+	 * of the tasks running at the same time must not exceed maxCost. A task that is more expensive than maxCost on
+	 * its own is run alone. Tasks are started in order.
+	 * @param costs cost of every task, null to only limit the number of tasks
+	 * @param maxCost maximum summed cost of all running tasks
+	 */
+	public static < R > List< R > invokeAllBounded( final List< ? extends Callable< R > > tasks, final int maxConcurrent,
+			final long[] costs, final long maxCost, final ExecutorService service,
+			final Consumer< R > onCompletion ) throws InterruptedException, ExecutionException
+	{
+		final ExecutorCompletionService< R > completionService = new ExecutorCompletionService<>( service );
+		final HashMap< Future< R >, Integer > running = new HashMap<>();
+		final List< R > results = new ArrayList<>( Collections.nCopies( tasks.size(), (R) null ) );
+
+		int next = 0;
+		long runningCost = 0;
+
+		try
+		{
+			while ( next < tasks.size() || !running.isEmpty() )
+			{
+				while ( running.size() < Math.max( 1, maxConcurrent ) && next < tasks.size() &&
+						( costs == null || running.isEmpty() || runningCost + costs[ next ] <= maxCost ) )
+				{
+					running.put( completionService.submit( tasks.get( next ) ), next );
+
+					if ( costs != null )
+						runningCost += costs[ next ];
+
+					++next;
+				}
+
+				final Future< R > future = completionService.take();
+				final R result = future.get();
+				final int index = running.remove( future );
+				results.set( index, result );
+
+				if ( costs != null )
+					runningCost -= costs[ index ];
+
+				if ( onCompletion != null )
+					onCompletion.accept( result );
+			}
+		}
+		finally
+		{
+			// something failed, do not leave the remaining tasks running
+			for ( final Future< R > future : running.keySet() )
+				future.cancel( true );
+		}
+
+		return results;
+	}
+}
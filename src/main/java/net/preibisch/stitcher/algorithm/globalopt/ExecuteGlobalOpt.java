@@ -23,7 +23,9 @@ package net.preibisch.stitcher.algorithm.globalopt;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
+import ij.gui.GenericDialog;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.Illumination;
@@ -42,6 +44,25 @@ import net.preibisch.stitcher.gui.overlay.DemoLinkOverlay;
 
 public class ExecuteGlobalOpt implements Runnable
 {
+	// held while a new run is started (cancelling the previous one) and while a run applies its result,
+	// so a run is either applied completely before it is superseded or not at all
+	private static final Object runLock = new Object();
+
+	// the last run that was started, it is cancelled when a new one starts
+	private static RunThread currentRun = null;
+
+	private static class RunThread extends Thread
+	{
+		// a newer run was started, guarded by runLock. Unlike the interrupted flag, this cannot be
+		// cleared by code that catches the InterruptedException (e.g. a modal dialog that is showing)
+		boolean superseded = false;
+
+		RunThread( final Runnable runnable )
+		{
+			super( runnable );
+		}
+	}
+
 	private ExplorerWindow< ? > panel;
 	private boolean expertMode;
 	private SpimDataFilteringAndGrouping<? extends AbstractSpimData<?> > savedFiltering;
@@ -64,6 +85,42 @@ public class ExecuteGlobalOpt implements Runnable
 		this.savedFiltering = savedFiltering;
 	}
 
+	/**
+	 * run the global optimization on a new thread, a previous run that is still
+	 * in progress is interrupted and will not change the registrations
+	 * @param globalOpt - the global optimization to run
+	 * @return the thread it runs on
+	 */
+	public static Thread startCancellingPrevious( final ExecuteGlobalOpt globalOpt )
+	{
+		synchronized ( runLock )
+		{
+			if ( currentRun != null && currentRun.isAlive() )
+			{
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": cancelling the previous global optimization." );
+				currentRun.superseded = true;
+				currentRun.interrupt();
+			}
+
+			currentRun = new RunThread( globalOpt );
+			currentRun.start();
+
+			return currentRun;
+		}
+	}
+
+	/**
+	 * @return true if the current thread was interrupted or is a run that was superseded by a newer one
+	 */
+	private static boolean isCancelled()
+	{
+		synchronized ( runLock )
+		{
+			final Thread thread = Thread.currentThread();
+			return thread.isInterrupted() || ( thread instanceof RunThread && ( (RunThread) thread ).superseded );
+		}
+	}
+
 	@Override
 	public void run()
 	{
@@ -76,8 +133,34 @@ public class ExecuteGlobalOpt implements Runnable
 			}
 
 			final boolean isSavedFaG = savedFiltering != null;
-			final GlobalOptimizationParameters params = expertMode ? GlobalOptimizationParameters.askUserForParameters(!isSavedFaG) : GlobalOptimizationParameters.askUserForSimpleParameters();
-			if ( params == null )
+			final GlobalOptimizationParameters params;
+
+			// the expert options of the solver are asked for together with the views to fix
+			GlobalOptSolverParameters solverParams = null;
+
+			if ( expertMode )
+			{
+				params = GlobalOptimizationParameters.askUserForParameters(!isSavedFaG);
+			}
+			else
+			{
+				final GenericDialog gd = new GenericDialog( "Global optimization options" );
+				GlobalOptimizationParameters.addSimpleParametersToDialog( gd );
+				GlobalOptSolverParameters.addSimpleQueriesToGD( gd );
+
+				gd.showDialog();
+				if ( gd.wasCanceled() )
+					return;
+
+				params = GlobalOptimizationParameters.parseSimpleParametersFromDialog( gd );
+				if ( params == null )
+					return;
+
+				solverParams = GlobalOptSolverParameters.getSimpleParametersFromGD( gd, params.method );
+			}
+
+			// a newer run may have been started while the dialog was showing
+			if ( params == null || isCancelled() )
 				return;
 
 			final SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping;
@@ -90,11 +173,11 @@ public class ExecuteGlobalOpt implements Runnable
 				if (expertMode && params.showExpertGrouping)
 				{
 					filteringAndGrouping.askUserForFiltering( panelFG );
-					if ( filteringAndGrouping.getDialogWasCancelled() )
+					if ( filteringAndGrouping.getDialogWasCancelled() || isCancelled() )
 						return;
 
 					filteringAndGrouping.askUserForGrouping( panelFG );
-					if ( filteringAndGrouping.getDialogWasCancelled() )
+					if ( filteringAndGrouping.getDialogWasCancelled() || isCancelled() )
 						return;
 				}
 				else
@@ -123,25 +206,49 @@ public class ExecuteGlobalOpt implements Runnable
 				filteringAndGrouping = (SpimDataFilteringAndGrouping< SpimData2 >) savedFiltering;
 			}
 
-			final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs = new ArrayList<>();
+			final SpimData2 data = (SpimData2) panel.getSpimData();
 
-			GlobalOptStitcher.processGlobalOptimization( (SpimData2) panel.getSpimData(), filteringAndGrouping, params, removedInconsistentPairs, !expertMode );
+			// the log of every subset is printed as soon as it is done, but a run that is cancelled must not leave
+			// some subsets aligned and others not, so the transformations are applied together at the end
+			final List< GlobalOptStitcher.SubsetResult > subsetResults = new ArrayList<>();
+			final boolean optimized = GlobalOptStitcher.computeGlobalOptimization( data, filteringAndGrouping, params, solverParams, !expertMode,
+					subsetResult -> {
+						subsetResult.printLog();
+						subsetResults.add( subsetResult );
+					} );
 
-			GlobalOptStitcher.removeInconsistentLinks( removedInconsistentPairs, ((SpimData2) panel.getSpimData()).getStitchingResults().getPairwiseResults() );
+			if ( !optimized )
+				return;
 
-			final DemoLinkOverlay demoOverlay;
+			// a newer run cannot start (and supersede this one) while the result is applied
+			synchronized ( runLock )
+			{
+				if ( isCancelled() )
+				{
+					IOFunctions.println( new Date( System.currentTimeMillis() ) + ": global optimization was cancelled, registrations are unchanged." );
+					return;
+				}
 
-			if ( !StitchingExplorerPanel.class.isInstance( panel ) )
-				demoOverlay = null;
-			else
-				demoOverlay = ( ( StitchingExplorerPanel< ? > ) panel ).getDemoLinkOverlay();
+				final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs = new ArrayList<>();
 
-			if ( demoOverlay != null )
-			{
-				synchronized ( demoOverlay )
+				for ( final GlobalOptStitcher.SubsetResult subsetResult : subsetResults )
+					subsetResult.applyTransforms( data, removedInconsistentPairs );
+				GlobalOptStitcher.removeInconsistentLinks( removedInconsistentPairs, data.getStitchingResults().getPairwiseResults() );
+
+				final DemoLinkOverlay demoOverlay;
+
+				if ( !StitchingExplorerPanel.class.isInstance( panel ) )
+					demoOverlay = null;
+				else
+					demoOverlay = ( ( StitchingExplorerPanel< ? > ) panel ).getDemoLinkOverlay();
+
+				if ( demoOverlay != null )
 				{
-					demoOverlay.getInconsistentResults().clear();
-					demoOverlay.getInconsistentResults().addAll( removedInconsistentPairs );
+					synchronized ( demoOverlay )
+					{
+						demoOverlay.getInconsistentResults().clear();
+						demoOverlay.getInconsistentResults().addAll( removedInconsistentPairs );
+					}
 				}
 			}
 		}
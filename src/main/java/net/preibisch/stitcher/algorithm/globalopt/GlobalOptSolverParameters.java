@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.awt.Checkbox;
+import java.awt.Choice;
+
+import ij.gui.GenericDialog;
+import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.global.GlobalOptimizationParameters;
+import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.global.GlobalOptimizationParameters.GlobalOptType;
+import net.preibisch.mvrecon.fiji.plugin.resave.PluginHelper;
+
+/**
+ * options of the stitcher's global optimization that are not part of the GlobalOptimizationParameters
+ */
+public class GlobalOptSolverParameters
+{
+	public static boolean defaultUseLinearTranslationSolver = false;
+	public static boolean defaultUseMultilevelTranslationSolver = false;
+	public static boolean defaultOptimizeSubsetsInParallel = false;
+	public static boolean defaultIncrementalOptimization = true;
+	public static double defaultLoopClosureMaxError = 0;
+
+	// use the linear solver for the simple global optimization (e.g. while curating links in the preview), it can be warm-started
+	public static boolean defaultUseLinearTranslationSolverSimple = false;
+
+	/*
+	 * solve the simple (one round, no link removal) translation optimization directly as a sparse
+	 * linear least-squares problem (see LinearTranslationSolver) instead of iterating tile models
+	 */
+	public boolean useLinearTranslationSolver;
+
+	/*
+	 * like useLinearTranslationSolver, but precondition the solver with a V-cycle on a hierarchy of coarsened link graphs (super-tiles),
+	 * for very large mosaics where errors only slowly propagate across the grid
+	 */
+	public boolean useMultilevelTranslationSolver = defaultUseMultilevelTranslationSolver;
+
+	/*
+	 * optimize independent subsets (e.g. different timepoints or angles) concurrently, only with the linear
+	 * translation solver (the other solvers write to the log directly, their messages would be mixed up)
+	 */
+	public boolean optimizeSubsetsInParallel;
+
+	/*
+	 * reuse the solutions of the linear translation solver from the last run: only connected sets of groups
+	 * whose links changed are solved again, starting from the previous solution (e.g. while curating links).
+	 * The new solution replaces the one the last run applied (see IncrementalTranslationSolutions).
+	 * The other solvers always start from scratch.
+	 */
+	public boolean incrementalOptimization = defaultIncrementalOptimization;
+
+	/*
+	 * links that are inconsistent with a maximum spanning tree of the link graph by more than this
+	 * (in px) are removed before the optimization (with any method), 0 disables the check
+	 */
+	public double loopClosureMaxError = defaultLoopClosureMaxError;
+
+	public GlobalOptSolverParameters()
+	{
+		this( defaultUseLinearTranslationSolver, defaultOptimizeSubsetsInParallel );
+	}
+
+	public GlobalOptSolverParameters( final boolean useLinearTranslationSolver, final boolean optimizeSubsetsInParallel )
+	{
+		this.useLinearTranslationSolver = useLinearTranslationSolver;
+		this.optimizeSubsetsInParallel = optimizeSubsetsInParallel;
+	}
+
+	/**
+	 * @return true if the linear translation solver can replace the solver of the method
+	 */
+	public static boolean supportsLinearTranslationSolver( final GlobalOptType method )
+	{
+		return method == GlobalOptType.ONE_ROUND_SIMPLE;
+	}
+
+	/**
+	 * @return true if the linear translation solver is selected and can be used for the method
+	 */
+	public boolean useLinearTranslationSolver( final GlobalOptType method )
+	{
+		return supportsLinearTranslationSolver( method ) && ( useLinearTranslationSolver || useMultilevelTranslationSolver );
+	}
+
+	/**
+	 * add the options that apply to the chosen global optimization method
+	 */
+	public static void addQueriesToGD( final GenericDialog gd, final GlobalOptType method )
+	{
+		if ( supportsLinearTranslationSolver( method ) )
+		{
+			gd.addCheckbox( "use_linear_translation_solver", defaultUseLinearTranslationSolver );
+			gd.addCheckbox( "multilevel_translation_solver (linear solver for very large mosaics)", defaultUseMultilevelTranslationSolver );
+			gd.addCheckbox( "optimize_subsets_in_parallel (linear translation solver only)", defaultOptimizeSubsetsInParallel );
+			gd.addCheckbox( "incremental_optimization (linear translation solver only, re-solve only groups whose links changed)", defaultIncrementalOptimization );
+		}
+
+		gd.addNumericField( "loop_closure_max_error (px, 0 = off)", defaultLoopClosureMaxError, 2 );
+	}
+
+	public static GlobalOptSolverParameters getParametersFromGD( final GenericDialog gd, final GlobalOptType method )
+	{
+		if ( gd.wasCanceled() )
+			return null;
+
+		final GlobalOptSolverParameters params;
+
+		// the other methods always use their own solver
+		if ( !supportsLinearTranslationSolver( method ) )
+		{
+			params = new GlobalOptSolverParameters( false, false );
+			params.useMultilevelTranslationSolver = false;
+		}
+		else
+		{
+			final boolean useLinearTranslationSolver = defaultUseLinearTranslationSolver = gd.getNextBoolean();
+			final boolean useMultilevelTranslationSolver = defaultUseMultilevelTranslationSolver = gd.getNextBoolean();
+			final boolean optimizeSubsetsInParallel = defaultOptimizeSubsetsInParallel = gd.getNextBoolean();
+			final boolean incrementalOptimization = defaultIncrementalOptimization = gd.getNextBoolean();
+
+			params = new GlobalOptSolverParameters( useLinearTranslationSolver, optimizeSubsetsInParallel );
+			params.useMultilevelTranslationSolver = useMultilevelTranslationSolver;
+			params.incrementalOptimization = incrementalOptimization;
+		}
+
+		params.loopClosureMaxError = defaultLoopClosureMaxError = Math.max( 0, gd.getNextNumber() );
+		return params;
+	}
+
+	/**
+	 * the choice of the solver for the simple global optimization dialog, everything else stays at its default.
+	 * Has to be added right after {@link GlobalOptimizationParameters#addSimpleParametersToDialog(GenericDialog)},
+	 * the checkbox is only enabled while a method is selected that supports the linear solver.
+	 */
+	public static void addSimpleQueriesToGD( final GenericDialog gd )
+	{
+		final GlobalOptType method = GlobalOptimizationParameters.getGlobalOptimizationParametersForSelection( GlobalOptimizationParameters.defaultSimple ).method;
+		gd.addCheckbox( "use_linear_translation_solver (incremental, simple one-round optimization only)", defaultUseLinearTranslationSolverSimple && supportsLinearTranslationSolver( method ) );
+
+		if ( PluginHelper.isHeadless() || gd.getChoices() == null || gd.getCheckboxes() == null )
+			return;
+
+		final Choice methodChoice = (Choice) gd.getChoices().get( gd.getChoices().size() - 1 );
+		final Checkbox linearSolverBox = (Checkbox) gd.getCheckboxes().get( gd.getCheckboxes().size() - 1 );
+
+		linearSolverBox.setEnabled( supportsLinearTranslationSolver( method ) );
+		methodChoice.addItemListener( e -> {
+			final boolean supported = supportsLinearTranslationSolver(
+					GlobalOptimizationParameters.getGlobalOptimizationParametersForSelection( methodChoice.getSelectedIndex() ).method );
+
+			linearSolverBox.setEnabled( supported );
+			linearSolverBox.setState( supported && defaultUseLinearTranslationSolverSimple );
+		} );
+	}
+
+	/**
+	 * @param method - the method selected in the same dialog
+	 */
+	public static GlobalOptSolverParameters getSimpleParametersFromGD( final GenericDialog gd, final GlobalOptType method )
+	{
+		if ( gd.wasCanceled() )
+			return null;
+
+		final boolean useLinearTranslationSolver = gd.getNextBoolean();
+
+		// only remember the choice if it applied
+		if ( supportsLinearTranslationSolver( method ) )
+			defaultUseLinearTranslationSolverSimple = useLinearTranslationSolver;
+
+		return new GlobalOptSolverParameters( useLinearTranslationSolver && supportsLinearTranslationSolver( method ), defaultOptimizeSubsetsInParallel );
+	}
+
+	public static GlobalOptSolverParameters askUserForParameters( final GlobalOptType method )
+	{
+		final GenericDialog gd = new GenericDialog( "Global optimization solver" );
+		addQueriesToGD( gd, method );
+
+		gd.showDialog();
+		return getParametersFromGD( gd, method );
+	}
+}
@@ -23,6 +23,7 @@ package net.preibisch.stitcher.algorithm.globalopt;
 
 import java.awt.Checkbox;
 import java.awt.Label;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,6 +34,13 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import fiji.util.gui.GenericDialogPlus;
@@ -49,6 +57,7 @@ import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.global.GlobalOptimizationParameters;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.global.GlobalOptimizationParameters.GlobalOptType;
 import net.preibisch.mvrecon.fiji.plugin.resave.PluginHelper;
@@ -71,6 +80,10 @@ import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
 
 public class GlobalOptStitcher
 {
+	// solutions of the last run of the linear translation solver, and the dataset they belong to
+	private static final IncrementalTranslationSolutions previousSolutions = new IncrementalTranslationSolutions();
+	private static WeakReference< SpimData2 > previousSolutionsData = new WeakReference<>( null );
+
 	private GlobalOptStitcher() {}
 
 	public static boolean processGlobalOptimization(
@@ -79,6 +92,41 @@ public class GlobalOptStitcher
 			final GlobalOptimizationParameters params,
 			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs,
 			final boolean fixFirstTileByDefault)
+	{
+		return processGlobalOptimization( data, filteringAndGrouping, params, null, removedInconsistentPairs, fixFirstTileByDefault );
+	}
+
+	/**
+	 * @param solverParams - the options of the solver, if null they are asked for together with the views to fix
+	 * (the defaults are used if the first tile is fixed by default)
+	 */
+	public static boolean processGlobalOptimization(
+			final SpimData2 data,
+			final SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
+			final GlobalOptimizationParameters params,
+			final GlobalOptSolverParameters solverParams,
+			final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs,
+			final boolean fixFirstTileByDefault)
+	{
+		// every subset is logged and applied as soon as it is done
+		return computeGlobalOptimization( data, filteringAndGrouping, params, solverParams, fixFirstTileByDefault,
+				subsetResult -> subsetResult.apply( data, removedInconsistentPairs ) );
+	}
+
+	/**
+	 * globally optimize all subsets, the results are passed to subsetDone in the order of the subsets. If they are
+	 * optimized one after another, each result is passed right after its subset is done, otherwise after all are done.
+	 * @param solverParams - see {@link #processGlobalOptimization(SpimData2, SpimDataFilteringAndGrouping, GlobalOptimizationParameters, GlobalOptSolverParameters, Collection, boolean)}
+	 * @param subsetDone - logs and/or applies the result of a subset (see {@link SubsetResult#apply})
+	 * @return false if the user cancelled or the optimization was interrupted (subsetDone may have been called for some subsets)
+	 */
+	static boolean computeGlobalOptimization(
+			final SpimData2 data,
+			final SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
+			final GlobalOptimizationParameters params,
+			final GlobalOptSolverParameters solverParams,
+			final boolean fixFirstTileByDefault,
+			final Consumer< SubsetResult > subsetDone )
 	{
 		// why can type not be BasicViewDescription?
 		PairwiseSetup< ViewId > setup = new PairwiseSetup< ViewId >(
@@ -93,27 +141,28 @@ public class GlobalOptStitcher
 			@Override
 			protected List< Pair< ViewId, ViewId > > definePairsAbstract()
 			{
+				// the pairs are only used to find the subsets of views that are optimized together, i.e. all views
+				// that do not differ in any axis of application. Instead of all n^2 pairs, a chain through the views
+				// of each such subset connects them just as well
 				List< Pair< ViewId, ViewId > > res = new ArrayList<>();
+				final HashMap< List< Object >, ViewId > lastViewOfSubset = new HashMap<>();
 				for ( int i = 0; i < views.size(); i++ )
-					for ( int j = i + 1; j < views.size(); j++ )
-					{
-						boolean differInApplicationAxis = false;
-						for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
-						{
-							// ugly, but just undoes the casting to
-							// ViewId in constructor
-							BasicViewDescription< ? > vdA = (BasicViewDescription< ? >) views.get( i );
-							BasicViewDescription< ? > vdB = (BasicViewDescription< ? >) views.get( j );
-
-							if ( cl == TimePoint.class )
-								differInApplicationAxis |= !vdA.getTimePoint().equals( vdB.getTimePoint() );
-							else
-								differInApplicationAxis |= !vdA.getViewSetup().getAttribute( cl )
-										.equals( vdB.getViewSetup().getAttribute( cl ) );
-						}
-						if ( !differInApplicationAxis )
-							res.add( new ValuePair<>( views.get( i ), views.get( j ) ) );
-					}
+				{
+					// ugly, but just undoes the casting to
+					// ViewId in constructor
+					final BasicViewDescription< ? > vd = (BasicViewDescription< ? >) views.get( i );
+
+					final List< Object > applicationAxes = new ArrayList<>();
+					for ( Class< ? extends Entity > cl : filteringAndGrouping.getAxesOfApplication() )
+						if ( cl == TimePoint.class )
+							applicationAxes.add( vd.getTimePoint() );
+						else
+							applicationAxes.add( vd.getViewSetup().getAttribute( cl ) );
+
+					final ViewId last = lastViewOfSubset.put( applicationAxes, views.get( i ) );
+					if ( last != null )
+						res.add( new ValuePair<>( last, views.get( i ) ) );
+				}
 
 				return res;
 			}
@@ -131,150 +180,434 @@ public class GlobalOptStitcher
 
 
 		final Collection< ? extends Collection< ViewId > > fixedViews;
+		final GlobalOptSolverParameters solver;
 		if (fixFirstTileByDefault)
 		{
 			// get first group of each subset by default
 			fixedViews = subsets.stream().map( subset -> subset.getGroups().iterator().next().getViews() ).collect( Collectors.toList() );
+			solver = solverParams != null ? solverParams : new GlobalOptSolverParameters();
 		}
 		else
 		{
-			fixedViews = askForFixedViews( subsets );
-			if (fixedViews == null)
+			// the solver options go into the same dialog, so they can be recorded and used in a macro
+			final GenericDialogPlus gdp = new GenericDialogPlus( "Select Views to fix" );
+			if ( solverParams == null )
+				GlobalOptSolverParameters.addQueriesToGD( gdp, params.method );
+			addFixedViewsQueriesToGD( gdp, subsets );
+
+			GUIHelper.addScrollBars( gdp );
+
+			gdp.showDialog();
+			if (gdp.wasCanceled())
 				return false;
+
+			solver = solverParams != null ? solverParams : GlobalOptSolverParameters.getParametersFromGD( gdp, params.method );
+			fixedViews = getFixedViewsFromGD( gdp, subsets );
 		}
 
 		final Iterator< ? extends Collection< ViewId > > fixedIterator = fixedViews.iterator();
 
+		// the subsets share no views, so they can be optimized independently
+		final ArrayList< Callable< SubsetResult > > tasks = new ArrayList<>();
 		int subsetIdx = -1;
-		for ( Subset< ViewId > subset : subsets )
+		for ( final Subset< ViewId > subset : subsets )
 		{
-			System.out.println( "subset " + (++subsetIdx) );
-			System.out.println( subset );
-
+			final int idx = ++subsetIdx;
 			final Collection< ViewId > fixed = fixedIterator.next();
 
-			Collection< PairwiseStitchingResult< ViewId > > results = data.getStitchingResults().getPairwiseResults()
-					.values();
-			// filter to only process links between selected views
-			results = results.stream()
-					.filter( psr -> subset.getGroups().contains( psr.pair().getA() )
-							&& subset.getGroups().contains( psr.pair().getB() ) )
-					.collect( Collectors.toList() );
-			// filter bad hashes here
-			final int numLinksBefore = results.size();
-			results = results.stream().filter( psr -> 
+			tasks.add( new Callable< SubsetResult >()
 			{
-				final ViewId firstVidA = psr.pair().getA().getViews().iterator().next();
-				final ViewId firstVidB = psr.pair().getB().getViews().iterator().next();
-				final ViewRegistration vrA = data.getViewRegistrations().getViewRegistration( firstVidA );
-				final ViewRegistration vrB = data.getViewRegistrations().getViewRegistration( firstVidB );
-				final double hash = PairwiseStitchingResult.calculateHash( vrA, vrB );
-				return psr.getHash() == hash;
-			}).collect( Collectors.toList() );
-			final int numLinksAfter = results.size();
-
-			if (numLinksAfter != numLinksBefore)
+				@Override
+				public SubsetResult call() throws Exception
+				{
+					return optimizeSubset( data, subset, idx, fixed, params, solver );
+				}
+			} );
+		}
+
+		// the mpicbg based solvers write to the log directly, the messages of concurrent subsets would be mixed up
+		final boolean linearSolver = solver.useLinearTranslationSolver( params.method );
+		if ( solver.optimizeSubsetsInParallel && tasks.size() > 1 && !linearSolver )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": only the linear translation solver optimizes subsets in parallel, optimizing them one after another." );
+
+		if ( solver.optimizeSubsetsInParallel && linearSolver && tasks.size() > 1 )
+		{
+			final ArrayList< SubsetResult > subsetResults = new ArrayList<>();
+			final ExecutorService service = Executors.newFixedThreadPool( Math.min( tasks.size(), Threads.numThreads() ) );
+
+			try
+			{
+				final ArrayList< Future< SubsetResult > > futures = new ArrayList<>();
+				for ( final Callable< SubsetResult > task : tasks )
+					futures.add( service.submit( task ) );
+
+				// collect in the order of the subsets, as if they were processed sequentially
+				for ( final Future< SubsetResult > future : futures )
+				{
+					try
+					{
+						subsetResults.add( future.get() );
+					}
+					catch ( ExecutionException e )
+					{
+						IOFunctions.println( "Failed to optimize subset: " + e );
+						e.printStackTrace();
+					}
+				}
+			}
+			catch ( InterruptedException e )
 			{
-				IOFunctions.println("Removed " + ( numLinksBefore - numLinksAfter ) + " of " + numLinksBefore + 
-						" pairwise results because the underlying view registrations have changed.");
-				IOFunctions.println("Did you try to re-run the global optimization after aligning the dataset?");
-				IOFunctions.println("In that case, you can remove the latest transformation and try again.");
+				service.shutdownNow();
+				Thread.currentThread().interrupt();
 			}
+			finally
+			{
+				service.shutdown();
+			}
+
+			// a cancelled run must not leave some subsets aligned and others not
+			if ( isCancelled( subsetResults ) )
+				return false;
 
-			if (numLinksAfter < 1)
+			for ( final SubsetResult subsetResult : subsetResults )
+				subsetDone.accept( subsetResult );
+		}
+		else
+		{
+			for ( final Callable< SubsetResult > task : tasks )
 			{
-				IOFunctions.println( new Date(System.currentTimeMillis()) + ": no links remaining in subset " + subsetIdx + ", skipping.");
-				continue;
+				if ( isCancelled( Collections.emptyList() ) )
+					return false;
+
+				final SubsetResult subsetResult;
+				try
+				{
+					subsetResult = task.call();
+				}
+				catch ( Exception e )
+				{
+					IOFunctions.println( "Failed to optimize subset: " + e );
+					e.printStackTrace();
+					continue;
+				}
+
+				// the log of a cancelled subset is dropped with the rest of the run
+				if ( isCancelled( Collections.singletonList( subsetResult ) ) )
+					return false;
+
+				subsetDone.accept( subsetResult );
 			}
+		}
 
-			if ( params.method == GlobalOptType.TWO_ROUND_SIMPLE || params.method == GlobalOptType.TWO_ROUND_ITERATIVE )
+		return true;
+	}
+
+	/**
+	 * @return true (and say so) if the current thread was interrupted or one of the results was cancelled
+	 */
+	private static boolean isCancelled( final List< SubsetResult > subsetResults )
+	{
+		if ( Thread.currentThread().isInterrupted() || subsetResults.stream().anyMatch( r -> r.cancelled ) )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": global optimization was cancelled." );
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the solutions of the last run, emptied first if they belong to a different dataset
+	 */
+	private static IncrementalTranslationSolutions previousSolutions( final SpimData2 data )
+	{
+		synchronized ( previousSolutions )
+		{
+			if ( previousSolutionsData.get() != data )
 			{
-				HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOptTwoRound.computeTiles(
-						new TranslationModel3D(),
-						new ImageCorrelationPointMatchCreator( results ),
-						new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
-								params.relativeThreshold, params.absoluteThreshold ),
-						new MaxErrorLinkRemoval(),
-						removedInconsistentPairs,
-						new MetaDataWeakLinkFactory(
-								data.getViewRegistrations().getViewRegistrations(),
-								new SimpleBoundingBoxOverlap<>( data ) ),
-						new ConvergenceStrategy( Double.MAX_VALUE ), fixed,
-						subset.getGroups() );
-
-				globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
-				globalOptResults.forEach( (k, v) -> {
-
-					final ViewRegistration vr = data.getViewRegistrations()
-							.getViewRegistration( k );
-
-					AffineTransform3D viewTransform = new AffineTransform3D();
-					viewTransform.set( v.getModel().getMatrix( null ) );
-
-					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform",
-							viewTransform );
-					vr.preconcatenateTransform( vt );
-					vr.updateModel();
-
-				} );
+				previousSolutions.clear();
+				previousSolutionsData = new WeakReference<>( data );
 			}
-			else if ( params.method == GlobalOptType.ONE_ROUND_ITERATIVE)
+
+			return previousSolutions;
+		}
+	}
+
+	/**
+	 * globally optimize one subset. Does not modify the registrations, log messages and new transformations
+	 * are collected in the result so that subsets can be processed concurrently.
+	 */
+	private static SubsetResult optimizeSubset(
+			final SpimData2 data,
+			final Subset< ViewId > subset,
+			final int subsetIdx,
+			final Collection< ViewId > fixed,
+			final GlobalOptimizationParameters params,
+			final GlobalOptSolverParameters solverParams )
+	{
+		final SubsetResult subsetResult = new SubsetResult();
+
+		subsetResult.out( "subset " + subsetIdx );
+		subsetResult.out( subset.toString() );
+
+		Collection< PairwiseStitchingResult< ViewId > > results;
+		synchronized ( data.getStitchingResults().getPairwiseResults() )
+		{
+			results = new ArrayList<>( data.getStitchingResults().getPairwiseResults().values() );
+		}
+		// filter to only process links between selected views
+		results = results.stream()
+				.filter( psr -> subset.getGroups().contains( psr.pair().getA() )
+						&& subset.getGroups().contains( psr.pair().getB() ) )
+				.collect( Collectors.toList() );
+
+		// an incremental run replaces the last solution, unless the links were recomputed with it applied
+		final IncrementalTranslationSolutions incremental =
+				solverParams.useLinearTranslationSolver( params.method ) && solverParams.incrementalOptimization ? previousSolutions( data ) : null;
+
+		// filter bad hashes here
+		final int numLinksBefore = results.size();
+		if ( incremental != null )
+			results = upToDateLinks( results, incremental, vid -> data.getViewRegistrations().getViewRegistration( vid ) );
+		else
+			results = upToDateLinks( results, vid -> data.getViewRegistrations().getViewRegistration( vid ) );
+		final int numLinksAfter = results.size();
+
+		if (numLinksAfter != numLinksBefore)
+		{
+			subsetResult.println("Removed " + ( numLinksBefore - numLinksAfter ) + " of " + numLinksBefore + 
+					" pairwise results because the underlying view registrations have changed.");
+			subsetResult.println("Did you try to re-run the global optimization after aligning the dataset?");
+			subsetResult.println("In that case, you can remove the latest transformation and try again.");
+		}
+
+		// a superseded run stops here at the latest, the mpicbg based solvers cannot be interrupted once they started
+		if ( Thread.currentThread().isInterrupted() )
+		{
+			subsetResult.cancelled = true;
+			return subsetResult;
+		}
+
+		if (numLinksAfter < 1)
+		{
+			subsetResult.println( new Date(System.currentTimeMillis()) + ": no links remaining in subset " + subsetIdx + ", skipping.");
+			return subsetResult;
+		}
+
+		// drop links that do not close their cycles before optimizing
+		if ( solverParams.loopClosureMaxError > 0 )
+		{
+			final List< PairwiseStitchingResult< ViewId > > inconsistent = LoopClosureFilter.findInconsistentLinks( results, solverParams.loopClosureMaxError );
+
+			if ( inconsistent.size() > 0 )
 			{
-				HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOptIterative.computeTiles(
-						new TranslationModel3D(),
-						new ImageCorrelationPointMatchCreator( results ),
-						new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
-								params.relativeThreshold, params.absoluteThreshold ),
-						new MaxErrorLinkRemoval(),
-						removedInconsistentPairs,
-						fixed, subset.getGroups() );
-
-				globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
-				globalOptResults.forEach( (k, v) -> {
-
-					final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
-					AffineTransform3D viewTransform = new AffineTransform3D();
-					viewTransform.set( v.getModel().getMatrix( null ) );
-
-					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", viewTransform );
-					vr.preconcatenateTransform( vt );
-					vr.updateModel();
-
-				} );
+				subsetResult.println( new Date(System.currentTimeMillis()) + ": removed " + inconsistent.size() + " of " + results.size() +
+						" links with a loop closure error > " + solverParams.loopClosureMaxError + " px in subset " + subsetIdx + "." );
+
+				results = new ArrayList<>( results );
+				results.removeAll( new HashSet<>( inconsistent ) );
+
+				for ( final PairwiseStitchingResult< ViewId > psr : inconsistent )
+					subsetResult.removedInconsistentPairs.add( psr.pair() );
 			}
-			else // Simple global opt
+		}
+
+		if ( params.method == GlobalOptType.TWO_ROUND_SIMPLE || params.method == GlobalOptType.TWO_ROUND_ITERATIVE )
+		{
+			HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOptTwoRound.computeTiles(
+					new TranslationModel3D(),
+					new ImageCorrelationPointMatchCreator( results ),
+					new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
+							params.relativeThreshold, params.absoluteThreshold ),
+					new MaxErrorLinkRemoval(),
+					subsetResult.removedInconsistentPairs,
+					new MetaDataWeakLinkFactory(
+							data.getViewRegistrations().getViewRegistrations(),
+							new SimpleBoundingBoxOverlap<>( data ) ),
+					new ConvergenceStrategy( Double.MAX_VALUE ), fixed,
+					subset.getGroups() );
+
+			subsetResult.addTiles( globalOptResults );
+		}
+		else if ( params.method == GlobalOptType.ONE_ROUND_ITERATIVE)
+		{
+			HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOptIterative.computeTiles(
+					new TranslationModel3D(),
+					new ImageCorrelationPointMatchCreator( results ),
+					new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
+							params.relativeThreshold, params.absoluteThreshold ),
+					new MaxErrorLinkRemoval(),
+					subsetResult.removedInconsistentPairs,
+					fixed, subset.getGroups() );
+
+			subsetResult.addTiles( globalOptResults );
+		}
+		else if ( solverParams.useLinearTranslationSolver( params.method ) ) // Simple global opt, solved directly
+		{
+			final HashMap< ViewId, AffineTransform3D > globalOptResults = LinearTranslationSolver.computeTranslations(
+					results, fixed, subset.getGroups(), incremental != null ? incremental.getCache() : null, solverParams.useMultilevelTranslationSolver,
+					subsetResult::println );
+
+			if ( globalOptResults == null )
 			{
-				final HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOpt.computeTiles(
-						new TranslationModel3D(),
-						new ImageCorrelationPointMatchCreator( results ),
-						new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
-								params.relativeThreshold, params.absoluteThreshold ),
-						fixed,
-						subset.getGroups() );
-
-				globalOptResults.forEach( (k, v) -> System.out.println( k + ": " + v ) );
-				globalOptResults.forEach( (k, v) -> {
-
-					final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
-					AffineTransform3D viewTransform = new AffineTransform3D();
-					viewTransform.set( v.getModel().getMatrix( null ) );
-
-					final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", viewTransform );
-					vr.preconcatenateTransform( vt );
-					vr.updateModel();
-
-				} );
+				subsetResult.cancelled = true;
+				return subsetResult;
 			}
 
+			globalOptResults.forEach( (k, v) -> {
+				subsetResult.out( k + ": " + v );
+				subsetResult.transforms.put( k, v );
+			} );
+
+			subsetResult.solutions = incremental;
+		}
+		else // Simple global opt
+		{
+			final HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > globalOptResults = GlobalOpt.computeTiles(
+					new TranslationModel3D(),
+					new ImageCorrelationPointMatchCreator( results ),
+					new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE,
+							params.relativeThreshold, params.absoluteThreshold ),
+					fixed,
+					subset.getGroups() );
+
+			subsetResult.addTiles( globalOptResults );
 		}
 
-		return true;
+		return subsetResult;
+	}
+
+	/**
+	 * @param registrations - the registration of a view the links are checked against
+	 * @return the links that were computed for the current registrations of their views (see {@link PairwiseStitchingResult#calculateHash})
+	 */
+	static List< PairwiseStitchingResult< ViewId > > upToDateLinks(
+			final Collection< PairwiseStitchingResult< ViewId > > links,
+			final Function< ViewId, ViewRegistration > registrations )
+	{
+		return links.stream().filter( psr ->
+		{
+			final ViewId firstVidA = psr.pair().getA().getViews().iterator().next();
+			final ViewId firstVidB = psr.pair().getB().getViews().iterator().next();
+			final double hash = PairwiseStitchingResult.calculateHash( registrations.apply( firstVidA ), registrations.apply( firstVidB ) );
+			return psr.getHash() == hash;
+		}).collect( Collectors.toList() );
+	}
+
+	/**
+	 * links of an incremental run: links computed for the current registrations make the last solution of their
+	 * views permanent, the remaining links are checked against the registrations without the last solution
+	 * @param registrations - the current registration of a view
+	 * @return the links that are valid for the registrations the next solution is applied to
+	 */
+	static List< PairwiseStitchingResult< ViewId > > upToDateLinks(
+			final Collection< PairwiseStitchingResult< ViewId > > links,
+			final IncrementalTranslationSolutions incremental,
+			final Function< ViewId, ViewRegistration > registrations )
+	{
+		final HashSet< ViewId > recomputed = new HashSet<>();
+		for ( final PairwiseStitchingResult< ViewId > psr : upToDateLinks( links, registrations ) )
+		{
+			recomputed.addAll( psr.pair().getA().getViews() );
+			recomputed.addAll( psr.pair().getB().getViews() );
+		}
+
+		incremental.keepSolutions( recomputed );
+
+		return upToDateLinks( links, vid -> incremental.registrationBeforeSolution( registrations.apply( vid ) ) );
+	}
+
+	/**
+	 * result of the optimization of one subset: the transformations to preconcatenate, removed links and the log
+	 */
+	static class SubsetResult
+	{
+		// messages, true if it goes to the log window, false if it goes to stdout only
+		final ArrayList< Pair< Boolean, String > > log = new ArrayList<>();
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs = new ArrayList<>();
+		final HashMap< ViewId, AffineTransform3D > transforms = new HashMap<>();
+		boolean cancelled = false;
+
+		// the solutions of an incremental run, they replace the last solution when applied (null otherwise)
+		IncrementalTranslationSolutions solutions = null;
+
+		void println( final String msg ) { log.add( new ValuePair<>( true, msg ) ); }
+		void out( final String msg ) { log.add( new ValuePair<>( false, msg ) ); }
+
+		void addTiles( final HashMap< ViewId, mpicbg.models.Tile< TranslationModel3D > > tiles )
+		{
+			tiles.forEach( (k, v) -> {
+				out( k + ": " + v );
+
+				final AffineTransform3D viewTransform = new AffineTransform3D();
+				viewTransform.set( v.getModel().getMatrix( null ) );
+				transforms.put( k, viewTransform );
+			} );
+		}
+
+		/**
+		 * print the log and apply the transformations
+		 * @param removedInconsistentPairs - the links removed by the optimization are added here (can be null)
+		 */
+		void apply( final SpimData2 data, final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs )
+		{
+			printLog();
+			applyTransforms( data, removedInconsistentPairs );
+		}
+
+		void printLog()
+		{
+			for ( final Pair< Boolean, String > msg : log )
+				if ( msg.getA() )
+					IOFunctions.println( msg.getB() );
+				else
+					System.out.println( msg.getB() );
+
+			log.clear();
+		}
+
+		void applyTransforms( final SpimData2 data, final Collection< Pair< Group< ViewId >, Group< ViewId > > > removedInconsistentPairs )
+		{
+			if ( removedInconsistentPairs != null )
+				removedInconsistentPairs.addAll( this.removedInconsistentPairs );
+
+			transforms.forEach( (k, v) -> {
+
+				final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( k );
+
+				if ( solutions != null )
+				{
+					solutions.apply( vr, v );
+					return;
+				}
+
+				final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", v );
+				vr.preconcatenateTransform( vt );
+				vr.updateModel();
+
+			} );
+		}
 	}
 
 	public static <V extends ViewId> Collection<? extends Collection<V> > askForFixedViews(ArrayList<? extends Subset< V > > subsets)
 	{
-		final ArrayList< Collection<V> > res = new ArrayList<>();
 		final GenericDialogPlus gdp = new GenericDialogPlus( "Select Views to fix" );
+		addFixedViewsQueriesToGD( gdp, subsets );
+
+		GUIHelper.addScrollBars( gdp );
+
+		gdp.showDialog();
+		if (gdp.wasCanceled())
+			return null;
+
+		return getFixedViewsFromGD( gdp, subsets );
+	}
+
+	/**
+	 * add a checkbox for every group of every subset, the first group of each subset is fixed by default
+	 */
+	public static <V extends ViewId> void addFixedViewsQueriesToGD( final GenericDialogPlus gdp, final ArrayList<? extends Subset< V > > subsets )
+	{
 		final boolean multipleSubsets = !(subsets.size() < 2);
 
 		int i = 0;
@@ -351,12 +684,14 @@ public class GlobalOptStitcher
 				}
 			}
 		}
+	}
 
-		GUIHelper.addScrollBars( gdp );
-
-		gdp.showDialog();
-		if (gdp.wasCanceled())
-			return null;
+	/**
+	 * @return the views to fix in every subset, see {@link #addFixedViewsQueriesToGD(GenericDialogPlus, ArrayList)}
+	 */
+	public static <V extends ViewId> Collection<? extends Collection<V> > getFixedViewsFromGD( final GenericDialogPlus gdp, final ArrayList<? extends Subset< V > > subsets )
+	{
+		final ArrayList< Collection<V> > res = new ArrayList<>();
 
 		for (final Subset<V> subset : subsets)
 		{
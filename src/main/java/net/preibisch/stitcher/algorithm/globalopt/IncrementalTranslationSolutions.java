@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewTransform;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Solutions of the last runs of the linear translation solver on a dataset and the transformations they added
+ * to the view registrations. The pairwise links were computed for the registrations before the last solution
+ * was applied, so a new run (e.g. after a link was removed while curating) checks the links against those and
+ * replaces the last solution instead of adding another one. The {@link LinearTranslationSolver.Cache} thus only
+ * depends on the links and fixed views, not on the registrations the solutions change. Links that were
+ * recomputed for the registrations with the last solution make it permanent for their views instead, see
+ * {@link #keepSolutions(Collection)}.
+ * Safe to use from several threads.
+ */
+public class IncrementalTranslationSolutions
+{
+	private final LinearTranslationSolver.Cache cache = new LinearTranslationSolver.Cache();
+
+	// the transformation that the last applied solution added to each view
+	private final HashMap< ViewId, ViewTransform > applied = new HashMap<>();
+
+	public LinearTranslationSolver.Cache getCache() { return cache; }
+
+	/**
+	 * @return the registration of the view without the last solution, vr itself if it was not applied last
+	 */
+	public synchronized ViewRegistration registrationBeforeSolution( final ViewRegistration vr )
+	{
+		if ( !isAppliedLast( vr ) )
+			return vr;
+
+		final List< ViewTransform > transforms = vr.getTransformList();
+		final ViewRegistration before = new ViewRegistration( vr.getTimePointId(), vr.getViewSetupId(), new ArrayList<>( transforms.subList( 1, transforms.size() ) ) );
+		before.updateModel();
+
+		return before;
+	}
+
+	/**
+	 * preconcatenate the translation to the registration, replacing the last solution if it was applied last
+	 */
+	public synchronized void apply( final ViewRegistration vr, final AffineTransform3D translation )
+	{
+		if ( isAppliedLast( vr ) )
+			vr.getTransformList().remove( 0 );
+
+		final ViewTransform vt = new ViewTransformAffine( "Stitching Transform", translation );
+		vr.preconcatenateTransform( vt );
+		vr.updateModel();
+
+		applied.put( new ViewId( vr.getTimePointId(), vr.getViewSetupId() ), vt );
+	}
+
+	/**
+	 * keep the last solution of the views, the next one is preconcatenated to it (e.g. the pairwise shifts
+	 * were recomputed after the solution was applied). Clears the cache if any solution was kept.
+	 * @return true if the last solution was applied to any of the views
+	 */
+	public synchronized boolean keepSolutions( final Collection< ? extends ViewId > viewIds )
+	{
+		boolean kept = false;
+		for ( final ViewId viewId : viewIds )
+			kept |= applied.remove( new ViewId( viewId.getTimePointId(), viewId.getViewSetupId() ) ) != null;
+
+		if ( kept )
+			cache.clear();
+
+		return kept;
+	}
+
+	public synchronized void clear()
+	{
+		cache.clear();
+		applied.clear();
+	}
+
+	// the latest transformation of the view is still the one of the last solution
+	private boolean isAppliedLast( final ViewRegistration vr )
+	{
+		final ViewTransform last = applied.get( new ViewId( vr.getTimePointId(), vr.getViewSetupId() ) );
+		final List< ViewTransform > transforms = vr.getTransformList();
+
+		return last != null && transforms.size() > 0 && transforms.get( 0 ) == last;
+	}
+}
@@ -0,0 +1,765 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Global optimization of translation-only tiles as a sparse weighted linear least-squares problem.
+ * 
+ * Every link between groups a and b with pairwise translation t (the shift to apply to b if a stays
+ * where it is) and correlation r contributes r * |x_b - x_a - t|^2. Setting the gradient to zero gives
+ * a graph Laplacian system L x = c (one per dimension) that is solved with Jacobi-preconditioned
+ * conjugate gradient, instead of the thousands of relaxation sweeps the iterative tile optimization
+ * needs on large grids. Fixed groups stay where they are; if a connected set of groups has no fixed
+ * group, its first group is fixed.
+ * 
+ * With a {@link Cache}, consecutive runs (e.g. while links are curated interactively) only re-solve the
+ * connected sets of groups whose links changed, starting from the previous solution.
+ */
+public class LinearTranslationSolver
+{
+	public static double relativeTolerance = 1e-10;
+
+	/*
+	 * size up to which the multilevel solver stops coarsening and solves directly
+	 */
+	public static int coarsestLevelSize = 64;
+
+	private LinearTranslationSolver() {}
+
+	/**
+	 * @param links pairwise results between the groups (links with r &lt;= 0 are ignored)
+	 * @param fixedViews views whose groups must not move
+	 * @param groups the groups to optimize
+	 * @return the translation to apply to every view of the groups
+	 */
+	public static HashMap< ViewId, AffineTransform3D > computeTranslations(
+			final Collection< PairwiseStitchingResult< ViewId > > links,
+			final Collection< ViewId > fixedViews,
+			final Collection< Group< ViewId > > groups )
+	{
+		return computeTranslations( links, fixedViews, groups, null, false );
+	}
+
+	/**
+	 * @param links pairwise results between the groups (links with r &lt;= 0 are ignored)
+	 * @param fixedViews views whose groups must not move
+	 * @param groups the groups to optimize
+	 * @param cache solutions of previous runs to reuse or start from, updated with the new solution (can be null)
+	 * @param multilevel precondition with a V-cycle on a hierarchy of coarsened link graphs (see {@link #multilevelSolve})
+	 * @return the translation to apply to every view of the groups, null if the thread was interrupted
+	 */
+	public static HashMap< ViewId, AffineTransform3D > computeTranslations(
+			final Collection< PairwiseStitchingResult< ViewId > > links,
+			final Collection< ViewId > fixedViews,
+			final Collection< Group< ViewId > > groups,
+			final Cache cache,
+			final boolean multilevel )
+	{
+		return computeTranslations( links, fixedViews, groups, cache, multilevel, IOFunctions::println );
+	}
+
+	/**
+	 * same as {@link #computeTranslations(Collection, Collection, Collection, Cache, boolean)}, but the
+	 * messages go to log (e.g. to keep them apart when several subsets are solved concurrently)
+	 */
+	public static HashMap< ViewId, AffineTransform3D > computeTranslations(
+			final Collection< PairwiseStitchingResult< ViewId > > links,
+			final Collection< ViewId > fixedViews,
+			final Collection< Group< ViewId > > groups,
+			final Cache cache,
+			final boolean multilevel,
+			final Consumer< String > log )
+	{
+		// deterministic order of the groups, independent of the set implementation
+		final List< Group< ViewId > > groupList = new ArrayList<>( groups );
+		Collections.sort( groupList, ( g1, g2 ) -> Collections.min( g1.getViews() ).compareTo( Collections.min( g2.getViews() ) ) );
+
+		final HashMap< Group< ViewId >, Integer > index = new HashMap<>();
+		for ( final Group< ViewId > group : groupList )
+			index.put( group, index.size() );
+
+		final int n = groupList.size();
+
+		// edges of the graph: a, b, weight, translation
+		final List< int[] > edges = new ArrayList<>();
+		final List< double[] > edgeData = new ArrayList<>();
+		final List< List< Integer > > neighbors = new ArrayList<>();
+		for ( int i = 0; i < n; ++i )
+			neighbors.add( new ArrayList<>() );
+
+		for ( final PairwiseStitchingResult< ViewId > psr : links )
+		{
+			final Integer a = index.get( psr.pair().getA() );
+			final Integer b = index.get( psr.pair().getB() );
+
+			if ( a == null || b == null || a.equals( b ) || !( psr.r() > 0 ) )
+				continue;
+
+			final AffineGet t = psr.getTransform();
+			final int nd = t.numDimensions();
+			edges.add( new int[] { a, b } );
+			edgeData.add( new double[] { psr.r(), t.get( 0, nd ), nd > 1 ? t.get( 1, nd ) : 0, nd > 2 ? t.get( 2, nd ) : 0 } );
+			neighbors.get( a ).add( b );
+			neighbors.get( b ).add( a );
+		}
+
+		// fixed groups, plus the first group of every connected set of groups without one
+		final boolean[] fixed = new boolean[ n ];
+		for ( int i = 0; i < n; ++i )
+			for ( final ViewId v : groupList.get( i ).getViews() )
+				fixed[ i ] |= fixedViews.contains( v );
+
+		final int[] component = new int[ n ];
+		Arrays.fill( component, -1 );
+		final List< List< Integer > > components = new ArrayList<>();
+		for ( int start = 0; start < n; ++start )
+		{
+			if ( component[ start ] >= 0 )
+				continue;
+
+			final List< Integer > members = new ArrayList<>();
+			final ArrayDeque< Integer > queue = new ArrayDeque<>();
+			component[ start ] = components.size();
+			queue.add( start );
+
+			boolean hasFixed = false;
+			while ( !queue.isEmpty() )
+			{
+				final int i = queue.poll();
+				members.add( i );
+				hasFixed |= fixed[ i ];
+
+				for ( final int j : neighbors.get( i ) )
+					if ( component[ j ] < 0 )
+					{
+						component[ j ] = components.size();
+						queue.add( j );
+					}
+			}
+
+			if ( !hasFixed )
+				fixed[ Collections.min( members ) ] = true;
+
+			components.add( members );
+		}
+
+		final int numComponents = components.size();
+
+		// a connected set of groups has to be solved again if its links or fixed groups changed since the last run
+		final List< Object > signatures = new ArrayList<>();
+		final boolean[] changed = new boolean[ numComponents ];
+		Arrays.fill( changed, true );
+
+		if ( cache != null )
+		{
+			final List< HashSet< List< Object > > > signatureLinks = new ArrayList<>();
+			for ( int c = 0; c < numComponents; ++c )
+				signatureLinks.add( new HashSet<>() );
+
+			for ( int e = 0; e < edges.size(); ++e )
+			{
+				final double[] data = edgeData.get( e );
+				signatureLinks.get( component[ edges.get( e )[ 0 ] ] ).add( Arrays.asList(
+						groupList.get( edges.get( e )[ 0 ] ), groupList.get( edges.get( e )[ 1 ] ), data[ 0 ], data[ 1 ], data[ 2 ], data[ 3 ] ) );
+			}
+
+			for ( int c = 0; c < numComponents; ++c )
+			{
+				final HashSet< Group< ViewId > > fixedGroups = new HashSet<>();
+				for ( final int i : components.get( c ) )
+					if ( fixed[ i ] )
+						fixedGroups.add( groupList.get( i ) );
+
+				signatures.add( Arrays.asList( signatureLinks.get( c ), fixedGroups ) );
+				changed[ c ] = !cache.isSolved( components.get( c ).stream().map( i -> groupList.get( i ) ).collect( Collectors.toList() ), signatures.get( c ) );
+			}
+		}
+
+		// unknowns are the free groups of the connected sets that need to be solved
+		final int[] unknown = new int[ n ];
+		int numUnknowns = 0;
+		for ( int i = 0; i < n; ++i )
+			unknown[ i ] = fixed[ i ] || !changed[ component[ i ] ] ? -1 : numUnknowns++;
+
+		int numChanged = 0;
+		for ( int c = 0; c < numComponents; ++c )
+			if ( changed[ c ] )
+				++numChanged;
+
+		final SparseSymmetricMatrix laplacian = new SparseSymmetricMatrix( numUnknowns );
+		final double[][] rhs = new double[ 3 ][ numUnknowns ];
+
+		for ( int e = 0; e < edges.size(); ++e )
+		{
+			if ( !changed[ component[ edges.get( e )[ 0 ] ] ] )
+				continue;
+
+			final int a = unknown[ edges.get( e )[ 0 ] ];
+			final int b = unknown[ edges.get( e )[ 1 ] ];
+			final double[] data = edgeData.get( e );
+			final double w = data[ 0 ];
+
+			// gradient of w * |x_b - x_a - t|^2, fixed groups are at 0
+			if ( a >= 0 )
+			{
+				laplacian.add( a, a, w );
+				for ( int d = 0; d < 3; ++d )
+					rhs[ d ][ a ] -= w * data[ 1 + d ];
+			}
+
+			if ( b >= 0 )
+			{
+				laplacian.add( b, b, w );
+				for ( int d = 0; d < 3; ++d )
+					rhs[ d ][ b ] += w * data[ 1 + d ];
+			}
+
+			if ( a >= 0 && b >= 0 )
+			{
+				laplacian.add( a, b, -w );
+				laplacian.add( b, a, -w );
+			}
+		}
+
+		laplacian.compress();
+
+		// start from the previous solution if there is one
+		final double[][] x = new double[ 3 ][ numUnknowns ];
+		if ( cache != null )
+			for ( int i = 0; i < n; ++i )
+				if ( unknown[ i ] >= 0 )
+				{
+					final double[] previous = cache.getTranslation( groupList.get( i ) );
+					if ( previous != null )
+						for ( int d = 0; d < 3; ++d )
+							x[ d ][ unknown[ i ] ] = previous[ d ];
+				}
+
+		int iterations = 0;
+		for ( int d = 0; d < 3; ++d )
+		{
+			final int it = multilevel ?
+					multilevelSolve( laplacian, rhs[ d ], x[ d ], relativeTolerance ) :
+					conjugateGradient( laplacian, rhs[ d ], x[ d ], relativeTolerance, Math.max( 100, 10 * numUnknowns ) );
+
+			if ( it < 0 )
+			{
+				log.accept( "Linear translation solver: interrupted." );
+				return null;
+			}
+
+			iterations = Math.max( iterations, it );
+		}
+
+		log.accept( "Linear translation solver: " + n + " groups (" + numUnknowns + " free), " + edges.size() + " links, " +
+				numComponents + " connected set(s) (" + numChanged + " solved), converged after " + iterations + " iterations." );
+
+		final HashMap< ViewId, AffineTransform3D > result = new HashMap<>();
+		for ( int i = 0; i < n; ++i )
+		{
+			double[] t = new double[ 3 ];
+
+			if ( unknown[ i ] >= 0 )
+				for ( int d = 0; d < 3; ++d )
+					t[ d ] = x[ d ][ unknown[ i ] ];
+			else if ( !fixed[ i ] )
+				t = cache.getTranslation( groupList.get( i ) ); // unchanged since the last run
+
+			final AffineTransform3D translation = new AffineTransform3D();
+			translation.setTranslation( t );
+
+			for ( final ViewId v : groupList.get( i ).getViews() )
+				result.put( v, translation.copy() );
+
+			if ( cache != null )
+				cache.put( groupList.get( i ), signatures.get( component[ i ] ), t );
+		}
+
+		return result;
+	}
+
+	/**
+	 * solve A x = b with conjugate gradient, preconditioned by a multilevel V-cycle: neighboring unknowns (groups)
+	 * are merged pairwise into super-tiles along their strongest links until the problem is small. Errors that are
+	 * smooth over the grid, which Jacobi-preconditioned conjugate gradient only removes one hop per iteration, are
+	 * thus corrected on the coarse levels, and the number of iterations hardly grows with the size of the grid.
+	 * @param x initial guess, overwritten with the solution
+	 * @return number of iterations, -1 if the thread was interrupted
+	 */
+	public static int multilevelSolve( final SparseSymmetricMatrix A, final double[] b, final double[] x, final double relativeTolerance )
+	{
+		return conjugateGradient( A, b, x, relativeTolerance, Math.max( 100, 10 * b.length ), new VCycle( A ) );
+	}
+
+	/**
+	 * solve A x = b for a symmetric positive (semi-)definite A with Jacobi-preconditioned conjugate gradient
+	 * @param x initial guess, overwritten with the solution
+	 * @return number of iterations, -1 if the thread was interrupted
+	 */
+	public static int conjugateGradient( final SparseSymmetricMatrix A, final double[] b, final double[] x, final double relativeTolerance, final int maxIterations )
+	{
+		final double[] diagonal = A.diagonal();
+
+		return conjugateGradient( A, b, x, relativeTolerance, maxIterations, ( r, z ) -> {
+			for ( int i = 0; i < r.length; ++i )
+				z[ i ] = diagonal[ i ] > 0 ? r[ i ] / diagonal[ i ] : r[ i ];
+		} );
+	}
+
+	private static int conjugateGradient( final SparseSymmetricMatrix A, final double[] b, final double[] x, final double relativeTolerance, final int maxIterations, final Preconditioner preconditioner )
+	{
+		final int n = b.length;
+		final double[] r = new double[ n ];
+		final double[] z = new double[ n ];
+		final double[] p = new double[ n ];
+		final double[] q = new double[ n ];
+
+		A.multiply( x, q );
+		for ( int i = 0; i < n; ++i )
+			r[ i ] = b[ i ] - q[ i ];
+
+		final double normB = Math.sqrt( dot( b, b ) );
+		if ( normB == 0 )
+		{
+			Arrays.fill( x, 0 );
+			return 0;
+		}
+
+		preconditioner.apply( r, z );
+
+		System.arraycopy( z, 0, p, 0, n );
+		double rz = dot( r, z );
+
+		int iteration = 0;
+		while ( iteration < maxIterations && Math.sqrt( dot( r, r ) ) > relativeTolerance * normB )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				return -1;
+
+			A.multiply( p, q );
+			final double pq = dot( p, q );
+
+			if ( pq <= 0 )
+				break;
+
+			final double alpha = rz / pq;
+			for ( int i = 0; i < n; ++i )
+			{
+				x[ i ] += alpha * p[ i ];
+				r[ i ] -= alpha * q[ i ];
+			}
+
+			preconditioner.apply( r, z );
+
+			final double rzNew = dot( r, z );
+			final double beta = rzNew / rz;
+			rz = rzNew;
+
+			for ( int i = 0; i < n; ++i )
+				p[ i ] = z[ i ] + beta * p[ i ];
+
+			++iteration;
+		}
+
+		return iteration;
+	}
+
+	/**
+	 * approximate inverse of the system matrix, z = M^-1 r, must be symmetric positive definite
+	 */
+	private interface Preconditioner
+	{
+		void apply( final double[] r, final double[] z );
+	}
+
+	/**
+	 * one level of the multilevel preconditioner. Applying it runs a V-cycle from a zero initial guess: a damped
+	 * Jacobi sweep, the correction from the next coarser level (restricted to, and prolongated from, the aggregates
+	 * of the matching), and another Jacobi sweep. The coarsest level is solved directly. With the same sweep before
+	 * and after the coarse correction, the V-cycle is symmetric positive definite, as conjugate gradient requires.
+	 */
+	private static class VCycle implements Preconditioner
+	{
+		final SparseSymmetricMatrix A;
+		final double[] diagonal;
+		final double[] residual;
+
+		// aggregate of every unknown in the next coarser level, null if there is none
+		final int[] aggregate;
+		final VCycle coarse;
+		final double[] coarseResidual, coarseCorrection;
+
+		// Cholesky factor on the coarsest level, null if coarsening stalled (then this level only smooths)
+		final double[][] cholesky;
+
+		VCycle( final SparseSymmetricMatrix A )
+		{
+			final int n = A.size();
+
+			this.A = A;
+			this.diagonal = A.diagonal();
+			this.residual = new double[ n ];
+
+			int[] aggregate = null;
+			int numAggregates = 0;
+
+			if ( n > coarsestLevelSize )
+			{
+				aggregate = new int[ n ];
+				numAggregates = A.matchStrongestNeighbors( aggregate );
+
+				// coarsening stalled (e.g. many isolated groups)
+				if ( numAggregates > 0.75 * n )
+					aggregate = null;
+			}
+
+			this.aggregate = aggregate;
+
+			if ( aggregate != null )
+			{
+				this.coarse = new VCycle( A.coarsen( aggregate, numAggregates ) );
+				this.coarseResidual = new double[ numAggregates ];
+				this.coarseCorrection = new double[ numAggregates ];
+				this.cholesky = null;
+			}
+			else
+			{
+				this.coarse = null;
+				this.coarseResidual = this.coarseCorrection = null;
+				this.cholesky = n <= coarsestLevelSize ? cholesky( A.toDense() ) : null;
+			}
+		}
+
+		@Override
+		public void apply( final double[] r, final double[] z )
+		{
+			if ( cholesky != null )
+			{
+				choleskySolve( cholesky, r, z );
+				return;
+			}
+
+			Arrays.fill( z, 0 );
+			smooth( r, z );
+
+			if ( coarse != null )
+			{
+				A.multiply( z, residual );
+
+				Arrays.fill( coarseResidual, 0 );
+				for ( int i = 0; i < r.length; ++i )
+					coarseResidual[ aggregate[ i ] ] += r[ i ] - residual[ i ];
+
+				coarse.apply( coarseResidual, coarseCorrection );
+
+				for ( int i = 0; i < r.length; ++i )
+					z[ i ] += coarseCorrection[ aggregate[ i ] ];
+			}
+
+			smooth( r, z );
+		}
+
+		// one damped Jacobi sweep, 2/3 keeps it convergent for diagonally dominant matrices like the Laplacian
+		private void smooth( final double[] r, final double[] z )
+		{
+			A.multiply( z, residual );
+
+			for ( int i = 0; i < r.length; ++i )
+				if ( diagonal[ i ] > 0 )
+					z[ i ] += 2.0 / 3.0 * ( r[ i ] - residual[ i ] ) / diagonal[ i ];
+		}
+
+		/**
+		 * @return lower triangular L with L L^T = a, null if a is not positive definite
+		 */
+		private static double[][] cholesky( final double[][] a )
+		{
+			final int n = a.length;
+			final double[][] l = new double[ n ][ n ];
+
+			for ( int j = 0; j < n; ++j )
+			{
+				double d = a[ j ][ j ];
+				for ( int k = 0; k < j; ++k )
+					d -= l[ j ][ k ] * l[ j ][ k ];
+
+				if ( !( d > 0 ) )
+					return null;
+
+				l[ j ][ j ] = Math.sqrt( d );
+
+				for ( int i = j + 1; i < n; ++i )
+				{
+					double sum = a[ i ][ j ];
+					for ( int k = 0; k < j; ++k )
+						sum -= l[ i ][ k ] * l[ j ][ k ];
+					l[ i ][ j ] = sum / l[ j ][ j ];
+				}
+			}
+
+			return l;
+		}
+
+		private static void choleskySolve( final double[][] l, final double[] b, final double[] x )
+		{
+			final int n = b.length;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				double sum = b[ i ];
+				for ( int k = 0; k < i; ++k )
+					sum -= l[ i ][ k ] * x[ k ];
+				x[ i ] = sum / l[ i ][ i ];
+			}
+
+			for ( int i = n - 1; i >= 0; --i )
+			{
+				double sum = x[ i ];
+				for ( int k = i + 1; k < n; ++k )
+					sum -= l[ k ][ i ] * x[ k ];
+				x[ i ] = sum / l[ i ][ i ];
+			}
+		}
+	}
+
+	private static double dot( final double[] a, final double[] b )
+	{
+		double sum = 0;
+		for ( int i = 0; i < a.length; ++i )
+			sum += a[ i ] * b[ i ];
+		return sum;
+	}
+
+	/**
+	 * solutions of previous runs, per group, together with the links and fixed groups of the connected set
+	 * of groups they were computed for. Safe to use from several threads.
+	 */
+	public static class Cache
+	{
+		private final HashMap< Group< ViewId >, Pair< Object, double[] > > solutions = new HashMap<>();
+
+		/**
+		 * @return true if all groups were solved together for the same links and fixed groups
+		 */
+		public synchronized boolean isSolved( final Collection< Group< ViewId > > groups, final Object signature )
+		{
+			Object solvedFor = null;
+
+			for ( final Group< ViewId > group : groups )
+			{
+				final Pair< Object, double[] > solution = solutions.get( group );
+
+				if ( solution == null )
+					return false;
+
+				if ( solvedFor == null )
+				{
+					if ( !solution.getA().equals( signature ) )
+						return false;
+
+					solvedFor = solution.getA();
+				}
+				else if ( solution.getA() != solvedFor )
+				{
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		public synchronized double[] getTranslation( final Group< ViewId > group )
+		{
+			final Pair< Object, double[] > solution = solutions.get( group );
+			return solution == null ? null : solution.getB();
+		}
+
+		public synchronized void put( final Group< ViewId > group, final Object signature, final double[] translation )
+		{
+			solutions.put( group, new ValuePair<>( signature, translation ) );
+		}
+
+		public synchronized void clear()
+		{
+			solutions.clear();
+		}
+	}
+
+	/**
+	 * square sparse matrix in compressed row storage, assembled by adding entries
+	 */
+	public static class SparseSymmetricMatrix
+	{
+		private final int n;
+		private final List< HashMap< Integer, Double > > rows;
+
+		private int[] rowStart;
+		private int[] columns;
+		private double[] values;
+
+		public SparseSymmetricMatrix( final int n )
+		{
+			this.n = n;
+			this.rows = new ArrayList<>( n );
+			for ( int i = 0; i < n; ++i )
+				rows.add( new HashMap<>() );
+		}
+
+		public void add( final int row, final int column, final double value )
+		{
+			rows.get( row ).merge( column, value, Double::sum );
+		}
+
+		/**
+		 * convert to compressed rows, must be called after the last add() and before multiply()
+		 */
+		public void compress()
+		{
+			rowStart = new int[ n + 1 ];
+			for ( int i = 0; i < n; ++i )
+				rowStart[ i + 1 ] = rowStart[ i ] + rows.get( i ).size();
+
+			columns = new int[ rowStart[ n ] ];
+			values = new double[ rowStart[ n ] ];
+
+			for ( int i = 0; i < n; ++i )
+			{
+				int k = rowStart[ i ];
+				for ( final HashMap.Entry< Integer, Double > entry : rows.get( i ).entrySet() )
+				{
+					columns[ k ] = entry.getKey();
+					values[ k++ ] = entry.getValue();
+				}
+			}
+		}
+
+		public int size()
+		{
+			return n;
+		}
+
+		public void multiply( final double[] x, final double[] y )
+		{
+			for ( int i = 0; i < n; ++i )
+			{
+				double sum = 0;
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+					sum += values[ k ] * x[ columns[ k ] ];
+				y[ i ] = sum;
+			}
+		}
+
+		public double[] diagonal()
+		{
+			final double[] diagonal = new double[ n ];
+			for ( int i = 0; i < n; ++i )
+				diagonal[ i ] = rows.get( i ).getOrDefault( i, 0.0 );
+			return diagonal;
+		}
+
+		public double[][] toDense()
+		{
+			final double[][] dense = new double[ n ][ n ];
+			for ( int i = 0; i < n; ++i )
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+					dense[ i ][ columns[ k ] ] += values[ k ];
+			return dense;
+		}
+
+		/**
+		 * pair every row with the not yet paired neighbor it is most strongly coupled to (heavy-edge matching)
+		 * @param aggregate - filled with the index of the pair every row belongs to
+		 * @return number of pairs (including rows that stay single)
+		 */
+		public int matchStrongestNeighbors( final int[] aggregate )
+		{
+			Arrays.fill( aggregate, -1 );
+			int numAggregates = 0;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( aggregate[ i ] >= 0 )
+					continue;
+
+				int best = -1;
+				double bestCoupling = 0;
+
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+				{
+					final int j = columns[ k ];
+					if ( j != i && aggregate[ j ] < 0 && -values[ k ] > bestCoupling )
+					{
+						best = j;
+						bestCoupling = -values[ k ];
+					}
+				}
+
+				aggregate[ i ] = numAggregates;
+				if ( best >= 0 )
+					aggregate[ best ] = numAggregates;
+
+				++numAggregates;
+			}
+
+			return numAggregates;
+		}
+
+		/**
+		 * Galerkin coarse matrix P^T A P for the piecewise constant prolongation given by the aggregates
+		 * @param aggregate - the aggregate of every row
+		 * @param numAggregates - number of aggregates
+		 * @return compressed coarse matrix
+		 */
+		public SparseSymmetricMatrix coarsen( final int[] aggregate, final int numAggregates )
+		{
+			final SparseSymmetricMatrix coarse = new SparseSymmetricMatrix( numAggregates );
+
+			for ( int i = 0; i < n; ++i )
+				for ( int k = rowStart[ i ]; k < rowStart[ i + 1 ]; ++k )
+					coarse.add( aggregate[ i ], aggregate[ columns[ k ] ], values[ k ] );
+
+			coarse.compress();
+
+			return coarse;
+		}
+	}
+}
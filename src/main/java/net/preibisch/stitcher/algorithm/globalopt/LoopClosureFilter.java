@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineGet;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Finds pairwise links that are inconsistent with the rest of the link graph before the global optimization,
+ * so that it does not have to remove them one by one, re-optimizing after every removal.
+ * 
+ * A maximum spanning tree of the links (by correlation) places every group relative to the root of its
+ * connected set. Every other link closes a cycle, its residual is the difference between its shift and
+ * the relative position of its groups in the tree. Links with a residual above the threshold are inconsistent.
+ * Only the translational part of the links is considered, which is all there is for phase correlation.
+ */
+public class LoopClosureFilter
+{
+	private LoopClosureFilter() {}
+
+	/**
+	 * @param links - the pairwise links
+	 * @param maxError - maximal residual (in px) of a link closing a cycle
+	 * @return the links that are inconsistent with the maximum spanning tree
+	 */
+	public static List< PairwiseStitchingResult< ViewId > > findInconsistentLinks(
+			final Collection< PairwiseStitchingResult< ViewId > > links,
+			final double maxError )
+	{
+		final HashMap< Group< ViewId >, Integer > index = new HashMap<>();
+		final List< PairwiseStitchingResult< ViewId > > edges = new ArrayList<>( links );
+
+		for ( final PairwiseStitchingResult< ViewId > psr : edges )
+		{
+			index.putIfAbsent( psr.pair().getA(), index.size() );
+			index.putIfAbsent( psr.pair().getB(), index.size() );
+		}
+
+		final int n = index.size();
+
+		// Kruskal: strongest links first
+		Collections.sort( edges, ( e1, e2 ) -> Double.compare( e2.r(), e1.r() ) );
+
+		final int[] parent = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			parent[ i ] = i;
+
+		final List< List< TreeEdge > > tree = new ArrayList<>();
+		for ( int i = 0; i < n; ++i )
+			tree.add( new ArrayList<>() );
+
+		final List< PairwiseStitchingResult< ViewId > > cycleClosing = new ArrayList<>();
+
+		for ( final PairwiseStitchingResult< ViewId > psr : edges )
+		{
+			final int a = index.get( psr.pair().getA() );
+			final int b = index.get( psr.pair().getB() );
+			final int rootA = find( parent, a );
+			final int rootB = find( parent, b );
+
+			if ( rootA == rootB )
+			{
+				cycleClosing.add( psr );
+			}
+			else
+			{
+				parent[ rootA ] = rootB;
+
+				final double[] t = translation( psr.getTransform() );
+				tree.get( a ).add( new TreeEdge( b, t, 1 ) );
+				tree.get( b ).add( new TreeEdge( a, t, -1 ) );
+			}
+		}
+
+		// position of every group relative to the root of its tree, link shifts are x_b - x_a
+		final double[][] position = new double[ n ][];
+		for ( int start = 0; start < n; ++start )
+		{
+			if ( position[ start ] != null )
+				continue;
+
+			position[ start ] = new double[ 3 ];
+			final ArrayDeque< Integer > queue = new ArrayDeque<>();
+			queue.add( start );
+
+			while ( !queue.isEmpty() )
+			{
+				final int i = queue.poll();
+
+				for ( final TreeEdge neighbor : tree.get( i ) )
+					if ( position[ neighbor.j ] == null )
+					{
+						position[ neighbor.j ] = new double[ 3 ];
+						for ( int d = 0; d < 3; ++d )
+							position[ neighbor.j ][ d ] = position[ i ][ d ] + neighbor.sign * neighbor.t[ d ];
+						queue.add( neighbor.j );
+					}
+			}
+		}
+
+		final List< PairwiseStitchingResult< ViewId > > inconsistent = new ArrayList<>();
+
+		for ( final PairwiseStitchingResult< ViewId > psr : cycleClosing )
+		{
+			final double[] pA = position[ index.get( psr.pair().getA() ) ];
+			final double[] pB = position[ index.get( psr.pair().getB() ) ];
+			final double[] t = translation( psr.getTransform() );
+
+			double sq = 0;
+			for ( int d = 0; d < 3; ++d )
+				sq += Math.pow( pB[ d ] - pA[ d ] - t[ d ], 2 );
+
+			if ( Math.sqrt( sq ) > maxError )
+				inconsistent.add( psr );
+		}
+
+		return inconsistent;
+	}
+
+	private static int find( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+		{
+			parent[ i ] = parent[ parent[ i ] ];
+			i = parent[ i ];
+		}
+		return i;
+	}
+
+	private static double[] translation( final AffineGet t )
+	{
+		final int n = t.numDimensions();
+		final double[] translation = new double[ 3 ];
+		for ( int d = 0; d < Math.min( n, 3 ); ++d )
+			translation[ d ] = t.get( d, n );
+		return translation;
+	}
+
+	private static class TreeEdge
+	{
+		final int j;
+		final double[] t;
+		final int sign;
+
+		TreeEdge( final int j, final double[] t, final int sign )
+		{
+			this.j = j;
+			this.t = t;
+			this.sign = sign;
+		}
+	}
+}
@@ -22,17 +22,24 @@
 package net.preibisch.stitcher.algorithm.globalopt;
 
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import bdv.export.ProgressWriter;
@@ -48,6 +55,7 @@ import mpicbg.spim.data.sequence.SequenceDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.algorithm.phasecorrelation.PhaseCorrelationWorkspace;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineTransform;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -62,15 +70,18 @@ import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
-import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOpt;
 import net.preibisch.mvrecon.process.interestpointregistration.global.convergence.ConvergenceStrategy;
 import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatchcreating.strong.ImageCorrelationPointMatchCreator;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.DownsampledViewCache;
+import net.preibisch.stitcher.algorithm.GroupOverlapIndex;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
 import net.preibisch.stitcher.algorithm.GroupedViewAggregator.ActionType;
+import net.preibisch.stitcher.algorithm.OverlapGeometryCache;
 import net.preibisch.stitcher.algorithm.PairwiseStitching;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.TaskUtil;
 import net.preibisch.stitcher.algorithm.TransformTools;
 import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
 import net.preibisch.stitcher.gui.popup.DisplayOverlapTestPopup;
@@ -80,6 +91,22 @@ public class TransformationTools
 {
 	public static int maxNumOutputLines = 200;
 
+	/*
+	 * fraction of the maximum heap that computePairs() may use in total. Of that, the cache of loaded views gets
+	 * viewCacheShare and the idle FFT buffers up to PhaseCorrelationWorkspace.maxPooledBytes. The rest is split into
+	 * the images loaded ahead (prefetchShare, estimated with estimateInputMemory()) and the pairs computed at the
+	 * same time (estimated with estimatePeakMemory(), only used if the number of parallel tasks is not set manually)
+	 */
+	public static double maxHeapFraction = 0.75;
+	public static double viewCacheShare = 1.0 / 3.0;
+	public static double prefetchShare = 0.2;
+
+	/*
+	 * number of threads that load images for computePairs() and how many pairs they may load ahead at most
+	 */
+	public static int numIOThreads = 4;
+	public static int numPrefetchedPairs = 4;
+
 	public static < A > Pair< A, A > reversePair( final Pair< A, A > pair )
 	{
 		return new ValuePair< A, A >( pair.getB(), pair.getA() );
@@ -104,8 +131,7 @@ public class TransformationTools
 		final List<List<ViewId>> views = new ArrayList<>();
 		views.add( new ArrayList<>(viewIdsA.getViews()) );
 		views.add( new ArrayList<>(viewIdsB.getViews()) );
-		BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap<ViewId>( views, sd, vrs );
-		BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
+		BoundingBox bbOverlap = OverlapGeometryCache.getOverlap( viewIdsA, viewIdsB, sd, vrs );
 
 		// we could not find overlap -> ignore this pair
 		if (bbOverlap == null)
@@ -185,8 +211,7 @@ public class TransformationTools
 		final List<List<ViewId>> views = new ArrayList<>();
 		views.add( new ArrayList<>(viewIdsA.getViews()) );
 		views.add( new ArrayList<>(viewIdsB.getViews()) );
-		BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap<ViewId>( views, sd, vrs );
-		BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
+		BoundingBox bbOverlap = OverlapGeometryCache.getOverlap( viewIdsA, viewIdsB, sd, vrs );
 
 		// we could not find overlap -> ignore this pair
 		if (bbOverlap == null)
@@ -247,6 +272,29 @@ public class TransformationTools
 		return new ValuePair<>( new ValuePair<>( resCorrected, result.getB() ), bbOverlap );
 	}
 	
+	/**
+	 * the (downsampled) images of two groups that phase correlation is computed on, together with the
+	 * transformations that map them back to the input image space
+	 */
+	public static class StitchingInput< T extends RealType< T > >
+	{
+		public final RandomAccessibleInterval< T > img1, img2;
+		public final AffineTransform3D dsCorrectionT1, dsCorrectionT2;
+		public final BoundingBox bbOverlap;
+
+		public StitchingInput(
+				final RandomAccessibleInterval< T > img1, final RandomAccessibleInterval< T > img2,
+				final AffineTransform3D dsCorrectionT1, final AffineTransform3D dsCorrectionT2,
+				final BoundingBox bbOverlap )
+		{
+			this.img1 = img1;
+			this.img2 = img2;
+			this.dsCorrectionT1 = dsCorrectionT1;
+			this.dsCorrectionT2 = dsCorrectionT2;
+			this.bbOverlap = bbOverlap;
+		}
+	}
+
 	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
 			final Group<? extends ViewId> viewIdsA,
 			final Group<? extends ViewId> viewIdsB,
@@ -257,25 +305,46 @@ public class TransformationTools
 			final long[] downsampleFactors,
 			final ExecutorService service )
 	{
+		final StitchingInput< T > input = loadStitchingInput( viewIdsA, viewIdsB, vrs, params, sd, gva, downsampleFactors, false, service );
+		return computeStitching( input, viewIdsA, viewIdsB, vrs, params, downsampleFactors, service );
+	}
 
+	/**
+	 * get the images of both groups for phase correlation
+	 * @param loadNow read the pixels right away (otherwise they are read on first access)
+	 * @return the input for {@link #computeStitching(StitchingInput, Group, Group, ViewRegistrations, PairwiseStitchingParameters, long[], ExecutorService)},
+	 * null if the groups do not overlap or a view is missing
+	 */
+	public static < T extends RealType< T > > StitchingInput< T > loadStitchingInput(
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final AbstractSequenceDescription< ?,? extends BasicViewDescription<?>, ? > sd,
+			final GroupedViewAggregator gva,
+			final long[] downsampleFactors,
+			final boolean loadNow,
+			final ExecutorService service )
+	{
 		// the transformation that maps the downsampled image coordinates back to the original input(!) image space
 		final AffineTransform3D dsCorrectionT1 = new AffineTransform3D();
 		final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
 
 		// get Overlap Bounding Box
-		final List<List<ViewId>> views = new ArrayList<>();
-		views.add( new ArrayList<>(viewIdsA.getViews()) );
-		views.add( new ArrayList<>(viewIdsB.getViews()) );
-		BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap<ViewId>( views, sd, vrs );
-		BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
+		BoundingBox bbOverlap = OverlapGeometryCache.getOverlap( viewIdsA, viewIdsB, sd, vrs );
 
 		// this should be caught outside of this method already, but check nonetheless
 		if (bbOverlap == null)
 			return null;
 
+		// only the overlap is used for phase correlation, so we only need to load that part of the views
+		// (in pixel coordinates of the first view of each group, all views of a group are treated as if they were there)
+		final RealInterval roi1 = params.useWholeImage ? null : vrs.getViewRegistration( viewIdsA.iterator().next() ).getModel().inverse().estimateBounds( bbOverlap );
+		final RealInterval roi2 = params.useWholeImage ? null : vrs.getViewRegistration( viewIdsB.iterator().next() ).getModel().inverse().estimateBounds( bbOverlap );
+
 		// get one image per group
-		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, service );
-		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, service );
+		final RandomAccessibleInterval<T> img1 = gva.aggregate( viewIdsA, sd, downsampleFactors, dsCorrectionT1, roi1, loadNow, service );
+		final RandomAccessibleInterval<T> img2 = gva.aggregate( viewIdsB, sd, downsampleFactors, dsCorrectionT2, roi2, loadNow, service );
 
 		if (img1 == null || img2 == null)
 		{
@@ -284,6 +353,32 @@ public class TransformationTools
 			return null;
 		}
 
+		return new StitchingInput<>( img1, img2, dsCorrectionT1, dsCorrectionT2, bbOverlap );
+	}
+
+	/**
+	 * compute the shift between two groups with phase correlation
+	 * @param input the images of both groups, see {@link #loadStitchingInput}
+	 * @return the shift and cross correlation, and the overlap bounding box, or null if no shift was found
+	 */
+	public static < T extends RealType< T > > Pair<Pair< AffineGet, Double >, RealInterval> computeStitching(
+			final StitchingInput< T > input,
+			final Group<? extends ViewId> viewIdsA,
+			final Group<? extends ViewId> viewIdsB,
+			final ViewRegistrations vrs,
+			final PairwiseStitchingParameters params,
+			final long[] downsampleFactors,
+			final ExecutorService service )
+	{
+		if ( input == null )
+			return null;
+
+		final RandomAccessibleInterval< T > img1 = input.img1;
+		final RandomAccessibleInterval< T > img2 = input.img2;
+		final AffineTransform3D dsCorrectionT1 = input.dsCorrectionT1;
+		final AffineTransform3D dsCorrectionT2 = input.dsCorrectionT2;
+		final BoundingBox bbOverlap = input.bbOverlap;
+
 		// get translations
 		// TODO: is the 2d check here meaningful?
 		// everything will probably be 3d at this point, since ImgLoaders return 3d images
@@ -336,11 +431,7 @@ public class TransformationTools
 		final AffineTransform3D dsCorrectionT2 = new AffineTransform3D();
 
 		// get Overlap Bounding Box
-		final List<List<ViewId>> views = new ArrayList<>();
-		views.add( new ArrayList<>(viewIdsA.getViews()) );
-		views.add( new ArrayList<>(viewIdsB.getViews()) );
-		BoundingBoxMaximalGroupOverlap< ViewId > bbDet = new BoundingBoxMaximalGroupOverlap<ViewId>( views, sd, vrs );
-		BoundingBox bbOverlap = bbDet.estimate( "Max Overlap" );
+		BoundingBox bbOverlap = OverlapGeometryCache.getOverlap( viewIdsA, viewIdsB, sd, vrs );
 
 		// this should be caught outside of this method already, but check nonetheless
 		if (bbOverlap == null)
@@ -405,28 +496,235 @@ public class TransformationTools
 	{
 		
 		final List< Pair<  Group< V >,  Group< V > > > removedPairs = new ArrayList<>();
-		
-		for (int i = pairs.size() - 1; i >= 0; i--)
+
+		// bounding boxes of all groups once (no grid, we only test the given pairs),
+		// so we can cheaply reject pairs whose bounding boxes do not even intersect
+		final HashMap< Group< V >, Integer > groupIndices = new HashMap<>();
+		final List< Group< V > > groups = new ArrayList<>();
+		for ( final Pair< Group< V >, Group< V > > pair : pairs )
+			for ( final Group< V > group : Arrays.asList( pair.getA(), pair.getB() ) )
+				if ( !groupIndices.containsKey( group ) )
+				{
+					groupIndices.put( group, groups.size() );
+					groups.add( group );
+				}
+
+		final GroupOverlapIndex< V > boxes = new GroupOverlapIndex<>( groups, vrs, sd );
+		final List< Pair<  Group< V >,  Group< V > > > keptPairs = new ArrayList<>();
+
+		for ( final Pair< Group< V >, Group< V > > pair : pairs )
 		{
-			final List<Set<V>> pairAsGroups = new ArrayList<>();
-			pairAsGroups.add( pairs.get( i ).getA().getViews() );
-			pairAsGroups.add( pairs.get( i ).getB().getViews() );
-			
-			final BoundingBoxMaximalGroupOverlap< V > ibbd = new BoundingBoxMaximalGroupOverlap< V >(pairAsGroups, sd, vrs);
-			BoundingBox bb = ibbd.estimate( "max overlap" );
-			
-			if (bb == null)
-			{
-				removedPairs.add( pairs.get( i ) );
-				pairs.remove( i );
-			}
-			
+			if ( boxes.mayOverlap( groupIndices.get( pair.getA() ), groupIndices.get( pair.getB() ) ) &&
+					OverlapGeometryCache.getOverlap( pair.getA(), pair.getB(), sd, vrs ) != null )
+				keptPairs.add( pair );
+			else
+				removedPairs.add( pair );
 		}
-		
+
+		// removing one by one from the middle of the list would be quadratic in the number of pairs
+		if ( !removedPairs.isEmpty() )
+		{
+			pairs.clear();
+			pairs.addAll( keptPairs );
+		}
+
 		return removedPairs;
 		
 	}
 	
+	/**
+	 * an order of the pairs in which pairs sharing a group are next to each other: the groups are visited in
+	 * breadth-first order of the graph the pairs define, starting from the first group of the first pair
+	 * (on a grid of tiles this sweeps a front across the grid), and each pair is placed when
+	 * the first of its groups is visited. A cache of loaded views then only needs to hold about one
+	 * front of tiles instead of all of them.
+	 * 
+	 * @param pairs the pairs, not modified
+	 * @param <V> view id type
+	 * @return the indices of the pairs in that order
+	 */
+	public static < V extends ViewId > int[] sortPairsForLocality( final List< Pair< Group< V >, Group< V > > > pairs )
+	{
+		// adjacency: group -> indices of pairs it is part of (in the original order, which keeps the result deterministic)
+		final HashMap< Group< V >, List< Integer > > pairsOfGroup = new HashMap<>();
+		final List< Group< V > > groups = new ArrayList<>();
+		for ( int i = 0; i < pairs.size(); ++i )
+			for ( final Group< V > group : Arrays.asList( pairs.get( i ).getA(), pairs.get( i ).getB() ) )
+			{
+				if ( !pairsOfGroup.containsKey( group ) )
+				{
+					pairsOfGroup.put( group, new ArrayList<>() );
+					groups.add( group );
+				}
+				pairsOfGroup.get( group ).add( i );
+			}
+
+		final int[] order = new int[ pairs.size() ];
+		int next = 0;
+		final boolean[] placed = new boolean[ pairs.size() ];
+		final Set< Group< V > > visited = new HashSet<>();
+		final ArrayDeque< Group< V > > queue = new ArrayDeque<>();
+
+		// there might be several connected components
+		for ( final Group< V > start : groups )
+		{
+			if ( !visited.add( start ) )
+				continue;
+
+			queue.add( start );
+
+			while ( !queue.isEmpty() )
+			{
+				final Group< V > group = queue.poll();
+
+				for ( final int i : pairsOfGroup.get( group ) )
+				{
+					if ( placed[ i ] )
+						continue;
+
+					placed[ i ] = true;
+					order[ next++ ] = i;
+
+					final Group< V > other = pairs.get( i ).getA().equals( group ) ? pairs.get( i ).getB() : pairs.get( i ).getA();
+					if ( visited.add( other ) )
+						queue.add( other );
+				}
+			}
+		}
+
+		return order;
+	}
+
+	/*
+	 * the pairs in the given order
+	 */
+	static < P > List< P > inOrder( final List< P > pairs, final int[] order )
+	{
+		final List< P > sorted = new ArrayList<>( order.length );
+		for ( final int i : order )
+			sorted.add( pairs.get( i ) );
+		return sorted;
+	}
+
+	/*
+	 * results computed in the given order, back in the order of the pairs
+	 */
+	static < R > List< R > toInputOrder( final List< R > results, final int[] order )
+	{
+		final List< R > inputOrder = new ArrayList<>( Collections.nCopies( order.length, (R) null ) );
+		for ( int k = 0; k < order.length; ++k )
+			inputOrder.set( order[ k ], results.get( k ) );
+		return inputOrder;
+	}
+
+	/**
+	 * estimate how much memory the phase correlation of a pair needs at most: the loaded (and downsampled)
+	 * region of every view (see {@link #estimateInputMemory}) and the phase correlation of the overlaps
+	 * (see {@link PairwiseStitching#estimatePhaseCorrelationMemory})
+	 * 
+	 * @param pair the pair
+	 * @param vrs the view registrations
+	 * @param sd the sequence description
+	 * @param downsamplingFactors downsampling that is applied before phase correlation
+	 * @param params the parameters, we load all of the views if useWholeImage is set
+	 * @param <V> view id type
+	 * @return estimated peak memory in bytes, 0 if the pair does not overlap
+	 */
+	public static < V extends ViewId > long estimatePeakMemory(
+			final Pair< Group< V >, Group< V > > pair,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsamplingFactors,
+			final PairwiseStitchingParameters params )
+	{
+		final BoundingBox bbOverlap = OverlapGeometryCache.getOverlap( pair.getA(), pair.getB(), sd, vrs );
+
+		if ( bbOverlap == null )
+			return 0;
+
+		final long[] overlapSize = new long[ bbOverlap.numDimensions() ];
+		final long bytes = estimateInputMemory( pair, bbOverlap, vrs, sd, downsamplingFactors, params, overlapSize );
+
+		// singleton dimensions are dropped before phase correlation
+		final long[] pcmSize = Arrays.stream( overlapSize ).filter( s -> s > 1 ).toArray();
+
+		if ( pcmSize.length == 0 )
+			return bytes;
+
+		return bytes + PairwiseStitching.estimatePhaseCorrelationMemory( pcmSize, params );
+	}
+
+	/**
+	 * estimate how much memory the loaded (and downsampled) region of every view of a pair needs,
+	 * i.e. what {@link #loadStitchingInput} keeps until the pair is computed
+	 * 
+	 * @param pair the pair
+	 * @param vrs the view registrations
+	 * @param sd the sequence description
+	 * @param downsamplingFactors downsampling that is applied before phase correlation
+	 * @param params the parameters, we load all of the views if useWholeImage is set
+	 * @param <V> view id type
+	 * @return estimated memory in bytes, 0 if the pair does not overlap
+	 */
+	public static < V extends ViewId > long estimateInputMemory(
+			final Pair< Group< V >, Group< V > > pair,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsamplingFactors,
+			final PairwiseStitchingParameters params )
+	{
+		final BoundingBox bbOverlap = OverlapGeometryCache.getOverlap( pair.getA(), pair.getB(), sd, vrs );
+
+		if ( bbOverlap == null )
+			return 0;
+
+		return estimateInputMemory( pair, bbOverlap, vrs, sd, downsamplingFactors, params, new long[ bbOverlap.numDimensions() ] );
+	}
+
+	/*
+	 * memory of the loaded views of a pair, also sets overlapSize to the size of the (downsampled) overlap
+	 */
+	private static < V extends ViewId > long estimateInputMemory(
+			final Pair< Group< V >, Group< V > > pair,
+			final BoundingBox bbOverlap,
+			final ViewRegistrations vrs,
+			final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+			final long[] downsamplingFactors,
+			final PairwiseStitchingParameters params,
+			final long[] overlapSize )
+	{
+		final int n = bbOverlap.numDimensions();
+		long bytes = 0;
+
+		for ( final Group< V > group : Arrays.asList( pair.getA(), pair.getB() ) )
+		{
+			final ViewId firstView = group.iterator().next();
+			final long[] size = new long[ n ];
+
+			if ( params.useWholeImage )
+				sd.getViewDescriptions().get( firstView ).getViewSetup().getSize().dimensions( size );
+			else
+			{
+				final RealInterval roi = vrs.getViewRegistration( firstView ).getModel().inverse().estimateBounds( bbOverlap );
+				for ( int d = 0; d < n; ++d )
+					size[ d ] = (long) Math.ceil( roi.realMax( d ) - roi.realMin( d ) ) + 1;
+			}
+
+			long numPixels = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				size[ d ] = Math.max( 1, ( size[ d ] + downsamplingFactors[ d ] - 1 ) / downsamplingFactors[ d ] );
+				overlapSize[ d ] = Math.max( overlapSize[ d ], size[ d ] );
+				numPixels *= size[ d ];
+			}
+
+			// every view of the group is loaded (at most 4 bytes per pixel)
+			bytes += 4 * numPixels * group.getViews().size();
+		}
+
+		return bytes;
+	}
+
 	public static <V extends ViewId> ArrayList< PairwiseStitchingResult< ViewId > > computePairsLK(
 			final List< Pair< Group< V >, Group< V > > > pairs, final LucasKanadeParameters params,
 			final ViewRegistrations vrs,
@@ -441,12 +739,20 @@ public class TransformationTools
 		//removedPairs.forEach( p -> IOFunctions.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 		IOFunctions.println( "Skipping " + removedPairs.size() + " non-overlapping pairs.");
 
-		final int nComparisions = pairs.size();
+		// compute pairs that share a group close together in time, so the shared views are still cached
+		// (the results are returned in the order of pairs nevertheless)
+		final int[] order = sortPairsForLocality( pairs );
+		final List< Pair< Group< V >, Group< V > > > sortedPairs = inOrder( pairs, order );
+
+		final int nComparisions = sortedPairs.size();
 		AtomicInteger nCompleted = new AtomicInteger();
 
 		IJ.showProgress( 0.0 );
 
-		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		// all pairs and their subtasks share one work-stealing pool
+		final ForkJoinPool pool = new ForkJoinPool( Threads.numThreads() );
+
+		for ( final Pair< Group< V >, Group< V > > p : sortedPairs )
 		{
 			tasks.add(
 					new Callable< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > >()
@@ -460,9 +766,6 @@ public class TransformationTools
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: "
 									+ p.getA() + " <> " + p.getB() );
 
-							final ExecutorService serviceLocal = Executors.newFixedThreadPool(
-									Math.max( 2, Runtime.getRuntime().availableProcessors() / 4 ) );
-
 							final ViewId firstVdA = p.getA().iterator().next();
 							final ViewId firstVdB = p.getB().iterator().next();
 
@@ -473,16 +776,14 @@ public class TransformationTools
 							{
 
 								result = computeStitchingLucasKanade( p.getA(), p.getB(), vrs, params, sd, gva,
-										downsamplingFactors, serviceLocal );
+										downsamplingFactors, pool );
 							}
 							else
 							{
 								result = computeStitchingNonEqualTransformationsLucasKanade( p.getA(), p.getB(), vrs, params, sd,
-										gva, downsamplingFactors, serviceLocal );
+										gva, downsamplingFactors, pool );
 							}
 
-							serviceLocal.shutdown();
-
 							int nCompletedI = nCompleted.incrementAndGet();
 							if (progressWriter != null)							
 								progressWriter.setProgress( (double) nCompletedI / nComparisions );
@@ -498,18 +799,16 @@ public class TransformationTools
 
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
 
-		// set up executor service
+		// how many pairs we compute at once
 		final int batchSize = params.manualNumTasks ? params.numTasks : Math.max( 2, Threads.numThreads() / 6 );
-		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( batchSize );
+
+		// load & downsample every view only once for all pairs it is part of
+		final boolean ownViewCache = useViewCache( gva, viewCacheBudget() );
 
 		try
 		{
-			for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > > future : serviceGlobal
-					.invokeAll( tasks ) )
+			for ( final Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > result : toInputOrder( TaskUtil.invokeAllBounded( tasks, batchSize, pool ), order ) )
 			{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair< Pair< AffineGet, Double >, RealInterval > > result = future
-						.get();
 
 				if ( result.getB() == null )
 					continue;
@@ -539,6 +838,12 @@ public class TransformationTools
 			e.printStackTrace();
 			return null;
 		}
+		finally
+		{
+			pool.shutdown();
+			if ( ownViewCache )
+				releaseViewCache( gva );
+		}
 
 		return results;
 	}
@@ -550,16 +855,38 @@ public class TransformationTools
 																		final GroupedViewAggregator gva,
 																		final long[] downsamplingFactors)
 	{
+		return computePairs( pairs, params, vrs, sd, gva, downsamplingFactors, null );
+	}
+
+	/**
+	 * compute the shifts of all overlapping pairs with phase correlation
+	 * @param resultConsumer if not null, it is given every result as soon as its pair is done (in order of completion and
+	 * always on the calling thread), so results can be stored or shown while the remaining pairs are still computing
+	 * @return all results in the order of pairs (non-overlapping pairs are removed from it, see {@link #filterNonOverlappingPairs}), or null if the computation failed
+	 */
+	public static <V extends ViewId > ArrayList< PairwiseStitchingResult<ViewId> > computePairs( 	final List< Pair<  Group< V >,  Group< V > > > pairs, 
+																		final PairwiseStitchingParameters params, 
+																		final ViewRegistrations vrs,
+																		final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd, 
+																		final GroupedViewAggregator gva,
+																		final long[] downsamplingFactors,
+																		final Consumer< PairwiseStitchingResult< ViewId > > resultConsumer )
+	{
 
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Identifying overlapping image pairs ..." );
 
-		final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > tasks = new ArrayList<>();
+		final ArrayList< Callable< PairwiseStitchingResult< ViewId > > > tasks = new ArrayList<>();
 
 		// remove non-overlapping comparisons
 		final List< Pair< Group< V >, Group< V > > > removedPairs = filterNonOverlappingPairs( pairs, vrs, sd );
 		//removedPairs.forEach( p -> System.out.println( "Skipping non-overlapping pair: " + p.getA() + " -> " + p.getB() ) );
 
-		final int nComparisions = pairs.size();
+		// compute pairs that share a group close together in time, so the shared views are still cached
+		// (the results are returned in the order of pairs nevertheless)
+		final int[] order = sortPairsForLocality( pairs );
+		final List< Pair< Group< V >, Group< V > > > sortedPairs = inOrder( pairs, order );
+
+		final int nComparisions = sortedPairs.size();
 		final AtomicInteger nCompleted = new AtomicInteger();
 		final Random rnd = new Random( 345 );
 		final double rndThres = (double)maxNumOutputLines / (double)nComparisions;
@@ -576,23 +903,56 @@ public class TransformationTools
 		// how many pairs of Phase Correlations we run in parallel
 		// it should not be more than max(Threads.numThreads() / 2, 1)
 		// so we can dedicate two threads per PCM pair
+		// if not set manually, we admit as many as fit into the memory budget
 		final int batchSize = 
 				Math.min(
 						Math.max( 1, Threads.numThreads() / 2 ), // Threads.numThreads() could be 1
-						params.manualNumTasks ? params.numTasks : Math.max( 2, Threads.numThreads() / 6 ) );
+						params.manualNumTasks ? params.numTasks : Threads.numThreads() );
+
+		// one budget for everything we keep in memory: the cache of loaded views, the idle FFT/PCM buffers kept
+		// for reuse between pairs, the images loaded ahead and the pairs that are running
+		final long totalBudget = (long) ( Runtime.getRuntime().maxMemory() * maxHeapFraction );
+		final long viewCacheBudget = gva.getViewCache() != null ? gva.getViewCache().getMaxBytes() : viewCacheBudget();
+		final long remainingBudget = Math.max( 0, totalBudget - viewCacheBudget - PhaseCorrelationWorkspace.maxPooledBytes );
+		final long prefetchBudget = (long) ( remainingBudget * prefetchShare );
+		final long memoryBudget = remainingBudget - prefetchBudget;
+
+		// estimated peak memory of every pair, so we do not start more large pairs at once than fit into the heap
+		// (the pairs we run share all threads of the pool, so a large pair running on its own gets all of them)
+		final long[] memoryEstimates = params.manualNumTasks ? null : new long[ sortedPairs.size() ];
+		final long[] inputEstimates = new long[ sortedPairs.size() ];
+
+		for ( int i = 0; i < sortedPairs.size(); ++i )
+		{
+			inputEstimates[ i ] = estimateInputMemory( sortedPairs.get( i ), vrs, sd, downsamplingFactors, params );
+
+			if ( memoryEstimates != null )
+				memoryEstimates[ i ] = estimatePeakMemory( sortedPairs.get( i ), vrs, sd, downsamplingFactors, params );
+		}
 
-		for ( final Pair< Group< V >, Group< V > > p : pairs )
+		if ( memoryEstimates != null )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Memory budget for pairs computed at once: " + memoryBudget / ( 1024 * 1024 ) +
+					" MB, largest pair needs ~" + Arrays.stream( memoryEstimates ).max().orElse( 0 ) / ( 1024 * 1024 ) + " MB" );
+
+		// all pairs and their FFT/peak/cross-correlation subtasks share one work-stealing pool,
+		// so threads that are done with one pair immediately help with the others
+		final ForkJoinPool pool = new ForkJoinPool( Threads.numThreads() );
+
+		// the images of upcoming pairs are loaded on separate I/O threads while the pool computes
+		final StitchingInputPrefetcher< V > prefetcher = new StitchingInputPrefetcher<>( sortedPairs, vrs, params, sd, gva, downsamplingFactors, inputEstimates, prefetchBudget, pool );
+
+		for ( int i = 0; i < sortedPairs.size(); ++i )
 		{
-			tasks.add( new Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > >()
+			final Pair< Group< V >, Group< V > > p = sortedPairs.get( i );
+			final int index = i;
+
+			tasks.add( new Callable< PairwiseStitchingResult< ViewId > >()
 			{
 				@Override
-				public Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > call() throws Exception
+				public PairwiseStitchingResult< ViewId > call() throws Exception
 				{
 					Pair<Pair< AffineGet, Double >, RealInterval> result = null;
 
-					final int numLocalThreads = Threads.numThreads() / batchSize; //Math.max( 2, Threads.numThreads() / 4 );
-					final ExecutorService serviceLocal = Executors.newFixedThreadPool( numLocalThreads );
-
 					// TODO: do non-equal transformation registration when views within a group have differing transformations
 					final ViewId firstVdA = p.getA().iterator().next();
 					final ViewId firstVdB = p.getB().iterator().next();
@@ -604,14 +964,13 @@ public class TransformationTools
 						if ( PairwiseStitching.debug )
 							System.out.println( "non translations equal" );
 						result = computeStitching(
+								prefetcher.take( index ),
 								p.getA(),
 								p.getB(),
 								vrs,
 								params,
-								sd,
-								gva,
 								downsamplingFactors,
-								serviceLocal );
+								pool );
 					}
 					else
 					{
@@ -623,13 +982,11 @@ public class TransformationTools
 								sd,
 								gva,
 								downsamplingFactors,
-								serviceLocal );
+								pool );
 						if ( PairwiseStitching.debug )
 							System.out.println( "non translations NOT equal, using virtually fused views for stitching" );
 					}
 
-					serviceLocal.shutdown();
-
 					// show progress in ImageJ progress bar (TODO: should we really do this here or leave it GUI-independent?)
 					int nCompletedI = nCompleted.incrementAndGet();
 					IJ.showProgress( (double) nCompletedI / nComparisions );
@@ -642,70 +999,250 @@ public class TransformationTools
 							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Compute pairwise: " + p.getA() + " <> " + p.getB() + ": No shift found." );
 					}
 
-					return new ValuePair<>( p,  result );
+					return result == null ? null : toPairwiseStitchingResult( p, result, vrs );
 				}
 			});
 		}
 
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
 
-		final ExecutorService serviceGlobal = Executors.newFixedThreadPool( batchSize );
-
-		IOFunctions.println( "Computing overlap for: " + batchSize + " pairs of images at once, each " + (Threads.numThreads() / batchSize) + " threads, (in total <=" + Threads.numThreads() + " threads)" );
+		IOFunctions.println( "Computing overlap for: " + ( memoryEstimates == null ? "" : "up to " ) + batchSize + " pairs of images at once, sharing " + Threads.numThreads() + " threads" );
 		IOFunctions.println( "Total num CPUs: " + Runtime.getRuntime().availableProcessors() );
 
+		// load & downsample every view only once for all pairs it is part of
+		final boolean ownViewCache = useViewCache( gva, viewCacheBudget );
+
 		try
 		{
-			for ( final ArrayList< Callable< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > > part : Threads.splitTasks( tasks, batchSize ) )
-				for ( final Future< Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > > future : serviceGlobal.invokeAll( part ) )
-				{
-				// wait for task to complete
-				final Pair< Pair< Group< V >, Group< V > >, Pair<Pair< AffineGet, Double >, RealInterval> > result = future.get();
+			// the consumer sees the results in order of completion, but we return them in the order of the input pairs
+			final Consumer< PairwiseStitchingResult< ViewId > > onCompletion = resultConsumer == null ? null : result -> {
+				if ( result != null )
+					resultConsumer.accept( result );
+			};
+
+			// start loading the first pairs
+			prefetcher.prefetchUpTo( batchSize + numPrefetchedPairs );
+
+			for ( final PairwiseStitchingResult< ViewId > result : toInputOrder( TaskUtil.invokeAllBounded( tasks, batchSize, memoryEstimates, memoryBudget, pool, onCompletion ), order ) )
+				if ( result != null )
+					results.add( result );
+		}
+		catch ( final Exception e )
+		{
+			IOFunctions.println( "Failed to compute pairwise shift: " + e );
+			e.printStackTrace();
+			return null;
+		}
+		finally
+		{
+			prefetcher.shutdown();
 
-				if (result.getB() == null)
-					continue;
-				
-				/*
-				final ViewRegistration vrA = vrs.getViewRegistration( result.getA().getA().iterator().next() );
-				final ViewRegistration vrB = vrs.getViewRegistration( result.getA().getB().iterator().next() );
-				
-				// get non-translation transform between the initial location of groupA
-				Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
+			pool.shutdown();
 
-				// apply to shift vector
-				// FIXME: this only works for scaling, we need to do something different about rotations, etc.
-				boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
-				if (nonTranslationsEqual)
-					initialTransformsA.getA().apply( result.getB().getA().getA(), result.getB().getA().getA() );
+			// the FFT buffers pooled by this run are of no use after it, but other runs may still use theirs
+			PhaseCorrelationWorkspace.release( pool );
+			if ( ownViewCache )
+				releaseViewCache( gva );
+		}
 
-				 */
-				
-				AffineTransform3D resT = new AffineTransform3D();
-				resT.preConcatenate( result.getB().getA().getA() );
+		return results;
+	}
 
-				// TODO: can we get rid of this ugly cast
-				Group< ViewId > groupA = new Group<ViewId>(result.getA().getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
-				Group< ViewId > groupB = new Group<ViewId>(result.getA().getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+	private static < V extends ViewId > PairwiseStitchingResult< ViewId > toPairwiseStitchingResult(
+			final Pair< Group< V >, Group< V > > pair,
+			final Pair< Pair< AffineGet, Double >, RealInterval > result,
+			final ViewRegistrations vrs )
+	{
+		/*
+		final ViewRegistration vrA = vrs.getViewRegistration( pair.getA().iterator().next() );
+		final ViewRegistration vrB = vrs.getViewRegistration( pair.getB().iterator().next() );
+		
+		// get non-translation transform between the initial location of groupA
+		Pair< AffineGet, TranslationGet > initialTransformsA = TransformTools.getInitialTransforms( vrA, false, new AffineTransform3D() );
 
-				// TODO: when does that really happen?
-				if ( result.getB() != null)
+		// apply to shift vector
+		// FIXME: this only works for scaling, we need to do something different about rotations, etc.
+		boolean nonTranslationsEqual = TransformTools.nonTranslationsEqual(vrA, vrB);
+		if (nonTranslationsEqual)
+			initialTransformsA.getA().apply( result.getA().getA(), result.getA().getA() );
+
+		 */
+
+		AffineTransform3D resT = new AffineTransform3D();
+		resT.preConcatenate( result.getA().getA() );
+
+		// TODO: can we get rid of this ugly cast
+		Group< ViewId > groupA = new Group<ViewId>(pair.getA().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+		Group< ViewId > groupB = new Group<ViewId>(pair.getB().getViews().stream().map( x -> (ViewId) x ).collect( Collectors.toList() ));
+
+		final double oldTransformHash = PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( groupA.getViews().iterator().next() ),
+				vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+
+		return new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB(),  resT, result.getA().getB(), oldTransformHash );
+	}
+
+	/*
+	 * I/O stage of computePairs(): loads the images of upcoming pairs on numIOThreads separate threads,
+	 * at most numPrefetchedPairs ahead of the last pair that was started and only as long as the loaded
+	 * images that were not taken yet fit into maxBytes, so that reading overlaps with phase correlation.
+	 * Pairs whose views have differing (non-translation) transformations are not prefetched, they are
+	 * virtually fused when they are computed.
+	 */
+	private static class StitchingInputPrefetcher< V extends ViewId >
+	{
+		private final List< Pair< Group< V >, Group< V > > > pairs;
+		private final ViewRegistrations vrs;
+		private final PairwiseStitchingParameters params;
+		private final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd;
+		private final GroupedViewAggregator gva;
+		private final long[] downsamplingFactors;
+		private final long[] costs;
+		private final long maxBytes;
+		private final ExecutorService service;
+
+		private final ExecutorService ioService;
+		private final List< Future< StitchingInput< ? > > > inputs;
+		private int nextToLoad;
+		private long prefetchedBytes;
+
+		public StitchingInputPrefetcher(
+				final List< Pair< Group< V >, Group< V > > > pairs,
+				final ViewRegistrations vrs,
+				final PairwiseStitchingParameters params,
+				final AbstractSequenceDescription< ?, ? extends BasicViewDescription< ? >, ? > sd,
+				final GroupedViewAggregator gva,
+				final long[] downsamplingFactors,
+				final long[] costs,
+				final long maxBytes,
+				final ExecutorService service )
+		{
+			this.pairs = pairs;
+			this.vrs = vrs;
+			this.params = params;
+			this.sd = sd;
+			this.gva = gva;
+			this.downsamplingFactors = downsamplingFactors;
+			this.costs = costs;
+			this.maxBytes = maxBytes;
+			this.service = service;
+
+			this.ioService = Executors.newFixedThreadPool( Math.max( 1, numIOThreads ) );
+			this.inputs = new ArrayList<>( Collections.nCopies( pairs.size(), (Future< StitchingInput< ? > >) null ) );
+			this.nextToLoad = 0;
+			this.prefetchedBytes = 0;
+		}
+
+		/*
+		 * start loading all pairs with an index smaller than end that were not started yet,
+		 * in order and as long as they fit into the budget
+		 */
+		public synchronized void prefetchUpTo( final int end )
+		{
+			while ( nextToLoad < Math.min( end, pairs.size() ) )
+			{
+				final Pair< Group< V >, Group< V > > p = pairs.get( nextToLoad );
+
+				if ( TransformTools.nonTranslationsEqual( vrs.getViewRegistration( p.getA().iterator().next() ), vrs.getViewRegistration( p.getB().iterator().next() ) ) )
 				{
-					final double oldTransformHash = PairwiseStitchingResult.calculateHash(
-							vrs.getViewRegistration( groupA.getViews().iterator().next() ),
-							vrs.getViewRegistration( groupB.getViews().iterator().next() ) );
+					// continue once inputs were taken (or the pair loads its input itself when it is started)
+					if ( prefetchedBytes + costs[ nextToLoad ] > maxBytes )
+						return;
 
-					results.add( new PairwiseStitchingResult<>( new ValuePair<>(groupA, groupB), result.getB().getB(),  resT, result.getB().getA().getB(), oldTransformHash ) );
+					prefetchedBytes += costs[ nextToLoad ];
+					inputs.set( nextToLoad, ioService.submit( () -> loadStitchingInput( p.getA(), p.getB(), vrs, params, sd, gva, downsamplingFactors, true, service ) ) );
 				}
+
+				++nextToLoad;
 			}
 		}
-		catch ( final Exception e )
+
+		/*
+		 * get the (loaded) input of a pair, waiting for it if necessary. It is only handed out once,
+		 * so it can be collected once the pair is computed. Also starts loading the next pairs.
+		 */
+		public StitchingInput< ? > take( final int index ) throws InterruptedException, ExecutionException
 		{
-			IOFunctions.println( "Failed to compute pairwise shift: " + e );
-			e.printStackTrace();
-			return null;
+			final Future< StitchingInput< ? > > input;
+			synchronized ( this )
+			{
+				input = inputs.set( index, null );
+
+				// from now on it is accounted for by the running pair
+				if ( input != null )
+					prefetchedBytes -= costs[ index ];
+
+				// the pair is computed now, never start loading it (or pairs before it) in the background
+				nextToLoad = Math.max( nextToLoad, index + 1 );
+			}
+
+			prefetchUpTo( index + 1 + numPrefetchedPairs );
+
+			if ( input != null )
+			{
+				// we are usually called from a worker of the ForkJoinPool, let it compensate while we wait for I/O
+				ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+				{
+					@Override
+					public boolean block() throws InterruptedException
+					{
+						try
+						{
+							input.get();
+						}
+						catch ( final ExecutionException e )
+						{
+							// rethrown by the get() below
+						}
+						return true;
+					}
+
+					@Override
+					public boolean isReleasable()
+					{
+						return input.isDone();
+					}
+				});
+
+				return input.get();
+			}
+
+			// not prefetched
+			return loadStitchingInput( pairs.get( index ).getA(), pairs.get( index ).getB(), vrs, params, sd, gva, downsamplingFactors, false, service );
 		}
 
-		return results;
+		public void shutdown()
+		{
+			ioService.shutdownNow();
+		}
+	}
+
+	/*
+	 * make gva share one DownsampledViewCache across all pairs, returns true if we installed a new one
+	 * (that should be released with releaseViewCache() when done), false if the caller already set one
+	 */
+	private static boolean useViewCache( final GroupedViewAggregator gva, final long maxBytes )
+	{
+		if ( gva.getViewCache() != null )
+			return false;
+
+		gva.setViewCache( new DownsampledViewCache( maxBytes ) );
+		return true;
+	}
+
+	/**
+	 * @return the part of the memory budget (see maxHeapFraction) that a cache of loaded views may use,
+	 * also the budget of a DownsampledViewCache created with the default constructor
+	 */
+	public static long viewCacheBudget()
+	{
+		return (long) ( Runtime.getRuntime().maxMemory() * maxHeapFraction * viewCacheShare );
+	}
+
+	private static void releaseViewCache( final GroupedViewAggregator gva )
+	{
+		gva.getViewCache().clear();
+		gva.setViewCache( null );
 	}
 
 	public static void main( String[] args )
@@ -386,7 +386,11 @@ public class LinkExplorerPanel extends JPanel implements SelectedViewDescription
 		// get pairwise results for first (and only) selected view group
 		final HashSet< ViewId > vid = new HashSet<>( viewDescriptions.iterator().next());
 		SpimData2.filterMissingViews( parent.getSpimData(), vid );
-		ArrayList< PairwiseStitchingResult< ViewId > > pairwiseResults = results.getAllPairwiseResultsForViewId( vid );
+		final ArrayList< PairwiseStitchingResult< ViewId > > pairwiseResults;
+		synchronized ( results.getPairwiseResults() )
+		{
+			pairwiseResults = results.getAllPairwiseResultsForViewId( vid );
+		}
 		setActiveLinks( pairwiseResults.stream().map( (p) -> p.pair() ).filter( p ->  parent.getSavedFilteringAndGrouping().getComparisons().contains( p )).collect( Collectors.toList() ) );
 	}
 
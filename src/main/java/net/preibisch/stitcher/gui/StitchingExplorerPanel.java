@@ -351,7 +351,7 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? > >
 			}
 
 			if (doGlobalOpt)
-				new Thread( new ExecuteGlobalOpt( this, savedFilteringAndGrouping ) ).start();
+				ExecuteGlobalOpt.startCancellingPrevious( new ExecuteGlobalOpt( this, savedFilteringAndGrouping ) );
 
 			// discard the temp. SpimDataFilteringAndGrouping
 			// if we discard it right now, but want to do global opt (which runs asynchronously)
@@ -916,8 +916,11 @@ public class StitchingExplorerPanel<AS extends AbstractSpimData< ? > >
 		// get all pairwise results which involve the views of the selected row
 		Set< ViewId > selectedVids = new HashSet< >( selectedRow );
 		SpimData2.filterMissingViews( data, selectedVids );
-		List< PairwiseStitchingResult< ViewId > > resultsForId = stitchingResults
-				.getAllPairwiseResultsForViewId( selectedVids );
+		List< PairwiseStitchingResult< ViewId > > resultsForId;
+		synchronized ( stitchingResults.getPairwiseResults() )
+		{
+			resultsForId = stitchingResults.getAllPairwiseResultsForViewId( selectedVids );
+		}
 		
 		// if links have been filtered out, do not display them
 		if (linkExplorer != null)
@@ -172,7 +172,11 @@ public class StitchingTableModelDecorator < AS extends AbstractSpimData< ? > > e
 			DecimalFormat df = new DecimalFormat( "#.###" );
 			df.setRoundingMode( RoundingMode.HALF_UP );
 
-			return df.format( res.getAvgCorrelation( vid ) );
+			// the table is repainted while pairwise results are still being added
+			synchronized ( res.getPairwiseResults() )
+			{
+				return df.format( res.getAvgCorrelation( vid ) );
+			}
 
 		}
 
@@ -181,7 +185,10 @@ public class StitchingTableModelDecorator < AS extends AbstractSpimData< ? > > e
 		{
 			final Set< ViewId > vid = new HashSet<>( decorated.getElements().get( rowIndex ) );
 			SpimData2.filterMissingViews( decorated.getPanel().getSpimData(), vid );
-			return ( res.getAllPairwiseResultsForViewId( vid ).size() );
+			synchronized ( res.getPairwiseResults() )
+			{
+				return ( res.getAllPairwiseResultsForViewId( vid ).size() );
+			}
 		}
 
 		// should never be reached
@@ -21,7 +21,6 @@
  */
 package net.preibisch.stitcher.gui.bdv;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -41,8 +40,8 @@ import net.preibisch.mvrecon.fiji.spimdata.explorer.ExplorerWindow;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.FilteredAndGroupedExplorerPanel;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.GroupedRowWindow;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.ISpimDataTableModel;
-import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.OverlapGeometryCache;
 import net.preibisch.stitcher.gui.StitchingExplorerPanel;
 import net.preibisch.stitcher.gui.popup.BDVPopupStitching;
 
@@ -128,6 +127,8 @@ public class BDVVisibilityHandlerNeighborhood implements BDVVisibilityHandler
 			}).collect( Collectors.toList() );
 		}
 
+		final Group< ViewId > selectedGroup = new Group<>( selectedViewIds );
+
 		for (final ViewId vid : candidates)
 		{
 			// we have this view selected -> no need to re-color
@@ -135,10 +136,7 @@ public class BDVVisibilityHandlerNeighborhood implements BDVVisibilityHandler
 				continue;
 
 			// search for (approximate) overlap between all selected views & this view
-			final ArrayList< Iterable< ViewId > > comparison = new ArrayList<>();
-			comparison.add( selectedViewIds );
-			comparison.add( new Group< ViewId >( vid ) );
-			final BoundingBox bbox = new BoundingBoxMaximalGroupOverlap< ViewId >( comparison,panel.getSpimData() ).estimate( "" );
+			final BoundingBox bbox = OverlapGeometryCache.getOverlap( selectedGroup, new Group< ViewId >( vid ), panel.getSpimData() );
 
 			// overlap found
 			if (bbox != null)
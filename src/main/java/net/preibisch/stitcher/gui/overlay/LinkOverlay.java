@@ -27,9 +27,11 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 
@@ -182,13 +184,23 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 		// dont do anything if the overlay was set to inactive or we have no Tile selected (no links to display)
 		if (!isActive || activeLinks.size() == 0)
 			return;
-		
-		final Graphics2D graphics = ( Graphics2D ) g;
-		
-		
+
+		// pairwise results may be added while we draw (they are stored as soon as each pair is computed),
+		// copy them under the lock and draw from the copy so the workers are not blocked by painting
+		final HashMap< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > pairwiseResults;
+		synchronized ( stitchingResults.getPairwiseResults() )
+		{
+			pairwiseResults = new HashMap<>( stitchingResults.getPairwiseResults() );
+		}
+
+		drawLinks( ( Graphics2D ) g, pairwiseResults );
+	}
+
+	private void drawLinks( final Graphics2D graphics, final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > pairwiseResults )
+	{
 		double maxr = 0.0;
 		double minr = Double.MAX_VALUE;
-		for (PairwiseStitchingResult<ViewId> sr : stitchingResults.getPairwiseResults().values())
+		for (PairwiseStitchingResult<ViewId> sr : pairwiseResults.values())
 		{
 			maxr = Math.max( maxr, sr.r() );
 			minr = Math.min( minr, sr.r() );
@@ -198,41 +210,24 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 		
 		final Set< ViewId > outlinedViews = new HashSet<>();
 		
-		for (Pair< Group<ViewId>, Group<ViewId> > p : stitchingResults.getPairwiseResults().keySet())
+		for (Pair< Group<ViewId>, Group<ViewId> > p : pairwiseResults.keySet())
 		{
 			if (activeLinks.size() > 0 && !(activeLinks.contains( p )))
 				continue;
 			
-			// local coordinates of views, without BDV transform 
-			final double[] lPos1 = new double[ 3 ];
-			final double[] lPos2 = new double[ 3 ];
 			// global coordianates, after BDV transform
 			final double[] gPos1 = new double[ 3 ];
 			final double[] gPos2 = new double[ 3 ];
-			
-			long[] sizeA = new long[spimData.getSequenceDescription().getViewDescriptions().get( p.getA().getViews().iterator().next() ).getViewSetup().getSize().numDimensions()];
-			long[] sizeB = new long[spimData.getSequenceDescription().getViewDescriptions().get( p.getB().getViews().iterator().next() ).getViewSetup().getSize().numDimensions()];
-			spimData.getSequenceDescription().getViewDescriptions().get( p.getA().getViews().iterator().next() ).getViewSetup().getSize().dimensions( sizeA );
-			spimData.getSequenceDescription().getViewDescriptions().get( p.getB().getViews().iterator().next() ).getViewSetup().getSize().dimensions( sizeB );
-			
-			// TODO: this uses the transform of the first view in the set, maybe do something better?
-			AffineTransform3D vt1 = spimData.getViewRegistrations().getViewRegistration( p.getA().getViews().iterator().next() ).getModel();
-			AffineTransform3D vt2 = spimData.getViewRegistrations().getViewRegistration( p.getB().getViews().iterator().next() ).getModel();
 
-			for(int i = 0; i < 3; i++)
-			{
-				// start from middle of view
-				lPos1[i] += sizeA[i] / 2;
-				lPos2[i] += sizeB[i] / 2;
-			}
+			// start from middle of view, in world coordinates (without BDV transform)
+			// TODO: this uses the transform of the first view in the set, maybe do something better?
+			final double[] lPos1 = viewCenter( p.getA().getViews().iterator().next() );
+			final double[] lPos2 = viewCenter( p.getB().getViews().iterator().next() );
 
-			vt1.apply( lPos1, lPos1 );
-			vt2.apply( lPos2, lPos2 );
-			
 			if (!p.getA().equals( reference ))
-				stitchingResults.getPairwiseResults().get( p ).getTransform().applyInverse( lPos2, lPos2 );
+				pairwiseResults.get( p ).getTransform().applyInverse( lPos2, lPos2 );
 			if (!p.getB().equals( reference ))
-				stitchingResults.getPairwiseResults().get( p ).getTransform().apply( lPos1, lPos1 );
+				pairwiseResults.get( p ).getTransform().apply( lPos1, lPos1 );
 
 			viewerTransform.apply( lPos1, gPos1 );
 			viewerTransform.apply( lPos2, gPos2 );
@@ -241,7 +236,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 			if (p.equals( selectedLink ))
 				graphics.setColor( Color.WHITE );
 			else
-				graphics.setColor( getColor( stitchingResults.getPairwiseResults().get( p ).r(), maxr, minr ) );
+				graphics.setColor( getColor( pairwiseResults.get( p ).r(), maxr, minr ) );
 			
 			graphics.setStroke( new BasicStroke( 2.0f ) );
 			graphics.drawLine((int) gPos1[0],(int) gPos1[1],(int) gPos2[0],(int) gPos2[1] );
@@ -259,7 +254,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 				final AffineTransform3D registration = spimData.getViewRegistrations().getViewRegistration( vid ).getModel();
 				final AffineTransform3D finalTransform = 
 						registration.copy()
-						.preConcatenate( isReference ? new AffineTransform3D() : stitchingResults.getPairwiseResults().get( p ).getInverseTransform() )
+						.preConcatenate( isReference ? new AffineTransform3D() : pairwiseResults.get( p ).getInverseTransform() )
 						.preConcatenate( viewerTransform );
 
 				drawViewOutlines( graphics, dims, finalTransform, p.equals( selectedLink ) ? Color.MAGENTA : Color.GRAY );
@@ -280,7 +275,7 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 						.getModel();
 				final AffineTransform3D finalTransform = 
 						registration.copy()
-						.preConcatenate( isReference ? new AffineTransform3D() : stitchingResults.getPairwiseResults().get( p ).getTransform() )
+						.preConcatenate( isReference ? new AffineTransform3D() : pairwiseResults.get( p ).getTransform() )
 						.preConcatenate( viewerTransform );
 
 				drawViewOutlines( graphics, dims, finalTransform, p.equals( selectedLink ) ? Color.GREEN : Color.GRAY );
@@ -291,6 +286,22 @@ public class LinkOverlay implements OverlayRenderer, TransformListener< AffineTr
 		}
 	}
 
+	/*
+	 * the middle of a view in world coordinates (without BDV transform)
+	 */
+	private double[] viewCenter( final ViewId viewId )
+	{
+		final Dimensions size = spimData.getSequenceDescription().getViewDescriptions().get( viewId ).getViewSetup().getSize();
+		final double[] center = new double[ 3 ];
+
+		for ( int d = 0; d < size.numDimensions(); ++d )
+			center[ d ] = size.dimension( d ) / 2;
+
+		spimData.getViewRegistrations().getViewRegistration( viewId ).getModel().apply( center, center );
+
+		return center;
+	}
+
 	@Override
 	public void setCanvasSize( final int width, final int height )
 	{}
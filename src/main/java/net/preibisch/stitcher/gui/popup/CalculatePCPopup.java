@@ -171,7 +171,12 @@ public class CalculatePCPopup extends JMenuItem implements ExplorerWindowSetable
 						return;
 
 					if (method == Method.PHASECORRELATION)
-						Calculate_Pairwise_Shifts.processPhaseCorrelation( (SpimData2) panel.getSpimData(), filteringAndGrouping, params, dsFactors );
+						Calculate_Pairwise_Shifts.processPhaseCorrelation( (SpimData2) panel.getSpimData(), filteringAndGrouping, params, dsFactors, null,
+								psr -> {
+									// show the new link right away if BDV is open
+									if ( panel.bdvPopup().bdvRunning() )
+										panel.bdvPopup().getBDV().getViewer().requestRepaint();
+								} );
 					if (method == Method.LUCASKANADE)
 						Calculate_Pairwise_Shifts.processLucasKanade( (SpimData2) panel.getSpimData(), filteringAndGrouping, LKParams, dsFactors );
 
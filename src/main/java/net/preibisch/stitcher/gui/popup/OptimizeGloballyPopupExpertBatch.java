@@ -58,7 +58,7 @@ public class OptimizeGloballyPopupExpertBatch extends JMenuItem
 		@Override
 		public void actionPerformed(ActionEvent e)
 		{
-			new Thread( new ExecuteGlobalOpt( panel, expertMode ) ).start();
+			ExecuteGlobalOpt.startCancellingPrevious( new ExecuteGlobalOpt( panel, expertMode ) );
 		}
 	}
 }
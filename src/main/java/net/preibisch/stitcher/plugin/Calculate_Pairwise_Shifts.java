@@ -22,13 +22,16 @@
 package net.preibisch.stitcher.plugin;
 
 import java.awt.Font;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import ij.gui.GenericDialog;
@@ -64,10 +67,12 @@ import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.PairwiseResult;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.PairwiseSetup;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.PairwiseResultCheckpoint;
 import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 import net.preibisch.stitcher.algorithm.SpimDataFilteringAndGrouping;
 import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
@@ -86,6 +91,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 
 	private static boolean expertGrouping;
 	private static boolean expertAlgorithmParameters;
+	private static boolean checkpointResults = false;
 	private static int defaultMethodIdx = 0;
 
 	@Override
@@ -107,6 +113,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		gd.addChoice( "method", methodChoices, methodChoices[defaultMethodIdx] );
 		gd.addCheckbox( "show_expert_grouping_options", expertGrouping );
 		gd.addCheckbox( "show_expert_algorithm_parameters", expertAlgorithmParameters );
+		gd.addCheckbox( "checkpoint_pairwise_shifts (resume if interrupted, Phase Correlation only)", checkpointResults );
 
 		gd.showDialog();
 		if(gd.wasCanceled())
@@ -115,6 +122,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 		defaultMethodIdx = gd.getNextChoiceIndex();
 		expertGrouping = gd.getNextBoolean();
 		expertAlgorithmParameters = gd.getNextBoolean();
+		checkpointResults = gd.getNextBoolean();
 
 		// Defaults for grouping
 		// the default grouping by channels and illuminations
@@ -138,6 +146,9 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			grouping.getAxesOfComparison().addAll( defaultComparisonFactors );
 		}
 
+		// only created if asked for, so a normal run never overwrites the checkpoint of an interrupted one
+		PairwiseResultCheckpoint checkpoint = null;
+
 		if (defaultMethodIdx >= 2)
 		{
 			if (!processInterestPoint( data, grouping, defaultMethodIdx == 2 ))
@@ -151,7 +162,13 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			if (defaultMethodIdx == 0) // Phase Correlation
 			{
 				PairwiseStitchingParameters params = expertAlgorithmParameters ? PairwiseStitchingParameters.askUserForParameters() : new PairwiseStitchingParameters();
-				if (!processPhaseCorrelation( data, grouping, params, ds ))
+				// results are checkpointed next to the XML as they come in, matching results of an interrupted run are reused
+				if ( checkpointResults )
+					checkpoint = new PairwiseResultCheckpoint(
+							new File( data.getBasePath(), PairwiseResultCheckpoint.defaultFileName ), ds, params,
+							grouping.getGroupedViewAggregator(), true );
+
+				if (!processPhaseCorrelation( data, grouping, params, ds, checkpoint, null ))
 					return;
 			}
 			else if (defaultMethodIdx == 1) // Lucas-Kanade
@@ -164,7 +181,8 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 
 		// update XML
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Saving XML ... " );
-		SpimData2.saveXML( data, result.getXMLFileName(), result.getClusterExtension() );
+		if ( SpimData2.saveXML( data, result.getXMLFileName(), result.getClusterExtension() ) && checkpoint != null )
+			checkpoint.delete(); // the results are in the XML now
 	}
 	
 	public static void main(String[] args)
@@ -177,47 +195,172 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 			SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
 			PairwiseStitchingParameters params,
 			long[] dsFactors)
+	{
+		return processPhaseCorrelation( data, filteringAndGrouping, params, dsFactors, null, null );
+	}
+
+	/**
+	 * compute the pairwise shifts with phase correlation, every result is added to the StitchingResults
+	 * of data as soon as its pair is done
+	 * @param checkpoint if not null, results are also written to it as they come in and pairs it already
+	 * has a valid result for are not computed again (if it was created to resume)
+	 * @param onResult if not null, called after each result was added (e.g. to repaint the link overlay)
+	 * @return true if successful
+	 */
+	public static boolean processPhaseCorrelation(
+			SpimData2 data,
+			SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping,
+			PairwiseStitchingParameters params,
+			long[] dsFactors,
+			PairwiseResultCheckpoint checkpoint,
+			Consumer< PairwiseStitchingResult< ViewId > > onResult)
 	{
 		// getpairs to compare
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Finding pairs to compute overlap ... " );
 
-		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs =  filteringAndGrouping.getComparisons();
+		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs =  filteringAndGrouping.getOverlappingComparisons();
+
+		// remove old results of the pairs we compare, new ones are added as they come in
+		// (if we fail, the old results of all pairs we did not get a new result for are restored)
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > oldResults = removeOldResults( data, filteringAndGrouping );
+		final Set< Set< Group< ViewId > > > newResults = new HashSet<>();
+
+		final ArrayList< Pair< Group< ViewId >, Group< ViewId > > > pairsToCompute = new ArrayList<>( (List< Pair< Group< ViewId >, Group< ViewId > > >) pairs );
+
+		final Consumer< PairwiseStitchingResult< ViewId > > addResult = resultAdder( data.getStitchingResults(), newResults, onResult );
+
+		if ( checkpoint != null )
+		{
+			// results of a previous (interrupted) run that are still valid
+			final ArrayList< PairwiseStitchingResult< ViewId > > finished = checkpoint.open( pairsToCompute, data.getViewRegistrations() );
+
+			if ( finished.size() > 0 )
+			{
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Reusing " + finished.size() + " pairwise shifts from '" + checkpoint.getFile().getAbsolutePath() + "'" );
+
+				final HashSet< List< Group< ViewId > > > finishedPairs = new HashSet<>();
+				for ( final PairwiseStitchingResult< ViewId > psr : finished )
+				{
+					addResult.accept( psr );
+					finishedPairs.add( Arrays.asList( psr.pair().getA(), psr.pair().getB() ) );
+				}
+
+				pairsToCompute.removeIf( p -> finishedPairs.contains( Arrays.asList( p.getA(), p.getB() ) ) );
+			}
+		}
 
 		// calculate
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing overlap ... " );
-		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs(
-				(List< Pair< Group< ViewId >, Group< ViewId > > >) pairs, params, filteringAndGrouping.getSpimData().getViewRegistrations(), 
-				filteringAndGrouping.getSpimData().getSequenceDescription(), filteringAndGrouping.getGroupedViewAggregator(),
-				dsFactors );
 
-		// remove old results
+		boolean success = false;
+
+		try
+		{
+			final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs(
+					pairsToCompute, params, filteringAndGrouping.getSpimData().getViewRegistrations(), 
+					filteringAndGrouping.getSpimData().getSequenceDescription(), filteringAndGrouping.getGroupedViewAggregator(),
+					dsFactors,
+					psr -> {
+						if ( checkpoint != null )
+							checkpoint.add( psr );
+
+						addResult.accept( psr );
+					} );
+
+			success = results != null;
+			return success;
+		}
+		finally
+		{
+			if ( checkpoint != null )
+				checkpoint.close();
+
+			if ( !success )
+				restoreOldResults( data.getStitchingResults(), oldResults, newResults );
+		}
+	}
+
+	/*
+	 * adds every result to the stitching results (and remembers its pair in newResults) as soon as it comes in
+	 */
+	static Consumer< PairwiseStitchingResult< ViewId > > resultAdder(
+			final StitchingResults stitchingResults,
+			final Set< Set< Group< ViewId > > > newResults,
+			final Consumer< PairwiseStitchingResult< ViewId > > onResult)
+	{
+		return psr -> {
+			// the link overlay might be drawing them at the same time
+			synchronized ( stitchingResults.getPairwiseResults() )
+			{
+				stitchingResults.setPairwiseResultForPair( psr.pair(), psr );
+				newResults.add( new HashSet<>( Arrays.asList( psr.pair().getA(), psr.pair().getB() ) ) );
+			}
 
-		// this is just a cast of pairs to Group<ViewId>
-		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Organizing resuls ... " );
+			if ( onResult != null )
+				onResult.accept( psr );
+		};
+	}
 
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>( p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>( p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		}).collect( Collectors.toList() );
+	/*
+	 * remove the existing pairwise results (a -> b and b -> a) of all pairs that getComparisons() would return,
+	 * including pairs that do not overlap anymore, returns the removed results
+	 */
+	private static Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > removeOldResults(
+			final SpimData2 data,
+			final SpimDataFilteringAndGrouping< SpimData2 > filteringAndGrouping)
+	{
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > pairwiseResults = data.getStitchingResults().getPairwiseResults();
 
-		for (ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs)
+		synchronized ( pairwiseResults )
 		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
+			return removeResults( data.getStitchingResults(), filteringAndGrouping.getComparisonsAmong( new ArrayList<>( pairwiseResults.keySet() ) ) );
 		}
+	}
 
-		// update StitchingResults with Results
-		for ( final PairwiseStitchingResult< ViewId > psr : results )
+	/*
+	 * remove the existing pairwise results of the given pairs (in the orientation given), returns the removed results
+	 */
+	static Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > removeResults(
+			final StitchingResults stitchingResults,
+			final List< ? extends Pair< Group< ViewId >, Group< ViewId > > > pairs)
+	{
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > pairwiseResults = stitchingResults.getPairwiseResults();
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > removed = new HashMap<>();
+
+		synchronized ( pairwiseResults )
 		{
-			if (psr == null)
-				continue;
+			for ( final Pair< Group< ViewId >, Group< ViewId > > pair : pairs )
+				if ( pairwiseResults.containsKey( pair ) )
+					removed.put( pair, pairwiseResults.remove( pair ) );
+		}
 
-			data.getStitchingResults().setPairwiseResultForPair(psr.pair(), psr );
+		return removed;
+	}
+
+	/*
+	 * put back the removed results of all pairs (in any orientation) that did not get a new result
+	 */
+	static int restoreOldResults(
+			final StitchingResults stitchingResults,
+			final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > oldResults,
+			final Set< Set< Group< ViewId > > > newResults)
+	{
+		int restored = 0;
+
+		synchronized ( stitchingResults.getPairwiseResults() )
+		{
+			for ( final Map.Entry< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > e : oldResults.entrySet() )
+				if ( !newResults.contains( new HashSet<>( Arrays.asList( e.getKey().getA(), e.getKey().getB() ) ) ) )
+				{
+					stitchingResults.getPairwiseResults().put( e.getKey(), e.getValue() );
+					++restored;
+				}
 		}
 
-		return true;
+		if ( restored > 0 )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computing pairwise shifts failed, restored " + restored + " previous pairwise shifts." );
+
+		return restored;
 	}
 
 	public static boolean processLucasKanade(
@@ -228,7 +371,7 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 	{
 		// getpairs to compare
 		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping
-				.getComparisons();
+				.getOverlappingComparisons();
 
 		// calculate
 		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairsLK(
@@ -240,22 +383,8 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 				dsFactors,
 				new ProgressWriterIJ());
 
-		// remove old results
-		// this is just a cast of pairs to Group<ViewId>
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>(
-					p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>(
-					p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		} ).collect( Collectors.toList() );
-
-		for ( ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs )
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
+		// remove old results of the pairs we compare
+		removeOldResults( data, filteringAndGrouping );
 
 		// update StitchingResults with Results
 		for ( final PairwiseStitchingResult< ViewId > psr : results )
@@ -324,24 +453,10 @@ public class Calculate_Pairwise_Shifts implements PlugIn
 
 		// get all possible group pairs
 		List< ? extends Pair< ? extends Group< ? extends ViewId >, ? extends Group< ? extends ViewId > > > pairs = filteringAndGrouping
-				.getComparisons();
-
-		// remove old results
-		// this is just a cast of pairs to Group<ViewId>
-		final List< ValuePair< Group< ViewId >, Group< ViewId > > > castPairs = pairs.stream().map( p -> {
-			final Group< ViewId > vidGroupA = new Group<>(
-					p.getA().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			final Group< ViewId > vidGroupB = new Group<>(
-					p.getB().getViews().stream().map( v -> (ViewId) v ).collect( Collectors.toSet() ) );
-			return new ValuePair<>( vidGroupA, vidGroupB );
-		} ).collect( Collectors.toList() );
-
-		for ( ValuePair< Group< ViewId >, Group< ViewId > > pair : castPairs )
-		{
-			// try to remove a -> b and b -> a, just to make sure
-			data.getStitchingResults().getPairwiseResults().remove( pair );
-			data.getStitchingResults().getPairwiseResults().remove( new ValuePair<>( pair.getB(), pair.getA() ) );
-		}
+				.getOverlappingComparisons();
+
+		// remove old results of the pairs we compare
+		removeOldResults( data, filteringAndGrouping );
 
 		// remove non-overlapping comparisons
 		final List< Pair< Group< ViewId >, Group< ViewId > > > removedPairs = TransformationTools
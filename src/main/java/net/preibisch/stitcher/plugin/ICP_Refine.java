@@ -57,6 +57,7 @@ public class ICP_Refine implements PlugIn
 		gd.addChoice( "ICP_Refinement_Type", ICPRefinement.refinementType, ICPRefinement.refinementType[ ICPRefinement.defaultRefinementChoice ] );
 
 		GlobalOptimizationParameters.addSimpleParametersToDialog( gd );
+		gd.addCheckbox( "Refine_subsets_in_parallel (log messages of the subsets may interleave)", ICPRefinement.defaultOptimizeSubsetsInParallel );
 
 		gd.addMessage( "" );
 		gd.addMessage( "The following parameters are ignored if EXPERT is selected above", GUIHelper.mediumstatusfont );
@@ -72,6 +73,7 @@ public class ICP_Refine implements PlugIn
 
 		final ICPType icpType = ICPType.values()[ ICPRefinement.defaultRefinementChoice = gd.getNextChoiceIndex() ];
 		final GlobalOptimizationParameters globalOptParams = GlobalOptimizationParameters.parseSimpleParametersFromDialog( gd );
+		params.optimizeSubsetsInParallel = ICPRefinement.defaultOptimizeSubsetsInParallel = gd.getNextBoolean();
 
 		if ( icpType == ICPType.Expert )
 		{
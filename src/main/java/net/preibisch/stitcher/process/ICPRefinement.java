@@ -30,6 +30,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ij.IJ;
 import ij.gui.GenericDialog;
@@ -51,6 +56,7 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.plugin.Interest_Point_Detection;
 import net.preibisch.mvrecon.fiji.plugin.Interest_Point_Registration;
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.TransformationModelGUI;
@@ -113,6 +119,7 @@ public class ICPRefinement
 	public static double defaultICPError = 5;
 	public static int defaultModel = 2;
 	public static boolean defaultRegularize = true;
+	public static boolean defaultOptimizeSubsetsInParallel = false;
 
 	public static class ICPRefinementParameters
 	{
@@ -129,6 +136,13 @@ public class ICPRefinement
 		public double maxError;
 		public AbstractModel< ? > transformationModel;
 
+		/*
+		 * refine independent subsets (e.g. different timepoints or angles) concurrently, only used if there is
+		 * no overlay showing the links. The messages of the pairwise matching and of the solvers go to the log
+		 * directly, so those of concurrent subsets interleave; the final models are printed in the order of the subsets.
+		 */
+		public boolean optimizeSubsetsInParallel = defaultOptimizeSubsetsInParallel;
+
 		final List<ViewId > viewIds;
 
 		public ICPRefinementParameters( final List<ViewId > viewIds )
@@ -471,42 +485,150 @@ public class ICPRefinement
 			overlay.getInconsistentResults().clear();
 		}
 
+		final boolean hasGroups = Interest_Point_Registration.hasGroups( subsets );
+
+		// the subsets share no views, so they can be refined independently
+		final ArrayList< Callable< SubsetResult > > tasks = new ArrayList<>();
 		for ( final Subset< ViewId > subset : subsets )
 		{
-			// fix view(s)
-			final List< ViewId > fixedViews = setup.getDefaultFixedViews();
-			final ViewId fixedView = subset.getViews().iterator().next();
-			fixedViews.add( fixedView );
-			IOFunctions.println( "Removed " + subset.fixViews( fixedViews ).size() + " views due to fixing view tpId=" + fixedView.getTimePointId() + " setupId=" + fixedView.getViewSetupId() );
+			tasks.add( new Callable< SubsetResult >()
+			{
+				@Override
+				public SubsetResult call() throws Exception
+				{
+					final SubsetResult result = new SubsetResult();
 
-			HashMap< ViewId, mpicbg.models.Tile > models;
+					// fix view(s)
+					final List< ViewId > fixedViews = setup.getDefaultFixedViews();
+					final ViewId fixedView = subset.getViews().iterator().next();
+					fixedViews.add( fixedView );
+					result.println( "Removed " + subset.fixViews( fixedViews ).size() + " views due to fixing view tpId=" + fixedView.getTimePointId() + " setupId=" + fixedView.getViewSetupId() );
 
-			if ( Interest_Point_Registration.hasGroups( subsets ) )
-				models = groupedSubset( data, subset, interestpoints, labelMap, icpp, fixedViews, data.getSequenceDescription().getViewSetups(), data.getViewRegistrations().getViewRegistrations(), globalOptParameters, overlay );
-			else
-				models = pairSubset( data, subset, interestpoints, labelMap, icpp, fixedViews, data.getSequenceDescription().getViewSetups(), data.getViewRegistrations().getViewRegistrations(), globalOptParameters, overlay );
+					if ( hasGroups )
+						result.models = groupedSubset( data, subset, interestpoints, labelMap, icpp, fixedViews, data.getSequenceDescription().getViewSetups(), data.getViewRegistrations().getViewRegistrations(), globalOptParameters, overlay, result );
+					else
+						result.models = pairSubset( data, subset, interestpoints, labelMap, icpp, fixedViews, data.getSequenceDescription().getViewSetups(), data.getViewRegistrations().getViewRegistrations(), globalOptParameters, overlay, result );
 
-			if ( models == null )
-				continue;
+					return result;
+				}
+			} );
+		}
+
+		// the overlay can only show the links of one subset, so keep the order (the last one wins) when there is one
+		if ( params.optimizeSubsetsInParallel && overlay == null && tasks.size() > 1 )
+		{
+			final ArrayList< SubsetResult > subsetResults = new ArrayList<>();
+			final ExecutorService service = Executors.newFixedThreadPool( Math.min( tasks.size(), Threads.numThreads() ) );
 
-			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fina transformation models (without mapback model):" );
+			try
+			{
+				final ArrayList< Future< SubsetResult > > futures = new ArrayList<>();
+				for ( final Callable< SubsetResult > task : tasks )
+					futures.add( service.submit( task ) );
 
-			// pre-concatenate models to spimdata2 viewregistrations (from SpimData(2))
-			for ( final ViewId viewId : subset.getViews() )
+				// collect in the order of the subsets, as if they were processed sequentially
+				for ( final Future< SubsetResult > future : futures )
+				{
+					try
+					{
+						subsetResults.add( future.get() );
+					}
+					catch ( ExecutionException e )
+					{
+						IOFunctions.println( "Failed to refine subset: " + e );
+						e.printStackTrace();
+						subsetResults.add( null );
+					}
+				}
+			}
+			catch ( InterruptedException e )
+			{
+				service.shutdownNow();
+				Thread.currentThread().interrupt();
+				return;
+			}
+			finally
 			{
-				final mpicbg.models.Tile tile = models.get( viewId );
-				final ViewRegistration vr = data.getViewRegistrations().getViewRegistrations().get( viewId );
+				service.shutdown();
+			}
+
+			// all refinements are done at this point, so nothing reads the registrations while they are updated
+			for ( int i = 0; i < subsets.size(); ++i )
+				if ( subsetResults.get( i ) != null )
+					applySubsetResult( data, subsets.get( i ), subsetResults.get( i ), params.transformationDescription );
+		}
+		else
+		{
+			// like the refinement of a single subset, each subset is logged and stored right after it is done
+			for ( int i = 0; i < subsets.size(); ++i )
+			{
+				try
+				{
+					applySubsetResult( data, subsets.get( i ), tasks.get( i ).call(), params.transformationDescription );
+				}
+				catch ( Exception e )
+				{
+					IOFunctions.println( "Failed to refine subset: " + e );
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * print the log of a subset, store and report its final models
+	 */
+	private static void applySubsetResult( final SpimData2 data, final Subset< ViewId > subset, final SubsetResult result, final String transformationDescription )
+	{
+		result.printLog();
+
+		final HashMap< ViewId, mpicbg.models.Tile > models = result.models;
+
+		if ( models == null )
+			return;
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fina transformation models (without mapback model):" );
+
+		// pre-concatenate models to spimdata2 viewregistrations (from SpimData(2))
+		for ( final ViewId viewId : subset.getViews() )
+		{
+			final mpicbg.models.Tile tile = models.get( viewId );
+			final ViewRegistration vr = data.getViewRegistrations().getViewRegistrations().get( viewId );
+
+			TransformationTools.storeTransformation( vr, viewId, tile, null, transformationDescription );
 
-				TransformationTools.storeTransformation( vr, viewId, tile, null, params.transformationDescription );
+			// TODO: We assume it is Affine3D here
+			String output = Group.pvid( viewId ) + ": " + TransformationTools.printAffine3D( (Affine3D<?>)tile.getModel() );
 
-				// TODO: We assume it is Affine3D here
-				String output = Group.pvid( viewId ) + ": " + TransformationTools.printAffine3D( (Affine3D<?>)tile.getModel() );
+			if ( tile.getModel() instanceof RigidModel3D )
+				IOFunctions.println( output + ", " + TransformationTools.getRotationAxis( (RigidModel3D)tile.getModel() ) );
+			else
+				IOFunctions.println( output + ", " + TransformationTools.getScaling( (Affine3D<?>)tile.getModel() ) );
+		}
+	}
+
+	/**
+	 * the refined models of one subset and the messages printed while refining it, so that subsets can be
+	 * refined concurrently (only the messages of MatcherPairwiseTools and the solvers go to the log directly)
+	 */
+	private static class SubsetResult
+	{
+		// messages, true if it goes to the log window, false if it goes to stdout only
+		final ArrayList< Pair< Boolean, String > > log = new ArrayList<>();
+		HashMap< ViewId, mpicbg.models.Tile > models;
+
+		void println( final String msg ) { log.add( new ValuePair<>( true, msg ) ); }
+		void out( final String msg ) { log.add( new ValuePair<>( false, msg ) ); }
 
-				if ( tile.getModel() instanceof RigidModel3D )
-					IOFunctions.println( output + ", " + TransformationTools.getRotationAxis( (RigidModel3D)tile.getModel() ) );
+		void printLog()
+		{
+			for ( final Pair< Boolean, String > msg : log )
+				if ( msg.getA() )
+					IOFunctions.println( msg.getB() );
 				else
-					IOFunctions.println( output + ", " + TransformationTools.getScaling( (Affine3D<?>)tile.getModel() ) );
-			}
+					System.out.println( msg.getB() );
+
+			log.clear();
 		}
 	}
 
@@ -521,17 +643,37 @@ public class ICPRefinement
 			final Map< ViewId, ViewRegistration > registrations, // for two-round
 			final GlobalOptimizationParameters globalOptParameters,
 			final DemoLinkOverlay overlay )
+	{
+		final SubsetResult log = new SubsetResult();
+		final HashMap< ViewId, mpicbg.models.Tile > models = pairSubset( spimData, subset, interestpoints, labelMap, icpp, fixedViews, viewSetups, registrations, globalOptParameters, overlay, log );
+		log.printLog();
+
+		return models;
+	}
+
+	private static HashMap< ViewId, mpicbg.models.Tile > pairSubset(
+			final SpimData2 spimData,
+			final Subset< ViewId > subset,
+			final Map< ViewId, List< InterestPoint > > interestpoints,
+			final Map< ViewId, String > labelMap,
+			final IterativeClosestPointParameters icpp,
+			final List< ViewId > fixedViews,
+			final Map< Integer, ? extends BasicViewSetup > viewSetups, // for two-round
+			final Map< ViewId, ViewRegistration > registrations, // for two-round
+			final GlobalOptimizationParameters globalOptParameters,
+			final DemoLinkOverlay overlay ,
+			final SubsetResult log )
 	{
 		final List< Pair< ViewId, ViewId > > pairs = subset.getPairs();
 
 		if ( pairs.size() <= 0 )
 		{
-			IOFunctions.println( "No image pair for comparison left, we need at least one pair for this to make sense." );
+			log.println( "No image pair for comparison left, we need at least one pair for this to make sense." );
 			return null;
 		}
 
 		for ( final Pair< ViewId, ViewId > pair : pairs )
-			System.out.println( Group.pvid( pair.getA() ) + " <=> " + Group.pvid( pair.getB() ) );
+			log.out( Group.pvid( pair.getA() ) + " <=> " + Group.pvid( pair.getB() ) );
 
 		// compute all pairwise matchings
 		final List< Pair< Pair< ViewId, ViewId >, PairwiseResult< InterestPoint > > > resultsPairs =
@@ -566,7 +708,7 @@ public class ICPRefinement
 
 			MatcherPairwiseTools.addCorrespondences( p.getB().getInliers(), vA, vB, labelMap.get( vA ), labelMap.get( vB ), listA, listB );
 
-			IOFunctions.println( p.getB().getFullDesc() );
+			log.println( p.getB().getFullDesc() );
 		}
 
 		// multiple solvers for ICP
@@ -626,6 +768,26 @@ public class ICPRefinement
 			final Map< ViewId, ViewRegistration > registrations, // for two-round
 			final GlobalOptimizationParameters globalOptParameters,
 			final DemoLinkOverlay overlay )
+	{
+		final SubsetResult log = new SubsetResult();
+		final HashMap< ViewId, mpicbg.models.Tile > models = groupedSubset( spimData, subset, interestpoints, labelMap, icpp, fixedViews, viewSetups, registrations, globalOptParameters, overlay, log );
+		log.printLog();
+
+		return models;
+	}
+
+	private static HashMap< ViewId, mpicbg.models.Tile > groupedSubset(
+			final SpimData2 spimData,
+			final Subset< ViewId > subset,
+			final Map< ViewId, List< InterestPoint > > interestpoints,
+			final Map< ViewId, String > labelMap,
+			final IterativeClosestPointParameters icpp,
+			final List< ViewId > fixedViews,
+			final Map< Integer, ? extends BasicViewSetup > viewSetups, // for two-round
+			final Map< ViewId, ViewRegistration > registrations, // for two-round
+			final GlobalOptimizationParameters globalOptParameters,
+			final DemoLinkOverlay overlay ,
+			final SubsetResult log )
 	{
 		final List< Pair< Group< ViewId >, Group< ViewId > > > groupedPairs = subset.getGroupedPairs();
 		final Map< Group< ViewId >, List< GroupedInterestPoint< ViewId > > > groupedInterestpoints = new HashMap<>();
@@ -633,7 +795,7 @@ public class ICPRefinement
 
 		if ( groupedPairs.size() <= 0 )
 		{
-			IOFunctions.println( "No pair of grouped images for comparison left, we need at least one pair for this to make sense." );
+			log.println( "No pair of grouped images for comparison left, we need at least one pair for this to make sense." );
 			return null;
 		}
 
@@ -645,23 +807,23 @@ public class ICPRefinement
 			groups.add( pair.getA() );
 			groups.add( pair.getB() );
 
-			System.out.print( "[" + pair.getA() + "] <=> [" + pair.getB() + "]" );
+			final StringBuilder msg = new StringBuilder( "[" + pair.getA() + "] <=> [" + pair.getB() + "]" );
 
 			if ( !groupedInterestpoints.containsKey( pair.getA() ) )
 			{
-				System.out.print( ", grouping interestpoints for " + pair.getA() );
+				msg.append( ", grouping interestpoints for " + pair.getA() );
 
 				groupedInterestpoints.put( pair.getA(), ipGrouping.group( pair.getA() ) );
 			}
 
 			if ( !groupedInterestpoints.containsKey( pair.getB() ) )
 			{
-				System.out.print( ", grouping interestpoints for " + pair.getB() );
+				msg.append( ", grouping interestpoints for " + pair.getB() );
 
 				groupedInterestpoints.put( pair.getB(), ipGrouping.group( pair.getB() ) );
 			}
 
-			System.out.println();
+			log.out( msg.toString() );
 		}
 
 		final List< Pair< Pair< Group< ViewId >, Group< ViewId > >, PairwiseResult< GroupedInterestPoint< ViewId > > > > resultsGroups =
@@ -27,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import net.imglib2.Localizable;
@@ -341,4 +342,44 @@ public class FourNeighborhoodExtremaTest
 		int i = 5;		
 		assertTrue( i == 5 );
 	}
+
+	@Test
+	public void testArrayImgPeaksMT()
+	{
+		Img< FloatType > img = ArrayImgs.floats( 31, 20, 7 );
+		Random rnd = new Random( seed );
+
+		for( FloatType t : img )
+			t.set( rnd.nextFloat() );
+
+		int nMax = 10;
+
+		ExecutorService service = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		ArrayList< Pair< Localizable, Double > > correct, found;
+
+		try
+		{
+			// generic (cursor-based) search as reference
+			correct = FourNeighborhoodExtrema.findMaxMT(Views.extendPeriodic(img), img, nMax, service);
+			// search directly on the backing array
+			found = FourNeighborhoodExtrema.findMaxMT(img, nMax, service);
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		assertEquals(nMax, found.size());
+
+		long[] posCorrect = new long[img.numDimensions()];
+		long[] posFound = new long[img.numDimensions()];
+
+		for (int i = 0; i<found.size(); i++){
+			assertEquals(correct.get(i).getB(), found.get(i).getB());
+
+			correct.get(i).getA().localize(posCorrect);
+			found.get(i).getA().localize(posFound);
+			assertArrayEquals(posCorrect, posFound);
+		}
+	}
 }
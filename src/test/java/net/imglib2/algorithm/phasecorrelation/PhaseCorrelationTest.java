@@ -22,30 +22,49 @@
 package net.imglib2.algorithm.phasecorrelation;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.fft2.FFTMethods;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineRandomAccessible;
 import net.imglib2.realtransform.RealViews;
+import net.imglib2.realtransform.Translation;
 import net.imglib2.realtransform.Translation2D;
+import net.imglib2.realtransform.Translation3D;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
+import net.preibisch.stitcher.algorithm.PairwiseStitching;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
 
 public class PhaseCorrelationTest {
 
@@ -182,6 +201,386 @@ public class PhaseCorrelationTest {
 			assertTrue( Math.abs( expected[d] - found[d] ) < eps );
 		
 	}
-	
-	
+
+	@Test
+	public void testFusedCrossPowerSpectrum() {
+
+		Img< ComplexFloatType > fft1 = ArrayImgs.complexFloats( 33, 20 );
+		Img< ComplexFloatType > fft2 = ArrayImgs.complexFloats( 33, 20 );
+		Random rnd = new Random( seed );
+
+		for ( ComplexFloatType t : fft1 )
+			t.set( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+		for ( ComplexFloatType t : fft2 )
+			t.set( rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f );
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		// separate passes as reference
+		Img< ComplexFloatType > fft1Copy = fft1.copy();
+		Img< ComplexFloatType > fft2Copy = fft2.copy();
+		PhaseCorrelation2Util.normalizeInterval( fft1, fft1Copy, service );
+		PhaseCorrelation2Util.normalizeInterval( fft2, fft2Copy, service );
+		PhaseCorrelation2Util.complexConjInterval( fft2Copy, fft2Copy, service );
+		PhaseCorrelation2Util.multiplyComplexIntervals( fft1Copy, fft2Copy, fft1Copy, service );
+
+		// fused, in-place
+		PhaseCorrelation2Util.crossPowerSpectrum( fft1, fft2, fft1, service );
+		service.shutdown();
+
+		Cursor< ComplexFloatType > cExpected = fft1Copy.cursor();
+		Cursor< ComplexFloatType > cFound = fft1.cursor();
+		while ( cExpected.hasNext() )
+		{
+			cExpected.fwd();
+			cFound.fwd();
+			assertEquals( cExpected.get().getRealDouble(), cFound.get().getRealDouble(), 1e-5 );
+			assertEquals( cExpected.get().getImaginaryDouble(), cFound.get().getImaginaryDouble(), 1e-5 );
+		}
+	}
+
+	@Test
+	public void testIntegralImageCrossCorrelation() {
+
+		Img< FloatType > img1 = ArrayImgs.floats( 40, 30, 5 );
+		Img< FloatType > img2 = ArrayImgs.floats( 40, 30, 5 );
+		Random rnd = new Random( seed );
+
+		for ( FloatType t : img1 )
+			t.set( rnd.nextFloat() * 1000 + 100 );
+		for ( FloatType t : img2 )
+			t.set( rnd.nextFloat() * 1000 + 100 );
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		IntegralImageCrossCorrelation verifier = new IntegralImageCrossCorrelation( img1, img2, service );
+
+		long[][] shifts = new long[][] { { 0, 0, 0 }, { 5, -3, 1 }, { -12, 7, -2 }, { 39, 29, 4 }, { 40, 0, 0 } };
+
+		for ( long[] shift : shifts )
+		{
+			PhaseCorrelationPeak2 expected = new PhaseCorrelationPeak2( new Point( shift ), 1.0 );
+			expected.setShift( new Point( shift ) );
+			PhaseCorrelationPeak2 found = new PhaseCorrelationPeak2( expected );
+
+			expected.calculateCrossCorr( img1, img2, 10 );
+			verifier.calculateCrossCorr( found, 10 );
+
+			assertEquals( expected.getnPixel(), found.getnPixel() );
+			assertEquals( expected.getCrossCorr(), found.getCrossCorr(), 1e-6 );
+		}
+
+		service.shutdown();
+	}
+
+	@Test
+	public void testIntegralImageCrossCorrelationNearlyConstant() {
+
+		// left half of img1 is constant, its right half and img2 are nearly constant (far from the means of the whole images)
+		Img< FloatType > img1 = ArrayImgs.floats( 40, 30 );
+		Img< FloatType > img2 = ArrayImgs.floats( 40, 30 );
+		Random rnd = new Random( seed );
+
+		Cursor< FloatType > c1 = img1.localizingCursor();
+		while ( c1.hasNext() )
+		{
+			c1.fwd();
+			c1.get().set( c1.getIntPosition( 0 ) < 20 ? 100 : 100 + rnd.nextFloat() * 0.01f );
+		}
+
+		Cursor< FloatType > c2 = img2.localizingCursor();
+		while ( c2.hasNext() )
+		{
+			c2.fwd();
+			c2.get().set( c2.getIntPosition( 0 ) == 39 ? 5000 : 10000 + rnd.nextFloat() * 0.01f );
+		}
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		IntegralImageCrossCorrelation verifier = new IntegralImageCrossCorrelation( img1, img2, service );
+
+		long[][] shifts = new long[][] { { 0, 0 }, { 20, 0 }, { -20, 0 }, { 25, 3 }, { -25, -3 }, { 5, 1 } };
+
+		for ( long[] shift : shifts )
+		{
+			PhaseCorrelationPeak2 expected = new PhaseCorrelationPeak2( new Point( shift ), 1.0 );
+			expected.setShift( new Point( shift ) );
+			PhaseCorrelationPeak2 found = new PhaseCorrelationPeak2( expected );
+
+			expected.calculateCrossCorr( img1, img2, 10 );
+			verifier.calculateCrossCorr( found, 10 );
+
+			assertEquals( expected.getnPixel(), found.getnPixel() );
+			assertEquals( expected.getCrossCorr(), found.getCrossCorr(), 1e-6 );
+		}
+
+		service.shutdown();
+	}
+
+	@Test
+	public void testExtendImageByFactorInto() {
+
+		Img< FloatType > img = ArrayImgs.floats( 13, 9 );
+		Random rnd = new Random( seed );
+
+		for ( FloatType t : img )
+			t.set( rnd.nextFloat() );
+
+		// non-zero min, extension larger than the image in the second dimension
+		RandomAccessibleInterval< FloatType > translated = Views.translate( img, -3, 5 );
+		int[] extension = new int[] { 4, 20 };
+		FinalInterval padding = FFTMethods.paddingIntervalCentered( translated, new FinalInterval( 40, 30 ) );
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		Img< FloatType > fromArray = ArrayImgs.floats( 40, 30 );
+		PhaseCorrelation2Util.extendImageByFactorInto( img, extension, FFTMethods.paddingIntervalCentered( img, new FinalInterval( 40, 30 ) ), fromArray, service );
+		Img< FloatType > fromRandomAccess = ArrayImgs.floats( 40, 30 );
+		PhaseCorrelation2Util.extendImageByFactorInto( translated, extension, padding, fromRandomAccess, service );
+		service.shutdown();
+
+		Cursor< FloatType > cExpected = Views.flatIterable( Views.interval( PhaseCorrelation2Util.extendImageByFactor( translated, extension ), padding ) ).cursor();
+		Cursor< FloatType > cArray = fromArray.cursor();
+		Cursor< FloatType > cRandomAccess = fromRandomAccess.cursor();
+		while ( cExpected.hasNext() )
+		{
+			float expected = cExpected.next().get();
+			assertEquals( expected, cArray.next().get(), 1e-6 );
+			assertEquals( expected, cRandomAccess.next().get(), 1e-6 );
+		}
+	}
+
+	@Test
+	public void testPruneCandidateShifts() {
+
+		FinalInterval img1 = new FinalInterval( 50, 40 );
+		FinalInterval img2 = new FinalInterval( 50, 40 );
+
+		long[][] shifts = new long[][] { { 3, 2 }, { 60, 0 }, { 3, 2 }, { 48, 38 }, { -10, 5 }, { 3, 2 } };
+		double[] phaseCorrs = new double[] { 0.5, 0.9, 0.8, 0.7, 0.1, 0.2 };
+
+		List< PhaseCorrelationPeak2 > peaks = new ArrayList<>();
+		for ( int i = 0; i < shifts.length; ++i )
+		{
+			PhaseCorrelationPeak2 p = new PhaseCorrelationPeak2( new Point( shifts[ i ] ), phaseCorrs[ i ] );
+			p.setShift( new Point( shifts[ i ] ) );
+			peaks.add( p );
+		}
+
+		// (60,0) does not overlap, (48,38) only overlaps in 2x2 pixels
+		int nRemoved = PhaseCorrelation2Util.pruneCandidateShifts( peaks, img1, img2, 10 );
+
+		assertEquals( 4, nRemoved );
+		assertEquals( 2, peaks.size() );
+
+		// duplicates are merged into the one with the highest phase correlation, order is kept
+		long[] shift = new long[ 2 ];
+		peaks.get( 0 ).getShift().localize( shift );
+		assertArrayEquals( new long[] { 3, 2 }, shift );
+		assertEquals( 0.8, peaks.get( 0 ).getPhaseCorr(), 0 );
+
+		peaks.get( 1 ).getShift().localize( shift );
+		assertArrayEquals( new long[] { -10, 5 }, shift );
+	}
+
+	@Test
+	public void testPCBoundedShift() {
+
+		Img< FloatType > img = ArrayImgs.floats( 200, 200 );
+		Random rnd = new Random( seed );
+
+		for( FloatType t : img )
+			t.set( rnd.nextFloat());
+
+		// img2 shows img1 at two shifts: strongly at one outside of a +-3 window, weakly at one inside of it
+		long[] shift = new long[] { -6, 4 };
+		long[] nearShift = new long[] { 2, -1 };
+
+		FinalInterval interval1 = new FinalInterval( new long[] { 50, 50 }, new long[] { 99, 99 } );
+		RandomAccessibleInterval< FloatType > img1 = Views.zeroMin( Views.interval( img, interval1 ) );
+
+		Img< FloatType > img2 = ArrayImgs.floats( 50, 50 );
+		RandomAccess< FloatType > ra = img.randomAccess();
+		Cursor< FloatType > c = img2.localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+
+			float value = 0;
+			for ( int d = 0; d < img.numDimensions(); ++d )
+				ra.setPosition( interval1.min( d ) + c.getLongPosition( d ) + shift[ d ], d );
+			value += 0.6f * ra.get().get();
+
+			for ( int d = 0; d < img.numDimensions(); ++d )
+				ra.setPosition( interval1.min( d ) + c.getLongPosition( d ) + nearShift[ d ], d );
+			value += 0.4f * ra.get().get();
+
+			c.get().set( value );
+		}
+
+		int [] extension = new int[img.numDimensions()];
+		Arrays.fill(extension, 10);
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		RandomAccessibleInterval<FloatType> pcm = PhaseCorrelation2.calculatePCM( img1, img2, extension, new ArrayImgFactory<FloatType>(),
+				new FloatType(), new ArrayImgFactory<ComplexFloatType>(), new ComplexFloatType(), service );
+
+		long[] found = new long[img.numDimensions()];
+
+		// without a bound and with the strong shift inside the window, the strong shift wins
+		for ( long[] maxShift : new long[][] { null, { 8, 8 } } )
+		{
+			PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm, img1, img2, 20, 0, false, false, maxShift, service );
+			shiftPeak.getShift().localize(found);
+			assertArrayEquals(shift, found);
+		}
+
+		// the strong shift is outside the window, so we must get the weak one
+		PhaseCorrelationPeak2 shiftPeak = PhaseCorrelation2.getShift( pcm, img1, img2, 20, 0, false, false, new long[] { 3, 3 }, service );
+		shiftPeak.getShift().localize(found);
+		assertArrayEquals(nearShift, found);
+
+		service.shutdown();
+	}
+
+	@Test
+	public void testPCMSearchWindow() {
+
+		// images of different size, so peaks are expanded to shifts with an offset
+		FinalDimensions pcmDims = new FinalDimensions( 64, 48 );
+		FinalDimensions img1Dims = new FinalDimensions( 50, 40 );
+		FinalDimensions img2Dims = new FinalDimensions( 45, 30 );
+		long[] maxShift = new long[] { 6, 3 };
+
+		Interval window = PhaseCorrelation2Util.getPCMSearchWindow( pcmDims, img1Dims, img2Dims, maxShift );
+		assertArrayEquals( new long[] { 13, 7 }, Intervals.dimensionsAsLongArray( window ) );
+
+		// a PCM peak has shifts within maxShift if and only if it lies in the (periodic) window
+		Cursor< FloatType > c = ArrayImgs.floats( 64, 48 ).localizingCursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			List< PhaseCorrelationPeak2 > shifts = PhaseCorrelation2Util.expandPeakToPossibleShifts(
+					new PhaseCorrelationPeak2( new Point( c ), 1.0 ), pcmDims, img1Dims, img2Dims, maxShift );
+
+			assertEquals( inPeriodicWindow( c, window, pcmDims ), !shifts.isEmpty() );
+			for ( PhaseCorrelationPeak2 p : shifts )
+				for ( int d = 0; d < 2; ++d )
+					assertTrue( Math.abs( p.getShift().getLongPosition( d ) ) <= maxShift[ d ] );
+		}
+
+		// the window wraps around in x, search it in a PCM that is not backed by a single float[]
+		Img< FloatType > img = ArrayImgs.floats( 70, 48 );
+		Random rnd = new Random( seed );
+		for ( FloatType t : img )
+			t.set( rnd.nextFloat() );
+		RandomAccessibleInterval< FloatType > pcm = Views.interval( img, new FinalInterval( 64, 48 ) );
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		List< Pair< Localizable, Double > > expected = new ArrayList<>();
+		for ( Pair< Localizable, Double > p : FourNeighborhoodExtrema.findMaxMT( pcm, 64 * 48, service ) )
+			if ( inPeriodicWindow( p.getA(), window, pcmDims ) )
+				expected.add( p );
+
+		List< Pair< Localizable, Double > > found = FourNeighborhoodExtrema.findMaxMTPeriodic( pcm, window, 5, service );
+
+		assertEquals( Math.min( 5, expected.size() ), found.size() );
+		long[] expectedPos = new long[ 2 ];
+		long[] foundPos = new long[ 2 ];
+		for ( int i = 0; i < found.size(); ++i )
+		{
+			expected.get( i ).getA().localize( expectedPos );
+			found.get( i ).getA().localize( foundPos );
+			assertArrayEquals( expectedPos, foundPos );
+			assertEquals( expected.get( i ).getB(), found.get( i ).getB(), 0 );
+		}
+
+		service.shutdown();
+	}
+
+	private static boolean inPeriodicWindow( Localizable l, Interval window, Dimensions dims )
+	{
+		for ( int d = 0; d < dims.numDimensions(); ++d )
+			if ( Math.floorMod( l.getLongPosition( d ) - window.min( d ), dims.dimension( d ) ) >= window.dimension( d ) )
+				return false;
+		return true;
+	}
+
+
+	@Test
+	public void testPyramidMatchesSingleLevel() {
+
+		// a thin strip of smooth structure: the short dimension is halved only once (minPyramidLevelSize),
+		// the long one on every level
+		final long[] size = new long[] { 500, 60, 1 };
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( size );
+		final float[] pixels = img.update( null ).getCurrentStorageArray();
+		Random rnd = new Random( seed );
+
+		for ( int blob = 0; blob < 400; ++blob )
+		{
+			final double cx = rnd.nextDouble() * size[ 0 ];
+			final double cy = rnd.nextDouble() * size[ 1 ];
+			final double sigma = 2 + 6 * rnd.nextDouble();
+			final double weight = rnd.nextDouble();
+
+			for ( int y = 0; y < size[ 1 ]; ++y )
+				for ( int x = 0; x < size[ 0 ]; ++x )
+					pixels[ y * (int) size[ 0 ] + x ] += weight * Math.exp( -( ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy ) ) / ( 2 * sigma * sigma ) );
+		}
+
+		long shiftX = 23;
+		long shiftY = -5;
+
+		FinalInterval interval1 = new FinalInterval( new long[] { 10, 10, 0 }, new long[] { 409, 49, 0 } );
+		FinalInterval interval2 = Intervals.translate( Intervals.translate( interval1, shiftX, 0 ), shiftY, 1 );
+
+		RandomAccessibleInterval< FloatType > img1 = Views.zeroMin( Views.interval( img, interval1 ) );
+		RandomAccessibleInterval< FloatType > img2 = Views.zeroMin( Views.interval( img, interval2 ) );
+
+		ExecutorService service = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+
+		for ( int pyramidLevels = 0; pyramidLevels <= 3; ++pyramidLevels )
+		{
+			final PairwiseStitchingParameters params = new PairwiseStitchingParameters( 0, 5, false, false, false );
+			params.pyramidLevels = pyramidLevels;
+
+			final Pair< Translation, Double > result = PairwiseStitching.getShift( img1, img2, new Translation3D(), new Translation3D(), params, service );
+
+			assertArrayEquals( new double[] { shiftX, shiftY, 0 }, result.getA().getTranslationCopy(), 0 );
+			assertTrue( result.getB() > 0.9 );
+		}
+
+		service.shutdown();
+	}
+
+	@Test
+	public void testWorkspaceReleaseOnlyOwn() {
+		final Object runA = new Object();
+		final Object runB = new Object();
+		final long[] sizeA = new long[] { 17, 32 };
+		final long[] sizeB = new long[] { 33, 64 };
+
+		PhaseCorrelationWorkspace.clear();
+
+		final PhaseCorrelationWorkspace wA = PhaseCorrelationWorkspace.acquire( sizeA, runA );
+		wA.close();
+		final PhaseCorrelationWorkspace wB = PhaseCorrelationWorkspace.acquire( sizeB, runB );
+		wB.close();
+		assertEquals( wA.sizeInBytes() + wB.sizeInBytes(), PhaseCorrelationWorkspace.pooledBytes() );
+
+		// run A is done, the idle buffers of run B stay pooled and are reused
+		PhaseCorrelationWorkspace.release( runA );
+		assertEquals( wB.sizeInBytes(), PhaseCorrelationWorkspace.pooledBytes() );
+		assertTrue( PhaseCorrelationWorkspace.acquire( sizeB, runB ) == wB );
+
+		// a leased workspace is not dropped, but it is pooled again once returned
+		PhaseCorrelationWorkspace.release( runB );
+		wB.close();
+		assertEquals( wB.sizeInBytes(), PhaseCorrelationWorkspace.pooledBytes() );
+
+		PhaseCorrelationWorkspace.release( runB );
+		assertEquals( 0, PhaseCorrelationWorkspace.pooledBytes() );
+	}
+
 }
@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.SetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class DownsampledViewCacheTest
+{
+	private static final long[] noDownsampling = new long[] { 1, 1, 1 };
+
+	/*
+	 * one 10x10x10 16 bit image (2000 bytes) per setup, loading a setup can be held up until its gate is opened
+	 */
+	private static class TestImgLoader implements ImgLoader
+	{
+		final Img< UnsignedShortType >[] imgs;
+		final AtomicInteger[] loads;
+		final CountDownLatch[] gates;
+		final CountDownLatch[] started;
+
+		@SuppressWarnings( "unchecked" )
+		TestImgLoader( final int numSetups )
+		{
+			imgs = new Img[ numSetups ];
+			loads = new AtomicInteger[ numSetups ];
+			gates = new CountDownLatch[ numSetups ];
+			started = new CountDownLatch[ numSetups ];
+
+			for ( int s = 0; s < numSetups; ++s )
+			{
+				imgs[ s ] = ArrayImgs.unsignedShorts( 10, 10, 10 );
+				loads[ s ] = new AtomicInteger();
+				started[ s ] = new CountDownLatch( 1 );
+			}
+		}
+
+		@Override
+		public SetupImgLoader< ? > getSetupImgLoader( final int setupId )
+		{
+			return new SetupImgLoader< UnsignedShortType >()
+			{
+				@Override
+				public RandomAccessibleInterval< UnsignedShortType > getImage( int timepointId, ImgLoaderHint... hints )
+				{
+					loads[ setupId ].incrementAndGet();
+					started[ setupId ].countDown();
+
+					try
+					{
+						if ( gates[ setupId ] != null )
+							gates[ setupId ].await();
+					}
+					catch ( final InterruptedException e )
+					{
+						throw new RuntimeException( e );
+					}
+
+					return imgs[ setupId ];
+				}
+
+				@Override
+				public UnsignedShortType getImageType() { return new UnsignedShortType(); }
+
+				@Override
+				public RandomAccessibleInterval< FloatType > getFloatImage( int timepointId, boolean normalize, ImgLoaderHint... hints ) { return null; }
+
+				@Override
+				public Dimensions getImageSize( int timepointId ) { return new FinalDimensions( imgs[ setupId ] ); }
+
+				@Override
+				public VoxelDimensions getVoxelSize( int timepointId ) { return null; }
+			};
+		}
+	}
+
+	@Test
+	public void testEstimateSizeInBytes()
+	{
+		final Img< UnsignedShortType > img = ArrayImgs.unsignedShorts( 10, 10, 10 );
+
+		assertEquals( 2000, DownsampledViewCache.estimateSizeInBytes( img ) );
+
+		// a lazy view does not hold any pixels itself
+		assertEquals( 0, DownsampledViewCache.estimateSizeInBytes( Views.zeroMin( Views.translate( img, 5, 5, 5 ) ) ) );
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted()
+	{
+		final TestImgLoader loader = new TestImgLoader( 3 );
+		final DownsampledViewCache cache = new DownsampledViewCache( 4000 );
+
+		cache.get( loader, new ViewId( 0, 0 ), noDownsampling );
+		cache.get( loader, new ViewId( 0, 1 ), noDownsampling );
+
+		// view 0 is used again, so view 1 is the least recently used one
+		assertTrue( cache.get( loader, new ViewId( 0, 0 ), noDownsampling ) == loader.imgs[ 0 ] );
+		assertEquals( 1, loader.loads[ 0 ].get() );
+
+		cache.get( loader, new ViewId( 0, 2 ), noDownsampling );
+
+		assertEquals( 4000, cache.sizeInBytes() );
+		assertNull( cache.getIfPresent( loader, new ViewId( 0, 1 ), noDownsampling ) );
+		assertNotNull( cache.getIfPresent( loader, new ViewId( 0, 0 ), noDownsampling ) );
+		assertNotNull( cache.getIfPresent( loader, new ViewId( 0, 2 ), noDownsampling ) );
+	}
+
+	@Test
+	public void testLoadingViewIsNotEvicted() throws Exception
+	{
+		final TestImgLoader loader = new TestImgLoader( 3 );
+		loader.gates[ 0 ] = new CountDownLatch( 1 );
+
+		final DownsampledViewCache cache = new DownsampledViewCache( 2000 );
+		final ExecutorService service = Executors.newSingleThreadExecutor();
+
+		try
+		{
+			// view 0 is the least recently used entry, but still loading while the others exceed the budget
+			final Future< RandomAccessibleInterval< UnsignedShortType > > first = service.submit( () -> cache.get( loader, new ViewId( 0, 0 ), noDownsampling ) );
+			assertTrue( loader.started[ 0 ].await( 10, TimeUnit.SECONDS ) );
+
+			cache.get( loader, new ViewId( 0, 1 ), noDownsampling );
+			cache.get( loader, new ViewId( 0, 2 ), noDownsampling );
+
+			assertEquals( 2000, cache.sizeInBytes() );
+			assertNull( cache.getIfPresent( loader, new ViewId( 0, 1 ), noDownsampling ) );
+
+			loader.gates[ 0 ].countDown();
+			assertTrue( first.get( 10, TimeUnit.SECONDS ) == loader.imgs[ 0 ] );
+
+			// it was accounted for once loaded (and is the most recently used one now)
+			assertEquals( 2000, cache.sizeInBytes() );
+			assertNotNull( cache.getIfPresent( loader, new ViewId( 0, 0 ), noDownsampling ) );
+			assertNull( cache.getIfPresent( loader, new ViewId( 0, 2 ), noDownsampling ) );
+		}
+		finally
+		{
+			loader.gates[ 0 ].countDown();
+			service.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentRequestsLoadOnce() throws Exception
+	{
+		final TestImgLoader loader = new TestImgLoader( 1 );
+		loader.gates[ 0 ] = new CountDownLatch( 1 );
+
+		final DownsampledViewCache cache = new DownsampledViewCache( 1000000 );
+		final ExecutorService service = Executors.newFixedThreadPool( 2 );
+
+		try
+		{
+			final Future< RandomAccessibleInterval< UnsignedShortType > > first = service.submit( () -> cache.get( loader, new ViewId( 0, 0 ), noDownsampling ) );
+			assertTrue( loader.started[ 0 ].await( 10, TimeUnit.SECONDS ) );
+
+			// the second request finds the view loading and waits for it
+			final AtomicReference< Thread > waiting = new AtomicReference<>();
+			final Future< RandomAccessibleInterval< UnsignedShortType > > second = service.submit( () -> {
+				waiting.set( Thread.currentThread() );
+				return cache.get( loader, new ViewId( 0, 0 ), noDownsampling );
+			} );
+
+			final long timeout = System.currentTimeMillis() + 10000;
+			while ( ( waiting.get() == null || waiting.get().getState() != Thread.State.WAITING ) && System.currentTimeMillis() < timeout )
+				Thread.sleep( 10 );
+
+			loader.gates[ 0 ].countDown();
+
+			assertTrue( first.get( 10, TimeUnit.SECONDS ) == loader.imgs[ 0 ] );
+			assertTrue( second.get( 10, TimeUnit.SECONDS ) == loader.imgs[ 0 ] );
+			assertEquals( 1, loader.loads[ 0 ].get() );
+			assertEquals( 2000, cache.sizeInBytes() );
+		}
+		finally
+		{
+			loader.gates[ 0 ].countDown();
+			service.shutdown();
+		}
+	}
+}
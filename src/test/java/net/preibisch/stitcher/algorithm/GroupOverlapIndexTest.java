@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.FinalDimensions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class GroupOverlapIndexTest
+{
+	private final List< ViewSetup > setups = new ArrayList<>();
+	private final List< ViewRegistration > registrations = new ArrayList<>();
+
+	@Test
+	public void testCandidatePairsMatchBruteForce()
+	{
+		final Random rnd = new Random( 2342 );
+		final long[] size = new long[] { 100, 80, 20 };
+
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		// world space box of each group { min, max }, null if the size of a view is unknown
+		final List< double[][] > boxes = new ArrayList<>();
+
+		// a 7x7 grid with ~10% overlap, jittered so that some neighbors overlap and some do not
+		for ( int y = 0; y < 7; ++y )
+			for ( int x = 0; x < 7; ++x )
+			{
+				final double[] pos = new double[] { x * 90 + 24 * ( rnd.nextDouble() - 0.5 ), y * 70 + 24 * ( rnd.nextDouble() - 0.5 ), 10 * ( rnd.nextDouble() - 0.5 ) };
+				groups.add( new Group<>( addView( size, pos ) ) );
+				boxes.add( box( size, pos ) );
+			}
+
+		// a group of two views, its box covers both
+		final double[] pos0 = new double[] { 200, 150, 0 };
+		final double[] pos1 = new double[] { 230, 160, 5 };
+		groups.add( 3, new Group<>( Arrays.asList( addView( size, pos0 ), addView( size, pos1 ) ) ) );
+		boxes.add( 3, union( box( size, pos0 ), box( size, pos1 ) ) );
+
+		// boxes covering more than maxCellsPerBox cells (~10000 here) are not put into the grid, one overlaps everything, one nothing
+		final long[] hugeSize = new long[] { 8000, 8000, 8000 };
+		final double[] hugePos = new double[] { -4000, -4000, -4000 };
+		groups.add( 10, new Group<>( addView( hugeSize, hugePos ) ) );
+		boxes.add( 10, box( hugeSize, hugePos ) );
+
+		final double[] farPos = new double[] { 1e5, 1e5, 1e5 };
+		groups.add( 20, new Group<>( addView( hugeSize, farPos ) ) );
+		boxes.add( 20, box( hugeSize, farPos ) );
+
+		// unknown size, always a candidate
+		groups.add( 30, new Group<>( addView( null, new double[ 3 ] ) ) );
+		boxes.add( 30, null );
+
+		final SequenceDescription sd = new SequenceDescription( new TimePoints( Arrays.asList( new TimePoint( 0 ) ) ), setups, null, null );
+		final GroupOverlapIndex< ViewId > index = new GroupOverlapIndex<>( groups, new ViewRegistrations( registrations ), sd );
+
+		final List< List< Integer > > expected = new ArrayList<>();
+		for ( int i = 0; i < groups.size(); ++i )
+			for ( int j = i + 1; j < groups.size(); ++j )
+				if ( boxes.get( i ) == null || boxes.get( j ) == null || intersect( boxes.get( i ), boxes.get( j ) ) )
+					expected.add( Arrays.asList( i, j ) );
+
+		final List< List< Integer > > candidates = new ArrayList<>();
+		for ( final int[] pair : index.candidatePairs() )
+			candidates.add( Arrays.asList( pair[ 0 ], pair[ 1 ] ) );
+
+		// same pairs, each once, sorted by i, then j
+		assertEquals( expected, candidates );
+
+		// the grid actually prunes something
+		assertTrue( expected.size() < groups.size() * ( groups.size() - 1 ) / 2 );
+
+		for ( int i = 0; i < groups.size(); ++i )
+			for ( int j = 0; j < groups.size(); ++j )
+				if ( i != j )
+					assertEquals( boxes.get( i ) == null || boxes.get( j ) == null || intersect( boxes.get( i ), boxes.get( j ) ), index.mayOverlap( i, j ) );
+	}
+
+	@Test
+	public void testCalibratedAndRotatedMatchMaximalGroupOverlap()
+	{
+		final long[] size = new long[] { 100, 80, 20 };
+
+		// anisotropic calibration, applied first (the last entry of the transform list)
+		final AffineTransform3D calibration = new AffineTransform3D();
+		calibration.set( 3.0, 2, 2 );
+
+		final AffineTransform3D rotation = new AffineTransform3D();
+		rotation.rotate( 2, Math.PI / 2 );
+
+		final List< Group< ViewId > > groups = new ArrayList<>();
+
+		// stacked in z: 0 and 1 only overlap if the z-translation is not scaled by the calibration, 1 and 2 overlap, 0 and 2 do not
+		groups.add( new Group<>( addView( size, calibration, translation( 0, 0, 0 ) ) ) );
+		groups.add( new Group<>( addView( size, calibration, translation( 0, 0, 50 ) ) ) );
+		groups.add( new Group<>( addView( size, calibration, translation( 0, 0, 100 ) ) ) );
+
+		// rotated by 90 degrees around z: one next to (and overlapping) 0 and 1, one far away from all others
+		groups.add( new Group<>( addView( size, calibration, rotation, translation( 150, 0, 0 ) ) ) );
+		groups.add( new Group<>( addView( size, calibration, rotation, translation( 300, 0, 0 ) ) ) );
+
+		final SequenceDescription sd = new SequenceDescription( new TimePoints( Arrays.asList( new TimePoint( 0 ) ) ), setups, null, null );
+		final ViewRegistrations vrs = new ViewRegistrations( registrations );
+		final GroupOverlapIndex< ViewId > index = new GroupOverlapIndex<>( groups, vrs, sd );
+
+		int nOverlapping = 0;
+		for ( int i = 0; i < groups.size(); ++i )
+			for ( int j = 0; j < groups.size(); ++j )
+			{
+				if ( i == j )
+					continue;
+
+				final List< List< ViewId > > views = new ArrayList<>();
+				views.add( new ArrayList<>( groups.get( i ).getViews() ) );
+				views.add( new ArrayList<>( groups.get( j ).getViews() ) );
+				final boolean overlaps = new BoundingBoxMaximalGroupOverlap< ViewId >( views, sd, vrs ).estimate( "Max Overlap" ) != null;
+
+				assertEquals( "groups " + i + " and " + j, overlaps, index.mayOverlap( i, j ) );
+
+				if ( overlaps )
+					++nOverlapping;
+			}
+
+		// 0-1, 1-2, 0-3 and 1-3 in both orders
+		assertEquals( 8, nOverlapping );
+	}
+
+	private static AffineTransform3D translation( final double... pos )
+	{
+		final AffineTransform3D m = new AffineTransform3D();
+		m.translate( pos );
+		return m;
+	}
+
+	/*
+	 * a view registered with the given transforms, applied in the given order (i.e. each one preconcatenated)
+	 */
+	private ViewId addView( final long[] size, final AffineTransform3D... transforms )
+	{
+		final int id = setups.size();
+		setups.add( new ViewSetup( id, "setup " + id, new FinalDimensions( size ), new FinalVoxelDimensions( "px", 1, 1, 3 ),
+				new Tile( id ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+
+		final ViewRegistration vr = new ViewRegistration( 0, id );
+		for ( final AffineTransform3D t : transforms )
+			vr.preconcatenateTransform( new ViewTransformAffine( "Transform", t ) );
+		vr.updateModel();
+		registrations.add( vr );
+
+		return new ViewId( 0, id );
+	}
+
+	private ViewId addView( final long[] size, final double[] pos )
+	{
+		final int id = setups.size();
+		setups.add( new ViewSetup( id, "setup " + id, size == null ? null : new FinalDimensions( size ), new FinalVoxelDimensions( "px", 1, 1, 1 ),
+				new Tile( id ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+
+		final AffineTransform3D m = new AffineTransform3D();
+		m.translate( pos );
+
+		final ViewRegistration vr = new ViewRegistration( 0, id );
+		vr.preconcatenateTransform( new ViewTransformAffine( "Translation", m ) );
+		vr.updateModel();
+		registrations.add( vr );
+
+		return new ViewId( 0, id );
+	}
+
+	// the box of a translated view, including the outer half pixel
+	private static double[][] box( final long[] size, final double[] pos )
+	{
+		final double[][] box = new double[ 2 ][ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			box[ 0 ][ d ] = pos[ d ] - 0.5;
+			box[ 1 ][ d ] = pos[ d ] + size[ d ] - 0.5;
+		}
+		return box;
+	}
+
+	private static double[][] union( final double[][] a, final double[][] b )
+	{
+		final double[][] box = new double[ 2 ][ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			box[ 0 ][ d ] = Math.min( a[ 0 ][ d ], b[ 0 ][ d ] );
+			box[ 1 ][ d ] = Math.max( a[ 1 ][ d ], b[ 1 ][ d ] );
+		}
+		return box;
+	}
+
+	private static boolean intersect( final double[][] a, final double[][] b )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( a[ 0 ][ d ] > b[ 1 ][ d ] || b[ 0 ][ d ] > a[ 1 ][ d ] )
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,145 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
+import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximalGroupOverlap;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.input.GenerateSpimData;
+
+public class OverlapGeometryCacheTest
+{
+	/*
+	 * the three channels of every tile of GenerateSpimData.grid3x2() (tile i has setups i, i + 4 and i + 8)
+	 */
+	private static Group< ViewId > tile( final int tile )
+	{
+		return new Group<>( Arrays.asList( new ViewId( 0, tile ), new ViewId( 0, tile + 4 ), new ViewId( 0, tile + 8 ) ) );
+	}
+
+	private static BoundingBox uncached( final Group< ViewId > groupA, final Group< ViewId > groupB, final SpimData data )
+	{
+		final List< List< ViewId > > views = new ArrayList<>();
+		views.add( new ArrayList<>( groupA.getViews() ) );
+		views.add( new ArrayList<>( groupB.getViews() ) );
+		return new BoundingBoxMaximalGroupOverlap< ViewId >( views, data.getSequenceDescription(), data.getViewRegistrations() ).estimate( "Max Overlap" );
+	}
+
+	private static void assertSameOverlap( final BoundingBox expected, final BoundingBox actual )
+	{
+		if ( expected == null )
+		{
+			assertNull( actual );
+			return;
+		}
+
+		assertNotNull( actual );
+		assertArrayEquals( expected.getMin(), actual.getMin() );
+		assertArrayEquals( expected.getMax(), actual.getMax() );
+	}
+
+	@Test
+	public void testSameAsUncached()
+	{
+		OverlapGeometryCache.clear();
+
+		final SpimData data = GenerateSpimData.grid3x2();
+
+		// side by side, diagonal and (after moving tile 3 away) not overlapping at all
+		for ( final int[] tiles : new int[][] { { 0, 1 }, { 0, 2 }, { 0, 3 }, { 1, 2 } } )
+		{
+			final BoundingBox expected = uncached( tile( tiles[ 0 ] ), tile( tiles[ 1 ] ), data );
+
+			// computed, then from the cache
+			assertSameOverlap( expected, OverlapGeometryCache.getOverlap( tile( tiles[ 0 ] ), tile( tiles[ 1 ] ), data ) );
+
+			final BoundingBox cached = OverlapGeometryCache.getOverlap( tile( tiles[ 0 ] ), tile( tiles[ 1 ] ), data );
+			assertSameOverlap( expected, cached );
+
+			// callers get copies
+			if ( cached != null )
+				cached.getMin()[ 0 ] -= 1000;
+
+			assertSameOverlap( expected, OverlapGeometryCache.getOverlap( tile( tiles[ 0 ] ), tile( tiles[ 1 ] ), data ) );
+		}
+
+		shift( data, 3, 10000 );
+		assertNull( uncached( tile( 0 ), tile( 3 ), data ) );
+		assertNull( OverlapGeometryCache.getOverlap( tile( 0 ), tile( 3 ), data ) );
+	}
+
+	@Test
+	public void testInvalidatedOnRegistrationChange()
+	{
+		OverlapGeometryCache.clear();
+
+		final SpimData data = GenerateSpimData.grid3x2();
+
+		final BoundingBox before = OverlapGeometryCache.getOverlap( tile( 0 ), tile( 1 ), data );
+		assertSameOverlap( uncached( tile( 0 ), tile( 1 ), data ), before );
+
+		// tile 1 moves 100 px towards tile 0, the overlap grows
+		shift( data, 1, -100 );
+
+		final BoundingBox after = OverlapGeometryCache.getOverlap( tile( 0 ), tile( 1 ), data );
+		assertSameOverlap( uncached( tile( 0 ), tile( 1 ), data ), after );
+		assertEquals( before.getMin()[ 0 ] - 100, after.getMin()[ 0 ] );
+
+		// a single view of the group moving back also invalidates the entry
+		shift( data, 1 + 4, 100 );
+		assertSameOverlap( uncached( tile( 0 ), tile( 1 ), data ), OverlapGeometryCache.getOverlap( tile( 0 ), tile( 1 ), data ) );
+	}
+
+	/*
+	 * move all views of a tile (or a single setup if it is not a tile index) along x
+	 */
+	private static void shift( final SpimData data, final int setupOrTile, final double dx )
+	{
+		final List< Integer > setups = setupOrTile < 4 ? Arrays.asList( setupOrTile, setupOrTile + 4, setupOrTile + 8 ) : Arrays.asList( setupOrTile );
+
+		for ( final int setup : setups )
+		{
+			final AffineTransform3D translation = new AffineTransform3D();
+			translation.set( dx, 0, 3 );
+
+			final ViewRegistration vr = data.getViewRegistrations().getViewRegistration( new ViewId( 0, setup ) );
+			vr.preconcatenateTransform( new ViewTransformAffine( "Shift", translation ) );
+			vr.updateModel();
+		}
+	}
+}
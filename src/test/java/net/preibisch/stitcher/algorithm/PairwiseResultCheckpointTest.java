@@ -0,0 +1,217 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class PairwiseResultCheckpointTest
+{
+	private static final long[] ds = new long[] { 2, 2, 1 };
+
+	@Test
+	public void testWriteAndResume() throws IOException
+	{
+		final File file = File.createTempFile( "checkpoint", ".txt" );
+		file.deleteOnExit();
+
+		final ViewRegistrations vrs = registrations( 0.0 );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = pairs();
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+
+		final List< PairwiseStitchingResult< ViewId > > results = new ArrayList<>();
+		results.add( result( pairs.get( 0 ), vrs, 0.9, new double[] { 1.5, -2, 0.25 }, new FinalRealInterval( new double[] { 0, 0, 0 }, new double[] { 10.5, 20, 5 } ) ) );
+		results.add( result( pairs.get( 1 ), vrs, 0.45, new double[] { -3, 0, 7 }, null ) );
+
+		final PairwiseResultCheckpoint checkpoint = new PairwiseResultCheckpoint( file, ds, params, aggregator(), false );
+		assertEquals( 0, checkpoint.open( pairs, vrs ).size() );
+		results.forEach( checkpoint::add );
+		checkpoint.close();
+
+		// resuming twice gives back the same results and does not duplicate the lines
+		for ( int i = 0; i < 2; ++i )
+		{
+			final PairwiseResultCheckpoint resumed = new PairwiseResultCheckpoint( file, ds, params, aggregator(), true );
+			final ArrayList< PairwiseStitchingResult< ViewId > > finished = resumed.open( pairs, vrs );
+			resumed.close();
+
+			assertEquals( 2, finished.size() );
+			for ( int j = 0; j < 2; ++j )
+				assertResultEquals( results.get( j ), finished.get( j ) );
+
+			assertEquals( 2, Files.readAllLines( file.toPath() ).size() );
+		}
+
+		assertFalse( new File( file.getParentFile(), file.getName() + ".tmp" ).exists() );
+
+		new PairwiseResultCheckpoint( file, ds, params, aggregator(), true ).delete();
+		assertFalse( file.exists() );
+	}
+
+	@Test
+	public void testResumeOnlyMatchingResults() throws IOException
+	{
+		final File file = File.createTempFile( "checkpoint", ".txt" );
+		file.deleteOnExit();
+
+		final ViewRegistrations vrs = registrations( 0.0 );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = pairs();
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+
+		final PairwiseResultCheckpoint checkpoint = new PairwiseResultCheckpoint( file, ds, params, aggregator(), false );
+		checkpoint.open( pairs, vrs );
+		checkpoint.add( result( pairs.get( 0 ), vrs, 0.9, new double[] { 1, 2, 3 }, null ) );
+		checkpoint.add( result( pairs.get( 1 ), vrs, 0.8, new double[] { 4, 5, 6 }, null ) );
+		checkpoint.close();
+
+		// different aggregation of grouped views
+		assertEquals( 0, resume( file, ds, params, null, pairs, vrs ) );
+
+		// different parameters
+		final PairwiseStitchingParameters otherParams = new PairwiseStitchingParameters();
+		otherParams.peaksToCheck = params.peaksToCheck + 1;
+		assertEquals( 0, resume( file, ds, otherParams, aggregator(), pairs, vrs ) );
+
+		// resuming keeps only what matched, so the file is empty now
+		assertEquals( 0, Files.readAllLines( file.toPath() ).size() );
+
+		final PairwiseResultCheckpoint again = new PairwiseResultCheckpoint( file, ds, params, aggregator(), false );
+		again.open( pairs, vrs );
+		again.add( result( pairs.get( 0 ), vrs, 0.9, new double[] { 1, 2, 3 }, null ) );
+		again.add( result( pairs.get( 1 ), vrs, 0.8, new double[] { 4, 5, 6 }, null ) );
+		again.close();
+
+		// view 2 (only in the second pair) moved since the results were computed
+		assertEquals( 1, resume( file, ds, params, aggregator(), pairs, registrations( 5.0 ) ) );
+	}
+
+	private static int resume(
+			final File file,
+			final long[] ds,
+			final PairwiseStitchingParameters params,
+			final GroupedViewAggregator gva,
+			final List< Pair< Group< ViewId >, Group< ViewId > > > pairs,
+			final ViewRegistrations vrs )
+	{
+		final PairwiseResultCheckpoint checkpoint = new PairwiseResultCheckpoint( file, ds, params, gva, true );
+		final int n = checkpoint.open( pairs, vrs ).size();
+		checkpoint.close();
+		return n;
+	}
+
+	private static GroupedViewAggregator aggregator()
+	{
+		final GroupedViewAggregator gva = new GroupedViewAggregator();
+		gva.addAction( GroupedViewAggregator.ActionType.PICK_BRIGHTEST, Channel.class, null );
+		return gva;
+	}
+
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > pairs()
+	{
+		final Group< ViewId > g0 = new Group<>( Arrays.asList( new ViewId( 0, 0 ), new ViewId( 0, 1 ) ) );
+		final Group< ViewId > g1 = new Group<>( Arrays.asList( new ViewId( 0, 2 ) ) );
+		final Group< ViewId > g2 = new Group<>( Arrays.asList( new ViewId( 0, 3 ) ) );
+
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+		pairs.add( new ValuePair<>( g0, g2 ) );
+		pairs.add( new ValuePair<>( g1, g2 ) );
+		return pairs;
+	}
+
+	// view setups 0..3 at different positions, setup 2 shifted by offset
+	private static ViewRegistrations registrations( final double offset )
+	{
+		final List< ViewRegistration > registrations = new ArrayList<>();
+		for ( int setup = 0; setup < 4; ++setup )
+		{
+			final AffineTransform3D m = new AffineTransform3D();
+			m.translate( 100 * setup + ( setup == 2 ? offset : 0 ), 0, 0 );
+
+			final ViewRegistration vr = new ViewRegistration( 0, setup );
+			vr.preconcatenateTransform( new ViewTransformAffine( "Translation", m ) );
+			vr.updateModel();
+			registrations.add( vr );
+		}
+		return new ViewRegistrations( registrations );
+	}
+
+	private static PairwiseStitchingResult< ViewId > result(
+			final Pair< Group< ViewId >, Group< ViewId > > pair,
+			final ViewRegistrations vrs,
+			final double r,
+			final double[] shift,
+			final RealInterval bb )
+	{
+		final AffineTransform3D t = new AffineTransform3D();
+		t.translate( shift );
+
+		final double hash = PairwiseStitchingResult.calculateHash(
+				vrs.getViewRegistration( pair.getA().getViews().iterator().next() ),
+				vrs.getViewRegistration( pair.getB().getViews().iterator().next() ) );
+
+		return new PairwiseStitchingResult<>( pair, bb, t, r, hash );
+	}
+
+	private static void assertResultEquals( final PairwiseStitchingResult< ViewId > expected, final PairwiseStitchingResult< ViewId > actual )
+	{
+		assertEquals( expected.pair().getA(), actual.pair().getA() );
+		assertEquals( expected.pair().getB(), actual.pair().getB() );
+		assertEquals( expected.r(), actual.r(), 0 );
+		assertEquals( expected.getHash(), actual.getHash(), 0 );
+		assertArrayEquals( expected.getTransform().getRowPackedCopy(), actual.getTransform().getRowPackedCopy(), 0 );
+
+		if ( expected.getBoundingBox() == null )
+		{
+			assertEquals( null, actual.getBoundingBox() );
+			return;
+		}
+
+		for ( int d = 0; d < expected.getBoundingBox().numDimensions(); ++d )
+		{
+			assertEquals( expected.getBoundingBox().realMin( d ), actual.getBoundingBox().realMin( d ), 0 );
+			assertEquals( expected.getBoundingBox().realMax( d ), actual.getBoundingBox().realMax( d ), 0 );
+		}
+	}
+}
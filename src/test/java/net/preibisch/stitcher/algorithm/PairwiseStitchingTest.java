@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.Translation;
+import net.imglib2.realtransform.TranslationGet;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters;
+import net.preibisch.stitcher.algorithm.lucaskanade.LucasKanadeParameters.WarpFunctionType;
+
+public class PairwiseStitchingTest
+{
+	public static long seed = 6217;
+
+	/*
+	 * a row of three 2d tiles cut from one random image, each overlapping the next, and a fourth tile far away from them
+	 */
+	private static final long[][] tileMin = new long[][] { { 0, 0 }, { 60, 3 }, { 120, 0 }, { 20, 70 } };
+	private static final double[][] tileTranslation = new double[][] { { 0, 0 }, { 62, 2 }, { 119, 0 }, { 1000, 1000 } };
+	private static final long tileSize = 80;
+
+	@Test
+	public void testParallelShiftsMatchSequential()
+	{
+		final Map< Integer, RandomAccessibleInterval< FloatType > > rais = tiles();
+		final Map< Integer, TranslationGet > translations = translations();
+
+		final PairwiseStitchingParameters params = new PairwiseStitchingParameters();
+		params.manualNumTasks = true;
+		params.numTasks = 2;
+
+		final List< PairwiseStitchingResult< Integer > > sequential;
+		final ExecutorService service = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			sequential = PairwiseStitching.getPairwiseShifts( rais, translations, params, service );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		assertSameResults( sequential, PairwiseStitching.getPairwiseShiftsParallel( rais, translations, params ) );
+	}
+
+	@Test
+	public void testParallelLucasKanadeMatchesSequential()
+	{
+		final Map< Integer, RandomAccessibleInterval< FloatType > > rais = tiles();
+		final Map< Integer, TranslationGet > translations = translations();
+
+		final LucasKanadeParameters params = new LucasKanadeParameters( WarpFunctionType.TRANSLATION, 20, 0.01, false, true, 2 );
+
+		final List< PairwiseStitchingResult< Integer > > sequential;
+		final ExecutorService service = Executors.newFixedThreadPool( 2 );
+		try
+		{
+			sequential = PairwiseStitching.getPairwiseShiftsLucasKanade( rais, translations, params, service );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		assertSameResults( sequential, PairwiseStitching.getPairwiseShiftsLucasKanadeParallel( rais, translations, params ) );
+	}
+
+	/*
+	 * same pairs in the same order, with the same shifts and correlations. The sequential versions put both
+	 * indices into the first group of the key, so only the indices of both groups together are compared.
+	 */
+	private static void assertSameResults( final List< PairwiseStitchingResult< Integer > > expected, final List< PairwiseStitchingResult< Integer > > actual )
+	{
+		// only neighbors in the row overlap, that leaves the pairs 0-1 and 1-2
+		assertEquals( 2, expected.size() );
+		assertEquals( expected.size(), actual.size() );
+
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			assertEquals( indices( expected.get( i ) ), indices( actual.get( i ) ) );
+			assertEquals( expected.get( i ).r(), actual.get( i ).r(), 1e-9 );
+			assertArrayEquals( expected.get( i ).getTransform().getRowPackedCopy(), actual.get( i ).getTransform().getRowPackedCopy(), 1e-9 );
+		}
+
+		// the parallel versions key results by ( {a}, {b} )
+		for ( final PairwiseStitchingResult< Integer > result : actual )
+			assertEquals( 1, result.pair().getA().getViews().size() );
+	}
+
+	private static Set< Integer > indices( final PairwiseStitchingResult< Integer > result )
+	{
+		final Set< Integer > indices = new HashSet<>( result.pair().getA().getViews() );
+		indices.addAll( result.pair().getB().getViews() );
+		return indices;
+	}
+
+	private static Map< Integer, RandomAccessibleInterval< FloatType > > tiles()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( 200, 150 );
+		final Random rnd = new Random( seed );
+		for ( final FloatType t : img )
+			t.set( rnd.nextFloat() );
+
+		final Map< Integer, RandomAccessibleInterval< FloatType > > rais = new HashMap<>();
+		for ( int i = 0; i < tileMin.length; ++i )
+			rais.put( i, Views.zeroMin( Views.interval( img, tileMin[ i ], new long[] { tileMin[ i ][ 0 ] + tileSize - 1, tileMin[ i ][ 1 ] + tileSize - 1 } ) ) );
+
+		return rais;
+	}
+
+	private static Map< Integer, TranslationGet > translations()
+	{
+		final Map< Integer, TranslationGet > translations = new HashMap<>();
+		for ( int i = 0; i < tileTranslation.length; ++i )
+			translations.put( i, new Translation( tileTranslation[ i ] ) );
+
+		return translations;
+	}
+}
@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.SetupImgLoader;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
+
+public class RAIProxyTest
+{
+	public static long seed = 4353;
+
+	@Test
+	public void testRegionOfInterestMatchesOpenAndDownsample()
+	{
+		final Img< UnsignedShortType > view = new CellImgFactory<>( new UnsignedShortType(), 16 ).create( 70, 45, 21 );
+		final Random rnd = new Random( seed );
+		for ( final UnsignedShortType t : view )
+			t.set( rnd.nextInt( 4096 ) );
+
+		final ImgLoader imgLoader = new ImgLoader()
+		{
+			@Override
+			public SetupImgLoader< ? > getSetupImgLoader( int setupId )
+			{
+				return new SetupImgLoader< UnsignedShortType >()
+				{
+					@Override
+					public RandomAccessibleInterval< UnsignedShortType > getImage( int timepointId, ImgLoaderHint... hints ) { return view; }
+
+					@Override
+					public UnsignedShortType getImageType() { return new UnsignedShortType(); }
+
+					@Override
+					public RandomAccessibleInterval< FloatType > getFloatImage( int timepointId, boolean normalize, ImgLoaderHint... hints ) { return null; }
+
+					@Override
+					public Dimensions getImageSize( int timepointId ) { return new FinalDimensions( view ); }
+
+					@Override
+					public VoxelDimensions getVoxelSize( int timepointId ) { return null; }
+				};
+			}
+		};
+
+		final ViewId vid = new ViewId( 0, 0 );
+
+		// odd sums of neighbors (rounding of integer types), crops at odd positions and at the border of the view,
+		// and a factor that is not a power of two (DownsampleTools rounds it, the view is loaded as a whole)
+		final long[][] factors = new long[][] { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 2, 2 }, { 3, 3, 1 } };
+		final RealInterval[] rois = new RealInterval[] {
+				new FinalRealInterval( new double[] { 3.5, 7, 2 }, new double[] { 30, 20.2, 9 } ),
+				new FinalRealInterval( new double[] { 50, 0, 0 }, new double[] { 69, 44, 20 } ),
+				// large enough to be loaded through the cache
+				new FinalRealInterval( new double[] { 10, 0, 0 }, new double[] { 69, 44, 20 } ) };
+
+		for ( final long[] ds : factors )
+		{
+			@SuppressWarnings( "unchecked" )
+			final RandomAccessibleInterval< UnsignedShortType > expected = (RandomAccessibleInterval< UnsignedShortType >) DownsampleTools.openAndDownsample( imgLoader, vid, ds ).getA();
+
+			for ( final RealInterval roi : rois )
+			{
+				for ( final DownsampledViewCache cache : new DownsampledViewCache[] { null, new DownsampledViewCache() } )
+				{
+					final RAIProxy< UnsignedShortType > proxy = new RAIProxy<>( imgLoader, vid, ds, cache, roi );
+
+					// the size reported before loading must not change once the pixels are loaded
+					assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( proxy ) );
+					proxy.load();
+					assertArrayEquals( Intervals.dimensionsAsLongArray( expected ), Intervals.dimensionsAsLongArray( proxy ) );
+
+					// the region of interest in downsampled coordinates must be identical
+					final RealInterval roiDs = DownsampleTools.getMipMapTransform( imgLoader, vid, ds ).inverse().estimateBounds( roi );
+					final long[] min = new long[ 3 ];
+					final long[] max = new long[ 3 ];
+					for ( int d = 0; d < 3; ++d )
+					{
+						min[ d ] = Math.max( expected.min( d ), (long) Math.floor( roiDs.realMin( d ) ) );
+						max[ d ] = Math.min( expected.max( d ), (long) Math.ceil( roiDs.realMax( d ) ) );
+					}
+
+					final Cursor< UnsignedShortType > c = Views.interval( expected, new FinalInterval( min, max ) ).localizingCursor();
+					final RandomAccess< UnsignedShortType > ra = proxy.randomAccess();
+
+					while ( c.hasNext() )
+					{
+						final int value = c.next().get();
+						ra.setPosition( c );
+						assertEquals( value, ra.get().get() );
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TaskUtilTest
+{
+	@Test
+	public void testCostAdmission() throws Exception
+	{
+		final long[] costs = new long[] { 3, 3, 3, 10, 2, 2, 2, 2 };
+		final long maxCost = 6;
+		final int maxConcurrent = 3;
+
+		final AtomicInteger runningTasks = new AtomicInteger();
+		final AtomicLong runningCost = new AtomicLong();
+		final AtomicInteger maxRunningTasks = new AtomicInteger();
+		final AtomicBoolean overBudget = new AtomicBoolean();
+
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+		for ( int i = 0; i < costs.length; ++i )
+		{
+			final int index = i;
+			tasks.add( () -> {
+				final int n = runningTasks.incrementAndGet();
+				final long cost = runningCost.addAndGet( costs[ index ] );
+				maxRunningTasks.accumulateAndGet( n, Math::max );
+
+				// a task that exceeds the budget on its own must run alone, all others within the budget
+				if ( costs[ index ] > maxCost ? n != 1 : cost > maxCost )
+					overBudget.set( true );
+
+				Thread.sleep( 20 );
+
+				runningCost.addAndGet( -costs[ index ] );
+				runningTasks.decrementAndGet();
+				return index;
+			} );
+		}
+
+		// more threads than tasks, so only invokeAllBounded limits what runs at once
+		final ExecutorService service = Executors.newFixedThreadPool( costs.length );
+		final List< Integer > completed = new ArrayList<>();
+
+		try
+		{
+			final List< Integer > results = TaskUtil.invokeAllBounded( tasks, maxConcurrent, costs, maxCost, service, completed::add );
+
+			for ( int i = 0; i < costs.length; ++i )
+				assertEquals( i, results.get( i ).intValue() );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		assertEquals( costs.length, completed.size() );
+		assertFalse( overBudget.get() );
+		assertTrue( maxRunningTasks.get() <= maxConcurrent );
+	}
+
+	@Test
+	public void testCancelOnFailure() throws Exception
+	{
+		final CountDownLatch secondStarted = new CountDownLatch( 1 );
+		final CountDownLatch secondInterrupted = new CountDownLatch( 1 );
+		final AtomicBoolean thirdStarted = new AtomicBoolean();
+
+		final List< Callable< Integer > > tasks = new ArrayList<>();
+
+		// fails once the second one is running
+		tasks.add( () -> {
+			secondStarted.await();
+			throw new IllegalStateException( "failed" );
+		} );
+
+		// runs until it is cancelled
+		tasks.add( () -> {
+			secondStarted.countDown();
+			try
+			{
+				Thread.sleep( 60000 );
+			}
+			catch ( final InterruptedException e )
+			{
+				secondInterrupted.countDown();
+			}
+			return 1;
+		} );
+
+		tasks.add( () -> {
+			thirdStarted.set( true );
+			return 2;
+		} );
+
+		final ExecutorService service = Executors.newFixedThreadPool( 3 );
+
+		try
+		{
+			TaskUtil.invokeAllBounded( tasks, 2, service );
+			fail( "the failure of a task must be propagated" );
+		}
+		catch ( final ExecutionException e )
+		{
+			assertTrue( e.getCause() instanceof IllegalStateException );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+
+		assertTrue( secondInterrupted.await( 10, TimeUnit.SECONDS ) );
+		assertFalse( thirdStarted.get() );
+	}
+}
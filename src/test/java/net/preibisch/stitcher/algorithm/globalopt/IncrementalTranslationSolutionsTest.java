@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class IncrementalTranslationSolutionsTest
+{
+	/*
+	 * two chains of groups, setups 0-2 (setup 0 fixed) and setups 10-11 (setup 10 fixed)
+	 */
+	private static final int[] setups = new int[] { 0, 1, 2, 10, 11 };
+
+	@Test
+	public void testSecondRunAfterLinkEditReusesCache()
+	{
+		final ViewRegistrations vrs = registrations();
+		final List< ViewId > fixed = Arrays.asList( new ViewId( 0, 0 ), new ViewId( 0, 10 ) );
+
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+		links.add( link( 0, 1, new double[] { 101, 2, 0 }, vrs ) );
+		links.add( link( 1, 2, new double[] { 99, -1, 1 }, vrs ) );
+		links.add( link( 10, 11, new double[] { 100, 3, 0 }, vrs ) );
+
+		final IncrementalTranslationSolutions solutions = new IncrementalTranslationSolutions();
+
+		// first run, both connected sets are solved and applied
+		final List< String > log = new ArrayList<>();
+		final List< PairwiseStitchingResult< ViewId > > firstLinks = GlobalOptStitcher.upToDateLinks( links, vid -> solutions.registrationBeforeSolution( vrs.getViewRegistration( vid ) ) );
+		assertEquals( 3, firstLinks.size() );
+
+		final HashMap< ViewId, AffineTransform3D > first = LinearTranslationSolver.computeTranslations( firstLinks, fixed, groups(), solutions.getCache(), false, log::add );
+		assertTrue( log.get( 0 ).contains( "2 connected set(s) (2 solved)" ) );
+
+		final int numTransforms = vrs.getViewRegistration( new ViewId( 0, 11 ) ).getTransformList().size();
+		first.forEach( (k, v) -> solutions.apply( vrs.getViewRegistration( k ), v ) );
+
+		// the applied solution changed the registrations the links were computed for
+		assertEquals( 0, GlobalOptStitcher.upToDateLinks( links, vid -> vrs.getViewRegistration( vid ) ).size() );
+
+		// edit the link of the second chain, like removing and re-adding it while curating
+		final List< PairwiseStitchingResult< ViewId > > editedLinks = new ArrayList<>( links.subList( 0, 2 ) );
+		editedLinks.add( new PairwiseStitchingResult<>( links.get( 2 ).pair(), null, translation( new double[] { 104, 3, 0 } ), 1.0, links.get( 2 ).getHash() ) );
+
+		// second run, all links are still valid without the last solution and only the edited connected set is solved
+		log.clear();
+		final List< PairwiseStitchingResult< ViewId > > secondLinks = GlobalOptStitcher.upToDateLinks( editedLinks, vid -> solutions.registrationBeforeSolution( vrs.getViewRegistration( vid ) ) );
+		assertEquals( 3, secondLinks.size() );
+
+		final HashMap< ViewId, AffineTransform3D > second = LinearTranslationSolver.computeTranslations( secondLinks, fixed, groups(), solutions.getCache(), false, log::add );
+		assertTrue( log.get( 0 ).contains( "2 connected set(s) (1 solved)" ) );
+
+		for ( final int setup : new int[] { 0, 1, 2 } )
+			assertArrayEquals( translation( first.get( new ViewId( 0, setup ) ) ), translation( second.get( new ViewId( 0, setup ) ) ), 0 );
+
+		assertArrayEquals( new double[] { 104, 3, 0 }, translation( second.get( new ViewId( 0, 11 ) ) ), 1e-6 );
+		assertFalse( Arrays.equals( translation( first.get( new ViewId( 0, 11 ) ) ), translation( second.get( new ViewId( 0, 11 ) ) ) ) );
+
+		// the new solution replaces the last one instead of being added to it
+		second.forEach( (k, v) -> solutions.apply( vrs.getViewRegistration( k ), v ) );
+
+		final ViewRegistration vr = vrs.getViewRegistration( new ViewId( 0, 11 ) );
+		assertEquals( numTransforms + 1, vr.getTransformList().size() );
+		assertEquals( 11 * 100 + 104, vr.getModel().get( 0, 3 ), 1e-6 );
+	}
+
+	@Test
+	public void testRecomputedLinksKeepLastSolution()
+	{
+		final ViewRegistrations vrs = registrations();
+		final List< ViewId > fixed = Arrays.asList( new ViewId( 0, 0 ), new ViewId( 0, 10 ) );
+
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+		links.add( link( 0, 1, new double[] { 101, 2, 0 }, vrs ) );
+		links.add( link( 1, 2, new double[] { 99, -1, 1 }, vrs ) );
+		links.add( link( 10, 11, new double[] { 100, 3, 0 }, vrs ) );
+
+		final IncrementalTranslationSolutions solutions = new IncrementalTranslationSolutions();
+
+		// first run, both connected sets are solved and applied
+		final List< PairwiseStitchingResult< ViewId > > firstLinks = GlobalOptStitcher.upToDateLinks( links, solutions, vid -> vrs.getViewRegistration( vid ) );
+		assertEquals( 3, firstLinks.size() );
+
+		final HashMap< ViewId, AffineTransform3D > first = LinearTranslationSolver.computeTranslations( firstLinks, fixed, groups(), solutions.getCache(), false, s -> {} );
+		first.forEach( (k, v) -> solutions.apply( vrs.getViewRegistration( k ), v ) );
+
+		final int numTransforms = vrs.getViewRegistration( new ViewId( 0, 1 ) ).getTransformList().size();
+
+		// the pairwise shifts of the first chain are recomputed for the aligned views, the second chain keeps its link
+		final List< PairwiseStitchingResult< ViewId > > recomputedLinks = new ArrayList<>();
+		recomputedLinks.add( link( 0, 1, new double[] { 0.5, 0, 0 }, vrs ) );
+		recomputedLinks.add( link( 1, 2, new double[] { 0, 0, 0 }, vrs ) );
+		recomputedLinks.add( links.get( 2 ) );
+
+		// second run, no link is discarded and the cache is cleared because the registrations changed
+		final List< String > log = new ArrayList<>();
+		final List< PairwiseStitchingResult< ViewId > > secondLinks = GlobalOptStitcher.upToDateLinks( recomputedLinks, solutions, vid -> vrs.getViewRegistration( vid ) );
+		assertEquals( 3, secondLinks.size() );
+
+		final HashMap< ViewId, AffineTransform3D > second = LinearTranslationSolver.computeTranslations( secondLinks, fixed, groups(), solutions.getCache(), false, log::add );
+		assertTrue( log.get( 0 ).contains( "2 connected set(s) (2 solved)" ) );
+
+		second.forEach( (k, v) -> solutions.apply( vrs.getViewRegistration( k ), v ) );
+
+		// the new solution of the first chain is added to the last one
+		final ViewRegistration vr1 = vrs.getViewRegistration( new ViewId( 0, 1 ) );
+		assertEquals( numTransforms + 1, vr1.getTransformList().size() );
+		assertEquals( 1 * 100 + 101 + 0.5, vr1.getModel().get( 0, 3 ), 1e-6 );
+		assertEquals( 2 * 100 + 101 + 99 + 0.5, vrs.getViewRegistration( new ViewId( 0, 2 ) ).getModel().get( 0, 3 ), 1e-6 );
+
+		// the second chain still replaces its last solution
+		final ViewRegistration vr11 = vrs.getViewRegistration( new ViewId( 0, 11 ) );
+		assertEquals( numTransforms, vr11.getTransformList().size() );
+		assertEquals( 11 * 100 + 100, vr11.getModel().get( 0, 3 ), 1e-6 );
+
+		// a third run with the same links is still valid and replaces the new solution
+		assertEquals( 3, GlobalOptStitcher.upToDateLinks( recomputedLinks, solutions, vid -> vrs.getViewRegistration( vid ) ).size() );
+	}
+
+	@Test
+	public void testRegistrationChangedSinceSolution()
+	{
+		final ViewRegistrations vrs = registrations();
+		final IncrementalTranslationSolutions solutions = new IncrementalTranslationSolutions();
+		final ViewRegistration vr = vrs.getViewRegistration( new ViewId( 0, 1 ) );
+
+		// nothing applied yet
+		assertSame( vr, solutions.registrationBeforeSolution( vr ) );
+
+		final double[] before = vr.getModel().getRowPackedCopy();
+		solutions.apply( vr, translation( new double[] { 5, 0, 0 } ) );
+		assertArrayEquals( before, solutions.registrationBeforeSolution( vr ).getModel().getRowPackedCopy(), 1e-9 );
+
+		// another transformation was added after the solution, e.g. by moving the tile manually
+		final int numTransforms = vr.getTransformList().size();
+		vr.preconcatenateTransform( new ViewTransformAffine( "Manual Transform", translation( new double[] { 0, 7, 0 } ) ) );
+		vr.updateModel();
+
+		assertSame( vr, solutions.registrationBeforeSolution( vr ) );
+
+		// so the next solution is added as well
+		solutions.apply( vr, translation( new double[] { 6, 0, 0 } ) );
+		assertEquals( numTransforms + 2, vr.getTransformList().size() );
+	}
+
+	// the setups 100 px apart in x
+	private static ViewRegistrations registrations()
+	{
+		final List< ViewRegistration > registrations = new ArrayList<>();
+		for ( final int setup : setups )
+		{
+			final ViewRegistration vr = new ViewRegistration( 0, setup );
+			vr.preconcatenateTransform( new ViewTransformAffine( "Translation", translation( new double[] { 100 * setup, 0, 0 } ) ) );
+			vr.updateModel();
+			registrations.add( vr );
+		}
+		return new ViewRegistrations( registrations );
+	}
+
+	private static List< Group< ViewId > > groups()
+	{
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		for ( final int setup : setups )
+			groups.add( group( setup ) );
+		return groups;
+	}
+
+	private static Group< ViewId > group( final int setup )
+	{
+		return new Group<>( Arrays.asList( new ViewId( 0, setup ) ) );
+	}
+
+	private static PairwiseStitchingResult< ViewId > link( final int a, final int b, final double[] t, final ViewRegistrations vrs )
+	{
+		final double hash = PairwiseStitchingResult.calculateHash( vrs.getViewRegistration( new ViewId( 0, a ) ), vrs.getViewRegistration( new ViewId( 0, b ) ) );
+		return new PairwiseStitchingResult<>( new ValuePair<>( group( a ), group( b ) ), null, translation( t ), 1.0, hash );
+	}
+
+	private static AffineTransform3D translation( final double[] t )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.setTranslation( t );
+		return transform;
+	}
+
+	private static double[] translation( final AffineTransform3D t )
+	{
+		return new double[] { t.get( 0, 3 ), t.get( 1, 3 ), t.get( 2, 3 ) };
+	}
+}
@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.global.GlobalOpt;
+import net.preibisch.mvrecon.process.interestpointregistration.global.convergence.SimpleIterativeConvergenceStrategy;
+import net.preibisch.mvrecon.process.interestpointregistration.global.pointmatchcreating.strong.ImageCorrelationPointMatchCreator;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class LinearTranslationSolverTest
+{
+	public static long seed = 2343;
+
+	/*
+	 * a 4x3 grid of groups (setups 0-11) with setup 5 fixed and a chain of 5 groups (setups 20-24) without fixed groups,
+	 * the links are the exact differences of known translations
+	 */
+	private static final int gridWidth = 4, gridHeight = 3, fixedSetup = 5, chainStart = 20, chainLength = 5;
+
+	@Test
+	public void testExactSolution()
+	{
+		final HashMap< Integer, double[] > truth = groundTruth();
+		final List< PairwiseStitchingResult< ViewId > > links = links( truth, new Random( seed ) );
+
+		for ( final boolean multilevel : new boolean[] { false, true } )
+		{
+			final HashMap< ViewId, AffineTransform3D > result = LinearTranslationSolver.computeTranslations(
+					links, Arrays.asList( new ViewId( 0, fixedSetup ) ), groups(), null, multilevel );
+
+			assertEquals( gridWidth * gridHeight + chainLength, result.size() );
+
+			// the grid relative to the fixed group
+			for ( int setup = 0; setup < gridWidth * gridHeight; ++setup )
+				assertArrayEquals( difference( truth.get( setup ), truth.get( fixedSetup ) ), translation( result.get( new ViewId( 0, setup ) ) ), 1e-6 );
+
+			// the chain relative to its first group
+			for ( int setup = chainStart; setup < chainStart + chainLength; ++setup )
+				assertArrayEquals( difference( truth.get( setup ), truth.get( chainStart ) ), translation( result.get( new ViewId( 0, setup ) ) ), 1e-6 );
+		}
+	}
+
+	@Test
+	public void testMultilevelIterations()
+	{
+		// a long chain and a grid, fixed at their first group: Jacobi-preconditioned CG needs about as many iterations
+		// as the graph is long, the V-cycle preconditioner corrects the smooth errors on the coarse levels
+		final int[][] sizes = new int[][] { { 4096, 1 }, { 64, 64 } };
+
+		for ( final int[] size : sizes )
+		{
+			final Random rnd = new Random( seed );
+			final LinearTranslationSolver.SparseSymmetricMatrix laplacian = laplacian( size[ 0 ], size[ 1 ], rnd );
+			final int n = laplacian.size();
+
+			final double[] b = new double[ n ];
+			for ( int i = 0; i < n; ++i )
+				b[ i ] = rnd.nextGaussian();
+
+			final double[] xJacobi = new double[ n ];
+			final double[] xMultilevel = new double[ n ];
+			final int jacobiIterations = LinearTranslationSolver.conjugateGradient( laplacian, b, xJacobi, 1e-10, 10 * n );
+			final int multilevelIterations = LinearTranslationSolver.multilevelSolve( laplacian, b, xMultilevel, 1e-10 );
+
+			assertTrue( multilevelIterations > 0 && 8 * multilevelIterations < jacobiIterations );
+
+			double maxAbs = 0;
+			for ( int i = 0; i < n; ++i )
+				maxAbs = Math.max( maxAbs, Math.abs( xJacobi[ i ] ) );
+
+			assertArrayEquals( xJacobi, xMultilevel, 1e-6 * maxAbs );
+		}
+	}
+
+	// weighted Laplacian of a width x height grid with random link weights, the first group is fixed
+	private static LinearTranslationSolver.SparseSymmetricMatrix laplacian( final int width, final int height, final Random rnd )
+	{
+		final LinearTranslationSolver.SparseSymmetricMatrix laplacian = new LinearTranslationSolver.SparseSymmetricMatrix( width * height - 1 );
+
+		for ( int y = 0; y < height; ++y )
+			for ( int x = 0; x < width; ++x )
+			{
+				final int i = y * width + x;
+
+				if ( x + 1 < width )
+					addLink( laplacian, i - 1, i, 0.5 + 0.5 * rnd.nextDouble() );
+				if ( y + 1 < height )
+					addLink( laplacian, i - 1, i + width - 1, 0.5 + 0.5 * rnd.nextDouble() );
+			}
+
+		laplacian.compress();
+
+		return laplacian;
+	}
+
+	// unknown -1 is the fixed group
+	private static void addLink( final LinearTranslationSolver.SparseSymmetricMatrix laplacian, final int a, final int b, final double w )
+	{
+		if ( a >= 0 )
+			laplacian.add( a, a, w );
+
+		laplacian.add( b, b, w );
+
+		if ( a >= 0 )
+		{
+			laplacian.add( a, b, -w );
+			laplacian.add( b, a, -w );
+		}
+	}
+
+	@Test
+	public void testLeastSquaresWeighting()
+	{
+		// two contradicting links between the same groups, the result is their weighted mean
+		final Group< ViewId > a = group( 0 ), b = group( 1 );
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+		links.add( link( a, b, new double[] { 10, 0, 0 }, 0.75 ) );
+		links.add( link( a, b, new double[] { 14, 4, 0 }, 0.25 ) );
+
+		final HashMap< ViewId, AffineTransform3D > result = LinearTranslationSolver.computeTranslations(
+				links, Arrays.asList( new ViewId( 0, 0 ) ), Arrays.asList( a, b ) );
+
+		assertArrayEquals( new double[] { 0, 0, 0 }, translation( result.get( new ViewId( 0, 0 ) ) ), 1e-9 );
+		assertArrayEquals( new double[] { 11, 1, 0 }, translation( result.get( new ViewId( 0, 1 ) ) ), 1e-6 );
+	}
+
+	@Test
+	public void testMatchesGlobalOpt()
+	{
+		// noisy grid links plus contradicting diagonals, two fixed views pull the solution apart
+		final Random rnd = new Random( seed );
+		final HashMap< Integer, double[] > truth = groundTruth();
+
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		for ( int setup = 0; setup < gridWidth * gridHeight; ++setup )
+			groups.add( group( setup ) );
+
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+		for ( final PairwiseStitchingResult< ViewId > link : links( truth, rnd ) )
+		{
+			if ( link.pair().getA().getViews().iterator().next().getViewSetupId() >= chainStart )
+				continue;
+
+			final double[] t = new double[ 3 ];
+			for ( int d = 0; d < 3; ++d )
+				t[ d ] = link.getTransform().get( d, 3 ) + rnd.nextGaussian();
+			links.add( link( link.pair().getA(), link.pair().getB(), t, link.r() ) );
+		}
+
+		for ( int y = 0; y + 1 < gridHeight; ++y )
+			for ( int x = 0; x + 1 < gridWidth; ++x )
+			{
+				final int setup = y * gridWidth + x;
+				final double[] t = difference( truth.get( setup + gridWidth + 1 ), truth.get( setup ) );
+				t[ 0 ] += 5 + rnd.nextDouble() * 5;
+				t[ 1 ] -= 5 + rnd.nextDouble() * 5;
+				links.add( link( group( setup ), group( setup + gridWidth + 1 ), t, 0.1 + 0.4 * rnd.nextDouble() ) );
+			}
+
+		final List< ViewId > fixed = Arrays.asList( new ViewId( 0, 0 ), new ViewId( 0, gridWidth * gridHeight - 1 ) );
+
+		final HashMap< ViewId, AffineTransform3D > linear = LinearTranslationSolver.computeTranslations( links, fixed, groups );
+
+		final HashMap< ViewId, Tile< TranslationModel3D > > tiles = GlobalOpt.computeTiles(
+				new TranslationModel3D(),
+				new ImageCorrelationPointMatchCreator( links ),
+				new SimpleIterativeConvergenceStrategy( Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE ),
+				fixed,
+				groups );
+
+		assertEquals( tiles.keySet(), linear.keySet() );
+
+		for ( final ViewId viewId : tiles.keySet() )
+		{
+			final AffineTransform3D iterative = new AffineTransform3D();
+			iterative.set( tiles.get( viewId ).getModel().getMatrix( null ) );
+			assertArrayEquals( "view " + viewId.getViewSetupId(), translation( iterative ), translation( linear.get( viewId ) ), 5e-2 );
+		}
+	}
+
+	@Test
+	public void testCacheOnlySolvesChangedComponents()
+	{
+		final HashMap< Integer, double[] > truth = groundTruth();
+		final List< PairwiseStitchingResult< ViewId > > links = links( truth, new Random( seed ) );
+		final List< ViewId > fixed = Arrays.asList( new ViewId( 0, fixedSetup ) );
+
+		final LinearTranslationSolver.Cache cache = new LinearTranslationSolver.Cache();
+		final HashMap< ViewId, AffineTransform3D > first = LinearTranslationSolver.computeTranslations( links, fixed, groups(), cache, false );
+
+		// the same links again
+		final HashMap< ViewId, AffineTransform3D > second = LinearTranslationSolver.computeTranslations( links, fixed, groups(), cache, false );
+		for ( final ViewId v : first.keySet() )
+			assertArrayEquals( translation( first.get( v ) ), translation( second.get( v ) ), 0 );
+
+		// change one link of the chain, the grid is taken from the cache
+		final List< PairwiseStitchingResult< ViewId > > changedLinks = new ArrayList<>();
+		for ( final PairwiseStitchingResult< ViewId > psr : links )
+			if ( psr.pair().getA().equals( group( chainStart + 1 ) ) && psr.pair().getB().equals( group( chainStart + 2 ) ) )
+				changedLinks.add( link( psr.pair().getA(), psr.pair().getB(), new double[] { 7, -3, 1 }, psr.r() ) );
+			else
+				changedLinks.add( psr );
+
+		final HashMap< ViewId, AffineTransform3D > third = LinearTranslationSolver.computeTranslations( changedLinks, fixed, groups(), cache, false );
+		final HashMap< ViewId, AffineTransform3D > expected = LinearTranslationSolver.computeTranslations( changedLinks, fixed, groups() );
+
+		for ( int setup = 0; setup < gridWidth * gridHeight; ++setup )
+			assertArrayEquals( translation( first.get( new ViewId( 0, setup ) ) ), translation( third.get( new ViewId( 0, setup ) ) ), 0 );
+
+		for ( int setup = chainStart; setup < chainStart + chainLength; ++setup )
+			assertArrayEquals( translation( expected.get( new ViewId( 0, setup ) ) ), translation( third.get( new ViewId( 0, setup ) ) ), 1e-6 );
+
+		// the changed link moved the end of the chain
+		assertFalse( Arrays.equals( translation( first.get( new ViewId( 0, chainStart + 4 ) ) ), translation( third.get( new ViewId( 0, chainStart + 4 ) ) ) ) );
+	}
+
+	@Test
+	public void testCacheIsSolved()
+	{
+		final LinearTranslationSolver.Cache cache = new LinearTranslationSolver.Cache();
+		final Group< ViewId > g0 = group( 0 ), g1 = group( 1 ), g2 = group( 2 );
+		final Object signature = Arrays.asList( "links", 1 );
+
+		assertFalse( cache.isSolved( Arrays.asList( g0, g1 ), signature ) );
+
+		cache.put( g0, signature, new double[] { 1, 2, 3 } );
+		cache.put( g1, signature, new double[] { 4, 5, 6 } );
+
+		// an equal signature of the next run matches
+		assertTrue( cache.isSolved( Arrays.asList( g0, g1 ), Arrays.asList( "links", 1 ) ) );
+		assertArrayEquals( new double[] { 4, 5, 6 }, cache.getTranslation( g1 ), 0 );
+
+		// different links, or a group that was not solved
+		assertFalse( cache.isSolved( Arrays.asList( g0, g1 ), Arrays.asList( "links", 2 ) ) );
+		assertFalse( cache.isSolved( Arrays.asList( g0, g1, g2 ), signature ) );
+
+		// the groups were solved separately (for equal, but not the same links), e.g. they were not connected before
+		cache.put( g1, Arrays.asList( "links", 1 ), new double[] { 4, 5, 6 } );
+		assertFalse( cache.isSolved( Arrays.asList( g0, g1 ), signature ) );
+
+		cache.clear();
+		assertFalse( cache.isSolved( Arrays.asList( g0 ), signature ) );
+	}
+
+	private static HashMap< Integer, double[] > groundTruth()
+	{
+		final Random rnd = new Random( seed );
+		final HashMap< Integer, double[] > truth = new HashMap<>();
+
+		for ( int setup = 0; setup < gridWidth * gridHeight; ++setup )
+			truth.put( setup, new double[] { rnd.nextGaussian() * 5, rnd.nextGaussian() * 5, rnd.nextGaussian() * 2 } );
+
+		for ( int setup = chainStart; setup < chainStart + chainLength; ++setup )
+			truth.put( setup, new double[] { rnd.nextGaussian() * 5, rnd.nextGaussian() * 5, rnd.nextGaussian() * 2 } );
+
+		return truth;
+	}
+
+	// groups in an order different from the setup ids, the solver has to sort them itself
+	private static List< Group< ViewId > > groups()
+	{
+		final List< Group< ViewId > > groups = new ArrayList<>();
+		for ( int setup = chainStart + chainLength - 1; setup >= chainStart; --setup )
+			groups.add( group( setup ) );
+		for ( int setup = gridWidth * gridHeight - 1; setup >= 0; --setup )
+			groups.add( group( setup ) );
+		return groups;
+	}
+
+	// 4-neighborhood links of the grid and links along the chain, with random correlations
+	private static List< PairwiseStitchingResult< ViewId > > links( final HashMap< Integer, double[] > truth, final Random rnd )
+	{
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+
+		for ( int y = 0; y < gridHeight; ++y )
+			for ( int x = 0; x < gridWidth; ++x )
+			{
+				final int setup = y * gridWidth + x;
+				if ( x + 1 < gridWidth )
+					links.add( link( group( setup ), group( setup + 1 ), difference( truth.get( setup + 1 ), truth.get( setup ) ), 0.5 + 0.5 * rnd.nextDouble() ) );
+				if ( y + 1 < gridHeight )
+					links.add( link( group( setup ), group( setup + gridWidth ), difference( truth.get( setup + gridWidth ), truth.get( setup ) ), 0.5 + 0.5 * rnd.nextDouble() ) );
+			}
+
+		for ( int setup = chainStart; setup + 1 < chainStart + chainLength; ++setup )
+			links.add( link( group( setup ), group( setup + 1 ), difference( truth.get( setup + 1 ), truth.get( setup ) ), 0.5 + 0.5 * rnd.nextDouble() ) );
+
+		return links;
+	}
+
+	private static Group< ViewId > group( final int setup )
+	{
+		return new Group<>( Arrays.asList( new ViewId( 0, setup ) ) );
+	}
+
+	private static PairwiseStitchingResult< ViewId > link( final Group< ViewId > a, final Group< ViewId > b, final double[] t, final double r )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.setTranslation( t );
+		return new PairwiseStitchingResult<>( new ValuePair<>( a, b ), new FinalRealInterval( new double[ 3 ], new double[] { 100, 100, 10 } ), transform, r, 0.0 );
+	}
+
+	private static double[] difference( final double[] a, final double[] b )
+	{
+		return new double[] { a[ 0 ] - b[ 0 ], a[ 1 ] - b[ 1 ], a[ 2 ] - b[ 2 ] };
+	}
+
+	private static double[] translation( final AffineTransform3D t )
+	{
+		return new double[] { t.get( 0, 3 ), t.get( 1, 3 ), t.get( 2, 3 ) };
+	}
+}
@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class LoopClosureFilterTest
+{
+	public static long seed = 4353;
+
+	private static final int gridSize = 3;
+
+	@Test
+	public void testOneCorruptedLink()
+	{
+		final Random rnd = new Random( seed );
+		final double[][] truth = new double[ gridSize * gridSize ][];
+		for ( int i = 0; i < truth.length; ++i )
+			truth[ i ] = new double[] { rnd.nextGaussian() * 5, rnd.nextGaussian() * 5, rnd.nextGaussian() * 2 };
+
+		// 4-neighborhood links with some noise (at most 0.45 px per dimension along any cycle), one of them (a weak one) is off by 20 px
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+		PairwiseStitchingResult< ViewId > corrupted = null;
+
+		for ( int y = 0; y < gridSize; ++y )
+			for ( int x = 0; x < gridSize; ++x )
+			{
+				final int i = y * gridSize + x;
+				final List< Integer > neighbors = new ArrayList<>();
+				if ( x + 1 < gridSize )
+					neighbors.add( i + 1 );
+				if ( y + 1 < gridSize )
+					neighbors.add( i + gridSize );
+
+				for ( final int j : neighbors )
+				{
+					final double[] t = new double[ 3 ];
+					for ( int d = 0; d < 3; ++d )
+						t[ d ] = truth[ j ][ d ] - truth[ i ][ d ] + ( rnd.nextDouble() - 0.5 ) * 0.1;
+
+					if ( i == 4 && j == 5 )
+					{
+						t[ 0 ] += 20;
+						corrupted = link( i, j, t, 0.5 );
+						links.add( corrupted );
+					}
+					else
+					{
+						links.add( link( i, j, t, 0.9 ) );
+					}
+				}
+			}
+
+		final List< PairwiseStitchingResult< ViewId > > inconsistent = LoopClosureFilter.findInconsistentLinks( links, 2.0 );
+
+		assertEquals( 1, inconsistent.size() );
+		assertSame( corrupted, inconsistent.get( 0 ) );
+
+		// a threshold above the error keeps all links
+		assertTrue( LoopClosureFilter.findInconsistentLinks( links, 25.0 ).isEmpty() );
+	}
+
+	@Test
+	public void testTreeHasNoInconsistentLinks()
+	{
+		// without cycles there is nothing to compare against
+		final List< PairwiseStitchingResult< ViewId > > links = new ArrayList<>();
+		links.add( link( 0, 1, new double[] { 10, 0, 0 }, 0.9 ) );
+		links.add( link( 1, 2, new double[] { 100, 50, 0 }, 0.2 ) );
+		links.add( link( 3, 4, new double[] { -5, 3, 1 }, 0.7 ) );
+
+		assertTrue( LoopClosureFilter.findInconsistentLinks( links, 0.0 ).isEmpty() );
+	}
+
+	private static PairwiseStitchingResult< ViewId > link( final int a, final int b, final double[] t, final double r )
+	{
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.setTranslation( t );
+		return new PairwiseStitchingResult<>(
+				new ValuePair<>( new Group<>( Arrays.asList( new ViewId( 0, a ) ) ), new Group<>( Arrays.asList( new ViewId( 0, b ) ) ) ),
+				null, transform, r, 0.0 );
+	}
+}
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.algorithm.globalopt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+public class TransformationToolsTest
+{
+	private static final int gridSize = 6;
+
+	@Test
+	public void testSortPairsForLocalityIsPermutation()
+	{
+		// a scrambled grid and a second component
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = scrambledGrid();
+		pairs.add( pair( 100, 101 ) );
+		pairs.add( 7, pair( 101, 102 ) );
+
+		final int[] order = TransformationTools.sortPairsForLocality( pairs );
+		final int[] sorted = order.clone();
+		Arrays.sort( sorted );
+
+		for ( int i = 0; i < pairs.size(); ++i )
+			assertEquals( i, sorted[ i ] );
+	}
+
+	@Test
+	public void testPairsSharingAViewStayAdjacent()
+	{
+		// the pairs of view 0 are interleaved with those of view 2 in the input
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+		pairs.add( pair( 0, 1 ) );
+		pairs.add( pair( 2, 3 ) );
+		pairs.add( pair( 0, 4 ) );
+		pairs.add( pair( 2, 5 ) );
+		pairs.add( pair( 0, 6 ) );
+		pairs.add( pair( 7, 8 ) );
+
+		assertArrayEquals( new int[] { 0, 2, 4, 1, 3, 5 }, TransformationTools.sortPairsForLocality( pairs ) );
+
+		// on a grid, all pairs of a view are placed within about one front of tiles
+		final List< Pair< Group< ViewId >, Group< ViewId > > > grid = scrambledGrid();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > sorted = TransformationTools.inOrder( grid, TransformationTools.sortPairsForLocality( grid ) );
+
+		assertTrue( maxSpan( grid ) > 3 * gridSize );
+		assertTrue( maxSpan( sorted ) <= 3 * gridSize );
+	}
+
+	@Test
+	public void testToInputOrderRestoresOrder()
+	{
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = scrambledGrid();
+		final int[] order = TransformationTools.sortPairsForLocality( pairs );
+		final List< Pair< Group< ViewId >, Group< ViewId > > > sorted = TransformationTools.inOrder( pairs, order );
+
+		// the results are computed in the sorted order
+		final List< String > results = new ArrayList<>();
+		for ( int k = 0; k < sorted.size(); ++k )
+		{
+			assertSame( pairs.get( order[ k ] ), sorted.get( k ) );
+			results.add( sorted.get( k ).getA() + " <> " + sorted.get( k ).getB() );
+		}
+
+		final List< String > inputOrder = TransformationTools.toInputOrder( results, order );
+
+		assertEquals( pairs.size(), inputOrder.size() );
+		for ( int i = 0; i < pairs.size(); ++i )
+			assertEquals( pairs.get( i ).getA() + " <> " + pairs.get( i ).getB(), inputOrder.get( i ) );
+	}
+
+	/*
+	 * the 4-neighborhood pairs of a gridSize x gridSize grid in a scrambled (but fixed) order
+	 */
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > scrambledGrid()
+	{
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+		for ( int y = 0; y < gridSize; ++y )
+			for ( int x = 0; x < gridSize; ++x )
+			{
+				final int i = y * gridSize + x;
+				if ( x + 1 < gridSize )
+					pairs.add( pair( i, i + 1 ) );
+				if ( y + 1 < gridSize )
+					pairs.add( pair( i, i + gridSize ) );
+			}
+
+		// 7 and the number of pairs (60) are coprime
+		final List< Pair< Group< ViewId >, Group< ViewId > > > scrambled = new ArrayList<>();
+		for ( int k = 0; k < pairs.size(); ++k )
+			scrambled.add( pairs.get( ( k * 7 ) % pairs.size() ) );
+
+		return scrambled;
+	}
+
+	/*
+	 * the largest distance in the list between two pairs that share a view
+	 */
+	private static int maxSpan( final List< Pair< Group< ViewId >, Group< ViewId > > > pairs )
+	{
+		final HashMap< Group< ViewId >, int[] > firstLast = new HashMap<>();
+		int maxSpan = 0;
+
+		for ( int k = 0; k < pairs.size(); ++k )
+			for ( final Group< ViewId > group : Arrays.asList( pairs.get( k ).getA(), pairs.get( k ).getB() ) )
+			{
+				final int[] range = firstLast.computeIfAbsent( group, g -> new int[] { pairs.size(), -1 } );
+				range[ 0 ] = Math.min( range[ 0 ], k );
+				range[ 1 ] = Math.max( range[ 1 ], k );
+				maxSpan = Math.max( maxSpan, range[ 1 ] - range[ 0 ] );
+			}
+
+		return maxSpan;
+	}
+
+	private static Pair< Group< ViewId >, Group< ViewId > > pair( final int a, final int b )
+	{
+		return new ValuePair<>( group( a ), group( b ) );
+	}
+
+	private static Group< ViewId > group( final int setup )
+	{
+		return new Group<>( Arrays.asList( new ViewId( 0, setup ) ) );
+	}
+}
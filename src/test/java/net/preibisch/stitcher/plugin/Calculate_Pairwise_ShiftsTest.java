@@ -0,0 +1,341 @@
+/*-
+ * #%L
+ * Multiview stitching of large datasets.
+ * %%
+ * Copyright (C) 2016 - 2023 Big Stitcher developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.stitcher.plugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import mpicbg.spim.data.generic.sequence.ImgLoaderHint;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.registration.ViewTransformAffine;
+import mpicbg.spim.data.sequence.Angle;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.Illumination;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.sequence.SequenceDescription;
+import mpicbg.spim.data.sequence.SetupImgLoader;
+import mpicbg.spim.data.sequence.Tile;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.ViewSetup;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.PairwiseStitchingResult;
+import net.preibisch.mvrecon.fiji.spimdata.stitchingresults.StitchingResults;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import net.preibisch.stitcher.algorithm.GroupedViewAggregator;
+import net.preibisch.stitcher.algorithm.PairwiseStitchingParameters;
+import net.preibisch.stitcher.algorithm.globalopt.TransformationTools;
+
+public class Calculate_Pairwise_ShiftsTest
+{
+	public static long seed = 7321;
+
+	private static final long[] ds = new long[] { 1, 1, 1 };
+
+	/*
+	 * four tiles in a row cut from one random volume, 0-1, 1-2 and 2-3 overlap, 0 and 3 do not
+	 */
+	private static final long[] tileMinX = new long[] { 0, 50, 100, 130 };
+	private static final long[] tileSize = new long[] { 70, 60, 12 };
+
+	@Test
+	public void testResultsAreDeliveredOnceInInputOrder()
+	{
+		final Fixture fixture = new Fixture( -1 );
+		final StitchingResults stitchingResults = new StitchingResults();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = pairs();
+
+		// old results, one of them in the other orientation
+		final PairwiseStitchingResult< ViewId > old0 = oldResult( reversed( pairs.get( 0 ) ) );
+		stitchingResults.setPairwiseResultForPair( old0.pair(), old0 );
+		final PairwiseStitchingResult< ViewId > old1 = oldResult( pairs.get( 1 ) );
+		stitchingResults.setPairwiseResultForPair( old1.pair(), old1 );
+
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > oldResults =
+				Calculate_Pairwise_Shifts.removeResults( stitchingResults, new ArrayList<>( stitchingResults.getPairwiseResults().keySet() ) );
+		assertEquals( 2, oldResults.size() );
+		assertTrue( stitchingResults.getPairwiseResults().isEmpty() );
+
+		final Set< Set< Group< ViewId > > > newResults = new HashSet<>();
+		final List< PairwiseStitchingResult< ViewId > > delivered = new ArrayList<>();
+		final Consumer< PairwiseStitchingResult< ViewId > > adder = Calculate_Pairwise_Shifts.resultAdder( stitchingResults, newResults, delivered::add );
+
+		final ArrayList< PairwiseStitchingResult< ViewId > > results = TransformationTools.computePairs(
+				pairs, new PairwiseStitchingParameters(), fixture.vrs, fixture.sd, new GroupedViewAggregator(), ds, adder );
+
+		assertNotNull( results );
+
+		// the overlapping pairs, in input order
+		final List< Pair< Group< ViewId >, Group< ViewId > > > expected = Arrays.asList( pairs.get( 0 ), pairs.get( 1 ), pairs.get( 3 ) );
+		assertEquals( expected.size(), results.size() );
+
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			final PairwiseStitchingResult< ViewId > result = results.get( i );
+
+			assertEquals( expected.get( i ).getA(), result.pair().getA() );
+			assertEquals( expected.get( i ).getB(), result.pair().getB() );
+
+			// handed over exactly once, and it replaced the old result
+			int count = 0;
+			for ( final PairwiseStitchingResult< ViewId > d : delivered )
+				if ( d == result )
+					++count;
+			assertEquals( 1, count );
+
+			assertSame( result, stitchingResults.getPairwiseResults().get( result.pair() ) );
+		}
+
+		assertEquals( results.size(), delivered.size() );
+		assertEquals( results.size(), stitchingResults.getPairwiseResults().size() );
+		assertEquals( 0, Calculate_Pairwise_Shifts.restoreOldResults( stitchingResults, oldResults, newResults ) );
+	}
+
+	@Test
+	public void testOldResultsAreRestoredAfterFailure()
+	{
+		// loading view 3 fails, after the first result came in
+		final Fixture fixture = new Fixture( 3 );
+		final StitchingResults stitchingResults = new StitchingResults();
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = pairs();
+
+		final List< PairwiseStitchingResult< ViewId > > old = new ArrayList<>();
+		old.add( oldResult( reversed( pairs.get( 0 ) ) ) );
+		old.add( oldResult( pairs.get( 1 ) ) );
+		old.add( oldResult( pairs.get( 3 ) ) );
+		for ( final PairwiseStitchingResult< ViewId > psr : old )
+			stitchingResults.setPairwiseResultForPair( psr.pair(), psr );
+
+		final Map< Pair< Group< ViewId >, Group< ViewId > >, PairwiseStitchingResult< ViewId > > oldResults =
+				Calculate_Pairwise_Shifts.removeResults( stitchingResults, new ArrayList<>( stitchingResults.getPairwiseResults().keySet() ) );
+
+		final Set< Set< Group< ViewId > > > newResults = new HashSet<>();
+		final List< PairwiseStitchingResult< ViewId > > delivered = new ArrayList<>();
+		final Consumer< PairwiseStitchingResult< ViewId > > adder = Calculate_Pairwise_Shifts.resultAdder( stitchingResults, newResults, psr -> {
+			delivered.add( psr );
+			fixture.firstResult.countDown();
+		} );
+
+		ArrayList< PairwiseStitchingResult< ViewId > > results;
+		try
+		{
+			results = TransformationTools.computePairs(
+					pairs, new PairwiseStitchingParameters(), fixture.vrs, fixture.sd, new GroupedViewAggregator(), ds, adder );
+		}
+		catch ( final RuntimeException e )
+		{
+			results = null;
+		}
+
+		assertNull( results );
+		assertFalse( delivered.isEmpty() );
+
+		Calculate_Pairwise_Shifts.restoreOldResults( stitchingResults, oldResults, newResults );
+
+		// every pair has one result again: the new one if it came in (it is kept), the old one (in its orientation) otherwise
+		assertEquals( old.size(), stitchingResults.getPairwiseResults().size() );
+
+		for ( final PairwiseStitchingResult< ViewId > o : old )
+		{
+			PairwiseStitchingResult< ViewId > newResult = null;
+			for ( final PairwiseStitchingResult< ViewId > d : delivered )
+				if ( new HashSet<>( Arrays.asList( d.pair().getA(), d.pair().getB() ) ).equals( new HashSet<>( Arrays.asList( o.pair().getA(), o.pair().getB() ) ) ) )
+				{
+					assertNull( "delivered twice", newResult );
+					newResult = d;
+				}
+
+			if ( newResult == null )
+			{
+				assertSame( o, stitchingResults.getPairwiseResults().get( o.pair() ) );
+			}
+			else
+			{
+				assertSame( newResult, stitchingResults.getPairwiseResults().get( newResult.pair() ) );
+				assertFalse( stitchingResults.getPairwiseResults().containsValue( o ) );
+			}
+		}
+
+		// the pair with view 3 cannot have a new result
+		assertSame( old.get( 2 ), stitchingResults.getPairwiseResults().get( old.get( 2 ).pair() ) );
+	}
+
+	/*
+	 * 1-2, 0-1, 0-3 (no overlap) and 2-3
+	 */
+	private static List< Pair< Group< ViewId >, Group< ViewId > > > pairs()
+	{
+		final List< Pair< Group< ViewId >, Group< ViewId > > > pairs = new ArrayList<>();
+		pairs.add( new ValuePair<>( group( 1 ), group( 2 ) ) );
+		pairs.add( new ValuePair<>( group( 0 ), group( 1 ) ) );
+		pairs.add( new ValuePair<>( group( 0 ), group( 3 ) ) );
+		pairs.add( new ValuePair<>( group( 2 ), group( 3 ) ) );
+		return pairs;
+	}
+
+	private static Group< ViewId > group( final int setup )
+	{
+		return new Group<>( Arrays.asList( new ViewId( 0, setup ) ) );
+	}
+
+	private static Pair< Group< ViewId >, Group< ViewId > > reversed( final Pair< Group< ViewId >, Group< ViewId > > pair )
+	{
+		return new ValuePair<>( pair.getB(), pair.getA() );
+	}
+
+	private static PairwiseStitchingResult< ViewId > oldResult( final Pair< Group< ViewId >, Group< ViewId > > pair )
+	{
+		final AffineTransform3D t = new AffineTransform3D();
+		t.translate( 1, 2, 3 );
+		return new PairwiseStitchingResult<>( pair, null, t, 0.5, 0 );
+	}
+
+	private static class Fixture
+	{
+		final SequenceDescription sd;
+		final ViewRegistrations vrs;
+		final CountDownLatch firstResult = new CountDownLatch( 1 );
+
+		/*
+		 * @param failingSetup loading this setup fails (once the first result came in), -1 for none
+		 */
+		Fixture( final int failingSetup )
+		{
+			final Img< UnsignedShortType > volume = ArrayImgs.unsignedShorts( 200, tileSize[ 1 ], tileSize[ 2 ] );
+			final Random rnd = new Random( seed );
+			for ( final UnsignedShortType t : volume )
+				t.set( rnd.nextInt( 4096 ) );
+
+			final List< ViewSetup > setups = new ArrayList<>();
+			final List< ViewRegistration > registrations = new ArrayList<>();
+			final List< Img< UnsignedShortType > > tiles = new ArrayList<>();
+
+			for ( int setup = 0; setup < tileMinX.length; ++setup )
+			{
+				final long[] min = new long[] { tileMinX[ setup ], 0, 0 };
+				final long[] max = new long[] { tileMinX[ setup ] + tileSize[ 0 ] - 1, tileSize[ 1 ] - 1, tileSize[ 2 ] - 1 };
+
+				final Img< UnsignedShortType > tile = ArrayImgs.unsignedShorts( tileSize );
+				final RandomAccessibleInterval< UnsignedShortType > source = Views.zeroMin( Views.interval( volume, new FinalInterval( min, max ) ) );
+				final Cursor< UnsignedShortType > c = tile.localizingCursor();
+				final RandomAccess< UnsignedShortType > ra = source.randomAccess();
+				while ( c.hasNext() )
+				{
+					c.fwd();
+					ra.setPosition( c );
+					c.get().set( ra.get() );
+				}
+				tiles.add( tile );
+
+				setups.add( new ViewSetup( setup, "setup " + setup, new FinalDimensions( tileSize ), new FinalVoxelDimensions( "px", 1, 1, 1 ),
+						new Tile( setup ), new Channel( 0 ), new Angle( 0 ), new Illumination( 0 ) ) );
+
+				final AffineTransform3D m = new AffineTransform3D();
+				m.translate( tileMinX[ setup ], 0, 0 );
+
+				final ViewRegistration vr = new ViewRegistration( 0, setup );
+				vr.preconcatenateTransform( new ViewTransformAffine( "Translation", m ) );
+				vr.updateModel();
+				registrations.add( vr );
+			}
+
+			final ImgLoader imgLoader = new ImgLoader()
+			{
+				@Override
+				public SetupImgLoader< ? > getSetupImgLoader( final int setupId )
+				{
+					return new SetupImgLoader< UnsignedShortType >()
+					{
+						@Override
+						public RandomAccessibleInterval< UnsignedShortType > getImage( int timepointId, ImgLoaderHint... hints )
+						{
+							if ( setupId == failingSetup )
+							{
+								try
+								{
+									firstResult.await( 10, TimeUnit.SECONDS );
+								}
+								catch ( final InterruptedException e )
+								{
+									Thread.currentThread().interrupt();
+								}
+
+								throw new RuntimeException( "Cannot read setup " + setupId );
+							}
+
+							return tiles.get( setupId );
+						}
+
+						@Override
+						public UnsignedShortType getImageType() { return new UnsignedShortType(); }
+
+						@Override
+						public RandomAccessibleInterval< FloatType > getFloatImage( int timepointId, boolean normalize, ImgLoaderHint... hints ) { return null; }
+
+						@Override
+						public Dimensions getImageSize( int timepointId ) { return new FinalDimensions( tileSize ); }
+
+						@Override
+						public VoxelDimensions getVoxelSize( int timepointId ) { return null; }
+					};
+				}
+			};
+
+			this.sd = new SequenceDescription( new TimePoints( Arrays.asList( new TimePoint( 0 ) ) ), setups, imgLoader, null );
+			this.vrs = new ViewRegistrations( registrations );
+		}
+	}
+}